@@ -15,13 +15,14 @@
  */
 package de.free_creations.conductor;
 
+import de.free_creations.guicomponents.FrameScheduler;
 import de.free_creations.midisong.SongSession;
 import de.free_creations.midiutil.RPositionEx;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.net.URL;
 import java.util.concurrent.ExecutionException;
@@ -30,7 +31,6 @@ import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 import javax.swing.SwingWorker;
-import javax.swing.Timer;
 
 /**
  *
@@ -55,7 +55,16 @@ public class ConductorPanel extends JPanel {
   public static final int BEAT_2_START = 10;
   public static final int BEAT_3_START = 5;
   public static final int BEAT_4_START = 10;
-  private BufferedImage[][] loadedImages = new BufferedImage[BEATTYPES][MAXIMAGECOUNT];
+  /**
+   * the number of frames per row in a sprite sheet
+   */
+  private static final int SHEETCOLUMNS = 10;
+  /**
+   * For each beat type, all frames (scaled to imageWidth x imageHeight) in one
+   * image. Java2D keeps such images in video memory, so drawing a frame is a
+   * simple copy.
+   */
+  private final BufferedImage[] spriteSheets = new BufferedImage[BEATTYPES];
   private BufferedImage defaultImage = null;
   private volatile boolean imagesReady = false;
   private volatile SongSession session = null;
@@ -79,30 +88,32 @@ public class ConductorPanel extends JPanel {
       defaultImage = ImageIO.read(imageUrl);
 
       for (int b = 0; b < BEATTYPES; b++) {
-        for (int i = 0; i < MAXIMAGECOUNT; i++) {
-          filename = getFilename(b, i);
-          imageUrl = ConductorPanel.class.getResource(filename);
-          if (imageUrl != null) {
-            /*
-             * Load and copy into Black- and- White BufferedImage
-             */
-            BufferedImage img = ImageIO.read(imageUrl);
-            int w = img.getWidth(null);
-            int h = img.getHeight(null);
-            BufferedImage gray_Image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
-            Graphics g = gray_Image.getGraphics();
-            g.drawImage(img, 0, 0, null);
-            loadedImages[b][i] = gray_Image;
-            g.dispose();
-          } else {
-            //image not found (that's OK provided i>59)
-            if (i > 59) {
-              loadedImages[b][i] = null;
-            } else {
+        int imageCount = getImageCount(b);
+        int rows = (imageCount + SHEETCOLUMNS - 1) / SHEETCOLUMNS;
+        /*
+         * Load, scale and copy into a Black- and- White sprite sheet
+         */
+        BufferedImage sheet = new BufferedImage(SHEETCOLUMNS * imageWidth,
+                rows * imageHeight, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = sheet.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        try {
+          for (int i = 0; i < imageCount; i++) {
+            filename = getFilename(b, i);
+            imageUrl = ConductorPanel.class.getResource(filename);
+            if (imageUrl == null) {
               throw new RuntimeException("Image not found " + filename);
             }
+            BufferedImage img = ImageIO.read(imageUrl);
+            int x = (i % SHEETCOLUMNS) * imageWidth;
+            int y = (i / SHEETCOLUMNS) * imageHeight;
+            g.drawImage(img, x, y, imageWidth, imageHeight, null);
           }
+        } finally {
+          g.dispose();
         }
+        spriteSheets[b] = sheet;
       }
       System.gc();
       imagesReady = true;
@@ -128,15 +139,31 @@ public class ConductorPanel extends JPanel {
       throw new RuntimeException("unknown beatType " + beatType);
     }
   }
-  private static final int frameRate = 25;
+  /**
+   * The frames are checked at display rate, but the panel is only repainted
+   * when the baton has moved to another image.
+   */
+  private static final int frameRate = 60;
   private static final int timerDelay = 1000 / frameRate;
-  private Timer timer = new Timer(timerDelay, new ActionListener() {
-
+  /**
+   * The sprite (beatType * MAXIMAGECOUNT + image number) that has been
+   * painted last (-1 if none).
+   */
+  private int paintedSprite = -1;
+  private final FrameScheduler.FrameListener frameListener = new FrameScheduler.FrameListener() {
     @Override
-    public void actionPerformed(ActionEvent ae) {
-      repaint();
+    public void frame(FrameScheduler.Frame frame) {
+      SongSession currentSession = session;
+      if (currentSession == null || !imagesReady) {
+        return;
+      }
+      double tick = frame.getTickPosition(currentSession, totalAdvance);
+      if (getSprite(currentSession, tick) != paintedSprite) {
+        repaint((getWidth() - imageWidth) / 2, (getHeight() - imageHeight) / 2,
+                imageWidth, imageHeight);
+      }
     }
-  });
+  };
 
   public ConductorPanel() {
     //setBorder(BorderFactory.createLineBorder(Color.black));
@@ -153,15 +180,17 @@ public class ConductorPanel extends JPanel {
    */
   protected void sessionStarted(SongSession session) {
     this.session = session;
-    timer.start();
+    paintedSprite = -1;
+    FrameScheduler.instance().subscribe(frameListener, timerDelay);
   }
 
   /**
    * This procedure should only be called by the AWT thread...
    */
   protected void sessionStopped() {
-    timer.stop();
+    FrameScheduler.instance().unsubscribe(frameListener);
     this.session = null;
+    paintedSprite = -1;
     currentMeasure = -1;
     repaint();
   }
@@ -171,6 +200,31 @@ public class ConductorPanel extends JPanel {
     return new Dimension(imageWidth, imageHeight);
   }
 
+  private static int getImageCount(int beatType) {
+    switch (beatType) {
+      case BEAT_1:
+        return BEAT_1_IMAGECOUNT;
+      case BEAT_2:
+        return BEAT_2_IMAGECOUNT;
+      case BEAT_3:
+        return BEAT_3_IMAGECOUNT;
+      case BEAT_4:
+        return BEAT_4_IMAGECOUNT;
+    }
+    throw new RuntimeException("unknown beatType " + beatType);
+  }
+
+  /**
+   * Determine the sprite to be shown at the given position.
+   *
+   * @return beatType * MAXIMAGECOUNT + image number
+   */
+  private int getSprite(SongSession currentSession, double tick) {
+    RPositionEx pos = currentSession.tickToRPositionEx(tick);
+    int beatType = getBeatType(pos, currentSession, tick);
+    return beatType * MAXIMAGECOUNT + getImageNumber(pos, beatType);
+  }
+
   private int getImageNumber(RPositionEx pos, int beatType) {
     double phase = pos.getBeat() / pos.getNumerator();
     switch (beatType) {
@@ -238,10 +292,20 @@ public class ConductorPanel extends JPanel {
         g.drawImage(defaultImage, (getWidth() - imageWidth) / 2, (getHeight() - imageHeight) / 2, null);
       } else {
 
+        // read the clock now (not when the frame was scheduled), so the
+        // baton is in time even if the painting has been delayed.
         double tick = session.getTickPosition(totalAdvance);
-        RPositionEx pos = session.tickToRPositionEx(tick);
-        int beatType = getBeatType(pos, session, tick);
-        g.drawImage(loadedImages[beatType][getImageNumber(pos, beatType)], (getWidth() - imageWidth) / 2, (getHeight() - imageHeight) / 2, null);
+        int sprite = getSprite(session, tick);
+        int beatType = sprite / MAXIMAGECOUNT;
+        int image = sprite % MAXIMAGECOUNT;
+        int sx = (image % SHEETCOLUMNS) * imageWidth;
+        int sy = (image / SHEETCOLUMNS) * imageHeight;
+        int dx = (getWidth() - imageWidth) / 2;
+        int dy = (getHeight() - imageHeight) / 2;
+        g.drawImage(spriteSheets[beatType],
+                dx, dy, dx + imageWidth, dy + imageHeight,
+                sx, sy, sx + imageWidth, sy + imageHeight, null);
+        paintedSprite = sprite;
       }
     } else {
       if (loaderTask.isDone()) {
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.guicomponents;
+
+import de.free_creations.midisong.SongSession;
+import java.awt.Component;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Timer;
+
+/**
+ * A single clock for all the animated components. Instead of running one
+ * timer per component, the components subscribe to the frame scheduler. The
+ * scheduler only ticks when a subscriber is due, and never faster than the
+ * display rate; each subscriber is called at its own period (rounded to whole
+ * frames). Subscribers that are due within the same frame are called
+ * together.
+ *
+ * All the subscribers that are called in the same frame receive the same
+ * {@link Frame}; position queries made through the frame are done only once
+ * per frame and the repaints requested through the frame are issued together
+ * at the end of the frame.
+ *
+ * The frame scheduler must only be used from the AWT event dispatching thread.
+ *
+ * @author Harald Postner
+ */
+public final class FrameScheduler {
+
+  private static final Logger logger = Logger.getLogger(FrameScheduler.class.getName());
+  private static final int DEFAULTFRAMERATE = 60;
+  private static final FrameScheduler instance = new FrameScheduler();
+
+  public static FrameScheduler instance() {
+    return instance;
+  }
+
+  /**
+   * The interface to be implemented by animated components.
+   */
+  public interface FrameListener {
+
+    /**
+     * Called on the AWT event dispatching thread once the period of the
+     * subscriber has elapsed.
+     *
+     * @param frame the current frame.
+     */
+    public void frame(Frame frame);
+  }
+
+  /**
+   * The information shared by all subscribers called in the same frame.
+   */
+  public static final class Frame {
+
+    private long number = 0;
+    private long nanoTime = 0;
+    // the entries are reused from frame to frame, only the first
+    // positionCount entries are valid in the current frame.
+    private final ArrayList<Position> positions = new ArrayList<Position>();
+    private int positionCount = 0;
+    private final LinkedHashSet<Component> repaints = new LinkedHashSet<Component>();
+
+    private Frame() {
+    }
+
+    /**
+     * @return the sequence number of this frame.
+     */
+    public long getNumber() {
+      return number;
+    }
+
+    /**
+     * @return the time of this frame (as given by System.nanoTime()).
+     */
+    public long getNanoTime() {
+      return nanoTime;
+    }
+
+    /**
+     * Get the position of the given session. The session is only queried
+     * once per frame and offset; all subscribers asking for the same position
+     * get the same answer.
+     *
+     * @param session the song session.
+     * @param offset see {@link SongSession#getTickPosition(double) }
+     * @return the tick position of the session.
+     */
+    public double getTickPosition(SongSession session, double offset) {
+      for (int i = 0; i < positionCount; i++) {
+        Position entry = positions.get(i);
+        if (entry.session == session && entry.offset == offset) {
+          return entry.tick;
+        }
+      }
+      if (positionCount == positions.size()) {
+        positions.add(new Position());
+      }
+      Position entry = positions.get(positionCount++);
+      entry.session = session;
+      entry.offset = offset;
+      entry.tick = session.getTickPosition(offset);
+      return entry.tick;
+    }
+
+    /**
+     * Request the given component to be repainted at the end of the frame.
+     * Several requests for the same component result in one repaint.
+     *
+     * @param component the component to be repainted.
+     */
+    public void repaint(Component component) {
+      repaints.add(component);
+    }
+
+    private void begin(long newNanoTime) {
+      number++;
+      nanoTime = newNanoTime;
+    }
+
+    private void end() {
+      for (Component component : repaints) {
+        component.repaint();
+      }
+      repaints.clear();
+      for (int i = 0; i < positionCount; i++) {
+        positions.get(i).session = null;
+      }
+      positionCount = 0;
+    }
+  }
+
+  /**
+   * A position queried in the current frame.
+   */
+  private static final class Position {
+
+    SongSession session;
+    double offset;
+    double tick;
+  }
+
+  private static final class Subscription {
+
+    final FrameListener listener;
+    final long period;
+    long due;
+
+    Subscription(FrameListener listener, long period, long due) {
+      this.listener = listener;
+      this.period = period;
+      this.due = due;
+    }
+  }
+  private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+  private final Frame frame = new Frame();
+  private final Timer timer;
+  /**
+   * The duration of a display frame in milliseconds; the timer never fires
+   * more often.
+   */
+  private final int frameInterval;
+
+  private FrameScheduler() {
+    frameInterval = Math.max(1, 1000 / getFrameRate());
+    timer = new Timer(frameInterval, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        tick();
+      }
+    });
+    timer.setRepeats(false);
+    timer.setCoalesce(true);
+  }
+
+  private static int getFrameRate() {
+    if (GraphicsEnvironment.isHeadless()) {
+      return DEFAULTFRAMERATE;
+    }
+    DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().
+            getDefaultScreenDevice().getDisplayMode();
+    int rate = mode.getRefreshRate();
+    if (rate == DisplayMode.REFRESH_RATE_UNKNOWN || rate <= 0) {
+      return DEFAULTFRAMERATE;
+    }
+    return rate;
+  }
+
+  /**
+   * Start calling the given listener every period milliseconds. If the
+   * listener is already subscribed, its period is changed.
+   *
+   * @param listener the animated component.
+   * @param period the period in milliseconds.
+   */
+  public void subscribe(FrameListener listener, int period) {
+    long now = System.nanoTime();
+    long periodNanos = period * 1000000L;
+    for (Subscription subscription : subscriptions) {
+      if (subscription.listener == listener) {
+        subscriptions.remove(subscription);
+        break;
+      }
+    }
+    subscriptions.add(new Subscription(listener, periodNanos, now + periodNanos));
+    schedule();
+  }
+
+  /**
+   * Stop calling the given listener. When the last listener unsubscribes, the
+   * scheduler stops ticking.
+   *
+   * @param listener the animated component.
+   */
+  public void unsubscribe(FrameListener listener) {
+    for (Subscription subscription : subscriptions) {
+      if (subscription.listener == listener) {
+        subscriptions.remove(subscription);
+        break;
+      }
+    }
+    schedule();
+  }
+
+  /**
+   * @param listener an animated component.
+   * @return true if the listener is subscribed.
+   */
+  public boolean isSubscribed(FrameListener listener) {
+    for (Subscription subscription : subscriptions) {
+      if (subscription.listener == listener) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the scheduler is ticking.
+   */
+  public boolean isRunning() {
+    return timer.isRunning();
+  }
+
+  /**
+   * @return the time in milliseconds until the next tick. Only used in tests.
+   */
+  int getDelay() {
+    return timer.getInitialDelay();
+  }
+
+  /**
+   * Execute one frame: call all subscribers whose period has elapsed.
+   */
+  void tick() {
+    long now = System.nanoTime();
+    long frameNanos = frameInterval * 1000000L;
+    frame.begin(now);
+    // subscribers may (un)subscribe while being called, so work on a copy.
+    Subscription[] current = subscriptions.toArray(new Subscription[subscriptions.size()]);
+    for (Subscription subscription : current) {
+      if (subscription.due - now >= frameNanos) {
+        continue; // not due in this frame
+      }
+      subscription.due += subscription.period;
+      if (subscription.due < now) {
+        // we are late, do not try to catch up
+        subscription.due = now + subscription.period;
+      }
+      try {
+        subscription.listener.frame(frame);
+      } catch (RuntimeException ex) {
+        logger.log(Level.SEVERE, "Exception in frame listener.", ex);
+      }
+    }
+    frame.end();
+    schedule();
+  }
+
+  /**
+   * Let the timer fire when the earliest subscriber is due, but not earlier
+   * than one display frame from now. Stops the timer if there are no
+   * subscribers.
+   */
+  private void schedule() {
+    if (subscriptions.isEmpty()) {
+      timer.stop();
+      return;
+    }
+    long earliest = Long.MAX_VALUE;
+    for (Subscription subscription : subscriptions) {
+      earliest = Math.min(earliest, subscription.due);
+    }
+    long delay = (earliest - System.nanoTime() + 999999L) / 1000000L;
+    timer.setInitialDelay((int) Math.min(Integer.MAX_VALUE, Math.max(frameInterval, delay)));
+    timer.restart();
+  }
+}
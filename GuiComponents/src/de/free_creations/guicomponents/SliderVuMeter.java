@@ -33,6 +33,7 @@ public class SliderVuMeter extends JSlider {
 
   public static final String PROP_MAXVUVALUE = "maxVuValue";
   public static final String PROP_MINVUVALUE = "minVuValue";
+  public static final String PROP_VUDECAY = "vuDecay";
   private final SliderVuMeterTrackPainter sliderVuMeterTrackPainter;
   private int vuValue;
   private static final Logger logger = Logger.getLogger(SliderVuMeter.class.getName());
@@ -41,10 +42,21 @@ public class SliderVuMeter extends JSlider {
   private int mouseWheelTicksFullRange = 16;
   private int maxVuValue = 0;
   private int minVuValue = -80;
+  /**
+   * How fast the displayed level falls back (in Decibel per second).
+   */
+  private float vuDecay = 20F;
+  /**
+   * The level currently displayed (before rounding) and the time (as given by
+   * System.nanoTime()) it has been calculated.
+   */
+  private float vuLevel;
+  private long vuLevelNanos = 0;
 
   public SliderVuMeter(int orientation, int min, int max, int value) {
     super(orientation, min, max, value);
     vuValue = min;
+    vuLevel = min;
     sliderVuMeterTrackPainter = new SliderVuMeterTrackPainter();
     enableEvents(java.awt.AWTEvent.MOUSE_WHEEL_EVENT_MASK);
     adjustMovePerMouseWheelTick();
@@ -106,6 +118,27 @@ public class SliderVuMeter extends JSlider {
     firePropertyChange(PROP_MINVUVALUE, oldMinVuValue, minVuValue);
   }
 
+  /**
+   * Get the value of vuDecay
+   *
+   * @return how fast the displayed level falls back (in Decibel per second).
+   */
+  public float getVuDecay() {
+    return vuDecay;
+  }
+
+  /**
+   * Set the value of vuDecay
+   *
+   * @param vuDecay how fast the displayed level falls back (in Decibel per
+   * second).
+   */
+  public void setVuDecay(float vuDecay) {
+    float oldVuDecay = this.vuDecay;
+    this.vuDecay = vuDecay;
+    firePropertyChange(PROP_VUDECAY, oldVuDecay, vuDecay);
+  }
+
   @Override
   public void setMaximum(int maximum) {
     super.setMaximum(maximum);
@@ -127,6 +160,28 @@ public class SliderVuMeter extends JSlider {
   }
 
   public void setVuValue(int value) {
+    vuLevel = value;
+    vuLevelNanos = System.nanoTime();
+    showVuValue(value);
+  }
+
+  /**
+   * Feed a newly measured level into the meter. A level higher than the
+   * displayed one is shown at once; otherwise the display falls back at the
+   * rate given by {@link #getVuDecay() vuDecay}, so that short peaks remain
+   * readable.
+   *
+   * @param level the measured level in Decibel.
+   */
+  public void updateVuLevel(float level) {
+    long now = System.nanoTime();
+    float decayed = vuLevel - vuDecay * (float) ((now - vuLevelNanos) * 1E-9);
+    vuLevel = Math.max(Math.max(level, decayed), minVuValue);
+    vuLevelNanos = now;
+    showVuValue(Math.round(vuLevel));
+  }
+
+  private void showVuValue(int value) {
     if (vuValue == value) {
       return;
     }
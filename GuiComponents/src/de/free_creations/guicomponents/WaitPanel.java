@@ -18,8 +18,6 @@ package de.free_creations.guicomponents;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.geom.Rectangle2D;
@@ -28,7 +26,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.ImageIcon;
 import javax.swing.JPanel;
-import javax.swing.Timer;
 
 /**
  * A panel that shows a simple animation to show the user that he has to wait
@@ -71,15 +68,14 @@ public class WaitPanel extends JPanel {
   }
   private static final int timerDelay = 750; // milliseconds
   private int currentImage = 0;
-  private Timer timer = new Timer(timerDelay, new ActionListener() {
-
+  private final FrameScheduler.FrameListener frameListener = new FrameScheduler.FrameListener() {
     @Override
-    public void actionPerformed(ActionEvent ae) {
+    public void frame(FrameScheduler.Frame frame) {
       currentImage++;
       currentImage = currentImage % IMAGECOUNT;
-      repaint();
+      frame.repaint(WaitPanel.this);
     }
-  });
+  };
 
   public WaitPanel() {
 
@@ -87,7 +83,7 @@ public class WaitPanel extends JPanel {
     setBackground(Color.white);
     setOpaque(true);
     setVisible(true);
-    timer.start();
+    FrameScheduler.instance().subscribe(frameListener, timerDelay);
     addComponentListener(new ComponentListener() {
 
       @Override
@@ -100,12 +96,12 @@ public class WaitPanel extends JPanel {
 
       @Override
       public void componentShown(ComponentEvent ce) {
-        timer.start();
+        FrameScheduler.instance().subscribe(frameListener, timerDelay);
       }
 
       @Override
       public void componentHidden(ComponentEvent ce) {
-        timer.stop();
+        FrameScheduler.instance().unsubscribe(frameListener);
       }
     });
   }
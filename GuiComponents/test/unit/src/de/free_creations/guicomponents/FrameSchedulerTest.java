@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.guicomponents;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Harald Postner
+ */
+public class FrameSchedulerTest {
+
+  private static class CountingListener implements FrameScheduler.FrameListener {
+
+    int count = 0;
+    long lastFrame = -1;
+
+    @Override
+    public void frame(FrameScheduler.Frame frame) {
+      count++;
+      lastFrame = frame.getNumber();
+    }
+  }
+
+  /**
+   * The scheduler must only run while there are subscribers and must call
+   * each subscriber at its own period.
+   */
+  @Test
+  public void testSubscribe() throws InterruptedException {
+    System.out.println("testSubscribe");
+    FrameScheduler instance = FrameScheduler.instance();
+    assertFalse(instance.isRunning());
+
+    CountingListener fast = new CountingListener();
+    CountingListener slow = new CountingListener();
+    instance.subscribe(fast, 0);
+    instance.subscribe(slow, 100000);
+    assertTrue(instance.isRunning());
+    assertTrue(instance.isSubscribed(fast));
+
+    Thread.sleep(1);
+    instance.tick();
+    instance.tick();
+    assertEquals(2, fast.count);
+    assertEquals(0, slow.count);
+
+    instance.unsubscribe(fast);
+    assertTrue(instance.isRunning());
+    instance.unsubscribe(slow);
+    assertFalse(instance.isRunning());
+    assertFalse(instance.isSubscribed(fast));
+  }
+
+  /**
+   * All the subscribers called in one tick share the same frame.
+   */
+  @Test
+  public void testSharedFrame() throws InterruptedException {
+    System.out.println("testSharedFrame");
+    FrameScheduler instance = FrameScheduler.instance();
+    CountingListener listener_1 = new CountingListener();
+    CountingListener listener_2 = new CountingListener();
+    instance.subscribe(listener_1, 0);
+    instance.subscribe(listener_2, 0);
+    Thread.sleep(1);
+    instance.tick();
+    assertEquals(1, listener_1.count);
+    assertEquals(listener_1.lastFrame, listener_2.lastFrame);
+    instance.unsubscribe(listener_1);
+    instance.unsubscribe(listener_2);
+    assertFalse(instance.isRunning());
+  }
+
+  /**
+   * The timer fires when the earliest subscriber is due, but never faster
+   * than the display rate.
+   */
+  @Test
+  public void testDelay() {
+    System.out.println("testDelay");
+    FrameScheduler instance = FrameScheduler.instance();
+    CountingListener slow = new CountingListener();
+    CountingListener fast = new CountingListener();
+    instance.subscribe(slow, 750);
+    assertTrue(instance.getDelay() > 700);
+    assertTrue(instance.getDelay() <= 750);
+
+    instance.subscribe(fast, 0);
+    assertTrue(instance.getDelay() < 100);
+    assertTrue(instance.getDelay() > 0);
+
+    instance.unsubscribe(fast);
+    assertTrue(instance.getDelay() > 500);
+    instance.unsubscribe(slow);
+    assertFalse(instance.isRunning());
+  }
+}
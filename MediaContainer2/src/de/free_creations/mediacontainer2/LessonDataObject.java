@@ -15,7 +15,6 @@
  */
 package de.free_creations.mediacontainer2;
 
-import de.free_creations.midisong.LessonProperties;
 import de.free_creations.netBeansSong.SongSessionManager;
 import java.io.File;
 import java.io.FileReader;
@@ -113,12 +112,8 @@ public class LessonDataObject extends MultiDataObject {
      * collects all lessons. 
      */
     File newFile = new File(pf.getPath());
-    // has this lesson already been recorded?
-    if (SongSessionManager.hasLesson(newFile)) {
-      return;
-    }
-    LessonProperties lesson = new LessonProperties(newFile);
-    SongSessionManager.addLesson(newFile, lesson);
+    // the lesson index reads the file in the background (if needed).
+    SongSessionManager.addLessonFile(newFile);
   }
 
   @Override
@@ -15,7 +15,6 @@
  */
 package de.free_creations.mediacontainer2;
 
-import de.free_creations.midisong.LessonProperties;
 import de.free_creations.netBeansSong.SongSessionManager;
 import java.io.File;
 import java.util.ArrayList;
@@ -94,13 +93,8 @@ class MediaNodesFactory extends ChildFactory.Detachable<File> {
     if (!newFile.getName().toLowerCase().endsWith(".lesson")) {
       return;
     }
-    // has this lesson already been recorded?
-    if (SongSessionManager.hasLesson(newFile)) {
-      return;
-    }
-
-    LessonProperties lesson = new LessonProperties(newFile);
-    SongSessionManager.addLesson(newFile, lesson);
+    // the lesson index reads the file in the background (if needed).
+    SongSessionManager.addLessonFile(newFile);
   }
 
   /**
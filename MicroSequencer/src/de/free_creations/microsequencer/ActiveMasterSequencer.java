@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import de.free_creations.midiutil.TimeSignatureTrack;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The master-sequencer delegates the "prepare-cycle" function to the
+ * active-master-sequencer. The active-master-sequencer is immutable in most of
+ * its variables thus avoiding problems with concurrent accesses. Once the
+ * session has been started, its variables (loop points, tempo, pending stops
+ * and jumps, the cycle positions) are only read and changed by the audio
+ * thread, which executes the {@link TransportCommand}s and publishes the
+ * {@link TransportSnapshot}s; therefore no lock is needed.
+ *
+ * @author harald
+ */
+class ActiveMasterSequencer {
+
+  private static final Logger logger = Logger.getLogger(ActiveMasterSequencer.class.getName());
+  // immutable objects
+  private final TempoTrack tempoTrack;
+  private final TimeSignatureTrack timeSignatureTrack;
+  private final ArrayList<MasterSequencer.AudioRecorderSubSequencerInt> audioSubSequencers;
+  private final ArrayList<MasterSequencer.MidiSubSequencer> midiSubSequencers;
+  private final long sequenceLenght;
+  // changed by transport commands
+  private double loopEndPoint;
+  private double loopStartPoint;
+  private int loopCount;
+  private double tempoFactor;
+  private double stopTick = -1D;
+  private double jumpAtTick = -1D;
+  private double jumpToTick = -1D;
+  private double thisCycleStartTick = 0D;
+  private double nextCycleStartTick = 0D;
+  private double thisStreamTime = 0D;
+  private double previousStreamTime = 0D;
+  private TimeMap thisTimeMap = null;
+  private TimeMap previousTimeMap = null;
+  private double thisTempoFactor = 1.0D;
+  private final List<SequencerEventListener> sequencerEventListeners =
+          new ArrayList<>();
+  private final Executor notifier;
+
+  public ActiveMasterSequencer(
+          double startPosition,
+          final ArrayList<MasterSequencer.AudioRecorderSubSequencerInt> audioSubSequencers,
+          final ArrayList<MasterSequencer.MidiSubSequencer> midiSubSequencers,
+          TempoTrack tempoTrack,
+          TimeSignatureTrack timeSignatureTrack,
+          long tickLength,
+          double loopEndPoint,
+          double loopStartPoint,
+          int loopCount,
+          double tempoFactor,
+          List<SequencerEventListener> sequencerEventListeners,
+          Executor notifier) {
+
+    this.tempoTrack = tempoTrack;
+    this.timeSignatureTrack = timeSignatureTrack;
+    this.audioSubSequencers = audioSubSequencers;
+    this.midiSubSequencers = midiSubSequencers;
+    thisCycleStartTick = startPosition;
+    nextCycleStartTick = startPosition;
+    sequenceLenght = tickLength;
+    this.loopEndPoint = loopEndPoint;
+    this.loopStartPoint = loopStartPoint;
+    this.loopCount = loopCount;
+    this.tempoFactor = tempoFactor;
+    this.thisTempoFactor = tempoFactor;
+    this.sequencerEventListeners.addAll(sequencerEventListeners);
+    this.notifier = notifier;
+  }
+
+  /**
+   * Execute a transport command that concerns the running session. Must be
+   * called by the audio thread, before the cycle is prepared.
+   *
+   * @param command the command to be executed.
+   */
+  public void execute(TransportCommand command) {
+    switch (command.kind) {
+      case TEMPO:
+        tempoFactor = command.value;
+        break;
+      case LOOPSTART:
+        loopStartPoint = command.value;
+        break;
+      case LOOPEND:
+        loopEndPoint = command.value;
+        break;
+      case LOOPCOUNT:
+        loopCount = (int) command.value;
+        break;
+      case STOPAT:
+        if (command.session == this) {
+          stopTick = command.value;
+        }
+        break;
+      case JUMP:
+        if (command.session == this) {
+          jumpAtTick = command.value;
+          jumpToTick = command.target;
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Not a session command: " + command.kind);
+    }
+  }
+
+  /**
+   * Prepares the attached sub-sequencers to render the next cycle.
+   *
+   * A pending stop or jump whose tick falls into this cycle is executed at the
+   * exact offset of its tick; a tick that has already passed is executed at
+   * the start of the cycle.
+   *
+   * @param streamTime the time in seconds for which this cycle should be
+   * prepared.
+   * @param cycleLength the length of the next cycle in seconds.
+   * @param master the master-sequencer to be informed when the session ends.
+   */
+  public void prepareCycle(double streamTime, double cycleLength, MasterSequencerImpl master) {
+    boolean ending = false;
+    // first calculate all the values we will need for a normal cycle
+    boolean isLoopingCycle = false;
+    boolean isJumpingCycle = false;
+    TimeMap timeMap_2 = null;
+    double endpointOffset = 0D;
+    double breakTick = 0D;
+    double restartTick = 0D;
+    previousStreamTime = thisStreamTime;
+    thisStreamTime = streamTime;
+    thisTempoFactor = tempoFactor;
+    thisCycleStartTick = nextCycleStartTick;
+    thisTimeMap = tempoTrack.CreateTimeMap(thisCycleStartTick, 1.1 * cycleLength, tempoFactor);
+    nextCycleStartTick = thisTimeMap.getTickForOffset(cycleLength);
+
+    // let's see if a stop or a jump is due; if yes correct above values
+    if ((stopTick >= 0D) && (stopTick < nextCycleStartTick)) {
+      // this is the last cycle, it ends at the stop tick
+      nextCycleStartTick = Math.max(stopTick, thisCycleStartTick);
+      stopTick = -1D;
+      ending = true;
+    } else if ((jumpAtTick >= 0D) && (jumpAtTick < nextCycleStartTick)) {
+      // a jump is rendered like the end of a loop
+      isJumpingCycle = true;
+      breakTick = Math.max(jumpAtTick, thisCycleStartTick);
+      restartTick = jumpToTick;
+      jumpAtTick = -1D;
+    } else if (loopCount != 0) {
+      // let's see if we are doing a loop
+      if ((thisCycleStartTick <= loopEndPoint)
+              && (loopEndPoint < nextCycleStartTick)) {
+        isLoopingCycle = true;
+        breakTick = loopEndPoint;
+        restartTick = loopStartPoint;
+        if (loopCount > 0) {
+          loopCount--;
+        }
+        fireLoopCountChanged();
+      }
+    }
+    if (isLoopingCycle || isJumpingCycle) {
+      endpointOffset = thisTimeMap.getTimeOffset(breakTick);
+      timeMap_2 = tempoTrack.CreateTimeMap(restartTick, 1.1 * cycleLength, tempoFactor);
+      nextCycleStartTick = timeMap_2.getTickForOffset(cycleLength - endpointOffset);
+    }
+
+    // now inform all the midiSubSequencers
+    for (MasterSequencer.MidiSubSequencer s : midiSubSequencers) {
+      if (isLoopingCycle || isJumpingCycle) {
+        s.prepareLoopEndCycle(thisTimeMap, timeMap_2, thisCycleStartTick,
+                nextCycleStartTick, restartTick, breakTick);
+
+      } else {
+        s.prepareNormalCycle(thisTimeMap, thisCycleStartTick, nextCycleStartTick);
+      }
+    }
+
+    // inform the audio-sequencers about loop-end
+    if (isLoopingCycle) {
+      for (MasterSequencer.AudioRecorderSubSequencerInt a : audioSubSequencers) {
+        a.prepareSwitch(endpointOffset);
+      }
+    }
+    // inform the audio-sequencers about loop-start
+    if (!isJumpingCycle
+            && (thisCycleStartTick <= loopStartPoint)
+            && (loopStartPoint < nextCycleStartTick)) {
+      double startpointOffset = thisTimeMap.getTimeOffset(loopStartPoint);
+      for (MasterSequencer.AudioRecorderSubSequencerInt a : audioSubSequencers) {
+        a.prepareSwitch(startpointOffset);
+      }
+    }
+
+    if (nextCycleStartTick > sequenceLenght) {
+      ending = true;
+    }
+    if (ending) {
+      master.endSession(this);
+    }
+  }
+
+  /**
+   * Prepares the attached sub-sequencers for the session. Must be called
+   * before the session is handed to the audio thread.
+   */
+  public void startMidi(PlayingMode playingMode) {
+    logger.log(Level.FINER, "startMidi()");
+    for (MasterSequencer.SubSequencer s : audioSubSequencers) {
+      s.prepareSession(thisCycleStartTick, playingMode);
+    }
+    for (MasterSequencer.SubSequencer s : midiSubSequencers) {
+      s.prepareSession(thisCycleStartTick, playingMode);
+    }
+    firePlayingChanged(true);
+  }
+
+  /**
+   * Stops the attached sub-sequencers and informs the listeners. This
+   * function only uses the immutable variables of the session; it must not be
+   * called by the audio thread.
+   */
+  public void stopMidi() {
+    for (MasterSequencer.SubSequencer s : audioSubSequencers) {
+      s.stopSession();
+    }
+    for (MasterSequencer.SubSequencer s : midiSubSequencers) {
+      s.stopSession();
+    }
+    firePlayingChanged(false);
+  }
+
+  /**
+   * Take a snapshot of the state established by the last cycle. Must be
+   * called by the audio thread, or before the session is handed to the audio
+   * thread.
+   *
+   * @param version the sequence number of the snapshot.
+   * @return a new snapshot.
+   */
+  public TransportSnapshot createSnapshot(long version) {
+    return new TransportSnapshot(version, thisStreamTime, previousStreamTime,
+            thisCycleStartTick, thisTimeMap, previousTimeMap, thisTempoFactor,
+            loopCount, timeSignatureTrack);
+  }
+
+  public TimeSignatureTrack getTimeSignatureTrack() {
+    return timeSignatureTrack;
+  }
+
+  private void firePlayingChanged(boolean value) {
+    for (SequencerEventListener listener : sequencerEventListeners) {
+      listener.notifyPlaying(value);
+    }
+  }
+
+  /**
+   * Informs the listeners about a loop that has been done. The listeners are
+   * called by the notifier, never by the audio thread.
+   */
+  private void fireLoopCountChanged() {
+    final int newLoopCount = loopCount;
+    notifier.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (SequencerEventListener listener : sequencerEventListeners) {
+          listener.loopDone(newLoopCount);
+        }
+      }
+    });
+  }
+}
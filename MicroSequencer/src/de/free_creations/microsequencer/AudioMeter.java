@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Measures the levels of an interleaved audio stream block by block. The
+ * measurement is done on the audio thread, once per cycle and channel, by a
+ * simple loop without branches. The results are published through atomic
+ * arrays (holding the bits of float values), so the user interface can read
+ * them at any time without locking.
+ *
+ * The published values are linear (peak amplitude and mean square); they are
+ * only converted to Decibel when they are read.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class AudioMeter implements LevelMeter {
+
+  /**
+   * The duration (in seconds) over which the short-term loudness is averaged.
+   */
+  static final double LOUDNESSWINDOW = 3.0;
+  private static final float MINSIGNAL = 1E-10F; //-200 decibel
+  private static final int ZERO = Float.floatToIntBits(0F);
+  // published values, readable from any thread.
+  private final AtomicIntegerArray peak = new AtomicIntegerArray(AudioPort.MAXCHANNELS);
+  private final AtomicIntegerArray meanSquare = new AtomicIntegerArray(AudioPort.MAXCHANNELS);
+  private final AtomicIntegerArray loudness = new AtomicIntegerArray(AudioPort.MAXCHANNELS);
+  private volatile int channelCount = 0;
+  // the state of the audio thread.
+  private int framesPerCycle = 0;
+  private float[][] history = new float[AudioPort.MAXCHANNELS][1];
+  private final double[] historySum = new double[AudioPort.MAXCHANNELS];
+  private int historyIndex = 0;
+  private int historyFill = 0;
+
+  /**
+   * Prepare the meter for a stream. Must not be called while blocks are being
+   * measured.
+   *
+   * @param samplingRate the number of frames per second.
+   * @param framesPerCycle the number of frames in a block.
+   * @param channelCount the number of interleaved channels.
+   */
+  void open(int samplingRate, int framesPerCycle, int channelCount) {
+    if (channelCount > AudioPort.MAXCHANNELS) {
+      throw new IllegalArgumentException("Unexpected  number of channels.");
+    }
+    this.framesPerCycle = framesPerCycle;
+    int historyLength = 1;
+    if (framesPerCycle > 0) {
+      historyLength = Math.max(1,
+              (int) Math.round(LOUDNESSWINDOW * samplingRate / framesPerCycle));
+    }
+    history = new float[AudioPort.MAXCHANNELS][historyLength];
+    this.channelCount = Math.max(0, channelCount);
+    reset();
+  }
+
+  /**
+   * Forget all measured values. Must not be called while blocks are being
+   * measured.
+   */
+  void reset() {
+    for (int channel = 0; channel < AudioPort.MAXCHANNELS; channel++) {
+      Arrays.fill(history[channel], 0F);
+      historySum[channel] = 0D;
+      peak.set(channel, ZERO);
+      meanSquare.set(channel, ZERO);
+      loudness.set(channel, ZERO);
+    }
+    historyIndex = 0;
+    historyFill = 0;
+  }
+
+  /**
+   * Measure one block. Only to be called from the audio thread.
+   *
+   * @param samples the interleaved samples of one cycle (may be null).
+   */
+  void measure(float[] samples) {
+    int channels = channelCount;
+    if (samples == null || channels <= 0) {
+      return;
+    }
+    int frames = Math.min(framesPerCycle, samples.length / channels);
+    if (frames <= 0) {
+      return;
+    }
+    int end = frames * channels;
+    int historyLength = history[0].length;
+    boolean wrapped = (historyIndex + 1 == historyLength);
+    for (int channel = 0; channel < channels; channel++) {
+      float blockPeak = 0F;
+      float blockSum = 0F;
+      for (int i = channel; i < end; i += channels) {
+        float sample = samples[i];
+        blockPeak = Math.max(blockPeak, Math.abs(sample));
+        blockSum += sample * sample;
+      }
+      float blockMeanSquare = blockSum / frames;
+
+      float[] channelHistory = history[channel];
+      historySum[channel] += blockMeanSquare - channelHistory[historyIndex];
+      channelHistory[historyIndex] = blockMeanSquare;
+      if (wrapped) {
+        // start over from the stored blocks, so rounding errors cannot pile up.
+        double sum = 0D;
+        for (int h = 0; h < historyLength; h++) {
+          sum += channelHistory[h];
+        }
+        historySum[channel] = sum;
+      }
+      int fill = Math.min(historyFill + 1, historyLength);
+
+      accumulatePeak(channel, blockPeak);
+      meanSquare.lazySet(channel, Float.floatToIntBits(blockMeanSquare));
+      loudness.lazySet(channel, Float.floatToIntBits(
+              (float) Math.max(0D, historySum[channel] / fill)));
+    }
+    historyIndex = wrapped ? 0 : historyIndex + 1;
+    historyFill = Math.min(historyFill + 1, historyLength);
+  }
+
+  private void accumulatePeak(int channel, float blockPeak) {
+    while (true) {
+      int oldBits = peak.get(channel);
+      if (Float.intBitsToFloat(oldBits) >= blockPeak) {
+        return;
+      }
+      if (peak.compareAndSet(channel, oldBits, Float.floatToIntBits(blockPeak))) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  @Override
+  public float getPeakVuAndClear(int channel) {
+    float value = Float.intBitsToFloat(peak.getAndSet(channel, ZERO));
+    if (value < MINSIGNAL) {
+      return SILENCE;
+    }
+    return 20F * (float) Math.log10(value);
+  }
+
+  @Override
+  public float getRmsVu(int channel) {
+    return powerToDecibel(Float.intBitsToFloat(meanSquare.get(channel)));
+  }
+
+  @Override
+  public float getLoudness(int channel) {
+    return powerToDecibel(Float.intBitsToFloat(loudness.get(channel)));
+  }
+
+  private static float powerToDecibel(float power) {
+    if (power < MINSIGNAL * MINSIGNAL) {
+      return SILENCE;
+    }
+    return 10F * (float) Math.log10(power);
+  }
+}
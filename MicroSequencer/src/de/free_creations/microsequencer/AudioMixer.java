@@ -22,6 +22,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.MidiUnavailableException;
@@ -45,9 +46,20 @@ class AudioMixer extends AudioProcessor_Float32 {
   private volatile boolean noninterleaved;
   private volatile boolean streamStarted = false;
   private volatile double maxLoad;
+  /**
+   * The number of cycles between two load reports to the quality-governor.
+   */
+  private static final int GOVERNORPERIOD = 50;
+  /**
+   * The quality-governor that is informed about the load (may be null).
+   */
+  private final QualityGovernor qualityGovernor;
+  /**
+   * The maximum load since the last report to the quality-governor.
+   */
+  private double governorLoad = 0D;
   private int processCount = 0; // (debugging variable) the number of times process was called
   private int badStatusCount = 0; // (debugging variable) the number of times RtAudio reported a timeout
-  private final Object streamTimeLock = new Object();
   /**
    * the latency in seconds.
    */
@@ -57,9 +69,18 @@ class AudioMixer extends AudioProcessor_Float32 {
    */
   private long cycleStartNano;
   /**
-   * The stream time for which the current cycle is prepared.
+   * Smoothes the stream time between the cycles.
+   */
+  private final StreamClock streamClock = new StreamClock();
+  /**
+   * The nanoSecond when the first cycle after the start of the stream began
+   * (zero while no cycle has been processed).
    */
-  private double cycleStreamTime;
+  private volatile long firstCycleNano = 0;
+  /**
+   * Records the callbacks (null if no trace shall be recorded).
+   */
+  private volatile CallbackTrace trace = null;
 
   // for debugging
   private void reportStatus() {
@@ -91,15 +112,39 @@ class AudioMixer extends AudioProcessor_Float32 {
     }
   }
   private float[] resultBuffer;
+  /**
+   * The meter of the sound-card input, shared by all ports.
+   */
+  private final AudioMeter inputMeter = new AudioMeter();
+  /**
+   * Adds the monitored input channels to the output.
+   */
+  private final DirectMonitor directMonitor = new DirectMonitor();
   private final CopyOnWriteArrayList<AudioPortImpl> audioPorts = new CopyOnWriteArrayList<>();
-  private final Object audioPortsLock = new Object();
+  /**
+   * Guards the ports. A lock object (not a monitor) because a cycle holds it
+   * from {@link #beginCycle} until {@link #endCycle}.
+   */
+  private final ReentrantLock audioPortsLock = new ReentrantLock();
   private final MasterSequencer masterSequencer;
 
   AudioMixer(MasterSequencer masterSequencer) {
+    this(masterSequencer, null);
+  }
+
+  /**
+   * Creates an audio-mixer that reports the measured load to the given
+   * quality-governor.
+   *
+   * @param masterSequencer the sequencer that is prepared on every cycle.
+   * @param qualityGovernor the governor to be informed (may be null).
+   */
+  AudioMixer(MasterSequencer masterSequencer, QualityGovernor qualityGovernor) {
     if (masterSequencer == null) {
       throw new IllegalArgumentException("argument \"sequencer\" is null.");
     }
     this.masterSequencer = masterSequencer;
+    this.qualityGovernor = qualityGovernor;
     streamOpen = false;
   }
 
@@ -119,17 +164,25 @@ class AudioMixer extends AudioProcessor_Float32 {
     cycleDuration = (double) framesPerCycle / (double) samplingRate;
     resultBuffer = new float[framesPerCycle * outputChannelCount];
     Arrays.fill(resultBuffer, 0F);
+    inputMeter.open(samplingRate, framesPerCycle, noninterleaved ? 0 : inputChannelCount);
+    directMonitor.open(samplingRate, framesPerCycle, noninterleaved ? 0 : inputChannelCount, outputChannelCount);
 
     long latencyFrames = masterSequencer.getLatency();
     latencySeconds = (double) latencyFrames / (double) samplingRate;
-    cycleStreamTime = 0;
-    cycleStartNano = System.nanoTime();
+    streamClock.reset(cycleDuration);
+    CallbackTrace currentTrace = trace;
+    if (currentTrace != null) {
+      currentTrace.recordOpen(samplingRate, framesPerCycle, inputChannelCount, outputChannelCount);
+    }
 
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       ListIterator<AudioPortImpl> portIter = audioPorts.listIterator();
       while (portIter.hasNext()) {
         portIter.next().open(samplingRate, framesPerCycle, inputChannelCount, outputChannelCount, noninterleaved, latencyFrames);
       }
+    } finally {
+      audioPortsLock.unlock();
     }
     logger.log(Level.FINER, "### onOpenStream executed.");
     logger.log(Level.FINER, "... inputChannelCount: {0}", inputChannelCount);
@@ -138,29 +191,51 @@ class AudioMixer extends AudioProcessor_Float32 {
     streamOpen = true;
   }
 
+  /**
+   * Estimates the stream time that is currently heard (the latency is taken
+   * into account). The value is smooth and monotonic, it can be read from any
+   * thread without locking.
+   *
+   * @return the stream time in seconds.
+   */
   double getStreamTime() {
     if (!streamOpen) {
       return 0D;
     }
-    synchronized(streamTimeLock){
-      long deltaNano = System.nanoTime() - cycleStartNano;
-      double deltaSeconds = deltaNano * 1E-9;
-      return cycleStreamTime + deltaSeconds - latencySeconds;
-    }
+    return streamClock.getStreamTime(System.nanoTime()) - latencySeconds;
+  }
 
+  /**
+   * @return the clock that relates the stream time to the system time.
+   */
+  StreamClock getStreamClock() {
+    return streamClock;
+  }
+
+  /**
+   * @return the measured cycle duration divided by the nominal one (see
+   * {@link StreamClock#getDriftRatio()}).
+   */
+  double getDriftRatio() {
+    return streamClock.getDriftRatio();
   }
 
   @Override
   public void onStartStream() {
 
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       ListIterator<AudioPortImpl> portIter = audioPorts.listIterator();
       while (portIter.hasNext()) {
         portIter.next().start();
       }
+    } finally {
+      audioPortsLock.unlock();
     }
     processCount = 0;
     badStatusCount = 0;
+    firstCycleNano = 0;
+    streamClock.reset(cycleDuration);
     logger.log(Level.FINER, "onStartStream executed.");
     streamStarted = true;
   }
@@ -168,11 +243,14 @@ class AudioMixer extends AudioProcessor_Float32 {
   @Override
   public void onStopStream() {
     streamStarted = false;
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       ListIterator<AudioPortImpl> portIter = audioPorts.listIterator();
       while (portIter.hasNext()) {
         portIter.next().stop();
       }
+    } finally {
+      audioPortsLock.unlock();
     }
     logger.log(Level.FINER, "### > onStopStream executed.");
     logger.log(Level.FINER, "### > process count: {0}", processCount);
@@ -183,20 +261,69 @@ class AudioMixer extends AudioProcessor_Float32 {
   public void onCloseStream() {
     streamOpen = false;
 
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       ListIterator<AudioPortImpl> portIter = audioPorts.listIterator();
       while (portIter.hasNext()) {
         portIter.next().close();
       }
+    } finally {
+      audioPortsLock.unlock();
     }
     logger.log(Level.FINER, "onCloseStream executed.");
   }
 
+  /**
+   * Route the given input channels directly to the output (see
+   * {@link DirectMonitor}).
+   *
+   * @param channels the input channels to be monitored (an empty array
+   * switches monitoring off).
+   * @param attenuation the attenuation of the monitored signal in Decibel.
+   */
+  void setDirectMonitoring(int[] channels, float attenuation) {
+    directMonitor.setMonitoring(channels, attenuation);
+  }
+
+  /**
+   * Set the trace that records the callbacks.
+   *
+   * @param trace the trace (null to record nothing).
+   */
+  void setTrace(CallbackTrace trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * @return the System.nanoTime() at which the first cycle after the start of
+   * the stream began, or zero if no cycle has been processed yet.
+   */
+  long getFirstCycleNano() {
+    return firstCycleNano;
+  }
+
   @Override
   public float[] process(float[] input, double streamTime, int status) throws InterruptedException, ExecutionException {
-    synchronized (streamTimeLock) {
-      cycleStartNano = System.nanoTime();
-      cycleStreamTime = streamTime;
+    beginCycle(input, streamTime, status);
+    return endCycle(input);
+  }
+
+  /**
+   * First half of {@link #process}: prepares the master sequencer and hands
+   * the ports to their executors. The ports are locked until
+   * {@link #endCycle} is called, which must follow on the same thread. The
+   * {@link SharedStream} begins the cycles of all its buses before it ends
+   * any of them, so the ports of all stations render in parallel.
+   */
+  void beginCycle(float[] input, double streamTime, int status) {
+    cycleStartNano = System.nanoTime();
+    streamClock.update(cycleStartNano, streamTime);
+    CallbackTrace currentTrace = trace;
+    if (currentTrace != null) {
+      currentTrace.recordCycleStart(cycleStartNano, streamTime, status);
+    }
+    if (processCount == 0) {
+      firstCycleNano = cycleStartNano;
     }
     if (status != 0) {
       badStatusCount++;
@@ -204,12 +331,27 @@ class AudioMixer extends AudioProcessor_Float32 {
     reportStatus();
 
     masterSequencer.prepareCycle(streamTime, cycleDuration);
+    inputMeter.measure(input);
 
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       for (AudioPortImpl audioPort : audioPorts) {
         audioPort.processLater(streamTime, input);
       }
+    } catch (RuntimeException ex) {
+      audioPortsLock.unlock();
+      throw ex;
+    }
+  }
 
+  /**
+   * Second half of {@link #process}: collects the results of the ports
+   * and releases them.
+   *
+   * @return the mixed output of this cycle.
+   */
+  float[] endCycle(float[] input) throws InterruptedException, ExecutionException {
+    try {
       Arrays.fill(resultBuffer, 0F);
 
       float attenuation = 1.0F / audioPorts.size();
@@ -222,16 +364,25 @@ class AudioMixer extends AudioProcessor_Float32 {
           }
         }
       }
+    } finally {
+      audioPortsLock.unlock();
     }
+    // the input of this cycle is heard in this cycle.
+    directMonitor.process(input, resultBuffer);
     long elapseNano = System.nanoTime() - cycleStartNano;
+    CallbackTrace currentTrace = trace;
+    if (currentTrace != null) {
+      currentTrace.recordCycleEnd(elapseNano);
+    }
     double load = (1E-9 * elapseNano) / cycleDuration;
     maxLoad = Math.max(load, maxLoad);
+    reportLoad(load);
     processCount++;
     return resultBuffer;
   }
 
   public AudioPort createPort(AudioProcessor producer, ExecutorService executorService) throws MidiUnavailableException {
-    AudioPortImpl port = new AudioPortImpl(producer, executorService);
+    AudioPortImpl port = new AudioPortImpl(producer, executorService, inputMeter);
     if (streamOpen) {
       long latency = masterSequencer.getLatency();
       port.open(samplingRate, framesPerCycle, inputChannelCount, outputChannelCount, noninterleaved, latency);
@@ -239,14 +390,18 @@ class AudioMixer extends AudioProcessor_Float32 {
     if (streamStarted) {
       port.start();
     }
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       audioPorts.add(port);
+    } finally {
+      audioPortsLock.unlock();
     }
     return port;
   }
 
   public void removeAllPorts() {
-    synchronized (audioPortsLock) {
+    audioPortsLock.lock();
+    try {
       ListIterator<AudioPortImpl> portIter = audioPorts.listIterator();
       while (portIter.hasNext()) {
         AudioPortImpl port = portIter.next();
@@ -254,6 +409,24 @@ class AudioMixer extends AudioProcessor_Float32 {
         port.close();
       }
       audioPorts.clear();
+    } finally {
+      audioPortsLock.unlock();
+    }
+  }
+
+  /**
+   * Informs the quality-governor about the maximum load of the last cycles.
+   * Note: we do not use getMaxLoadAndClear() here, because this value is
+   * also polled (and cleared) by the user interface.
+   */
+  private void reportLoad(double load) {
+    if (qualityGovernor == null) {
+      return;
+    }
+    governorLoad = Math.max(load, governorLoad);
+    if (processCount % GOVERNORPERIOD == 0) {
+      qualityGovernor.reportLoad(governorLoad);
+      governorLoad = 0D;
     }
   }
 
@@ -38,6 +38,22 @@ public interface AudioPort {
    */
   public float getPeakVuAndClear(int channel);
 
+  /**
+   * The meter of the signal this port delivers to the mixer (measured after
+   * the attenuation).
+   *
+   * @return the level meter of the output channels.
+   */
+  public LevelMeter getOutputMeter();
+
+  /**
+   * The meter of the sound-card input. The input is measured once per cycle;
+   * all ports share the same input meter.
+   *
+   * @return the level meter of the input channels.
+   */
+  public LevelMeter getInputMeter();
+
   /**
    * The targetAttenuationVolt indicates how the signal of this port is damped.
    * The value is given in Decibel. A value of 0 indicates full value, a value
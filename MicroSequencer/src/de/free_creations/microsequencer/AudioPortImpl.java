@@ -38,7 +38,6 @@ class AudioPortImpl implements AudioPort {
    * the RELAXATIONTIME constant (in seconds).
    */
   private final double RELAXATIONTIME = 0.1; // in seconds
-  private final float MINSIGNAL = 1E-10F; //-200 decibel
   private int framesPerCycle;
   private int outputChannelCount;
   private float[] currentAttenuationVolt = new float[MAXCHANNELS];
@@ -46,13 +45,24 @@ class AudioPortImpl implements AudioPort {
   private float[] targetAttenuationDecibel = new float[MAXCHANNELS];
   private float attn_f0 = 0F;
   private float attn_f1 = 1F - attn_f0;
-  private float[] peakVu = new float[MAXCHANNELS];
+  private final AudioMeter outputMeter = new AudioMeter();
+  private final LevelMeter inputMeter;
   private AtomicReference<Future<float[]>> processResult = new AtomicReference<>(null);
   private final AudioProcessor audioProcessor;
   private final ExecutorService executor;
 
   AudioPortImpl(AudioProcessor audioProducer, ExecutorService executor) {
+    this(audioProducer, executor, new AudioMeter());
+  }
+
+  /**
+   * @param audioProducer the processor that produces the audio data.
+   * @param executor the executor that runs the processor.
+   * @param inputMeter the meter of the sound-card input (shared by all ports).
+   */
+  AudioPortImpl(AudioProcessor audioProducer, ExecutorService executor, LevelMeter inputMeter) {
     this.audioProcessor = audioProducer;
+    this.inputMeter = inputMeter;
     Arrays.fill(targetAttenuationVolt, 0.0F);
     Arrays.fill(targetAttenuationDecibel, 120F);
     this.executor = executor;
@@ -67,12 +77,17 @@ class AudioPortImpl implements AudioPort {
    */
   @Override
   public float getPeakVuAndClear(int channel) {
-    if (this.peakVu[channel] < MINSIGNAL) {
-      return -200;
-    }
-    float result = 20F * (float) Math.log10(this.peakVu[channel]);
-    this.peakVu[channel] = 0F;
-    return result;
+    return outputMeter.getPeakVuAndClear(channel);
+  }
+
+  @Override
+  public LevelMeter getOutputMeter() {
+    return outputMeter;
+  }
+
+  @Override
+  public LevelMeter getInputMeter() {
+    return inputMeter;
   }
 
   /**
@@ -119,6 +134,7 @@ class AudioPortImpl implements AudioPort {
     this.framesPerCycle = framesPerCycle;
     this.outputChannelCount = outputChannelCount;
     Arrays.fill(currentAttenuationVolt, 0F);
+    outputMeter.open(samplingRate, framesPerCycle, outputChannelCount);
 
     attn_f0 = (float) Math.exp(Math.log(0.5) / (samplingRate * RELAXATIONTIME));
     attn_f1 = 1F - attn_f0;
@@ -144,10 +160,10 @@ class AudioPortImpl implements AudioPort {
         //so that it eventually reaches the target value.
         currentAttenuationVolt[channel] = attn_f0 * currentAttenuationVolt[channel] + attn_f1 * targetAttenuationVolt[channel];
         outputArray[i] = currentAttenuationVolt[channel] * outputArray[i];
-        peakVu[channel] = Math.max(peakVu[channel], Math.abs(outputArray[i]));
         i++;
       }
     }
+    outputMeter.measure(outputArray);
     return outputArray;
   }
 
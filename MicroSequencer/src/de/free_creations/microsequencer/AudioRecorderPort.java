@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.WaveformSummary;
+
+/**
+ * A specialized {@link SequencerPort} for the recording of audio.
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public interface AudioRecorderPort extends SequencerPort {
+
+  /**
+   * Get the min/max summary of the most recent take. While the take is
+   * being recorded, the summary grows (see
+   * {@link WaveformSummary#isFinished()}).
+   * @return the summary of the most recent take or null if nothing has been
+   * recorded yet.
+   */
+  public WaveformSummary getRecordedWaveform();
+}
@@ -18,6 +18,7 @@ package de.free_creations.microsequencer;
 import de.free_creations.microsequencer.filestreaming.AudioReader;
 import de.free_creations.microsequencer.filestreaming.AudioWriter;
 import de.free_creations.microsequencer.filestreaming.AudioWriter.WriterResult;
+import de.free_creations.midiutil.WaveformSummary;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -94,6 +95,10 @@ class AudioRecorderSubSequencer implements
   private int latency;
   private int samplingRate;
   private int previousSwitchSample;
+  /**
+   * The summary of the most recent take, readable from any thread.
+   */
+  private volatile WaveformSummary recordedWaveform = null;
 
   void setMute(boolean value) {
     mute = value;
@@ -367,7 +372,11 @@ class AudioRecorderSubSequencer implements
           return;
         case RecordAudio:
           logger.log(Level.FINER, "### prepareSession: RecordAudio");
-          audioWriter.start(currentTempFile);
+          audioWriter.start(currentTempFile, outputChannelCount, samplingRate);
+          WaveformSummary summary = audioWriter.getSummary();
+          summary.setStartTick(startTick);
+          summary.setFrameOffset(latency);
+          recordedWaveform = summary;
           File usedFile = currentTempFile;
           currentTempFile = previousTempFile;
           previousTempFile = usedFile;
@@ -439,6 +448,14 @@ class AudioRecorderSubSequencer implements
     }
   }
 
+  /**
+   * @return the min/max summary of the most recent take (null if nothing has
+   * been recorded yet).
+   */
+  public WaveformSummary getRecordedWaveform() {
+    return recordedWaveform;
+  }
+
   public void waitForWriterReady() throws InterruptedException, ExecutionException {
     audioWriter.waitForBufferReady();
   }
@@ -469,7 +486,10 @@ class AudioRecorderSubSequencer implements
         writerResult = audioWriter.stop();
       }
 
-      audioWriter.start(currentTempFile);
+      // the tick of the switch point is not known here, the new take
+      // cannot be aligned to the song.
+      audioWriter.start(currentTempFile, outputChannelCount, samplingRate);
+      recordedWaveform = audioWriter.getSummary();
       try {
         audioReader.start(writerResult);
 
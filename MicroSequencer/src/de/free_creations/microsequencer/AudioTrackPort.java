@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * A specialized {@link SequencerPort} that plays an audio file in sync with
+ * the song.
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public interface AudioTrackPort extends SequencerPort {
+
+  /**
+   * Set where the song starts in the file.
+   * @param seconds the time in the file (in seconds) that corresponds to Midi
+   * tick zero. Negative values delay the file.
+   */
+  public void setStartOffset(double seconds);
+
+  /**
+   * @return the time in the file (in seconds) that corresponds to Midi tick
+   * zero.
+   */
+  public double getStartOffset();
+
+  /**
+   * @return the number of cycles that could not be read from the file in
+   * time (and that have been partly silent therefore).
+   */
+  public int getUnderrunCount();
+}
@@ -0,0 +1,364 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.microsequencer.filestreaming.AudioFileReader;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Plays an audio file (for example a recorded accompaniment) in sync with the
+ * song. The position in the file is derived from the Midi ticks of every cycle
+ * through the tempo map of the song, so the file follows seeks, loops and
+ * changes of the tempo factor. The file is read by an {@link AudioFileReader};
+ * the audio thread never waits for the disk.
+ *
+ * The file time zero corresponds to tick zero (plus an adjustable offset). If
+ * the ticks of a cycle cover more or less file frames than the cycle has
+ * output frames (because the file has another sample rate or because the
+ * tempo factor is not one), the file is resampled with a four point Hermite
+ * interpolation. Note: changing the tempo factor therefore also changes the
+ * pitch of the file (varispeed).
+ *
+ * The variables used in the process loop are synchronised by the
+ * "processLock".
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class AudioTrackSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcessor {
+
+  private static final Logger logger = Logger.getLogger(AudioTrackSubSequencer.class.getName());
+  /**
+   * The executor that reads all audio tracks in the background.
+   */
+  private static final ExecutorService readExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      thread.setName("FreeCreationsAudioTrackReader");
+      return thread;
+    }
+  });
+  private final String name;
+  private final AudioFileReader reader;
+  private final int fileChannelCount;
+  private final double fileSampleRate;
+  private final Object processLock = new Object();
+  private volatile boolean mute = false;
+  private volatile double startOffset = 0D;
+  private volatile int underrunCount = 0;
+  // the following variables are guarded by the processLock
+  private boolean opened = false;
+  private volatile boolean playing = false;
+  private int framesPerCycle;
+  private int outputChannelCount;
+  private double samplingRate;
+  private float[] soundFloatArray;
+  private float[] sourceArray = new float[0];
+  private TimeMap timeMap_1 = null;
+  private double thisCycleStartTick;
+  private double nextCycleStartTick;
+  private boolean loopEndProcessing = false;
+  private double loopStartTick = -1;
+  private double loopEndTick = -1;
+  /**
+   * The tempo track for which the file time-map has been made.
+   */
+  private TempoTrack fileTempoTrack = null;
+  /**
+   * A time-map over the whole sequence at the original tempo.
+   */
+  private TimeMap fileTimeMap = null;
+
+  /**
+   * Creates a sub-sequencer that plays the given file. The header of the
+   * file is read immediately.
+   *
+   * @param name a name for the sub-sequencer.
+   * @param file the audio file.
+   * @throws IOException if the file cannot be read or its format is not
+   * supported.
+   */
+  AudioTrackSubSequencer(String name, File file) throws IOException {
+    this.name = name;
+    try {
+      reader = new AudioFileReader(file, readExecutor, AudioFileReader.DEFAULTWINDOWFRAMES);
+    } catch (UnsupportedAudioFileException ex) {
+      throw new IOException(ex);
+    }
+    fileChannelCount = reader.getChannelCount();
+    fileSampleRate = reader.getSampleRate();
+  }
+
+  /**
+   * Mute (or un-mute) the audio track.
+   *
+   * @param value true - the track should remain quiet.
+   */
+  void setMute(boolean value) {
+    mute = value;
+  }
+
+  /**
+   * Set where the song starts in the file.
+   *
+   * @param seconds the time in the file (in seconds) that corresponds to Midi
+   * tick zero. Negative values delay the file.
+   */
+  void setStartOffset(double seconds) {
+    startOffset = seconds;
+  }
+
+  double getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return the number of cycles that could not be fully read from the file
+   * in time.
+   */
+  int getUnderrunCount() {
+    return underrunCount;
+  }
+
+  @Override
+  public void open(int samplingRate, int framesPerCycle, int inputChannelCount, int outputChannelCount, boolean noninterleaved, long latency) throws MidiUnavailableException {
+    if (noninterleaved) {
+      throw new RuntimeException("Oops..., this version is not able to handle noninterleaved channels.");
+    }
+    synchronized (processLock) {
+      this.samplingRate = samplingRate;
+      this.framesPerCycle = framesPerCycle;
+      this.outputChannelCount = outputChannelCount;
+      soundFloatArray = new float[outputChannelCount * framesPerCycle];
+      // enough for the file rate at double tempo; grows if needed.
+      ensureSourceCapacity((int) Math.ceil(2 * framesPerCycle * fileSampleRate / samplingRate) + 4);
+      opened = true;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (processLock) {
+      reader.close();
+      opened = false;
+      playing = false;
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+  }
+
+  @Override
+  public void prepareSession(double startTick, PlayingMode mode) {
+    synchronized (processLock) {
+      logger.log(Level.FINER, "{0}:prepareSession({1})", new Object[]{name, startTick});
+      playing = true;
+      if (fileTimeMap != null) {
+        // often the loop starts where we start.
+        reader.pin((long) fileFrame(startTick));
+        reader.prefetch((long) fileFrame(startTick));
+      }
+    }
+  }
+
+  @Override
+  public void stopSession() {
+    // no lock, the flag is read once per process() call
+    playing = false;
+  }
+
+  @Override
+  public void prepareLoop(double loopDuration) {
+    // nothing to reserve
+  }
+
+  @Override
+  public void prepareNormalCycle(TimeMap timeMap, double thisCycleStartTick, double nextCycleStartTick) {
+    synchronized (processLock) {
+      this.loopEndProcessing = false;
+      this.timeMap_1 = timeMap;
+      this.thisCycleStartTick = thisCycleStartTick;
+      this.nextCycleStartTick = nextCycleStartTick;
+      this.loopStartTick = -1;
+      this.loopEndTick = -1;
+    }
+  }
+
+  @Override
+  public void prepareLoopEndCycle(TimeMap timeMap_1, TimeMap timeMap_2, double thisCycleStartTick, double nextCycleStartTick, double loopStartTick, double loopEndTick) {
+    synchronized (processLock) {
+      this.loopEndProcessing = true;
+      this.timeMap_1 = timeMap_1;
+      this.thisCycleStartTick = thisCycleStartTick;
+      this.nextCycleStartTick = nextCycleStartTick;
+      this.loopStartTick = loopStartTick;
+      this.loopEndTick = loopEndTick;
+    }
+  }
+
+  @Override
+  public float[] process(double streamTime, float[] input) throws IllegalStateException {
+    synchronized (processLock) {
+      if (!opened) {
+        throw new IllegalStateException("Cannot process in closed state.");
+      }
+      Arrays.fill(soundFloatArray, 0F);
+      if (!playing || mute || timeMap_1 == null) {
+        return soundFloatArray;
+      }
+      updateFileTimeMap();
+      if (loopEndProcessing) {
+        int jumpFrame = loopJumpFrame();
+        renderSegment(thisCycleStartTick, loopEndTick, 0, jumpFrame);
+        reader.pin((long) fileFrame(loopStartTick));
+        renderSegment(loopStartTick, nextCycleStartTick, jumpFrame, framesPerCycle - jumpFrame);
+      } else {
+        renderSegment(thisCycleStartTick, nextCycleStartTick, 0, framesPerCycle);
+      }
+      underrunCount = reader.getUnderrunCount();
+      return soundFloatArray;
+    }
+  }
+
+  /**
+   * Make the file time-map if the tempo track of the song has changed.
+   */
+  private void updateFileTimeMap() {
+    TempoTrack tempoTrack = timeMap_1.getTempoTrack();
+    if (tempoTrack != fileTempoTrack) {
+      fileTempoTrack = tempoTrack;
+      fileTimeMap = tempoTrack.CreateTimeMap(0D, Double.MAX_VALUE, 1D);
+    }
+  }
+
+  /**
+   * Calculates the position in the file for a given Midi tick.
+   *
+   * @param tick a Midi tick (may be negative in the lead-in).
+   * @return the position in (fractional) file frames.
+   */
+  private double fileFrame(double tick) {
+    double seconds;
+    if (tick >= 0D) {
+      seconds = fileTimeMap.getTimeOffset(tick);
+    } else {
+      // extrapolate with the initial tempo.
+      seconds = tick * fileTimeMap.getTimeOffset(1D);
+    }
+    return (seconds + startOffset) * fileSampleRate;
+  }
+
+  /**
+   * Renders the file frames between two ticks into a part of the output
+   * cycle.
+   *
+   * @param startTick the tick at the first output frame.
+   * @param endTick the tick after the last output frame.
+   * @param outputFrame the first output frame.
+   * @param outputFrames the number of output frames.
+   */
+  private void renderSegment(double startTick, double endTick, int outputFrame, int outputFrames) {
+    if (outputFrames <= 0) {
+      return;
+    }
+    double startPosition = fileFrame(startTick);
+    double step = (fileFrame(endTick) - startPosition) / outputFrames;
+    // one frame before and two frames after are needed for the interpolation.
+    long firstFrame = (long) Math.floor(startPosition) - 1;
+    int sourceFrames = (int) Math.ceil(step * outputFrames) + 4;
+    ensureSourceCapacity(sourceFrames);
+    reader.read(firstFrame, sourceFrames, sourceArray, 0);
+
+    double position = startPosition - firstFrame;
+    for (int i = 0; i < outputFrames; i++) {
+      int k = (int) position;
+      float fraction = (float) (position - k);
+      int target = (outputFrame + i) * outputChannelCount;
+      for (int channel = 0; channel < outputChannelCount; channel++) {
+        int sourceChannel = sourceChannel(channel);
+        if (sourceChannel < 0) {
+          continue;
+        }
+        int s = (k - 1) * fileChannelCount + sourceChannel;
+        soundFloatArray[target + channel] = hermite(fraction,
+                sourceArray[s],
+                sourceArray[s + fileChannelCount],
+                sourceArray[s + 2 * fileChannelCount],
+                sourceArray[s + 3 * fileChannelCount]);
+      }
+      position += step;
+    }
+  }
+
+  /**
+   * A mono file is played on all output channels; otherwise each output
+   * channel plays the file channel with the same index (if any).
+   *
+   * @return the file channel or -1 if the output channel stays silent.
+   */
+  private int sourceChannel(int outputChannel) {
+    if (fileChannelCount == 1) {
+      return 0;
+    }
+    return (outputChannel < fileChannelCount) ? outputChannel : -1;
+  }
+
+  /**
+   * Four point, third order Hermite interpolation between y0 and y1.
+   */
+  private static float hermite(float x, float ym1, float y0, float y1, float y2) {
+    float c1 = 0.5F * (y1 - ym1);
+    float c2 = ym1 - 2.5F * y0 + 2F * y1 - 0.5F * y2;
+    float c3 = 0.5F * (y2 - ym1) + 1.5F * (y0 - y1);
+    return ((c3 * x + c2) * x + c1) * x + y0;
+  }
+
+  private void ensureSourceCapacity(int frames) {
+    if (sourceArray.length < frames * fileChannelCount) {
+      // only when the tempo is increased beyond the initial estimate.
+      sourceArray = new float[frames * fileChannelCount];
+    }
+  }
+
+  /**
+   * Calculates the frame within the current cycle where the cursor jumps back
+   * to the loop start.
+   *
+   * @return the frame index.
+   */
+  private int loopJumpFrame() {
+    long frame = Math.round(timeMap_1.getTimeOffset(loopEndTick) * samplingRate);
+    return (int) Math.max(0, Math.min(framesPerCycle, frame));
+  }
+}
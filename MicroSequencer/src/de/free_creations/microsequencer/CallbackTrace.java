@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * Records what drives the audio engine: the timing of the audio callbacks,
+ * the transport commands and the live Midi input. A dropout that has been
+ * recorded can be replayed offline with the {@link CallbackTraceReplayer}.
+ *
+ * The trace is opt-in: it is only recorded if the system property
+ * {@value #PROPERTY} names a directory, the trace file is written there when
+ * the sequencer is closed.
+ *
+ * The records are collected in buffers that are allocated when the recording
+ * starts, so the audio thread never touches the disk. The audio thread is the
+ * only writer of the CYCLE records and writes them without locking. The
+ * commands and the Midi messages come from other threads; they go into a
+ * second buffer, guarded by a lock the audio thread never takes, and are
+ * merged with the cycles when the trace is written. When a buffer is full,
+ * the recording stops (the trace is marked as truncated). The input samples
+ * of the sound-card are not recorded, they are replayed as silence.
+ *
+ * Format (big-endian): the magic number and the version, followed by
+ * records; each record starts with a tag byte.
+ * <ul>
+ * <li>OPEN: samplingRate, framesPerCycle, inputChannelCount,
+ * outputChannelCount (int).</li>
+ * <li>CYCLE: the nanoseconds since the start of the trace (long), the stream
+ * time (double), the status (int) and the render time in nanoseconds
+ * (int).</li>
+ * <li>START: the ordinal of the playing mode (byte).</li>
+ * <li>STOP: no data.</li>
+ * <li>TEMPO, POSITION, LOOPSTART, LOOPEND: a double.</li>
+ * <li>LOOPCOUNT: an int.</li>
+ * <li>STOPAT: the tick (double).</li>
+ * <li>JUMP: the tick where the jump takes place and the tick where the
+ * playback continues (double, double).</li>
+ * <li>MIDI: the port index (int), the stream time (double), the length
+ * (byte) followed by the bytes of the message.</li>
+ * </ul>
+ * A command or a Midi message becomes effective in the cycle after the last
+ * CYCLE record before it.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class CallbackTrace {
+
+  private static final Logger logger = Logger.getLogger(CallbackTrace.class.getName());
+  /**
+   * The system property that names the directory for the trace files.
+   */
+  static final String PROPERTY = "de.free_creations.microsequencer.trace";
+  static final int MAGIC = 0x46435452; // "FCTR"
+  static final int VERSION = 2; // version 2 adds STOPAT and JUMP
+  static final byte OPEN = 1;
+  static final byte CYCLE = 2;
+  static final byte START = 3;
+  static final byte STOP = 4;
+  static final byte TEMPO = 5;
+  static final byte POSITION = 6;
+  static final byte LOOPSTART = 7;
+  static final byte LOOPEND = 8;
+  static final byte LOOPCOUNT = 9;
+  static final byte MIDI = 10;
+  static final byte STOPAT = 11;
+  static final byte JUMP = 12;
+  /**
+   * The default size of the buffers (about 50 minutes of callbacks at 256
+   * frames per cycle).
+   */
+  static final int DEFAULTCAPACITY = 16 << 20;
+  private static final int CYCLERECORDSIZE = 1 + 8 + 8 + 4 + 4;
+  /**
+   * The position of the render time within a CYCLE record.
+   */
+  private static final int RENDERTIMEOFFSET = 1 + 8 + 8 + 4;
+  /**
+   * The size of the prefix of a record in the event buffer: the number of
+   * cycles recorded before it and the length of the record.
+   */
+  private static final int EVENTPREFIXSIZE = 4 + 4;
+  private volatile boolean recording = false;
+  private volatile boolean truncated = false;
+  private long originNano;
+  // the following variables are written by the audio thread only
+  private ByteBuffer cycleBuffer = null;
+  /**
+   * The position of the render time in the latest CYCLE record (-1 if
+   * none).
+   */
+  private int renderTimeIndex = -1;
+  /**
+   * The number of CYCLE records written so far.
+   */
+  private volatile int cycleCount = 0;
+  /**
+   * Guards the event buffer (never taken by the audio thread).
+   */
+  private final Object eventLock = new Object();
+  private ByteBuffer eventBuffer = null;
+
+  /**
+   * @return the directory given by the system property {@value #PROPERTY}
+   * or null if no trace shall be recorded.
+   */
+  static File getTraceDirectory() {
+    String directory = System.getProperty(PROPERTY);
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+    return new File(directory);
+  }
+
+  boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Start a new recording (a previous recording is discarded). Must not be
+   * called while the audio thread records cycles.
+   *
+   * @param capacity the size of the buffers in bytes (a quarter is reserved
+   * for the commands and Midi messages).
+   */
+  void start(int capacity) {
+    synchronized (eventLock) {
+      recording = false;
+      int eventCapacity = capacity / 4;
+      cycleBuffer = ByteBuffer.allocate(capacity - eventCapacity);
+      eventBuffer = ByteBuffer.allocate(eventCapacity);
+      cycleCount = 0;
+      renderTimeIndex = -1;
+      truncated = false;
+      originNano = System.nanoTime();
+      recording = true;
+    }
+  }
+
+  /**
+   * Stop the recording, the records are kept until the next start.
+   */
+  void stop() {
+    recording = false;
+  }
+
+  /**
+   * @return true if a buffer has been full.
+   */
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * Write the recorded trace into the given file. The commands and Midi
+   * messages are merged into the cycles, each one after the cycles that had
+   * been recorded before it. Must not be called while the audio thread
+   * records cycles.
+   *
+   * @param file the file to be written.
+   * @throws IOException if the file could not be written.
+   */
+  void writeTo(File file) throws IOException {
+    synchronized (eventLock) {
+      if (eventBuffer == null) {
+        throw new IOException("Nothing has been recorded.");
+      }
+      byte[] cycles = cycleBuffer.array();
+      int cycleRecords = cycleCount;
+      ByteBuffer events = ByteBuffer.wrap(eventBuffer.array(), 0, eventBuffer.position());
+      try (FileOutputStream output = new FileOutputStream(file)) {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        output.write(header.array());
+        int written = 0;
+        while (events.hasRemaining()) {
+          int cycle = Math.min(events.getInt(), cycleRecords);
+          int length = events.getInt();
+          if (cycle > written) {
+            output.write(cycles, written * CYCLERECORDSIZE, (cycle - written) * CYCLERECORDSIZE);
+            written = cycle;
+          }
+          output.write(events.array(), events.position(), length);
+          events.position(events.position() + length);
+        }
+        output.write(cycles, written * CYCLERECORDSIZE, (cycleRecords - written) * CYCLERECORDSIZE);
+      }
+      logger.log(Level.INFO, "Audio callback trace written to {0}{1}.",
+              new Object[]{file, truncated ? " (truncated)" : ""});
+    }
+  }
+
+  void recordOpen(int samplingRate, int framesPerCycle, int inputChannelCount, int outputChannelCount) {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(17)) {
+        eventBuffer.put(OPEN);
+        eventBuffer.putInt(samplingRate);
+        eventBuffer.putInt(framesPerCycle);
+        eventBuffer.putInt(inputChannelCount);
+        eventBuffer.putInt(outputChannelCount);
+      }
+    }
+  }
+
+  /**
+   * Record the start of an audio cycle. This function is called by the audio
+   * thread before the cycle is prepared; it does not lock.
+   *
+   * @param nowNano the System.nanoTime() when the cycle started.
+   * @param streamTime the stream time of the cycle.
+   * @param status the status reported by the audio system.
+   */
+  void recordCycleStart(long nowNano, double streamTime, int status) {
+    renderTimeIndex = -1;
+    if (!recording) {
+      return;
+    }
+    ByteBuffer buffer = cycleBuffer;
+    if (buffer.remaining() < CYCLERECORDSIZE) {
+      truncate();
+      return;
+    }
+    int start = buffer.position();
+    buffer.put(CYCLE);
+    buffer.putLong(nowNano - originNano);
+    buffer.putDouble(streamTime);
+    buffer.putInt(status);
+    buffer.putInt(0);
+    renderTimeIndex = start + RENDERTIMEOFFSET;
+    cycleCount++;
+  }
+
+  /**
+   * Record how long the current cycle took to render (called by the audio
+   * thread).
+   *
+   * @param renderNano the render time in nanoseconds.
+   */
+  void recordCycleEnd(long renderNano) {
+    if (renderTimeIndex >= 0) {
+      cycleBuffer.putInt(renderTimeIndex, (int) Math.min(Integer.MAX_VALUE, renderNano));
+      renderTimeIndex = -1;
+    }
+  }
+
+  void recordStart(PlayingMode playingMode) {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(2)) {
+        eventBuffer.put(START);
+        eventBuffer.put((byte) playingMode.ordinal());
+      }
+    }
+  }
+
+  void recordStop() {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(1)) {
+        eventBuffer.put(STOP);
+      }
+    }
+  }
+
+  void recordTempoFactor(double factor) {
+    recordDouble(TEMPO, factor);
+  }
+
+  void recordTickPosition(double tick) {
+    recordDouble(POSITION, tick);
+  }
+
+  void recordLoopStartPoint(double tick) {
+    recordDouble(LOOPSTART, tick);
+  }
+
+  void recordLoopEndPoint(double tick) {
+    recordDouble(LOOPEND, tick);
+  }
+
+  void recordStopAtTick(double tick) {
+    recordDouble(STOPAT, tick);
+  }
+
+  void recordJumpAtTick(double atTick, double toTick) {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(17)) {
+        eventBuffer.put(JUMP);
+        eventBuffer.putDouble(atTick);
+        eventBuffer.putDouble(toTick);
+      }
+    }
+  }
+
+  void recordLoopCount(int count) {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(5)) {
+        eventBuffer.put(LOOPCOUNT);
+        eventBuffer.putInt(count);
+      }
+    }
+  }
+
+  /**
+   * Record a live Midi message.
+   *
+   * @param portIndex the index of the port (in the order of creation).
+   * @param message the message.
+   * @param streamTime the stream time when the message shall be played.
+   */
+  void recordMidi(int portIndex, MidiMessage message, double streamTime) {
+    if (!recording) {
+      return;
+    }
+    int length = Math.min(255, message.getLength());
+    synchronized (eventLock) {
+      if (reserveEvent(1 + 4 + 8 + 1 + length)) {
+        eventBuffer.put(MIDI);
+        eventBuffer.putInt(portIndex);
+        eventBuffer.putDouble(streamTime);
+        eventBuffer.put((byte) length);
+        eventBuffer.put(message.getMessage(), 0, length);
+      }
+    }
+  }
+
+  private void recordDouble(byte tag, double value) {
+    if (!recording) {
+      return;
+    }
+    synchronized (eventLock) {
+      if (reserveEvent(9)) {
+        eventBuffer.put(tag);
+        eventBuffer.putDouble(value);
+      }
+    }
+  }
+
+  /**
+   * Check that the event buffer has room for a record and write the prefix
+   * of the record. If there is no room, the recording stops. The caller must
+   * hold the eventLock.
+   */
+  private boolean reserveEvent(int bytes) {
+    if (!recording) {
+      return false;
+    }
+    if (eventBuffer.remaining() < EVENTPREFIXSIZE + bytes) {
+      truncate();
+      return false;
+    }
+    eventBuffer.putInt(cycleCount);
+    eventBuffer.putInt(bytes);
+    return true;
+  }
+
+  private void truncate() {
+    truncated = true;
+    recording = false;
+  }
+}
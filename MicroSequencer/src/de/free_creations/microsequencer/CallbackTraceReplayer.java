@@ -0,0 +1,360 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import com.sun.media.sound.SoftSynthesizer;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TimeSignatureTrack;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Drives the audio engine offline from a trace that has been recorded by the
+ * {@link CallbackTrace}. The cycles are rendered as fast as possible with the
+ * recorded stream times and status flags; the transport commands and the
+ * live Midi messages are applied between the same cycles as in the
+ * recording. The render time of every cycle is measured, so the replay of
+ * the same trace on two versions of the engine shows whether the render
+ * path has become slower.
+ *
+ * Usage: CallbackTraceReplayer trace-file midi-file [sound-bank]
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class CallbackTraceReplayer {
+
+  /**
+   * The render times of a replayed trace.
+   */
+  static final class Report {
+
+    private final double cycleDuration;
+    private final long[] renderNanos;
+    private final long[] recordedNanos;
+
+    Report(double cycleDuration, long[] renderNanos, long[] recordedNanos) {
+      this.cycleDuration = cycleDuration;
+      this.renderNanos = renderNanos;
+      this.recordedNanos = recordedNanos;
+    }
+
+    int getCycleCount() {
+      return renderNanos.length;
+    }
+
+    /**
+     * @return the nominal duration of a cycle in seconds.
+     */
+    double getCycleDuration() {
+      return cycleDuration;
+    }
+
+    /**
+     * @param cycle the index of a cycle.
+     * @return the time (in nanoseconds) the replay needed to render the
+     * cycle.
+     */
+    long getRenderNanos(int cycle) {
+      return renderNanos[cycle];
+    }
+
+    /**
+     * @param cycle the index of a cycle.
+     * @return the time (in nanoseconds) the cycle needed when it was
+     * recorded.
+     */
+    long getRecordedNanos(int cycle) {
+      return recordedNanos[cycle];
+    }
+
+    /**
+     * @param fraction a value between 0 and 1 (for example 0.99).
+     * @return the render time that the given fraction of the cycles did not
+     * exceed.
+     */
+    long getPercentileNanos(double fraction) {
+      if (renderNanos.length == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(renderNanos, renderNanos.length);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(fraction * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return the number of replayed cycles that took longer than the
+     * cycle duration (these would have been dropouts).
+     */
+    int getOverrunCount() {
+      long limit = (long) (1E9 * cycleDuration);
+      int count = 0;
+      for (long nanos : renderNanos) {
+        if (nanos > limit) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * @return one line per cycle (index, replayed and recorded render time
+     * in microseconds) followed by a summary.
+     */
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      builder.append("cycle\treplay[us]\trecorded[us]\n");
+      for (int i = 0; i < renderNanos.length; i++) {
+        builder.append(i).append('\t')
+                .append(renderNanos[i] / 1000).append('\t')
+                .append(recordedNanos[i] / 1000).append('\n');
+      }
+      builder.append("cycles: ").append(renderNanos.length)
+              .append(", cycle duration[us]: ").append((long) (1E6 * cycleDuration))
+              .append(", median[us]: ").append(getPercentileNanos(0.5) / 1000)
+              .append(", 99%[us]: ").append(getPercentileNanos(0.99) / 1000)
+              .append(", max[us]: ").append(getPercentileNanos(1.0) / 1000)
+              .append(", overruns: ").append(getOverrunCount());
+      return builder.toString();
+    }
+  }
+
+  private CallbackTraceReplayer() {
+  }
+
+  /**
+   * Replay a trace with a fresh engine that plays all tracks of the given
+   * sequence on one synthesiser. Live Midi messages of all ports are sent to
+   * this synthesiser.
+   *
+   * @param traceFile the recorded trace.
+   * @param sequence the song that was played when the trace was recorded.
+   * @param soundbank the sound-bank (null for the default sound-bank).
+   * @return the render times.
+   * @throws IOException if the trace cannot be read.
+   * @throws MidiUnavailableException if the synthesiser cannot be opened.
+   */
+  static Report replay(File traceFile, Sequence sequence, Soundbank soundbank) throws IOException, MidiUnavailableException {
+    MasterSequencerImpl masterSequencer = new MasterSequencerImpl(
+            new MasterSequencer.SubSequencerFactory() {
+              @Override
+              public MasterSequencer.MidiSubSequencer make(String name, Soundbank soundbank) throws MidiUnavailableException {
+                // no stem-cache and no quality governor, the replay must be
+                // repeatable.
+                return new MidiSubSequencer(name, new SoftSynthesizer(), soundbank, null);
+              }
+
+              @Override
+              public MasterSequencer.AudioRecorderSubSequencerInt makeAudioRecorder(String name) {
+                throw new UnsupportedOperationException("Cannot make an audio recorder.");
+              }
+            }, null);
+    AudioMixer audioMixer = new AudioMixer(masterSequencer);
+    masterSequencer.setMasterTrack(new TempoTrack(sequence),
+            new TimeSignatureTrack(sequence), sequence.getTickLength());
+    MidiSubSequencer subSequencer =
+            (MidiSubSequencer) masterSequencer.createMidiSubSequencer("Replay", soundbank);
+    Track[] tracks = sequence.getTracks();
+    subSequencer.setTracks(Arrays.copyOfRange(tracks, Math.min(1, tracks.length), tracks.length));
+    AudioPort audioPort = audioMixer.createPort(subSequencer, RenderPool.provide());
+    for (int channel = 0; channel < 2; channel++) {
+      audioPort.setAttenuation(channel, 0F);
+    }
+    try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(traceFile)))) {
+      return replay(input, masterSequencer, audioMixer, new MidiSubSequencer[]{subSequencer});
+    } finally {
+      audioMixer.removeAllPorts();
+      masterSequencer.removeAllSubsequncers();
+    }
+  }
+
+  /**
+   * Replay a trace on the given engine.
+   *
+   * @param input the recorded trace.
+   * @param masterSequencer receives the transport commands.
+   * @param audioMixer renders the cycles.
+   * @param ports receive the live Midi messages (by port index; messages of
+   * unknown ports are sent to the last port).
+   * @return the render times.
+   * @throws IOException if the trace cannot be read.
+   */
+  static Report replay(DataInputStream input, MasterSequencer masterSequencer,
+          AudioMixer audioMixer, MidiSubSequencer[] ports) throws IOException {
+    if (input.readInt() != CallbackTrace.MAGIC) {
+      throw new IOException("Not an audio callback trace.");
+    }
+    int version = input.readInt();
+    if (version < 1 || version > CallbackTrace.VERSION) {
+      throw new IOException("Unsupported trace version " + version + ".");
+    }
+    long[] renderNanos = new long[1024];
+    long[] recordedNanos = new long[1024];
+    int cycleCount = 0;
+    double cycleDuration = 0D;
+    float[] silence = null;
+    boolean open = false;
+    try {
+      while (true) {
+        byte tag;
+        try {
+          tag = input.readByte();
+        } catch (EOFException ex) {
+          break;
+        }
+        switch (tag) {
+          case CallbackTrace.OPEN:
+            int samplingRate = input.readInt();
+            int framesPerCycle = input.readInt();
+            int inputChannelCount = input.readInt();
+            int outputChannelCount = input.readInt();
+            if (open) {
+              audioMixer.onStopStream();
+              audioMixer.onCloseStream();
+            }
+            audioMixer.onOpenStream(samplingRate, framesPerCycle, inputChannelCount, outputChannelCount, false);
+            audioMixer.onStartStream();
+            open = true;
+            cycleDuration = (double) framesPerCycle / samplingRate;
+            silence = (inputChannelCount == 0) ? null
+                    : new float[framesPerCycle * inputChannelCount];
+            break;
+          case CallbackTrace.CYCLE:
+            input.readLong(); // the time of the callback is not replayed
+            double streamTime = input.readDouble();
+            int status = input.readInt();
+            int recorded = input.readInt();
+            if (!open) {
+              throw new IOException("Cycle before the stream has been opened.");
+            }
+            if (cycleCount == renderNanos.length) {
+              renderNanos = Arrays.copyOf(renderNanos, 2 * cycleCount);
+              recordedNanos = Arrays.copyOf(recordedNanos, 2 * cycleCount);
+            }
+            long startNano = System.nanoTime();
+            audioMixer.process(silence, streamTime, status);
+            renderNanos[cycleCount] = System.nanoTime() - startNano;
+            recordedNanos[cycleCount] = recorded;
+            cycleCount++;
+            break;
+          case CallbackTrace.START:
+            masterSequencer.startMidi(PlayingMode.values()[input.readByte()]);
+            break;
+          case CallbackTrace.STOP:
+            masterSequencer.stopMidi();
+            break;
+          case CallbackTrace.TEMPO:
+            masterSequencer.setTempoFactor(input.readDouble());
+            break;
+          case CallbackTrace.POSITION:
+            masterSequencer.setTickPosition(input.readDouble());
+            break;
+          case CallbackTrace.LOOPSTART:
+            masterSequencer.setLoopStartPoint(input.readDouble());
+            break;
+          case CallbackTrace.LOOPEND:
+            masterSequencer.setLoopEndPoint(input.readDouble());
+            break;
+          case CallbackTrace.LOOPCOUNT:
+            masterSequencer.setLoopCount(input.readInt());
+            break;
+          case CallbackTrace.STOPAT:
+            masterSequencer.stopMidiAtTick(input.readDouble());
+            break;
+          case CallbackTrace.JUMP:
+            double atTick = input.readDouble();
+            masterSequencer.jumpAtTick(atTick, input.readDouble());
+            break;
+          case CallbackTrace.MIDI:
+            int portIndex = input.readInt();
+            double midiStreamTime = input.readDouble();
+            byte[] data = new byte[input.readUnsignedByte()];
+            input.readFully(data);
+            MidiMessage message = toMessage(data);
+            if (message != null && ports.length > 0) {
+              ports[Math.min(portIndex, ports.length - 1)].send(message, midiStreamTime);
+            }
+            break;
+          default:
+            throw new IOException("Unknown record " + tag + " after cycle " + cycleCount + ".");
+        }
+      }
+      if (open) {
+        masterSequencer.stopMidi();
+        audioMixer.onStopStream();
+        audioMixer.onCloseStream();
+      }
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new IOException("Replay failed after cycle " + cycleCount + ".", ex);
+    }
+    return new Report(cycleDuration,
+            Arrays.copyOf(renderNanos, cycleCount),
+            Arrays.copyOf(recordedNanos, cycleCount));
+  }
+
+  private static MidiMessage toMessage(byte[] data) throws InvalidMidiDataException {
+    if (data.length == 0) {
+      return null;
+    }
+    int status = data[0] & 0xFF;
+    if (status == SysexMessage.SYSTEM_EXCLUSIVE || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE) {
+      return new SysexMessage(data, data.length);
+    }
+    ShortMessage message = new ShortMessage();
+    switch (data.length) {
+      case 1:
+        message.setMessage(status);
+        break;
+      case 2:
+        message.setMessage(status, data[1] & 0xFF, 0);
+        break;
+      default:
+        message.setMessage(status, data[1] & 0xFF, data[2] & 0xFF);
+    }
+    return message;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: CallbackTraceReplayer trace-file midi-file [sound-bank]");
+      System.exit(1);
+    }
+    Sequence sequence = MidiSystem.getSequence(new File(args[1]));
+    Soundbank soundbank = (args.length > 2) ? MidiSystem.getSoundbank(new File(args[2])) : null;
+    Report report = replay(new File(args[0]), sequence, soundbank);
+    System.out.println(report);
+    System.exit(0);
+  }
+}
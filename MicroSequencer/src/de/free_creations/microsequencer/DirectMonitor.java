@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * Adds the selected input channels of the sound-card to the output of the
+ * same cycle, so singers can hear themselves while recording. Monitoring
+ * through a port would delay the signal by one cycle; here the input is
+ * added directly into the output buffer of the mixer, without any buffer of
+ * its own. The only delay is the one of the driver.
+ *
+ * The input channels are distributed on the output channels in the same way
+ * as the {@link AudioRecorderSubSequencer} balances them: each output channel
+ * takes the input channel with the same index, surplus input channels are
+ * dropped and surplus output channels repeat the last input channel.
+ *
+ * The monitored signal passes a gain stage (changes are smoothed like in the
+ * {@link AudioPortImpl}) and a peak limiter, so a loud input cannot overdrive
+ * the headphones.
+ *
+ * The settings may be changed by any thread; the process function must be
+ * called by the audio thread only.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class DirectMonitor {
+
+  /**
+   * The time (in seconds) for the gain to reach half of the way to a new
+   * target.
+   */
+  private static final double RELAXATIONTIME = 0.1;
+  /**
+   * The peak level the limiter does not let pass.
+   */
+  static final float LIMIT = 0.9F;
+  /**
+   * The time (in seconds) for the limiter to recover half of its gain
+   * reduction.
+   */
+  private static final double RELEASETIME = 0.05;
+
+  /**
+   * The settings are replaced as a whole, so the audio thread never sees a
+   * half-done change.
+   */
+  private static final class Settings {
+
+    final boolean[] selected;
+    final float gain;
+
+    Settings(boolean[] selected, float gain) {
+      this.selected = selected;
+      this.gain = gain;
+    }
+  }
+  private volatile Settings settings = new Settings(new boolean[0], 0F);
+  // the following variables are only accessed by the audio thread
+  private int framesPerCycle;
+  private int inputChannelCount;
+  private int outputChannelCount;
+  private float currentGain = 0F;
+  private float limiterGain = 1F;
+  private float gain_f0 = 0F;
+  private float gain_f1 = 1F;
+  private float release_f0 = 0F;
+  private float release_f1 = 1F;
+
+  /**
+   * Select the input channels to be monitored.
+   *
+   * @param channels the indexes of the input channels (an empty array
+   * switches monitoring off).
+   * @param attenuation the attenuation of the monitored signal in Decibel
+   * (values above 100 mute the signal, negative values amplify it).
+   */
+  void setMonitoring(int[] channels, float attenuation) {
+    int count = 0;
+    for (int channel : channels) {
+      count = Math.max(count, channel + 1);
+    }
+    boolean[] selected = new boolean[count];
+    for (int channel : channels) {
+      if (channel >= 0) {
+        selected[channel] = true;
+      }
+    }
+    final double F = -0.115129255D; //=-Math.log(10)/20D;
+    float gain = (attenuation > 100F) ? 0F : (float) Math.exp(attenuation * F);
+    settings = new Settings(selected, gain);
+  }
+
+  /**
+   * @return true if at least one input channel is monitored.
+   */
+  boolean isMonitoring() {
+    for (boolean selected : settings.selected) {
+      if (selected) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Prepare for a new stream.
+   *
+   * @param samplingRate frames per second.
+   * @param framesPerCycle frames per cycle.
+   * @param inputChannelCount the number of interleaved input channels (zero
+   * if the input cannot be monitored).
+   * @param outputChannelCount the number of interleaved output channels.
+   */
+  void open(int samplingRate, int framesPerCycle, int inputChannelCount, int outputChannelCount) {
+    this.framesPerCycle = framesPerCycle;
+    this.inputChannelCount = inputChannelCount;
+    this.outputChannelCount = outputChannelCount;
+    gain_f0 = (float) Math.exp(Math.log(0.5) / (samplingRate * RELAXATIONTIME));
+    gain_f1 = 1F - gain_f0;
+    release_f0 = (float) Math.exp(Math.log(0.5) / (samplingRate * RELEASETIME));
+    release_f1 = 1F - release_f0;
+    currentGain = 0F;
+    limiterGain = 1F;
+  }
+
+  /**
+   * Add the monitored input channels to the output.
+   *
+   * @param input the interleaved samples of the sound-card input (may be
+   * null).
+   * @param output the interleaved output samples; the monitored signal is
+   * added in place.
+   */
+  void process(float[] input, float[] output) {
+    Settings current = settings;
+    boolean[] selected = current.selected;
+    float targetGain = current.gain;
+    if (input == null || inputChannelCount == 0 || selected.length == 0) {
+      currentGain = 0F;
+      return;
+    }
+    if (currentGain == 0F && targetGain == 0F) {
+      return;
+    }
+    for (int frame = 0; frame < framesPerCycle; frame++) {
+      currentGain = gain_f0 * currentGain + gain_f1 * targetGain;
+      int inputStart = frame * inputChannelCount;
+      int outputStart = frame * outputChannelCount;
+      // the limiter acts on all channels together, the stereo image is kept.
+      float peak = 0F;
+      for (int channel = 0; channel < outputChannelCount; channel++) {
+        int inChannel = Math.min(channel, inputChannelCount - 1);
+        if (inChannel < selected.length && selected[inChannel]) {
+          peak = Math.max(peak, Math.abs(currentGain * input[inputStart + inChannel]));
+        }
+      }
+      limiterGain = release_f0 * limiterGain + release_f1;
+      if (peak * limiterGain > LIMIT) {
+        // instant attack
+        limiterGain = LIMIT / peak;
+      }
+      float gain = currentGain * limiterGain;
+      for (int channel = 0; channel < outputChannelCount; channel++) {
+        int inChannel = Math.min(channel, inputChannelCount - 1);
+        if (inChannel < selected.length && selected[inChannel]) {
+          output[outputStart + channel] += gain * input[inputStart + inChannel];
+        }
+      }
+    }
+    if (targetGain == 0F && currentGain < 1E-6F) {
+      // faded out
+      currentGain = 0F;
+    }
+  }
+}
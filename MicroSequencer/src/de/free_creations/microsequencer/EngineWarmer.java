@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import com.sun.media.sound.SoftSynthesizer;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TimeSignatureTrack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Track;
+
+/**
+ * Runs the render path once before the first song is played. The first song
+ * opened after launch used to suffer from dropouts, because the classes of
+ * the synthesiser had to be loaded, the default (emergency) sound-bank had to
+ * be generated and the methods of the render path were still interpreted.
+ *
+ * The warmer plays a short generated sequence through a private master
+ * sequencer, audio mixer and MIDI sub-sequencer. Nothing is connected to the
+ * sound-card, so the rendered cycles are not heard.
+ *
+ * The audio stream may already be running while the warmer works. So the
+ * warmer renders on a private low priority thread, not on the
+ * {@link RenderPool} whose threads serve the stream, and it gives up as soon
+ * as a sequencer starts playing (see {@link #cancel()}).
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class EngineWarmer {
+
+  private static final Logger logger = Logger.getLogger(EngineWarmer.class.getName());
+  /**
+   * The number of cycles to be rendered by default. With 256 frames per
+   * cycle this is about twelve seconds of audio; enough for the JIT to compile
+   * the hot methods of the render path.
+   */
+  static final int DEFAULTCYCLES = 2000;
+  private static final int SAMPLINGRATE = 44100;
+  private static final int FRAMESPERCYCLE = 256;
+  private static final int OUTPUTCHANNELS = 2;
+  private static final int RESOLUTION = 480;
+  /**
+   * Set when a sequencer starts playing; never reset.
+   */
+  private static volatile boolean cancelled = false;
+
+  private EngineWarmer() {
+  }
+
+  /**
+   * Stops a running warm-up and skips all later ones. Called when a sequencer
+   * starts playing; from then on the live render path warms itself and must
+   * have the processors to itself.
+   */
+  static void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Render the given number of cycles of a generated sequence. This function
+   * blocks until all cycles have been rendered or the warm-up has been
+   * cancelled.
+   *
+   * @param cycles the number of cycles to render.
+   * @return the peak level of the rendered audio (zero if cancelled before
+   * the first cycle).
+   * @throws MidiUnavailableException if the synthesiser could not be opened.
+   */
+  static float warmUp(int cycles) throws MidiUnavailableException {
+    if (cancelled) {
+      logger.log(Level.INFO, "Render path warm-up skipped, a sequencer is already playing.");
+      return 0F;
+    }
+    long startNano = System.nanoTime();
+    MasterSequencerImpl masterSequencer = new MasterSequencerImpl(
+            new MasterSequencer.SubSequencerFactory() {
+              @Override
+              public MasterSequencer.MidiSubSequencer make(String name, Soundbank soundbank) throws MidiUnavailableException {
+                // no stem-cache, the generated sequence must not be cached.
+                return new MidiSubSequencer(name, new SoftSynthesizer(), soundbank, null);
+              }
+
+              @Override
+              public MasterSequencer.AudioRecorderSubSequencerInt makeAudioRecorder(String name) {
+                throw new UnsupportedOperationException("Cannot make an audio recorder.");
+              }
+            }, null);
+    AudioMixer audioMixer = new AudioMixer(masterSequencer);
+    double cycleDuration = (double) FRAMESPERCYCLE / SAMPLINGRATE;
+    Sequence sequence = createSequence(cycles * cycleDuration);
+    masterSequencer.setMasterTrack(new TempoTrack(sequence),
+            new TimeSignatureTrack(sequence), sequence.getTickLength());
+
+    // a null sound-bank makes the synthesiser load its default sound-bank.
+    MidiSubSequencer subSequencer =
+            (MidiSubSequencer) masterSequencer.createMidiSubSequencer("WarmUp", null);
+    subSequencer.setTracks(new Track[]{sequence.getTracks()[1]});
+    ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.setName("EngineWarmer");
+        return thread;
+      }
+    });
+    AudioPort audioPort = audioMixer.createPort(subSequencer, executor);
+    // ports are muted by default; the gain stage should be warmed as well.
+    for (int channel = 0; channel < OUTPUTCHANNELS; channel++) {
+      audioPort.setAttenuation(channel, 0F);
+    }
+
+    float peak = 0F;
+    int rendered = 0;
+    try {
+      audioMixer.onOpenStream(SAMPLINGRATE, FRAMESPERCYCLE, 0, OUTPUTCHANNELS, false);
+      audioMixer.onStartStream();
+      masterSequencer.startMidi(PlayingMode.MidiOnly);
+      for (; rendered < cycles && !cancelled; rendered++) {
+        float[] output = audioMixer.process(null, rendered * cycleDuration, 0);
+        for (float sample : output) {
+          peak = Math.max(peak, Math.abs(sample));
+        }
+      }
+      masterSequencer.stopMidi();
+      audioMixer.onStopStream();
+      audioMixer.onCloseStream();
+    } catch (MidiUnavailableException ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw (MidiUnavailableException) new MidiUnavailableException(
+              "Could not warm up the render path.").initCause(ex);
+    } finally {
+      audioMixer.removeAllPorts();
+      masterSequencer.removeAllSubsequncers();
+      executor.shutdown();
+    }
+    logger.log(Level.INFO, "Render path warmed up ({0} of {1} cycles) in {2} ms.",
+            new Object[]{rendered, cycles, (System.nanoTime() - startNano) / 1000000});
+    return peak;
+  }
+
+  /**
+   * Create a sequence of chords on four channels with different programs, so
+   * the synthesiser has to render several voices with several instruments.
+   *
+   * @param seconds the minimum length of the sequence.
+   * @return a sequence with the tempo in track zero and the notes in track
+   * one.
+   */
+  private static Sequence createSequence(double seconds) {
+    try {
+      Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION, 2);
+      Track tempo = sequence.getTracks()[0];
+      Track notes = sequence.getTracks()[1];
+      // 120 beats per minute: two beats per second.
+      int microsecondsPerBeat = 500000;
+      byte[] data = new byte[]{
+        (byte) (microsecondsPerBeat >> 16),
+        (byte) (microsecondsPerBeat >> 8),
+        (byte) microsecondsPerBeat};
+      tempo.add(new MidiEvent(new MetaMessage(0x51, data, data.length), 0));
+
+      int[] programs = new int[]{0, 19, 40, 73};
+      for (int channel = 0; channel < programs.length; channel++) {
+        notes.add(new MidiEvent(new ShortMessage(
+                ShortMessage.PROGRAM_CHANGE, channel, programs[channel], 0), 0));
+      }
+      int beats = (int) Math.ceil(2 * seconds) + 1;
+      int[] chord = new int[]{48, 55, 64, 72};
+      for (int beat = 0; beat < beats; beat++) {
+        long tick = (long) beat * RESOLUTION;
+        for (int channel = 0; channel < chord.length; channel++) {
+          int pitch = chord[channel] + (beat % 5);
+          notes.add(new MidiEvent(new ShortMessage(
+                  ShortMessage.NOTE_ON, channel, pitch, 80), tick));
+          notes.add(new MidiEvent(new ShortMessage(
+                  ShortMessage.NOTE_OFF, channel, pitch, 0), tick + RESOLUTION / 2));
+        }
+      }
+      return sequence;
+    } catch (InvalidMidiDataException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
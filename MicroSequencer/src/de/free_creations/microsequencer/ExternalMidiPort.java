@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * A specialized {@link SequencerMidiPort} that plays the tracks on an
+ * external Midi device instead of the built-in synthesiser. The audio port
+ * of an external port stays silent.
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public interface ExternalMidiPort extends SequencerMidiPort {
+
+  /**
+   * Set the time the external device needs to make a message audible
+   * (including the Midi interface). The messages are sent earlier by this
+   * amount, so the device sounds together with the audio output.
+   * @param seconds the latency of the device in seconds.
+   */
+  public void setDeviceLatency(double seconds);
+
+  /**
+   * @return the latency of the device in seconds.
+   */
+  public double getDeviceLatency();
+
+  /**
+   * @return the number of messages that could not be sent in time.
+   */
+  public int getLateCount();
+}
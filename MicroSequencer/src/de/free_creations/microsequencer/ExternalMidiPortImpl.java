@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Implementation of the {@link ExternalMidiPort} interface.
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class ExternalMidiPortImpl implements ExternalMidiPort {
+
+  public final AudioPort audioPort;
+  public final ExternalMidiSubSequencer subsequencer;
+  private final CallbackTrace trace;
+  private final int portIndex;
+
+  /**
+   * Creates an immutable combination of a given {@link AudioPort}
+   * and a given {@link ExternalMidiSubSequencer}.
+   * @param audioPort the audio-port on which the sub-sequencer operates.
+   * @param subsequencer the sub-sequencer operates that uses the given audio-port.
+   * @param trace records the messages sent to this port (may be null).
+   * @param portIndex identifies this port in the trace.
+   */
+  public ExternalMidiPortImpl(AudioPort audioPort, ExternalMidiSubSequencer subsequencer,
+          CallbackTrace trace, int portIndex) {
+    this.audioPort = audioPort;
+    this.subsequencer = subsequencer;
+    this.trace = trace;
+    this.portIndex = portIndex;
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public AudioPort getAudioPort() {
+    return audioPort;
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public void setTracks(Track[] tracks) {
+    subsequencer.setTracks(tracks);
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public void send(MidiMessage message, double streamTime) {
+    if (trace != null) {
+      trace.recordMidi(portIndex, message, streamTime);
+    }
+    subsequencer.send(message, streamTime);
+  }
+
+  @Override
+  public Track[] getTracks() {
+    return subsequencer.getTracks();
+  }
+
+  @Override
+  public void setMute(int trackIndex, boolean value) {
+    subsequencer.setMute(trackIndex, value);
+  }
+
+  @Override
+  public void setMute(boolean value) {
+    subsequencer.setMute(value);
+  }
+
+  /**
+   * The attenuation has no effect, the volume is set on the external device.
+   */
+  @Override
+  public void setAttenuation(int trackIndex, float value) {
+  }
+
+  @Override
+  public void setTranspose(int semitones) {
+    subsequencer.setTranspose(semitones);
+  }
+
+  @Override
+  public void setTranspose(int trackIndex, int semitones) {
+    subsequencer.setTranspose(trackIndex, semitones);
+  }
+
+  @Override
+  public void setChannel(int trackIndex, int channel) {
+    subsequencer.setChannel(trackIndex, channel);
+  }
+
+  @Override
+  public void setVelocityScale(int trackIndex, float factor) {
+    subsequencer.setVelocityScale(trackIndex, factor);
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public void setDeviceLatency(double seconds) {
+    subsequencer.setDeviceLatency(seconds);
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public double getDeviceLatency() {
+    return subsequencer.getDeviceLatency();
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public int getLateCount() {
+    return subsequencer.getLateCount();
+  }
+}
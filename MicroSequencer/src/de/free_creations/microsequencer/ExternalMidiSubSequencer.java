@@ -0,0 +1,598 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.EventStore;
+import de.free_creations.midiutil.InitializationList;
+import de.free_creations.midiutil.MidiUtil;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Plays the attached tracks on an external Midi device (for example a
+ * hardware sound module), so the synthesis does not load our CPU.
+ *
+ * The events of every cycle are collected in the same way as in the
+ * {@link MidiSubSequencer}, but instead of being rendered by a synthesiser
+ * they are handed to a {@link MidiDispatcher} that sends them to the
+ * receiver of the device when they are due. The due time of an event is
+ * derived from its stream time through the {@link StreamClock} of the audio
+ * mixer; the output latency of the sound-card is added (so the external
+ * device sounds together with the audio we hear) and the latency of the
+ * device itself is subtracted.
+ *
+ * The sub-sequencer is also an {@link AudioProcessor} so that it is called
+ * every cycle with the stream time; the audio it produces is silence.
+ *
+ * The variables used in the process loop are synchronised by the
+ * "processLock", the tracks and their settings by the "trackLock".
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class ExternalMidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcessor {
+
+  private static final Logger logger = Logger.getLogger(ExternalMidiSubSequencer.class.getName());
+
+  private class TimestampedMessage {
+
+    public final MidiMessage message;
+    public final double streamTime;
+
+    TimestampedMessage(MidiMessage message, double streamTime) {
+      this.message = message;
+      this.streamTime = streamTime;
+    }
+  }
+  private final String name;
+  private final StreamClock clock;
+  private final MidiDispatcher dispatcher;
+  private final Object processLock = new Object();
+  private final Object trackLock = new Object();
+  private final BlockingQueue<TimestampedMessage> messageQueue =
+          new LinkedBlockingQueue<TimestampedMessage>();
+  private volatile boolean opened = false;
+  private volatile boolean portMute = false;
+  private volatile double deviceLatency = 0D;
+  private volatile int portTranspose = 0;
+  // the following variables are guarded by the trackLock
+  private Track[] tracks = new Track[]{};
+  private EventStore[] events = new EventStore[]{};
+  private boolean[] mute = new boolean[]{};
+  private int[] trackTranspose = new int[]{};
+  private int[] trackChannel = new int[]{};
+  private float[] trackVelocity = new float[]{};
+  private Track[] activeTracks = new Track[]{};
+  private EventStore[] activeEvents = new EventStore[]{};
+  private boolean[] activeMute = new boolean[]{};
+  private int[] nextTrackEventToProcess = new int[]{};
+  /**
+   * For each track and each original note (channel * 128 + key), the sounding
+   * note (channel * 128 + key) plus one, or zero if the note is not sounding.
+   */
+  private int[][] soundingNotes = new int[][]{};
+  private boolean playing = false;
+  private boolean starting = false;
+  private volatile boolean stopping = false;
+  // the following variables are guarded by the processLock
+  private double latencySeconds;
+  private double cycleDuration;
+  private float[] soundFloatArray;
+  private TimeMap timeMap_1 = null;
+  private TimeMap timeMap_2 = null;
+  private double thisCycleStartTick;
+  private double nextCycleStartTick;
+  private boolean loopEndProcessing = false;
+  private double loopStartTick = -1;
+  private double loopEndTick = -1;
+  /**
+   * True while the port is muted and the sounding notes have been stopped.
+   */
+  private boolean silenced = false;
+
+  /**
+   * @param name a name for the sub-sequencer.
+   * @param receiver the receiver of the external device (the caller stays
+   * responsible for closing it).
+   * @param clock the clock of the audio stream.
+   */
+  ExternalMidiSubSequencer(String name, Receiver receiver, StreamClock clock) {
+    this.name = name;
+    this.clock = clock;
+    this.dispatcher = new MidiDispatcher(receiver, name);
+  }
+
+  /**
+   * Set the time the external device needs to make a message audible. The
+   * messages are sent earlier by this amount.
+   *
+   * @param seconds the latency of the device in seconds.
+   */
+  void setDeviceLatency(double seconds) {
+    deviceLatency = seconds;
+  }
+
+  double getDeviceLatency() {
+    return deviceLatency;
+  }
+
+  /**
+   * @return the number of messages that reached the device later than
+   * scheduled.
+   */
+  int getLateCount() {
+    return dispatcher.getLateCount();
+  }
+
+  /**
+   * Sends a MIDI message to the external device. If the given streamTime is
+   * negative, the message is sent as soon as possible.
+   *
+   * @param message the MIDI message to send.
+   * @param streamTime the stream-time in seconds when the message should be
+   * heard.
+   * @throws IllegalStateException if the subSequencer is closed.
+   */
+  public void send(MidiMessage message, double streamTime) {
+    if (!opened) {
+      throw new IllegalStateException("SubSequencer is closed.");
+    }
+    messageQueue.add(new TimestampedMessage(message, streamTime));
+  }
+
+  /**
+   * Sets the tracks that will be played on the next start.
+   *
+   * @param tracks the tracks.
+   */
+  public void setTracks(Track[] tracks) {
+    if (tracks == null) {
+      throw new IllegalArgumentException("Internal Error: null not allowed here, "
+              + "use an empty array instead.");
+    }
+    synchronized (trackLock) {
+      this.tracks = tracks;
+      events = new EventStore[tracks.length];
+      for (int i = 0; i < tracks.length; i++) {
+        events[i] = EventStore.forTrack(tracks[i]);
+      }
+      mute = new boolean[tracks.length];
+      trackTranspose = new int[tracks.length];
+      trackChannel = new int[tracks.length];
+      Arrays.fill(trackChannel, -1);
+      trackVelocity = new float[tracks.length];
+      Arrays.fill(trackVelocity, 1F);
+    }
+  }
+
+  public Track[] getTracks() {
+    return tracks;
+  }
+
+  /**
+   * Mute (or un-mute) an individual track. The muting will take place only at
+   * the next start.
+   */
+  void setMute(int trackIndex, boolean value) {
+    synchronized (trackLock) {
+      mute[trackIndex] = value;
+    }
+  }
+
+  /**
+   * Mute (or un-mute) the whole sub-sequencer. Sounding notes are stopped.
+   */
+  void setMute(boolean value) {
+    portMute = value;
+  }
+
+  void setTranspose(int semitones) {
+    portTranspose = semitones;
+  }
+
+  void setTranspose(int trackIndex, int semitones) {
+    synchronized (trackLock) {
+      if (trackIndex < trackTranspose.length) {
+        trackTranspose[trackIndex] = semitones;
+      }
+    }
+  }
+
+  void setChannel(int trackIndex, int channel) {
+    synchronized (trackLock) {
+      if (trackIndex < trackChannel.length) {
+        trackChannel[trackIndex] = channel;
+      }
+    }
+  }
+
+  void setVelocityScale(int trackIndex, float factor) {
+    synchronized (trackLock) {
+      if (trackIndex < trackVelocity.length) {
+        trackVelocity[trackIndex] = factor;
+      }
+    }
+  }
+
+  @Override
+  public void open(int samplingRate, int framesPerCycle, int inputChannelCount, int outputChannelCount, boolean noninterleaved, long latency) throws MidiUnavailableException {
+    if (noninterleaved) {
+      throw new RuntimeException("Oops..., this version is not able to handle noninterleaved channels.");
+    }
+    synchronized (processLock) {
+      cycleDuration = (double) framesPerCycle / (double) samplingRate;
+      latencySeconds = (double) latency / (double) samplingRate;
+      soundFloatArray = new float[outputChannelCount * framesPerCycle];
+      messageQueue.clear();
+      dispatcher.start();
+      opened = true;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (processLock) {
+      opened = false;
+      dispatcher.close();
+      synchronized (trackLock) {
+        playing = false;
+      }
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+  }
+
+  @Override
+  public void prepareSession(double startTick, PlayingMode mode) {
+    synchronized (trackLock) {
+      logger.log(Level.FINER, "{0}:prepareSession({1})", new Object[]{name, startTick});
+      activeTracks = Arrays.copyOf(tracks, tracks.length);
+      activeEvents = Arrays.copyOf(events, events.length);
+      if (soundingNotes.length != activeEvents.length) {
+        soundingNotes = new int[activeEvents.length][16 * 128];
+      }
+      clearSoundingNotes();
+      activeMute = Arrays.copyOf(mute, mute.length);
+      nextTrackEventToProcess = new int[activeEvents.length];
+      playing = true;
+      stopping = false;
+      starting = true;
+    }
+  }
+
+  @Override
+  public void stopSession() {
+    // no lock, the flag is handled by the next process() call
+    stopping = true;
+  }
+
+  @Override
+  public void prepareLoop(double loopDuration) {
+    // nothing to reserve
+  }
+
+  @Override
+  public void prepareNormalCycle(TimeMap timeMap, double thisCycleStartTick, double nextCycleStartTick) {
+    synchronized (processLock) {
+      this.loopEndProcessing = false;
+      this.timeMap_1 = timeMap;
+      this.timeMap_2 = null;
+      this.thisCycleStartTick = thisCycleStartTick;
+      this.nextCycleStartTick = nextCycleStartTick;
+      this.loopStartTick = -1;
+      this.loopEndTick = -1;
+    }
+  }
+
+  @Override
+  public void prepareLoopEndCycle(TimeMap timeMap_1, TimeMap timeMap_2, double thisCycleStartTick, double nextCycleStartTick, double loopStartTick, double loopEndTick) {
+    synchronized (processLock) {
+      this.loopEndProcessing = true;
+      this.timeMap_1 = timeMap_1;
+      this.timeMap_2 = timeMap_2;
+      this.thisCycleStartTick = thisCycleStartTick;
+      this.nextCycleStartTick = nextCycleStartTick;
+      this.loopStartTick = loopStartTick;
+      this.loopEndTick = loopEndTick;
+    }
+  }
+
+  /**
+   * This function is called for every cycle. It schedules the events of the
+   * cycle on the dispatcher.
+   *
+   * @param streamTime the time in seconds of the audio stream at the start of
+   * this cycle.
+   * @return silence.
+   * @throws IllegalStateException if the subSequencer is closed.
+   */
+  @Override
+  public float[] process(double streamTime, float[] input) throws IllegalStateException {
+    synchronized (processLock) {
+      if (!opened) {
+        throw new IllegalStateException("Cannot process in closed state.");
+      }
+      sendQueuedEvents(streamTime + cycleDuration);
+      synchronized (trackLock) {
+        if (starting) {
+          initializeControllers(thisCycleStartTick, streamTime);
+          starting = false;
+        }
+        if (playing) {
+          if (portMute) {
+            if (!silenced) {
+              allNotesOff(streamTime);
+              silenced = true;
+            }
+            seekTrackEventsToProcess(nextCycleStartTick);
+          } else {
+            silenced = false;
+            sendTrackEvents(streamTime);
+          }
+        }
+        if (stopping) {
+          playing = false;
+          stopping = false;
+          allNotesOff(streamTime + stopOffset());
+        }
+      }
+      return soundFloatArray;
+    }
+  }
+
+  /**
+   * Schedule a message to be heard at the given stream time.
+   */
+  private void schedule(MidiMessage message, double streamTime) {
+    dispatcher.schedule(message,
+            clock.getNanoTime(streamTime + latencySeconds - deviceLatency));
+  }
+
+  /**
+   * Schedules the live messages that are due in this cycle; messages for a
+   * future cycle are re-queued.
+   *
+   * @param cycleEndStreamTime the stream-time when the cycle ends.
+   */
+  private void sendQueuedEvents(double cycleEndStreamTime) {
+    if (messageQueue.isEmpty()) {
+      return; //shortcut
+    }
+    ArrayList<TimestampedMessage> messages = new ArrayList<TimestampedMessage>();
+    messageQueue.drainTo(messages);
+    for (TimestampedMessage message : messages) {
+      if (message.streamTime < 0D) {
+        dispatcher.schedule(message.message, System.nanoTime());
+      } else if (message.streamTime < cycleEndStreamTime) {
+        schedule(message.message, message.streamTime);
+      } else {
+        messageQueue.add(message);
+      }
+    }
+  }
+
+  /**
+   * The time (in seconds from the start of this cycle) at which the playback
+   * ends, when the session stops in this cycle.
+   */
+  private double stopOffset() {
+    if (loopEndProcessing || timeMap_1 == null) {
+      return cycleDuration;
+    }
+    return Math.min(cycleDuration, timeMap_1.getTimeOffset(nextCycleStartTick));
+  }
+
+  /**
+   * Schedule the track events of this cycle.
+   *
+   * @param streamTime the stream time at the start of the cycle.
+   */
+  private void sendTrackEvents(double streamTime) {
+    double upperLimit_1 = nextCycleStartTick;
+    if (loopEndProcessing) {
+      upperLimit_1 = loopEndTick;
+    }
+    sendTrackEvents(thisCycleStartTick, upperLimit_1, timeMap_1, streamTime);
+    if (loopEndProcessing) {
+      double streamTime_2 = streamTime + timeMap_1.getTimeOffset(loopEndTick);
+      seekTrackEventsToProcess(loopStartTick);
+      initializeControllers(loopStartTick, streamTime_2);
+      sendTrackEvents(loopStartTick, nextCycleStartTick, timeMap_2, streamTime_2);
+    }
+  }
+
+  /**
+   * Schedule all events laying between the given limits.
+   *
+   * @param lowerTickLimit events below this limit are not send.
+   * @param upperTickLimit events below this limit are send.
+   * @param timeMap the time-map that converts midi ticks into seconds.
+   * @param lowerStreamTime the stream time corresponding to the lower-limit.
+   */
+  private void sendTrackEvents(double lowerTickLimit, double upperTickLimit,
+          TimeMap timeMap, double lowerStreamTime) {
+    for (int trackIdx = 0; trackIdx < activeEvents.length; trackIdx++) {
+      EventStore trackEvents = activeEvents[trackIdx];
+      int eventIdx = nextTrackEventToProcess[trackIdx];
+      while (eventIdx < trackEvents.size()) {
+        long tick = trackEvents.getTick(eventIdx);
+        if (tick >= upperTickLimit) {
+          break;
+        }
+        if (tick >= lowerTickLimit && !activeMute[trackIdx]) {
+          sendTrackMessage(trackIdx, trackEvents.getMessage(eventIdx),
+                  lowerStreamTime + timeMap.getTimeOffset(tick));
+        }
+        eventIdx++;
+      }
+      nextTrackEventToProcess[trackIdx] = eventIdx;
+    }
+  }
+
+  /**
+   * Positions the pointers into the tracks on the first events at or after
+   * the given tick.
+   */
+  private void seekTrackEventsToProcess(double tick) {
+    long firstTick = (long) Math.ceil(tick);
+    for (int i = 0; i < activeEvents.length; i++) {
+      nextTrackEventToProcess[i] = activeEvents[i].indexOf(firstTick);
+    }
+  }
+
+  /**
+   * Stop all notes and send the controller settings that lay before the
+   * start position.
+   */
+  private void initializeControllers(double startPosition, double streamTime) {
+    allNotesOff(streamTime);
+    for (int trackIdx = 0; trackIdx < activeTracks.length; trackIdx++) {
+      if (activeMute[trackIdx]) {
+        continue;
+      }
+      InitializationList initMessages = new InitializationList(activeTracks[trackIdx], (long) startPosition);
+      for (MidiMessage message : initMessages) {
+        sendTrackMessage(trackIdx, message, streamTime);
+      }
+    }
+  }
+
+  /**
+   * Send an "all notes off" message to all channels. Unlike the built-in
+   * synthesiser, external devices often ignore "all sounds off"; so we use
+   * "all notes off" (controllers are not reset, the initialization list
+   * sets them anyway).
+   */
+  private void allNotesOff(double streamTime) {
+    clearSoundingNotes();
+    for (int channel = 0; channel < 16; channel++) {
+      try {
+        ShortMessage message = new ShortMessage();
+        message.setMessage(ShortMessage.CONTROL_CHANGE, channel, MidiUtil.contAllNotesOff, 0);
+        schedule(message, streamTime);
+      } catch (InvalidMidiDataException ex) {
+        logger.log(Level.SEVERE, null, ex);
+      }
+    }
+  }
+
+  /**
+   * Schedules a message of the given track, after applying the
+   * transposition, the channel redirection and the velocity scaling of the
+   * track. Note-offs are sent to the note that has actually been started by
+   * the corresponding note-on. Meta events are not sent. Transformed messages are new objects, because
+   * the dispatcher sends them later.
+   */
+  private void sendTrackMessage(int trackIdx, MidiMessage message, double streamTime) {
+    if (message instanceof MetaMessage) {
+      // meta events are for the sequencer, not for the device
+      return;
+    }
+    if (!(message instanceof ShortMessage)) {
+      schedule(message, streamTime);
+      return;
+    }
+    ShortMessage shortMessage = (ShortMessage) message;
+    int command = shortMessage.getCommand();
+    if (command == 0xF0) {
+      // system messages have no channel
+      schedule(message, streamTime);
+      return;
+    }
+    boolean noteOn = (command == ShortMessage.NOTE_ON) && (shortMessage.getData2() != 0);
+    boolean noteOff = (command == ShortMessage.NOTE_OFF)
+            || ((command == ShortMessage.NOTE_ON) && (shortMessage.getData2() == 0));
+    int channel = shortMessage.getChannel();
+    int data1 = shortMessage.getData1();
+    int data2 = shortMessage.getData2();
+    int[] sounding = soundingNotes[trackIdx];
+    int note = (channel << 7) | data1;
+    int newChannel = (trackChannel(trackIdx) >= 0) ? trackChannel(trackIdx) : channel;
+    int newData1 = data1;
+    int newData2 = data2;
+    if (noteOn) {
+      newData1 = data1 + portTranspose + trackTranspose(trackIdx);
+      if (newData1 < 0 || newData1 > 127) {
+        // out of range, cannot be played
+        return;
+      }
+      newData2 = Math.max(1, Math.min(127, Math.round(data2 * trackVelocity(trackIdx))));
+      sounding[note] = ((newChannel << 7) | newData1) + 1;
+    } else if (noteOff || command == ShortMessage.POLY_PRESSURE) {
+      int soundingNote = sounding[note] - 1;
+      if (soundingNote < 0) {
+        // the note has not been started by us; send it unchanged.
+        schedule(message, streamTime);
+        return;
+      }
+      newChannel = soundingNote >> 7;
+      newData1 = soundingNote & 0x7F;
+      if (noteOff) {
+        sounding[note] = 0;
+      }
+    }
+    if (newChannel == channel && newData1 == data1 && newData2 == data2) {
+      schedule(message, streamTime);
+      return;
+    }
+    try {
+      schedule(new ShortMessage(command, newChannel, newData1, newData2), streamTime);
+    } catch (InvalidMidiDataException ex) {
+      logger.log(Level.SEVERE, null, ex);
+    }
+  }
+
+  private int trackTranspose(int trackIdx) {
+    return (trackIdx < trackTranspose.length) ? trackTranspose[trackIdx] : 0;
+  }
+
+  private int trackChannel(int trackIdx) {
+    return (trackIdx < trackChannel.length) ? trackChannel[trackIdx] : -1;
+  }
+
+  private float trackVelocity(int trackIdx) {
+    return (trackIdx < trackVelocity.length) ? trackVelocity[trackIdx] : 1F;
+  }
+
+  private void clearSoundingNotes() {
+    for (int[] sounding : soundingNotes) {
+      Arrays.fill(sounding, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ExternalMidiSubSequencer{" + "name=" + name + '}';
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * A level meter gives access to the signal levels measured on the audio
+ * thread. All values are given in Decibel (relative to full scale); a value of
+ * -200 indicates silence. The methods can be called from any thread, they
+ * never block the audio thread.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public interface LevelMeter {
+
+  /**
+   * The level that is reported for silence (and for channels that are not
+   * measured).
+   */
+  public static final float SILENCE = -200F;
+
+  /**
+   * @return the number of channels that are measured.
+   */
+  public int getChannelCount();
+
+  /**
+   * Get the highest peak measured since the last call and restart the
+   * measurement.
+   *
+   * @param channel the audio channel (for a stereo signal there are two
+   * channel, left and right numbered 0 and 1).
+   * @return the peak level in Decibel.
+   */
+  public float getPeakVuAndClear(int channel);
+
+  /**
+   * Get the RMS level of the last processed block.
+   *
+   * @param channel the audio channel.
+   * @return the RMS level in Decibel.
+   */
+  public float getRmsVu(int channel);
+
+  /**
+   * Get the short-term loudness, that is the mean power over the last three
+   * seconds.
+   *
+   * @param channel the audio channel.
+   * @return the short-term loudness in Decibel.
+   */
+  public float getLoudness(int channel);
+}
@@ -0,0 +1,336 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The loop-render-cache stores the audio output of one complete pass through a
+ * loop, so that subsequent passes can be replayed without re-synthesising.
+ *
+ * <h2>Life cycle</h2> The cache starts recording at the first loop-end point
+ * (the first time the cursor jumps back to the loop start). At this moment the
+ * synthesiser is in steady state: the notes sounding over the jump are the
+ * same on every pass. The cache stops recording at the next loop-end point,
+ * from then on it can replay the recorded pass for as long as the
+ * loop-region and the tempo factor do not change.
+ *
+ * <h2>Synchronisation</h2> The length of a loop is normally not an integer
+ * number of frames. In order to avoid a slow drift between the cache and the
+ * master-sequencer, the replay position is re-anchored at every loop-end
+ * point reported by the master-sequencer. If the reported loop-end point is
+ * more than {@link #TOLERANCE} frames away from the end of the recorded pass,
+ * the replay is refused and the caller must fall back to live rendering.
+ *
+ * <h2>Memory</h2> The cache never allocates while recording. A pass that
+ * does not fit into the reserved memory is not cached (the state becomes
+ * OVERSIZED). Larger memory is allocated by {@link #reserve(int)} on a calling
+ * thread and taken over at the next loop-end point.
+ *
+ * <h2>Threading</h2> This class is not thread safe. Except for
+ * {@link #reserve(int)}, it is meant to be used exclusively by the thread
+ * that executes the process() function of the owning sub-sequencer.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class LoopRenderCache {
+
+  /**
+   * The maximum number of frames the loop-end point may deviate from the
+   * recorded pass, before the cache is considered to be out of sync.
+   */
+  static final int TOLERANCE = 2;
+
+  private enum State {
+
+    /**
+     * Nothing recorded.
+     */
+    IDLE,
+    /**
+     * A pass is being recorded.
+     */
+    RECORDING,
+    /**
+     * A complete pass has been recorded and can be replayed.
+     */
+    REPLAYING,
+    /**
+     * The pass did not fit into the cache, wait until the loop changes or
+     * more memory has been reserved.
+     */
+    OVERSIZED
+  }
+  private final int channelCount;
+  private final int maxFrames;
+  private State state = State.IDLE;
+  private float[] samples;
+  /**
+   * Memory allocated by a calling thread, taken over when the next recording
+   * starts.
+   */
+  private final AtomicReference<float[]> reserved = new AtomicReference<>();
+  /**
+   * The number of frames that can be recorded (the larger of the current and
+   * the reserved memory).
+   */
+  private volatile int capacity;
+  /**
+   * The number of frames that have been recorded.
+   */
+  private int recordedFrames = 0;
+  /**
+   * The position (in frames) in the recorded pass that will be replayed next.
+   */
+  private int replayPosition = 0;
+  private double loopStartTick = -1D;
+  private double loopEndTick = -1D;
+  private double tempoFactor = 0D;
+
+  /**
+   * Creates a new loop-render-cache.
+   *
+   * @param channelCount the number of interleaved channels in a frame.
+   * @param initialFrames the number of frames that are reserved for the
+   * first recording.
+   * @param maxFrames the maximum number of frames that can be recorded. Loops
+   * that are longer than this will not be cached.
+   */
+  LoopRenderCache(int channelCount, int initialFrames, int maxFrames) {
+    if (channelCount < 1) {
+      throw new IllegalArgumentException("Invalid channel count " + channelCount);
+    }
+    if (initialFrames < 1 || maxFrames < initialFrames) {
+      throw new IllegalArgumentException("Invalid cache size.");
+    }
+    this.channelCount = channelCount;
+    this.maxFrames = maxFrames;
+    this.samples = new float[channelCount * initialFrames];
+    this.capacity = initialFrames;
+  }
+
+  /**
+   * Reserves memory for a pass of the given length. This function allocates
+   * and must therefore be called by a calling thread, never by the audio
+   * thread. The memory is used from the next loop-end point on.
+   *
+   * @param frames the number of frames of a pass through the loop. Nothing
+   * is reserved for passes longer than the maximum given on construction.
+   */
+  void reserve(int frames) {
+    if (frames <= capacity || frames > maxFrames) {
+      return;
+    }
+    reserved.set(new float[channelCount * frames]);
+    capacity = frames;
+  }
+
+  /**
+   * Discards the recorded pass. The memory is kept for the next recording.
+   */
+  void clear() {
+    state = State.IDLE;
+    recordedFrames = 0;
+    replayPosition = 0;
+    loopStartTick = -1D;
+    loopEndTick = -1D;
+    tempoFactor = 0D;
+  }
+
+  /**
+   * @return true if a complete pass has been recorded and the next cycle can
+   * be replayed.
+   */
+  boolean isReplaying() {
+    return state == State.REPLAYING;
+  }
+
+  /**
+   * @return true if the cache is currently recording a pass.
+   */
+  boolean isRecording() {
+    return state == State.RECORDING;
+  }
+
+  /**
+   * @return the length of the recorded pass in frames (only meaningful when
+   * replaying).
+   */
+  int getRecordedFrames() {
+    return recordedFrames;
+  }
+
+  /**
+   * Verifies whether the recorded pass has been rendered with the given tempo
+   * factor.
+   *
+   * @param tempoFactor the tempo factor of the current cycle.
+   * @return true if the recorded pass (or the pass being recorded) can be used
+   * with the given tempo factor.
+   */
+  boolean matchesTempo(double tempoFactor) {
+    return this.tempoFactor == tempoFactor;
+  }
+
+  /**
+   * Passes a live-rendered cycle to the cache.
+   *
+   * @param cycle the interleaved audio samples of the cycle.
+   * @param frames the number of frames in the cycle.
+   * @param jumpFrame the frame within the cycle where the cursor jumps back to
+   * the loop start, or -1 if the cycle does not contain a loop-end point.
+   * @param loopStartTick the loop start (only relevant if jumpFrame >= 0).
+   * @param loopEndTick the loop end (only relevant if jumpFrame >= 0).
+   * @param tempoFactor the tempo factor used to render this cycle.
+   */
+  void record(float[] cycle, int frames, int jumpFrame,
+          double loopStartTick, double loopEndTick, double tempoFactor) {
+    switch (state) {
+      case IDLE:
+        if (jumpFrame >= 0) {
+          startRecording(cycle, frames, jumpFrame, loopStartTick, loopEndTick, tempoFactor);
+        }
+        return;
+      case OVERSIZED:
+        if (jumpFrame >= 0 && (reserved.get() != null
+                || !matchesLoop(loopStartTick, loopEndTick, tempoFactor))) {
+          startRecording(cycle, frames, jumpFrame, loopStartTick, loopEndTick, tempoFactor);
+        }
+        return;
+      case RECORDING:
+        if (!matchesTempo(tempoFactor)) {
+          clear();
+          return;
+        }
+        if (jumpFrame < 0) {
+          append(cycle, 0, frames);
+          return;
+        }
+        if (!matchesLoop(loopStartTick, loopEndTick, tempoFactor)) {
+          startRecording(cycle, frames, jumpFrame, loopStartTick, loopEndTick, tempoFactor);
+          return;
+        }
+        append(cycle, 0, jumpFrame);
+        if (state != State.RECORDING) {
+          return;
+        }
+        // The frames after the jump have been rendered live, they correspond
+        // to the beginning of the recorded pass.
+        int framesAfterJump = frames - jumpFrame;
+        if (framesAfterJump >= recordedFrames) {
+          // the loop is shorter than a cycle, not worth caching
+          clear();
+          return;
+        }
+        replayPosition = framesAfterJump;
+        state = State.REPLAYING;
+        return;
+      default:
+        throw new IllegalStateException("Cannot record while replaying.");
+    }
+  }
+
+  /**
+   * Fills the given cycle with recorded samples.
+   *
+   * @param cycle the array that receives the interleaved audio samples.
+   * @param frames the number of frames in the cycle.
+   * @param jumpFrame the frame within the cycle where the cursor jumps back to
+   * the loop start, or -1 if the cycle does not contain a loop-end point.
+   * @param loopStartTick the loop start (only relevant if jumpFrame >= 0).
+   * @param loopEndTick the loop end (only relevant if jumpFrame >= 0).
+   * @return true if the cycle could be filled. False if the recorded pass
+   * does not fit the current loop, in this case the caller must render the
+   * cycle live (the content of the given array is undefined).
+   */
+  boolean replay(float[] cycle, int frames, int jumpFrame,
+          double loopStartTick, double loopEndTick) {
+    if (state != State.REPLAYING) {
+      return false;
+    }
+    if (jumpFrame < 0) {
+      if (replayPosition + frames > recordedFrames + TOLERANCE) {
+        // the expected loop-end did not come, the loop has been left.
+        return false;
+      }
+      copyOut(cycle, 0, frames);
+      return true;
+    }
+    if (!matchesLoop(loopStartTick, loopEndTick, tempoFactor)) {
+      return false;
+    }
+    if (Math.abs(replayPosition + jumpFrame - recordedFrames) > TOLERANCE) {
+      return false;
+    }
+    copyOut(cycle, 0, jumpFrame);
+    replayPosition = 0;
+    copyOut(cycle, jumpFrame, frames - jumpFrame);
+    return true;
+  }
+
+  private boolean matchesLoop(double loopStartTick, double loopEndTick, double tempoFactor) {
+    return this.loopStartTick == loopStartTick
+            && this.loopEndTick == loopEndTick
+            && this.tempoFactor == tempoFactor;
+  }
+
+  private void startRecording(float[] cycle, int frames, int jumpFrame,
+          double loopStartTick, double loopEndTick, double tempoFactor) {
+    clear();
+    float[] larger = reserved.getAndSet(null);
+    if (larger != null && larger.length > samples.length) {
+      samples = larger;
+    }
+    this.loopStartTick = loopStartTick;
+    this.loopEndTick = loopEndTick;
+    this.tempoFactor = tempoFactor;
+    state = State.RECORDING;
+    append(cycle, jumpFrame, frames - jumpFrame);
+  }
+
+  /**
+   * Appends a number of frames to the recorded pass. If the pass does not fit
+   * into the reserved memory, the state changes to OVERSIZED.
+   */
+  private void append(float[] cycle, int startFrame, int frames) {
+    int needed = recordedFrames + frames;
+    if (needed * channelCount > samples.length) {
+      state = State.OVERSIZED;
+      recordedFrames = 0;
+      return;
+    }
+    System.arraycopy(cycle, startFrame * channelCount,
+            samples, recordedFrames * channelCount, frames * channelCount);
+    recordedFrames = needed;
+  }
+
+  /**
+   * Copies recorded frames into the given cycle, starting at the current
+   * replay position. If the replay position runs (within the tolerance) over
+   * the end of the recorded pass, the last recorded frame is repeated.
+   */
+  private void copyOut(float[] cycle, int startFrame, int frames) {
+    int available = Math.max(0, Math.min(frames, recordedFrames - replayPosition));
+    System.arraycopy(samples, replayPosition * channelCount,
+            cycle, startFrame * channelCount, available * channelCount);
+    for (int frame = available; frame < frames; frame++) {
+      System.arraycopy(samples, (recordedFrames - 1) * channelCount,
+              cycle, (startFrame + frame) * channelCount, channelCount);
+    }
+    replayPosition += frames;
+  }
+}
@@ -18,8 +18,10 @@ package de.free_creations.microsequencer;
 
 import de.free_creations.midiutil.*;
 import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.io.File;
 import java.io.IOException;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Soundbank;
 
 /**
@@ -122,6 +124,17 @@ interface MasterSequencer {
     public void prepareLoopEndCycle(TimeMap timeMap_1, TimeMap timeMap_2,
             double thisCycleStartTick, double nextCycleStartTick,
             double loopStartTick, double loopEndTick);
+
+    /**
+     * The master-sequencer uses this function to announce the duration of one
+     * pass through the loop, whenever the loop or the tempo changes. It is
+     * called by a calling thread, so the sub-sequencer can allocate the memory
+     * it needs for the loop here instead of in the audio thread.
+     *
+     * @param loopDuration the duration of one pass through the loop in
+     * seconds, or 0 if no loop is played.
+     */
+    public void prepareLoop(double loopDuration);
   }
 
   public interface SubSequencerFactory {
@@ -146,6 +159,30 @@ interface MasterSequencer {
 
   public SubSequencer createAudioRecorderSubSequencer(final String name) throws IOException;
 
+  /**
+   * Create a new sub-sequencer that plays the given audio file in sync with
+   * the song.
+   *
+   * @param name a name for the sub-sequencer.
+   * @param file the audio file.
+   * @return a newly created sub-sequencer.
+   * @throws IOException if the file cannot be read or its format is not
+   * supported.
+   */
+  public MidiSubSequencer createAudioTrackSubSequencer(final String name, File file) throws IOException;
+
+  /**
+   * Create a new sub-sequencer that plays its tracks on an external Midi
+   * device.
+   *
+   * @param name a name for the sub-sequencer.
+   * @param receiver the receiver of the external device.
+   * @param clock the clock of the audio stream (used to schedule the
+   * messages).
+   * @return a newly created sub-sequencer.
+   */
+  public MidiSubSequencer createExternalMidiSubSequencer(final String name, Receiver receiver, StreamClock clock);
+
   public double getTempoFactor();
 
   public void setTempoFactor(double tempoFactor);
@@ -195,6 +232,24 @@ interface MasterSequencer {
 
   public void stopMidi();
 
+  /**
+   * Stop the session when the given tick is reached. The command is queued
+   * and executed by the audio thread in the cycle that contains the tick.
+   *
+   * @param tick the Midi tick where the session shall end.
+   */
+  public void stopMidiAtTick(double tick);
+
+  /**
+   * Continue the session at "toTick" when "atTick" is reached. The command is
+   * queued and executed by the audio thread in the cycle that contains
+   * "atTick".
+   *
+   * @param atTick the Midi tick where the jump shall take place.
+   * @param toTick the Midi tick where the playback continues.
+   */
+  public void jumpAtTick(double atTick, double toTick);
+
   public void setTickPosition(double tick);
 
   public boolean isRunning();
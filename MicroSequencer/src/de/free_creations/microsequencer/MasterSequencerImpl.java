@@ -17,13 +17,22 @@
 package de.free_creations.microsequencer;
 
 import de.free_creations.midiutil.*;
-import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Soundbank;
 
 
@@ -35,11 +44,29 @@ import javax.sound.midi.Soundbank;
  * includes information such as: <ul> <li>at which Midi-tick does the next cycle
  * start.</li> <li>at which speed must the next cycle be rendered.</li> </ul>
  *
+ * The transport is changed by the calling threads (user interface, remote
+ * controllers) and read by the audio thread. To never let the audio thread
+ * wait on a caller, the changes are passed as {@link TransportCommand}s
+ * through a lock-free queue that is drained at the start of each cycle; this
+ * queue is the only path from a calling thread into a running session. The
+ * audio thread publishes the transport state as immutable
+ * {@link TransportSnapshot}s and hands the notifications that originate in a
+ * cycle (end of session, loop done) to a notifier thread, so it neither
+ * takes a lock of the master-sequencer nor calls a listener. The updateLock
+ * only serialises the calling threads (the notifier included) among
+ * themselves; no caller waits for the notifier.
+ *
  * @author Harald Postner <Harald at H-Postner.de>
  */
 class MasterSequencerImpl implements MasterSequencer {
 
   static final private Logger logger = Logger.getLogger(MasterSequencerImpl.class.getName());
+  /**
+   * Stops the sub-sequencers of an ended session and calls the listeners on
+   * behalf of the audio thread. The worker is started in advance and waits on
+   * a lock-free queue, so handing over a notification never blocks.
+   */
+  static final private ThreadPoolExecutor notifier = newNotifier();
   private final SubSequencerFactory midiSubSequencerFactory;
   private final SubSequencerFactory audioSubSequencerFactory;
   private TempoTrack tempoTrack = null;
@@ -49,28 +76,86 @@ class MasterSequencerImpl implements MasterSequencer {
   private final ArrayList<MasterSequencer.AudioRecorderSubSequencerInt> audioSubSequencers =
           new ArrayList<>();
   private final Object updateLock = new Object();
+  // the transport as requested by the calling threads
   private volatile double tempoFactor = 1.0D;
-  private double startPosition = 0D;
-  private long tickLength;
-  private double loopEndPoint;
-  private double loopStartPoint;
-  private int loopCount;
-  private volatile ActiveMasterSequencer activeMasterSequencer = null;
-  private volatile boolean stopping = false;
+  private volatile double startPosition = 0D;
+  private volatile long tickLength;
+  private volatile double loopEndPoint;
+  private volatile double loopStartPoint;
+  private volatile int loopCount;
+  /**
+   * The session as seen by the calling threads. It is set when the sequencer
+   * is started and cleared when it is stopped or has reached its end.
+   */
+  private final AtomicReference<ActiveMasterSequencer> session =
+          new AtomicReference<>();
+  /**
+   * The session that has been started last (guarded by the updateLock). A
+   * session that has ended is only stopped by the notifier if no other
+   * session has been started meanwhile.
+   */
+  private ActiveMasterSequencer lastStarted = null;
+  /**
+   * The transport changes to be executed at the start of the next cycle.
+   */
+  private final ConcurrentLinkedQueue<TransportCommand> commands =
+          new ConcurrentLinkedQueue<>();
+  // the session played by the audio thread (only accessed by the audio thread)
+  private ActiveMasterSequencer activeMasterSequencer = null;
   private final List<SequencerEventListener> sequencerEventListeners = new ArrayList<>();
   private long latency;
+  /**
+   * The transport state as established by the last cycle (or by the last
+   * change while stopped). Position queries are answered from here without
+   * taking any lock.
+   */
+  private volatile TransportSnapshot transport =
+          new TransportSnapshot(0, 0D, 1.0D, 0, null);
+  private final AtomicLong transportVersion = new AtomicLong();
 
   public MasterSequencerImpl(SubSequencerFactory midiSubSequencerFactory, SubSequencerFactory audioSubSequencerFactory) {
     this.midiSubSequencerFactory = midiSubSequencerFactory;
     this.audioSubSequencerFactory = audioSubSequencerFactory;
   }
 
+  private static ThreadPoolExecutor newNotifier() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedTransferQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SequencerNotifier");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    executor.prestartAllCoreThreads();
+    return executor;
+  }
+
+  /**
+   * Wait until the notifications handed over so far have been delivered.
+   * Only used in tests.
+   */
+  static void awaitNotifications() throws InterruptedException, ExecutionException {
+    notifier.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get();
+  }
+
   @Override
   public void setMasterTrack(TempoTrack tempoTrack, TimeSignatureTrack timeSignatureTrack, long tickLength) {
     synchronized (updateLock) {
       this.tempoTrack = tempoTrack;
       this.timeSignatureTrack = timeSignatureTrack;
       this.tickLength = tickLength;
+      if (session.get() == null) {
+        publishStoppedTransport();
+      }
+      prepareLoop();
     }
   }
 
@@ -92,6 +177,7 @@ class MasterSequencerImpl implements MasterSequencer {
       synchronized (midiSubSequencers) {
         midiSubSequencers.add(newSubSequencer);
       }
+      newSubSequencer.prepareLoop(loopDuration());
       return newSubSequencer;
     }
   }
@@ -108,6 +194,30 @@ class MasterSequencerImpl implements MasterSequencer {
     }
   }
 
+  @Override
+  public MidiSubSequencer createAudioTrackSubSequencer(String name, File file) throws IOException {
+    synchronized (updateLock) {
+      AudioTrackSubSequencer newSubSequencer = new AudioTrackSubSequencer(name, file);
+      synchronized (midiSubSequencers) {
+        midiSubSequencers.add(newSubSequencer);
+      }
+      newSubSequencer.prepareLoop(loopDuration());
+      return newSubSequencer;
+    }
+  }
+
+  @Override
+  public MidiSubSequencer createExternalMidiSubSequencer(String name, Receiver receiver, StreamClock clock) {
+    synchronized (updateLock) {
+      ExternalMidiSubSequencer newSubSequencer = new ExternalMidiSubSequencer(name, receiver, clock);
+      synchronized (midiSubSequencers) {
+        midiSubSequencers.add(newSubSequencer);
+      }
+      newSubSequencer.prepareLoop(loopDuration());
+      return newSubSequencer;
+    }
+  }
+
   @Override
   public double getTempoFactor() {
     return tempoFactor;
@@ -115,17 +225,79 @@ class MasterSequencerImpl implements MasterSequencer {
 
   @Override
   public void setTempoFactor(double tempoFactor) {
-    this.tempoFactor = tempoFactor;
+    synchronized (updateLock) {
+      this.tempoFactor = tempoFactor;
+      if (session.get() != null) {
+        commands.add(TransportCommand.tempo(tempoFactor));
+      } else {
+        publishStoppedTransport();
+      }
+      prepareLoop();
+    }
+  }
+
+  /**
+   * Announce the duration of one pass through the loop to the midi
+   * sub-sequencers, so that they can reserve memory before the audio thread
+   * records the loop. Must be called under the updateLock.
+   */
+  private void prepareLoop() {
+    double duration = loopDuration();
+    synchronized (midiSubSequencers) {
+      for (MasterSequencer.MidiSubSequencer s : midiSubSequencers) {
+        s.prepareLoop(duration);
+      }
+    }
+  }
+
+  /**
+   * @return the duration in seconds of one pass through the loop, or 0 if no
+   * loop is played.
+   */
+  private double loopDuration() {
+    double loopEnd = (loopEndPoint < 0D) ? tickLength : loopEndPoint;
+    if (tempoTrack == null || loopCount == 0 || tempoFactor <= 0D
+            || loopStartPoint < 0D || loopEnd <= loopStartPoint) {
+      return 0D;
+    }
+    return tempoTrack.CreateTimeMap(loopStartPoint, Double.MAX_VALUE, tempoFactor).getTimeOffset(loopEnd);
   }
 
   @Override
   public double getCurrentTickPosition(double streamTime) {
-    synchronized (updateLock) {
-      if (activeMasterSequencer != null) {
-        return activeMasterSequencer.getTickPosition(streamTime);
-      } else {
-        return startPosition;
-      }
+    return transport.getTickPosition(streamTime);
+  }
+
+  /**
+   * Get the transport state as established by the last cycle. This method
+   * never blocks.
+   *
+   * @return the latest snapshot of the transport state.
+   */
+  TransportSnapshot getTransportSnapshot() {
+    return transport;
+  }
+
+  /**
+   * Publish a snapshot of the stopped transport.
+   */
+  private void publishStoppedTransport() {
+    transport = new TransportSnapshot(transportVersion.incrementAndGet(),
+            startPosition, tempoFactor, loopCount, timeSignatureTrack);
+  }
+
+  /**
+   * Publish a snapshot of the given session. If the session has been stopped
+   * meanwhile, the snapshot of the stopped transport wins.
+   */
+  private void publishSessionTransport(ActiveMasterSequencer playing) {
+    if (session.get() != playing) {
+      return;
+    }
+    transport = playing.createSnapshot(transportVersion.incrementAndGet());
+    if (session.get() != playing) {
+      // a caller has stopped the session while we were publishing.
+      publishStoppedTransport();
     }
   }
 
@@ -177,74 +349,91 @@ class MasterSequencerImpl implements MasterSequencer {
 
   @Override
   public BeatPosition getCurrentBeatPosition(double streamTime) {
-    synchronized (updateLock) {
-      TimeSignatureTrack usedTimesig = null;
-
-
-      if (activeMasterSequencer != null) {
-        usedTimesig = activeMasterSequencer.getTimeSignatureTrack();
-      } else {
-        usedTimesig = this.timeSignatureTrack;
-      }
-
-      if (usedTimesig == null) {
-        // if there is no time signature track, construct on the fly a default return value 
-        return new BeatPosition() {
-          @Override
-          public int getNumerator() {
-            return 4;
-          }
+    return transport.getBeatPosition(streamTime);
+  }
 
-          @Override
-          public int getDenominator() {
-            return 4;
-          }
+  /**
+   * Executes the pending transport commands and prepares the attached
+   * sub-sequencers to render the next cycle. This function must be called by
+   * the audio thread only; it never waits for a lock held by a caller.
+   */
+  @Override
+  public void prepareCycle(double streamTime,
+          double cycleLength) {
+    executeCommands();
+    ActiveMasterSequencer active = activeMasterSequencer;
+    if (active == null) {
+      return;
+    }
+    active.prepareCycle(streamTime, cycleLength, this);
+    if (activeMasterSequencer == active) {
+      publishSessionTransport(active);
+    }
+  }
 
-          @Override
-          public long getMeasure() {
-            return 0;
+  /**
+   * Execute the commands that have been queued since the last cycle, in the
+   * order they were given.
+   */
+  private void executeCommands() {
+    TransportCommand command;
+    while ((command = commands.poll()) != null) {
+      switch (command.kind) {
+        case START:
+          activeMasterSequencer = command.session;
+          break;
+        case STOP:
+          if (activeMasterSequencer == command.session) {
+            activeMasterSequencer = null;
           }
-
-          @Override
-          public double getBeat() {
-            return 0D;
+          break;
+        default:
+          if (activeMasterSequencer != null) {
+            activeMasterSequencer.execute(command);
           }
-        };
       }
-
-      double tickPos = getCurrentTickPosition(streamTime);
-      return usedTimesig.getBeatPosition(tickPos);
     }
   }
 
-  @Override
-  public void prepareCycle(double streamTime,
-          double cycleLength) {
-    synchronized (updateLock) {
-      double thisCycleTempoFactor = tempoFactor;
-      if (activeMasterSequencer != null) {
-        activeMasterSequencer.prepareCycle(streamTime, cycleLength, thisCycleTempoFactor, this);
-      }
-      if (stopping) {
-        activeMasterSequencer = null;
-        stopping = false;
-      }
+  /**
+   * Called by the audio thread when the given session has reached the end of
+   * the sequence or a requested stop tick. The current cycle is still
+   * rendered; it is the last one of the session. The sub-sequencers are
+   * stopped and the listeners informed by the notifier, unless a new session
+   * has been started meanwhile.
+   *
+   * @param ended the session that has ended.
+   */
+  void endSession(final ActiveMasterSequencer ended) {
+    if (session.compareAndSet(ended, null)) {
+      notifier.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (updateLock) {
+            if (lastStarted == ended) {
+              ended.stopMidi();
+            }
+          }
+        }
+      });
+    }
+    if (activeMasterSequencer == ended) {
+      activeMasterSequencer = null;
     }
+    publishStoppedTransport();
   }
 
   @Override
   public void startMidi(PlayingMode playingMode) {
     logger.log(Level.FINER, "startMidi()");
     synchronized (updateLock) {
-      if (activeMasterSequencer != null) {
+      if (session.get() != null) {
         return; //already started
       }
 
       if (tempoTrack == null) {
-        stopMidi();
         return;
       }
-      stopping = false;
       ArrayList<MasterSequencer.MidiSubSequencer> midiSubSequencersSnapShot;
       synchronized (midiSubSequencers) {
         midiSubSequencersSnapShot =
@@ -255,7 +444,7 @@ class MasterSequencerImpl implements MasterSequencer {
         subMidiAndAudioSequencersSnapShot =
                 new ArrayList<>(audioSubSequencers);
       }
-      activeMasterSequencer =
+      ActiveMasterSequencer newSession =
               new ActiveMasterSequencer(
               startPosition,
               subMidiAndAudioSequencersSnapShot,
@@ -266,8 +455,17 @@ class MasterSequencerImpl implements MasterSequencer {
               loopEndPoint,
               loopStartPoint,
               loopCount,
-              sequencerEventListeners);
-      activeMasterSequencer.startMidi(playingMode);
+              tempoFactor,
+              sequencerEventListeners,
+              notifier);
+      // the sub-sequencers are prepared and the first snapshot is taken
+      // here; once queued, the session belongs to the audio thread.
+      newSession.startMidi(playingMode);
+      TransportSnapshot started = newSession.createSnapshot(transportVersion.incrementAndGet());
+      lastStarted = newSession;
+      session.set(newSession);
+      transport = started;
+      commands.add(TransportCommand.start(newSession));
     }
 
   }
@@ -276,12 +474,34 @@ class MasterSequencerImpl implements MasterSequencer {
   public void stopMidi() {
     logger.log(Level.FINER, "stopMidi()");
     synchronized (updateLock) {
-      if (activeMasterSequencer == null) {
+      ActiveMasterSequencer oldSession = session.getAndSet(null);
+      if (oldSession == null) {
         return; //already stopped
       }
-      activeMasterSequencer.stopMidi();
-      stopping = true;
-      activeMasterSequencer = null; //<<<<<<<<<<<<<<<<????????
+      commands.add(TransportCommand.stop(oldSession));
+      publishStoppedTransport();
+      // only the immutable part of the session is used here
+      oldSession.stopMidi();
+    }
+  }
+
+  @Override
+  public void stopMidiAtTick(double tick) {
+    synchronized (updateLock) {
+      ActiveMasterSequencer running = session.get();
+      if (running != null) {
+        commands.add(TransportCommand.stopAt(running, tick));
+      }
+    }
+  }
+
+  @Override
+  public void jumpAtTick(double atTick, double toTick) {
+    synchronized (updateLock) {
+      ActiveMasterSequencer running = session.get();
+      if (running != null) {
+        commands.add(TransportCommand.jump(running, atTick, toTick));
+      }
     }
   }
 
@@ -289,12 +509,15 @@ class MasterSequencerImpl implements MasterSequencer {
   public void setTickPosition(double tick) {
     synchronized (updateLock) {
       startPosition = tick;
+      if (session.get() == null) {
+        publishStoppedTransport();
+      }
     }
   }
 
   @Override
   public boolean isRunning() {
-    return (activeMasterSequencer != null);
+    return (session.get() != null);
   }
 
   @Override
@@ -329,6 +552,12 @@ class MasterSequencerImpl implements MasterSequencer {
   public void setLoopCount(int count) {
     synchronized (updateLock) {
       this.loopCount = count;
+      if (session.get() != null) {
+        commands.add(TransportCommand.loopCount(count));
+      } else {
+        publishStoppedTransport();
+      }
+      prepareLoop();
     }
   }
 
@@ -362,6 +591,10 @@ class MasterSequencerImpl implements MasterSequencer {
   public void setLoopStartPoint(double tick) {
     synchronized (updateLock) {
       this.loopStartPoint = tick;
+      if (session.get() != null) {
+        commands.add(TransportCommand.loopStart(tick));
+      }
+      prepareLoop();
     }
   }
 
@@ -390,6 +623,10 @@ class MasterSequencerImpl implements MasterSequencer {
   public void setLoopEndPoint(double tick) {
     synchronized (updateLock) {
       this.loopEndPoint = tick;
+      if (session.get() != null) {
+        commands.add(TransportCommand.loopEnd(tick));
+      }
+      prepareLoop();
     }
   }
 
@@ -447,195 +684,3 @@ class MasterSequencerImpl implements MasterSequencer {
     this.latency = latency;
   }
 }
-
-/**
- * The master-sequencer delegates the "prepare-cycle" function to the
- * active-master-sequencer. The active-master-sequencer is immutable in most of
- * its variables thus avoiding problems with concurrent accesses.
- *
- * @author harald
- */
-class ActiveMasterSequencer {
-
-  private static final Logger logger = Logger.getLogger(ActiveMasterSequencer.class.getName());
-  // immutable objects
-  private final TempoTrack tempoTrack;
-  private final TimeSignatureTrack timeSignatureTrack;
-  private final ArrayList<MasterSequencer.AudioRecorderSubSequencerInt> audioSubSequencers;
-  private final ArrayList<MasterSequencer.MidiSubSequencer> midiSubSequencers;
-  private final long sequenceLenght;
-  private final double loopEndPoint;
-  private final double loopStartPoint;
-  //
-  private int loopCount;
-  private final Object cycleLock = new Object();
-  private double thisCycleStartTick = 0D;
-  private double nextCycleStartTick = 0D;
-  private double thisStreamTime = 0D;
-  private double previousStreamTime = 0D;
-  private TimeMap thisTimeMap = null;
-  private TimeMap previousTimeMap = null;
-  private final List<SequencerEventListener> sequencerEventListeners =
-          new ArrayList<>();
-
-  public ActiveMasterSequencer(
-          double startPosition,
-          final ArrayList<MasterSequencer.AudioRecorderSubSequencerInt> audioSubSequencers,
-          final ArrayList<MasterSequencer.MidiSubSequencer> midiSubSequencers,
-          TempoTrack tempoTrack,
-          TimeSignatureTrack timeSignatureTrack,
-          long tickLength,
-          double loopEndPoint,
-          double loopStartPoint,
-          int loopCount,
-          List<SequencerEventListener> sequencerEventListeners) {
-
-    this.tempoTrack = tempoTrack;
-    this.timeSignatureTrack = timeSignatureTrack;
-    this.audioSubSequencers = audioSubSequencers;
-    this.midiSubSequencers = midiSubSequencers;
-    thisCycleStartTick = startPosition;
-    nextCycleStartTick = startPosition;
-    sequenceLenght = tickLength;
-    this.loopEndPoint = loopEndPoint;
-    this.loopStartPoint = loopStartPoint;
-    this.loopCount = loopCount;
-    this.sequencerEventListeners.addAll(sequencerEventListeners);
-  }
-
-  /**
-   * Obtains the current position in the sequence, expressed in MIDI ticks. (The
-   * duration of a tick in seconds is determined both by the tempo and by the
-   * timing resolution stored in the Sequence.)
-   *
-   * @param streamTime the exact stream- time for which the tick position should
-   * be calculated the stream time should be within the current or the previous
-   * cycle.
-   * @return current tick
-   */
-  public double getTickPosition(double streamTime) {
-    if (streamTime > thisStreamTime) {
-      TimeMap thisTimeMapLocal = thisTimeMap; // not really thread save, but better...
-      if (thisTimeMapLocal == null) {
-        return thisCycleStartTick;
-      } else {
-        return thisTimeMapLocal.getTickForOffset(streamTime - thisStreamTime);
-      }
-    } else {
-      TimeMap previousTimeMapLocal = previousTimeMap;
-      if (previousTimeMapLocal == null) {
-        return thisCycleStartTick;
-      } else {
-        return previousTimeMapLocal.getTickForOffset(streamTime - previousStreamTime);
-      }
-    }
-  }
-
-  /**
-   * Prepares the attached sub-sequencers to render the next cycle.
-   *
-   * @param streamTime the time in seconds for which this cycle should be
-   * prepared.
-   * @param cycleLength the length of the next cycle in seconds.
-   */
-  public void prepareCycle(double streamTime, double cycleLength, double tempoFactor, MasterSequencerImpl master) {
-
-    synchronized (cycleLock) {
-      // first calculate all the values we will need for a normal cycle
-      boolean isLoopingCycle = false;
-      TimeMap timeMap_2 = null;
-      double endpointOffset = 0D;
-      previousStreamTime = thisStreamTime;
-      thisStreamTime = streamTime;
-      thisCycleStartTick = nextCycleStartTick;
-      thisTimeMap = tempoTrack.CreateTimeMap(thisCycleStartTick, 1.1 * cycleLength, tempoFactor);
-      nextCycleStartTick = thisTimeMap.getTickForOffset(cycleLength);
-
-      // let's see if we are doing a loop; if yes correct above values
-      if (loopCount != 0) {
-        if ((thisCycleStartTick <= loopEndPoint)
-                && (loopEndPoint < nextCycleStartTick)) {
-          isLoopingCycle = true;
-          if (loopCount > 0) {
-            loopCount--;
-          }
-          fireLoopCountChanged();
-          endpointOffset = thisTimeMap.getTimeOffset(loopEndPoint);
-          timeMap_2 = tempoTrack.CreateTimeMap(loopStartPoint, 1.1 * cycleLength, tempoFactor);
-          nextCycleStartTick = timeMap_2.getTickForOffset(cycleLength - endpointOffset);
-        }
-      }
-
-      // now inform all the midiSubSequencers
-      for (MasterSequencer.MidiSubSequencer s : midiSubSequencers) {
-        if (isLoopingCycle) {
-          s.prepareLoopEndCycle(thisTimeMap, timeMap_2, thisCycleStartTick,
-                  nextCycleStartTick, loopStartPoint, loopEndPoint);
-
-        } else {
-          s.prepareNormalCycle(thisTimeMap, thisCycleStartTick, nextCycleStartTick);
-        }
-      }
-
-      // inform the audio-sequencers about loop-end
-      if (isLoopingCycle) {
-        for (MasterSequencer.AudioRecorderSubSequencerInt a : audioSubSequencers) {
-          a.prepareSwitch(endpointOffset);
-        }
-      }
-      // inform the audio-sequencers about loop-start
-      if ((thisCycleStartTick <= loopStartPoint)
-              && (loopStartPoint < nextCycleStartTick)) {
-        double startpointOffset = thisTimeMap.getTimeOffset(loopStartPoint);
-        for (MasterSequencer.AudioRecorderSubSequencerInt a : audioSubSequencers) {
-          a.prepareSwitch(startpointOffset);
-        }
-      }
-    }
-
-    if (nextCycleStartTick > sequenceLenght) {
-      master.stopMidi();
-    }
-  }
-
-  public void startMidi(PlayingMode playingMode) {
-    synchronized (cycleLock) {
-      logger.log(Level.FINER, "startMidi()");
-      for (MasterSequencer.SubSequencer s : audioSubSequencers) {
-        s.prepareSession(thisCycleStartTick, playingMode);
-      }
-      for (MasterSequencer.SubSequencer s : midiSubSequencers) {
-        s.prepareSession(thisCycleStartTick, playingMode);
-      }
-    }
-    firePlayingChanged(true);
-  }
-
-  public void stopMidi() {
-    synchronized (cycleLock) {
-      for (MasterSequencer.SubSequencer s : audioSubSequencers) {
-        s.stopSession();
-      }
-      for (MasterSequencer.SubSequencer s : midiSubSequencers) {
-        s.stopSession();
-      }
-    }
-    firePlayingChanged(false);
-  }
-
-  public TimeSignatureTrack getTimeSignatureTrack() {
-    return timeSignatureTrack;
-  }
-
-  private void firePlayingChanged(boolean value) {
-    for (SequencerEventListener listener : sequencerEventListeners) {
-      listener.notifyPlaying(value);
-    }
-  }
-
-  private void fireLoopCountChanged() {
-    for (SequencerEventListener listener : sequencerEventListeners) {
-      listener.loopDone(loopCount);
-    }
-  }
-}
@@ -19,8 +19,10 @@ package de.free_creations.microsequencer;
 import de.free_creations.midiutil.BeatPosition;
 import de.free_creations.midiutil.RPosition;
 import de.free_creations.midiutil.RPositionEx;
+import java.io.File;
 import java.io.IOException;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.Soundbank;
@@ -218,6 +220,35 @@ public interface MicroSequencer extends Sequencer {
 
   public SequencerPort createAudioRecorderPort(final String name) throws IOException, MidiUnavailableException;
 
+  /**
+   * Create a port that plays an audio file (for example a recorded
+   * accompaniment) in sync with the song. The file follows the tempo map,
+   * the loops and the tempo factor of the song.
+   *
+   * @param name a name for the port.
+   * @param file a WAV, AIFF or AU file (or any other format for which a
+   * decoder is installed).
+   * @return a port that allows to mute and to align the file.
+   * @throws IOException if the file cannot be read or its format is not
+   * supported.
+   * @throws MidiUnavailableException if the port could not be created.
+   */
+  public AudioTrackPort createAudioTrackPort(final String name, File file) throws IOException, MidiUnavailableException;
+
+  /**
+   * Create a port that plays the attached tracks on an external Midi device
+   * (for example a hardware sound module). The messages are sent when they
+   * are due, compensating the latency of the audio output, so the device
+   * sounds in sync with the audio ports.
+   *
+   * @param name a name for the port.
+   * @param receiver the receiver of the external device (the caller stays
+   * responsible for closing the device).
+   * @return a port which allows to attach the tracks.
+   * @throws MidiUnavailableException if the port could not be created.
+   */
+  public ExternalMidiPort createExternalMidiPort(final String name, Receiver receiver) throws MidiUnavailableException;
+
   /**
    * Closes all ports and removes them from the process loop.
    */
@@ -225,6 +256,19 @@ public interface MicroSequencer extends Sequencer {
 
   public void setTempoFactor(double factor);
 
+  /**
+   * Route input channels of the sound-card directly to the output, so that
+   * singers hear themselves while recording. The input is added to the
+   * output in the same audio cycle, monitoring adds no latency beyond the
+   * buffer of the driver. A limiter protects against feedback peaks.
+   *
+   * @param channels the input channels to be monitored (an empty array
+   * switches monitoring off).
+   * @param attenuation the attenuation of the monitored signal in Decibel
+   * (0 is the original level, values above 100 mute the signal).
+   */
+  public void setDirectMonitoring(int[] channels, float attenuation);
+
   /**
    * Returns the maximum DSP load that was measured since the last request.
    *
@@ -251,4 +295,26 @@ public interface MicroSequencer extends Sequencer {
    * @param playingMode the requested playing mode.
    */
   public void start(PlayingMode playingMode);
+
+  /**
+   * Stops the playback exactly when the given tick is reached (for example at
+   * the end of a loop). The tick may lay several cycles ahead; the notes
+   * sounding at the tick are stopped at the tick. If the tick has already
+   * passed, the playback stops at the next cycle. Has no effect if the
+   * sequencer is not running.
+   *
+   * @param tick the Midi tick where the playback shall end.
+   */
+  public void stopAtTick(double tick);
+
+  /**
+   * Lets the playback jump from one position to another (for example at the
+   * next bar). The jump is executed exactly when the tick "atTick" is reached
+   * and is rendered like the end of a loop. The loop count is not affected.
+   * Has no effect if the sequencer is not running.
+   *
+   * @param atTick the Midi tick where the jump shall take place.
+   * @param toTick the Midi tick where the playback continues.
+   */
+  public void jumpAtTick(double atTick, double toTick);
 }
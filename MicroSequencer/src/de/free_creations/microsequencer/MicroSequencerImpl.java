@@ -17,16 +17,15 @@
 package de.free_creations.microsequencer;
 
 import de.free_creations.audioconfig.AudioSystemInfo;
+import de.free_creations.audioconfig.DeviceProbeCache;
 import de.free_creations.audioconfig.StoredConfig;
 import de.free_creations.midiutil.*;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.*;
@@ -39,29 +38,61 @@ import rtaudio4java.*;
 class MicroSequencerImpl implements MicroSequencer {
 
   static final private Logger logger = Logger.getLogger(MicroSequencer.class.getName());
+  private final Object openCloseLock = new Object();
+  private volatile boolean opened = false;
   /**
-   * The number of times the function provideExecutor() has been called.
+   * Adapts the quality of the synthesisers to the measured load.
    */
-  private int provideExecutorCount = 0;
-  private final Object openCloseLock = new Object();
-  private boolean opened = false;
+  private final QualityGovernor qualityGovernor = new QualityGovernor();
   private final MasterSequencer masterSequencer =
-          new MasterSequencerImpl(MidiSubSequencer.getFactory(), AudioRecorderSubSequencer.getFactory());
-  private final AudioMixer audioMixer = new AudioMixer(masterSequencer);
+          new MasterSequencerImpl(MidiSubSequencer.getFactory(qualityGovernor), AudioRecorderSubSequencer.getFactory());
+  private final AudioMixer audioMixer = new AudioMixer(masterSequencer, qualityGovernor);
   private AudioSystem audioSystem;
-  private final List<ExecutorService> executors = new ArrayList<>();
-  private final ThreadFactory threadFactory = new ThreadFactory() {
-    private int threadCount = 0;
-
-    @Override
-    public Thread newThread(Runnable r) {
-      threadCount++;
-      Thread thread = new Thread(r);
-      thread.setPriority(Thread.MAX_PRIORITY - 1);
-      thread.setName("AudioWorker_" + threadCount);
-      return thread;
-    }
-  };
+  /**
+   * The channels of the shared stream this instance plays on (null while
+   * closed).
+   */
+  private SharedStream.Bus streamBus = null;
+  /**
+   * The System.nanoTime() when open() has been called.
+   */
+  private volatile long openNano = 0;
+  /**
+   * The outputs this instance plays on (null for the outputs of the stored
+   * configuration).
+   */
+  private final OutputBus outputBus;
+  /**
+   * Records the callbacks, the transport commands and the live Midi input
+   * (only if requested, see {@link CallbackTrace#PROPERTY}).
+   */
+  private final CallbackTrace trace = new CallbackTrace();
+  /**
+   * The number of Midi ports created (used to identify the ports in the
+   * trace).
+   */
+  private final AtomicInteger midiPortCount = new AtomicInteger();
+
+  /**
+   * Creates a sequencer that plays on the outputs of the stored
+   * configuration.
+   */
+  MicroSequencerImpl() {
+    this(null);
+  }
+
+  /**
+   * Creates a sequencer that plays on the given output bus. A sequencer on an
+   * explicit bus does not receive the input, the input stays reserved for the
+   * sequencer on the configured outputs.
+   *
+   * @param outputBus the outputs to play on (null for the outputs of the
+   * stored configuration).
+   */
+  MicroSequencerImpl(OutputBus outputBus) {
+    this.outputBus = outputBus;
+    audioMixer.setTrace(trace);
+  }
 
   /**
    * Sets the sequence that defines the timing of the tracks. To make tracks
@@ -88,13 +119,16 @@ class MicroSequencerImpl implements MicroSequencer {
 
   @Override
   public void start(PlayingMode playingMode) {
-    synchronized (openCloseLock) {
-      if (!opened) {
-        throw new RuntimeException("Sequencer cannot start when not opened.");
-      }
-      logger.log(Level.FINER, "started");
-      masterSequencer.startMidi(playingMode);
+    // no openCloseLock here; opening may take seconds and must not delay a
+    // start or a stop given meanwhile.
+    if (!opened) {
+      throw new RuntimeException("Sequencer cannot start when not opened.");
     }
+    logger.log(Level.FINER, "started");
+    // a warm-up still running would compete with the live render path.
+    EngineWarmer.cancel();
+    trace.recordStart(playingMode);
+    masterSequencer.startMidi(playingMode);
   }
 
   /**
@@ -102,10 +136,21 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void stop() {
-    synchronized (openCloseLock) {
-      logger.log(Level.FINER, "stop()");
-      masterSequencer.stopMidi();
-    }
+    logger.log(Level.FINER, "stop()");
+    trace.recordStop();
+    masterSequencer.stopMidi();
+  }
+
+  @Override
+  public void stopAtTick(double tick) {
+    trace.recordStopAtTick(tick);
+    masterSequencer.stopMidiAtTick(tick);
+  }
+
+  @Override
+  public void jumpAtTick(double atTick, double toTick) {
+    trace.recordJumpAtTick(atTick, toTick);
+    masterSequencer.jumpAtTick(atTick, toTick);
   }
 
   /**
@@ -130,6 +175,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setTempoFactor(float factor) {
+    trace.recordTempoFactor(factor);
     masterSequencer.setTempoFactor(factor);
   }
 
@@ -142,6 +188,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setTempoFactor(double factor) {
+    trace.recordTempoFactor(factor);
     masterSequencer.setTempoFactor(factor);
   }
 
@@ -198,12 +245,8 @@ class MicroSequencerImpl implements MicroSequencer {
   public double getTickPosition(double offset) {
     if (audioSystem != null) {
       if (audioSystem.isStreamRunning()) {
-        //try {
-          //return masterSequencer.getCurrentTickPosition(audioSystem.getStreamTime() + offset);
-          return masterSequencer.getCurrentTickPosition(audioMixer.getStreamTime() + offset);
-//        } catch (RtError ex) {
-//          logger.log(Level.SEVERE, null, ex);
-//        }
+        // the mixer's stream clock is smooth and can be read without locking.
+        return masterSequencer.getCurrentTickPosition(audioMixer.getStreamTime() + offset);
       }
     }
     return masterSequencer.getCurrentTickPosition(0D);
@@ -221,11 +264,8 @@ class MicroSequencerImpl implements MicroSequencer {
   public BeatPosition getBeatPosition(double offset) {
     if (audioSystem != null) {
       if (audioSystem.isStreamRunning()) {
-        try {
-          return masterSequencer.getCurrentBeatPosition(audioSystem.getStreamTime() + offset);
-        } catch (RtError ex) {
-          Logger.getLogger(MicroSequencerImpl.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        // same clock as getTickPosition(), so both queries agree.
+        return masterSequencer.getCurrentBeatPosition(audioMixer.getStreamTime() + offset);
       }
     }
     return masterSequencer.getCurrentBeatPosition(0D);
@@ -239,6 +279,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setTickPosition(long tick) {
+    trace.recordTickPosition(tick);
     masterSequencer.setTickPosition(tick);
   }
 
@@ -250,6 +291,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setTickPosition(double tick) {
+    trace.recordTickPosition(tick);
     masterSequencer.setTickPosition(tick);
   }
 
@@ -271,6 +313,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setLoopStartPoint(long tick) {
+    trace.recordLoopStartPoint(tick);
     masterSequencer.setLoopStartPoint(tick);
   }
 
@@ -304,6 +347,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setLoopEndPoint(long tick) {
+    trace.recordLoopEndPoint(tick);
     masterSequencer.setLoopEndPoint(tick);
   }
 
@@ -683,6 +727,7 @@ class MicroSequencerImpl implements MicroSequencer {
    */
   @Override
   public void setLoopCount(int count) {
+    trace.recordLoopCount(count);
     masterSequencer.setLoopCount(count);
   }
 
@@ -714,22 +759,49 @@ class MicroSequencerImpl implements MicroSequencer {
    * once closed, it cannot be reopened. Attempts to reopen this device will
    * always result in a MidiUnavailableException. </p>
    *
+   * <p>The configuration that could be opened the last time is tried first,
+   * the installed audio devices are then probed in the background. Only if
+   * there is no such configuration (or it fails), the devices are probed
+   * before opening.</p>
+   *
    * @throws MidiUnavailableException
    */
   @Override
   public void open() throws MidiUnavailableException {
     synchronized (openCloseLock) {
+      openNano = System.nanoTime();
+      if (CallbackTrace.getTraceDirectory() != null) {
+        trace.start(CallbackTrace.DEFAULTCAPACITY);
+      }
+      // retrieve the prefered audio configuration
+      StoredConfig storedConfig = new StoredConfig();
+      DeviceProbeCache probeCache = DeviceProbeCache.getDefault();
+
+      // optimistically open the configuration that worked the last time...
+      StoredConfig.ConfigRecord rememberedConfig = probeCache.lookup(storedConfig);
+      if (rememberedConfig != null) {
+        try {
+          openStream(rememberedConfig);
+          // ... and verify it while the stream is already running.
+          probeCache.refreshInBackground(storedConfig);
+          logStartup("remembered");
+          opened = true;
+          return;
+        } catch (MidiUnavailableException ex) {
+          logger.log(Level.INFO, "The remembered audio configuration could not be opened.");
+          probeCache.forget();
+          closeStreamQuietly();
+        }
+      }
 
       // Query the Operating System about the installed Audio Hardware
       AudioSystemInfo availableAudioDevices;
       try {
-        availableAudioDevices = new AudioSystemInfo();
+        availableAudioDevices = probeCache.probe();
       } catch (Throwable ex) {
         logger.log(Level.SEVERE, null, ex);
         throw new MidiUnavailableException(ex.getMessage());
       }
-      // retrieve the prefered audio configuration
-      StoredConfig storedConfig = new StoredConfig();
       //try to match the prefered configuration with the installed Audio Hardware
       StoredConfig.ConfigRecord requestedConfig = storedConfig.match(availableAudioDevices);
 
@@ -737,64 +809,143 @@ class MicroSequencerImpl implements MicroSequencer {
         logger.log(Level.SEVERE, "The requested audio architecture is not available.");
         throw new MidiUnavailableException("The requested audio architecture is not available.");
       }
-      audioSystem = AudioSystemFactory.getRtAudioInstance(requestedConfig.getArchitectureNumber());
-      // print messages to stderr.
-      audioSystem.showWarnings(true);
-
-      // Set our stream parameters for the output
-      AudioSystem.StreamParameters oParams = requestedConfig.getOutputParameters();
-      if (oParams == null) {
-        logger.log(Level.SEVERE, "Not a valid output device.");
-        throw new MidiUnavailableException("The requested output device is not available.");
-      } else {
-        logger.log(Level.INFO, "output device = {0}", oParams.deviceId);
-      }
-      // Set our stream parameters for the input
-      AudioSystem.StreamParameters iParams = requestedConfig.getInputParameters();
-      if (iParams == null) {
-        logger.log(Level.INFO, "No Input device.");
-      } else {
-        logger.log(Level.INFO, "input device = {0}", oParams.deviceId);
-      }
-      AudioSystem.StreamOptions options = requestedConfig.getOptions();
-      int b = options.numberOfBuffers;
-      int s = requestedConfig.getBufferSize();
-      long latency = (b+1)*s;
-      try {
-        audioSystem.openStream(oParams,
-                iParams,
-                requestedConfig.getSampleRate(),
-                requestedConfig.getBufferSize(),
-                audioMixer,
-                options);
-        long reportedLatency = audioSystem.getStreamLatency();
-        if(reportedLatency>0){
-          latency = reportedLatency;
-        }
-      } catch (RtError ex) {
-        logger.log(Level.SEVERE, null, ex);
-        throw new MidiUnavailableException(ex.getMessage());
-      }
+      openStream(requestedConfig);
+      probeCache.remember(storedConfig, requestedConfig);
+      logStartup("probed");
+      opened = true;
+    }
+  }
 
-      if (!audioSystem.isStreamOpen()) {
-        logger.log(Level.SEVERE, "Could not open the stream.");
-        throw new MidiUnavailableException("Could not open the stream.");
-      }
-      try {
-        audioSystem.startStream();
-      } catch (RtErrorInvalidUse ex) {
-        logger.log(Level.SEVERE, null, ex);
-        throw new MidiUnavailableException(ex.getMessage());
-      }
-      if (!audioSystem.isStreamRunning()) {
-        logger.log(Level.SEVERE, "Clould not start the stream.");
-        throw new MidiUnavailableException("Clould not start the stream.");
+  /**
+   * Opens the audio stream for the given configuration.
+   *
+   * @param requestedConfig the configuration to be opened.
+   * @throws MidiUnavailableException if the stream could not be started.
+   */
+  private void openStream(StoredConfig.ConfigRecord requestedConfig) throws MidiUnavailableException {
+    AudioSystem system = AudioSystemFactory.getRtAudioInstance(requestedConfig.getArchitectureNumber());
+    // print messages to stderr.
+    system.showWarnings(true);
+    openStream(system,
+            requestedConfig.getOutputParameters(),
+            requestedConfig.getInputParameters(),
+            requestedConfig.getSampleRate(),
+            requestedConfig.getBufferSize(),
+            requestedConfig.getOptions());
+  }
+
+  /**
+   * Attaches the mixer of this sequencer to its channels of the shared
+   * stream, the stream is opened and started if no other sequencer has done
+   * so.
+   *
+   * @throws MidiUnavailableException if the stream could not be started or
+   * the channels are not available.
+   */
+  private void openStream(AudioSystem system,
+          AudioSystem.StreamParameters oParams,
+          AudioSystem.StreamParameters iParams,
+          int sampleRate,
+          int bufferSize,
+          AudioSystem.StreamOptions options) throws MidiUnavailableException {
+    // Set our stream parameters for the output
+    if (oParams == null) {
+      logger.log(Level.SEVERE, "Not a valid output device.");
+      throw new MidiUnavailableException("The requested output device is not available.");
+    }
+    int deviceId = oParams.deviceId;
+    int firstChannel = oParams.firstChannel;
+    if (outputBus != null) {
+      if (outputBus.getDeviceId() != OutputBus.CONFIGUREDDEVICE) {
+        deviceId = outputBus.getDeviceId();
       }
-      masterSequencer.setLatency(latency);
+      firstChannel = outputBus.getFirstChannel();
+      logger.log(Level.INFO, "output bus = {0}", outputBus);
+    } else {
+      logger.log(Level.INFO, "output device = {0}", deviceId);
+    }
+    // The input is opened for the stream as a whole, whoever opens it first.
+    if (iParams == null) {
+      logger.log(Level.INFO, "No Input device.");
+    } else {
+      logger.log(Level.INFO, "input device = {0}", iParams.deviceId);
+    }
+    audioSystem = system;
+    SharedStream stream = SharedStream.getDefault();
+    stream.open(system, deviceId, firstChannel + oParams.nChannels, iParams,
+            sampleRate, bufferSize, options);
+    // the mixer reads the latency when it is attached.
+    masterSequencer.setLatency(stream.getLatency());
+    streamBus = stream.attach(audioMixer, firstChannel, oParams.nChannels, outputBus == null);
+  }
+
+  /**
+   * Opens this sequencer on the given audio system, bypassing the stored
+   * configuration and the device probing (used by the tests).
+   */
+  void open(AudioSystem system,
+          AudioSystem.StreamParameters oParams,
+          AudioSystem.StreamParameters iParams,
+          int sampleRate,
+          int bufferSize,
+          AudioSystem.StreamOptions options) throws MidiUnavailableException {
+    synchronized (openCloseLock) {
+      openNano = System.nanoTime();
+      openStream(system, oParams, iParams, sampleRate, bufferSize, options);
       opened = true;
     }
   }
 
+  /**
+   * Detaches from a stream that has been left half open by a failed attempt.
+   */
+  private void closeStreamQuietly() {
+    if (streamBus == null) {
+      return;
+    }
+    SharedStream.getDefault().detach(streamBus);
+    streamBus = null;
+  }
+
+  private void logStartup(String configuration) {
+    logger.log(Level.INFO, "Audio stream ({0} configuration) running after {1} ms.",
+            new Object[]{configuration, (System.nanoTime() - openNano) / 1000000});
+  }
+
+  /**
+   * The drift of the sound-card clock against the system clock, as measured
+   * by the stream clock.
+   *
+   * @return the measured duration of an audio cycle divided by its nominal
+   * duration (1.0 if the clocks agree).
+   */
+  public double getClockDrift() {
+    return audioMixer.getDriftRatio();
+  }
+
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public void setDirectMonitoring(int[] channels, float attenuation) {
+    audioMixer.setDirectMonitoring(channels, attenuation);
+  }
+
+  /**
+   * Measures the time from the call to {@link #open()} until the first audio
+   * cycle has been processed.
+   *
+   * @return the time to first sound in seconds or NaN if no cycle has been
+   * processed yet.
+   */
+  public double getTimeToFirstSound() {
+    long firstCycleNano = audioMixer.getFirstCycleNano();
+    if (firstCycleNano == 0) {
+      return Double.NaN;
+    }
+    return 1E-9 * (firstCycleNano - openNano);
+  }
+
   /**
    * Closes the synthesizer and and the audio system. <p> Note that once closed,
    * it cannot be reopened. </p> Attempts to reopen this device will always
@@ -807,16 +958,31 @@ class MicroSequencerImpl implements MicroSequencer {
         return;
       }
       opened = false;
-      try {
-        audioSystem.stopStream().get();
-        audioSystem.closeStream().get();
-      } catch (InterruptedException | ExecutionException | RtErrorInvalidUse ex) {
-        throw new RuntimeException(ex);
-      }
+      SharedStream.getDefault().detach(streamBus);
+      streamBus = null;
+      writeTrace();
     }
 
   }
 
+  /**
+   * Write the trace (if one has been recorded) into the directory given by
+   * the system property {@link CallbackTrace#PROPERTY}.
+   */
+  private void writeTrace() {
+    File directory = CallbackTrace.getTraceDirectory();
+    if (directory == null || !trace.isRecording()) {
+      return;
+    }
+    trace.stop();
+    try {
+      directory.mkdirs();
+      trace.writeTo(new File(directory, "audiotrace-" + System.currentTimeMillis() + ".fctr"));
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Could not write the audio callback trace.", ex);
+    }
+  }
+
   /**
    * Reports whether the device is open.
    *
@@ -917,7 +1083,8 @@ class MicroSequencerImpl implements MicroSequencer {
     ExecutorService executorService = provideExecutor();
     MidiSubSequencer subsequncer = (MidiSubSequencer) masterSequencer.createMidiSubSequencer(name, soundbank);
     AudioPort audioPort = audioMixer.createPort(subsequncer, executorService);
-    SequencerMidiPortImpl sequencerPort = new SequencerMidiPortImpl(audioPort, subsequncer);
+    SequencerMidiPortImpl sequencerPort = new SequencerMidiPortImpl(audioPort, subsequncer,
+            trace, midiPortCount.getAndIncrement());
     return sequencerPort;
   }
 
@@ -931,11 +1098,31 @@ class MicroSequencerImpl implements MicroSequencer {
     return sequencerPort;
   }
 
+  @Override
+  public AudioTrackPort createAudioTrackPort(String name, File file) throws IOException, MidiUnavailableException {
+    ExecutorService executorService = provideExecutor();
+    AudioTrackSubSequencer trackSubsequencer =
+            (AudioTrackSubSequencer) masterSequencer.createAudioTrackSubSequencer(name, file);
+    AudioPort audioPort = audioMixer.createPort(trackSubsequencer, executorService);
+    return new AudioTrackPortImpl(audioPort, trackSubsequencer);
+  }
+
+  @Override
+  public ExternalMidiPort createExternalMidiPort(String name, Receiver receiver) throws MidiUnavailableException {
+    ExecutorService executorService = provideExecutor();
+    ExternalMidiSubSequencer externalSubsequencer = (ExternalMidiSubSequencer) masterSequencer.createExternalMidiSubSequencer(
+            name, receiver, audioMixer.getStreamClock());
+    AudioPort audioPort = audioMixer.createPort(externalSubsequencer, executorService);
+    return new ExternalMidiPortImpl(audioPort, externalSubsequencer,
+            trace, midiPortCount.getAndIncrement());
+  }
+
   /**
    * Closes all ports and removes them from the process loop.
    */
   @Override
   public void removeAllPorts() {
+    midiPortCount.set(0);
     audioMixer.removeAllPorts();
     masterSequencer.removeAllSubsequncers();
   }
@@ -999,19 +1186,21 @@ class MicroSequencerImpl implements MicroSequencer {
   }
 
   /**
-   * Provide an executor that can be attached to an audio port. In order to
-   * balance the load onto all available CPU's, this function will create new
-   * executors until
+   * Provide an executor that can be attached to an audio port. The executors
+   * are shared by all sequencer instances (see {@link RenderPool}).
    *
-   * @return
+   * @return an executor for an audio port.
    */
   private ExecutorService provideExecutor() {
-    int executorIdx = provideExecutorCount % Runtime.getRuntime().availableProcessors();
-    while (executors.size() <= executorIdx) {
-      executors.add(Executors.newSingleThreadExecutor(threadFactory));
-    }
-    provideExecutorCount++;
-    return executors.get(executorIdx);
+    return RenderPool.provide();
+  }
+
+  /**
+   * @return the outputs this instance plays on (null for the outputs of the
+   * stored configuration).
+   */
+  OutputBus getOutputBus() {
+    return outputBus;
   }
 
   @Override
@@ -15,25 +15,101 @@
  */
 package de.free_creations.microsequencer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sound.midi.MidiUnavailableException;
+
 /**
  * This class manages the live-time of the microsequncer.
+ *
+ * By default there is one sequencer playing on the outputs of the stored
+ * audio configuration. For setups where one machine drives several practice
+ * stations, further sequencers can be obtained, one per {@link OutputBus}.
+ * Each of them has its own sequence, tempo and loop; they share the audio
+ * stream (see {@link SharedStream}), the render threads and the caches
+ * (sound-banks, stems).
+ *
  * @author Harald Postner <Harald at H-Postner.de>
  */
 public class MicroSequencerManager {
 
   static private MicroSequencer theMicroSequencer = null;
+  static private final Map<OutputBus, MicroSequencer> stations = new HashMap<>();
 
-  public static MicroSequencer getInstance() {
+  public static synchronized MicroSequencer getInstance() {
     if (theMicroSequencer == null) {
       theMicroSequencer = new MicroSequencerImpl();
     }
     return theMicroSequencer;
   }
 
-  public static void closeInstance() {
-    if (theMicroSequencer != null) {
-      if (theMicroSequencer.isOpen()) {
-        theMicroSequencer.close();
+  /**
+   * Get the sequencer that plays on the given output bus. The sequencer is
+   * created on the first call, it must be opened before use.
+   *
+   * @param outputBus the outputs of the station (if null, the default
+   * sequencer is returned).
+   * @return the sequencer of the given output bus.
+   */
+  public static synchronized MicroSequencer getInstance(OutputBus outputBus) {
+    if (outputBus == null) {
+      return getInstance();
+    }
+    MicroSequencer station = stations.get(outputBus);
+    if (station == null) {
+      station = new MicroSequencerImpl(outputBus);
+      stations.put(outputBus, station);
+    }
+    return station;
+  }
+
+  public static synchronized void closeInstance() {
+    closeSequencer(theMicroSequencer);
+  }
+
+  /**
+   * Close the sequencer of the given output bus (if there is one).
+   *
+   * @param outputBus the outputs of the station.
+   */
+  public static synchronized void closeInstance(OutputBus outputBus) {
+    if (outputBus == null) {
+      closeInstance();
+      return;
+    }
+    closeSequencer(stations.remove(outputBus));
+  }
+
+  /**
+   * Close the default sequencer and the sequencers of all output buses.
+   */
+  public static synchronized void closeAllInstances() {
+    closeInstance();
+    for (MicroSequencer station : new ArrayList<>(stations.values())) {
+      closeSequencer(station);
+    }
+    stations.clear();
+  }
+
+  /**
+   * Run the render path offline for a few seconds, so the synthesiser classes
+   * are loaded, the default sound-bank is generated and the hot methods are
+   * compiled before the first song is played. This function blocks for
+   * several seconds; it should be called once at start-up from a background
+   * thread. The warm-up does not use the render threads of the audio stream,
+   * and it ends early as soon as a sequencer starts playing.
+   *
+   * @throws MidiUnavailableException if the synthesiser could not be opened.
+   */
+  public static void warmUp() throws MidiUnavailableException {
+    EngineWarmer.warmUp(EngineWarmer.DEFAULTCYCLES);
+  }
+
+  private static void closeSequencer(MicroSequencer sequencer) {
+    if (sequencer != null) {
+      if (sequencer.isOpen()) {
+        sequencer.close();
       }
     }
   }
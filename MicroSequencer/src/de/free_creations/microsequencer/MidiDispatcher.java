@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.MidiUtil;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Sends Midi messages to a receiver at given points in (system) time. The
+ * receivers of external Midi devices ignore time-stamps; the messages must
+ * be handed over at the moment they shall sound. This is done by a thread of
+ * maximum priority that sleeps until the next message is due.
+ *
+ * Messages that are due at the same time are sent in the order in which
+ * they have been scheduled (a note-off must not overtake the note-on).
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class MidiDispatcher {
+
+  private static final Logger logger = Logger.getLogger(MidiDispatcher.class.getName());
+
+  private static final class ScheduledMessage implements Delayed {
+
+    final MidiMessage message;
+    final long dueNano;
+    final long sequenceNumber;
+
+    ScheduledMessage(MidiMessage message, long dueNano, long sequenceNumber) {
+      this.message = message;
+      this.dueNano = dueNano;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueNano - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      ScheduledMessage that = (ScheduledMessage) other;
+      if (dueNano != that.dueNano) {
+        return (dueNano - that.dueNano < 0) ? -1 : 1;
+      }
+      return (sequenceNumber < that.sequenceNumber) ? -1
+              : ((sequenceNumber == that.sequenceNumber) ? 0 : 1);
+    }
+  }
+  private final Receiver receiver;
+  private final String name;
+  private final DelayQueue<ScheduledMessage> queue = new DelayQueue<ScheduledMessage>();
+  private long sequenceNumber = 0;
+  private volatile int lateCount = 0;
+  private Thread thread = null;
+  /**
+   * Messages that are sent more than this time (in nanoseconds) after they
+   * were due are counted as late.
+   */
+  static final long LATENESS = 2000000L;
+  /**
+   * How long close() waits for the dispatching thread to end.
+   */
+  private static final long CLOSETIMEOUTMILLIS = 100;
+
+  /**
+   * @param receiver the receiver to which the messages are sent.
+   * @param name a name for the thread.
+   */
+  MidiDispatcher(Receiver receiver, String name) {
+    this.receiver = receiver;
+    this.name = name;
+  }
+
+  /**
+   * Start the dispatching thread (if not already running).
+   */
+  synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    });
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MAX_PRIORITY);
+    thread.setName("FreeCreationsMidiDispatcher-" + name);
+    thread.start();
+  }
+
+  /**
+   * Stop the dispatching thread; messages that are not yet due are
+   * discarded. These may be the note-offs of sounding notes (or the "all
+   * notes off" of a stop), so once the thread has ended, an "all notes off"
+   * is sent directly to the receiver on all channels.
+   */
+  synchronized void close() {
+    if (thread == null) {
+      queue.clear();
+      return;
+    }
+    Thread stopped = thread;
+    thread = null;
+    stopped.interrupt();
+    try {
+      // the receiver must not be called by two threads at once.
+      stopped.join(CLOSETIMEOUTMILLIS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    queue.clear();
+    sendAllNotesOff();
+  }
+
+  private void sendAllNotesOff() {
+    for (int channel = 0; channel < 16; channel++) {
+      try {
+        receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel,
+                MidiUtil.contAllNotesOff, 0), -1);
+      } catch (InvalidMidiDataException | RuntimeException ex) {
+        logger.log(Level.WARNING, "Could not send to " + name + ".", ex);
+      }
+    }
+  }
+
+  /**
+   * Schedule a message.
+   *
+   * @param message the message (must not be changed afterwards).
+   * @param dueNano the System.nanoTime() value when the message shall be
+   * sent; values in the past let the message be sent as soon as possible.
+   */
+  void schedule(MidiMessage message, long dueNano) {
+    long number;
+    synchronized (this) {
+      number = sequenceNumber++;
+    }
+    queue.add(new ScheduledMessage(message, dueNano, number));
+  }
+
+  /**
+   * Discard all messages that are not yet sent.
+   */
+  void clear() {
+    queue.clear();
+  }
+
+  /**
+   * @return the number of pending messages.
+   */
+  int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * @return the number of messages that have been sent later than
+   * {@link #LATENESS} after they were due.
+   */
+  int getLateCount() {
+    return lateCount;
+  }
+
+  private void dispatch() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        ScheduledMessage next = queue.take();
+        if (System.nanoTime() - next.dueNano > LATENESS) {
+          lateCount++;
+        }
+        try {
+          receiver.send(next.message, -1);
+        } catch (RuntimeException ex) {
+          // a faulty device must not stop the dispatching
+          logger.log(Level.WARNING, "Could not send to " + name + ".", ex);
+        }
+      }
+    } catch (InterruptedException ex) {
+      // closed.
+    }
+  }
+}
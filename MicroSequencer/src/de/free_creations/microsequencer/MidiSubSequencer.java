@@ -18,23 +18,30 @@ package de.free_creations.microsequencer;
 
 import com.sun.media.sound.AudioSynthesizer;
 import com.sun.media.sound.SoftSynthesizer;
+import de.free_creations.midiutil.EventStore;
 import de.free_creations.midiutil.InitializationList;
 import de.free_creations.midiutil.MidiUtil;
+import de.free_creations.midiutil.TempoTrack;
 import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
@@ -55,7 +62,21 @@ import javax.sound.sampled.AudioInputStream;
  * The functions open(), close(), prepareLoopEndCycle(), process() are
  * synchronised by the "processLock". Access to the tracks are synchronised by
  * the "trackLock" and by the fact that once started, the active-tracks cannot
- * (should not??) change anymore.
+ * (should not??) change anymore. <h2>Render cache</h2> When the sequence is
+ * looping, the output of one pass through the loop is kept in a
+ * {@link LoopRenderCache}. The subsequent passes are replayed from the cache
+ * and the synthesiser stays idle, until the tempo, the loop, the tracks or the
+ * mute settings change or a Midi message is sent. <h2>Stems</h2> If a
+ * {@link StemCache} is given, the stems of the tracks (one audio file per
+ * track, pre-rendered at the current tempo factor) are requested at the start
+ * of a session. Once they are available, subsequent sessions are played from
+ * the stems and the synthesiser stays idle; mute and attenuation per track are
+ * applied when mixing the stems. When the tempo factor changes, the
+ * synthesiser takes over again. <h2>Quality</h2> If a {@link QualityGovernor}
+ * is given, the synthesiser is replaced by one with cheaper (or better)
+ * settings whenever the governor changes the quality level. The replacement is
+ * prepared in the background and takes over at the start of a session or at
+ * the loop end.
  *
  * @author Harald Postner <Harald at H-Postner.de>
  * @Note the prepareLoopEndCycle seems send events that are beyond the end of
@@ -74,7 +95,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * this takes is defined by the RELAXATIONTIME constant (in seconds).
    */
   private final double RELAXATIONTIME = 0.1; // in seconds
-  private boolean stopping = false;
+  private volatile boolean stopping = false;
   private boolean loopEndProcessing;
 
   private class TimestampedMessage {
@@ -90,7 +111,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
   /**
    * The synthesiser that renders Midi events into audio samples.
    */
-  private final AudioSynthesizer synthesizer;
+  private AudioSynthesizer synthesizer;
   /**
    * The sound bank to be used by the synthesiser.
    */
@@ -99,7 +120,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * A synthMidiReceiver of the synthesiser that shall receive the midi
    * instructions.
    */
-  private final Receiver synthMidiReceiver;
+  private Receiver synthMidiReceiver;
   /**
    * The Midi-tick position in the tracks at the start of the current cycle.
    */
@@ -112,11 +133,20 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * The Tracks that are currently played.
    */
   private Track[] activeTracks = new Track[]{};
+  /**
+   * The events of the active tracks in a compact form (one event store per
+   * active track).
+   */
+  private EventStore[] activeEvents = new EventStore[]{};
   /**
    * The Tracks that should be played when the MidiSubSequencer starts for the
    * next time.
    */
   private Track[] tracks = new Track[]{};
+  /**
+   * The event stores of the tracks that should be played on the next start.
+   */
+  private EventStore[] events = new EventStore[]{};
   /**
    * Indicates which tracks (out of activeTracks) should stay mute.
    */
@@ -153,7 +183,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * jumping back loopStartTick.
    */
   private double loopEndTick;
-  private ArrayList<Integer> nextTrackEventToProcess = new ArrayList<>();
+  private int[] nextTrackEventToProcess = new int[]{};
   /**
    * The current time of the synthesiser in seconds.
    */
@@ -202,6 +232,143 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    */
   private final BlockingQueue<TimestampedMessage> messageQueue =
           new LinkedBlockingQueue<>();
+  /**
+   * The longest loop (in seconds) that will be kept in the render cache.
+   */
+  private final double MAXCACHEDLOOP = 60D; // in seconds
+  /**
+   * Stores the synthesiser output of one pass through the loop, so that
+   * subsequent passes can be replayed without re-synthesising.
+   */
+  private volatile LoopRenderCache renderCache;
+  /**
+   * The duration (in seconds) of one pass through the loop, as announced by
+   * the master-sequencer.
+   */
+  private volatile double loopDuration = 0D;
+  /**
+   * Flag indicating that the render cache must be discarded, because
+   * something that influences the rendered sound has changed.
+   */
+  private volatile boolean renderCacheDirty = false;
+  private int samplingRate;
+  private int framesPerCycle;
+  private int outputChannelCount;
+  /**
+   * The number of frames a stem-player reads in one step.
+   */
+  private final int STEMWINDOWFRAMES = 1 << 16;
+  /**
+   * The cache that provides pre-rendered stems of the tracks (null if stems
+   * shall not be used).
+   */
+  private final StemCache stemCache;
+  /**
+   * The executor that reads the stems in the background (created on first
+   * use).
+   */
+  private ExecutorService stemExecutor = null;
+  /**
+   * The stems requested for the active tracks (one per track).
+   */
+  private Future<File>[] stemRequests = null;
+  private Track[] stemTracks = null;
+  private TempoTrack stemTempoTrack = null;
+  private double stemTempoFactor = 0D;
+  /**
+   * A time-map over the whole sequence, used to calculate positions in the
+   * stems.
+   */
+  private TimeMap stemTimeMap = null;
+  /**
+   * The stem-player is not null while the tracks are played from stems.
+   */
+  private StemPlayer stemPlayer = null;
+  /**
+   * The position in the stems (in frames) at the start of the next cycle.
+   */
+  private long stemPosition = 0;
+  /**
+   * The gain of each track (out of tracks), only applied when playing from
+   * stems.
+   */
+  private volatile float[] trackGain = new float[]{};
+  /**
+   * The transposition (in semitones) applied to all tracks.
+   */
+  private volatile int portTranspose = 0;
+  /**
+   * The transposition (in semitones) of each track (out of tracks).
+   */
+  private volatile int[] trackTranspose = new int[]{};
+  /**
+   * The channel each track (out of tracks) is redirected to; -1 keeps the
+   * channels of the track.
+   */
+  private volatile int[] trackChannel = new int[]{};
+  /**
+   * The factor applied to the note-on velocities of each track (out of
+   * tracks).
+   */
+  private volatile float[] trackVelocity = new float[]{};
+  /**
+   * Flag indicating that at least one transformation is in effect.
+   */
+  private volatile boolean transforming = false;
+  /**
+   * For each active track, the notes that are currently sounding. The index
+   * is the original note (channel * 128 + pitch); the value is the note as
+   * it has been sent to the synthesiser (channel * 128 + pitch), plus one. A
+   * value of zero means the note is not sounding. This permits to send the
+   * correct note-off even if the transformation has changed in the meantime.
+   */
+  private int[][] soundingNotes = new int[][]{};
+  /**
+   * The message that carries transformed events to the synthesiser. It is
+   * re-used for every transformed event; this works because the synthesiser
+   * copies the message data when it receives it.
+   */
+  private final ShortMessage transformedMessage = new ShortMessage();
+  /**
+   * The governor that decides on the quality level of the synthesiser (null
+   * if the quality shall not be adapted).
+   */
+  private final QualityGovernor qualityGovernor;
+  /**
+   * The quality level the current synthesiser has been opened with.
+   */
+  private int synthesizerLevel = 0;
+  /**
+   * The audio format the synthesiser has been opened with.
+   */
+  private AudioFormat synthesizerFormat;
+  /**
+   * The executor that prepares replacement synthesisers (created on first
+   * use).
+   */
+  private ExecutorService synthesizerSetupExecutor = null;
+  /**
+   * A synthesiser that is being prepared for a new quality level (null if
+   * none is being prepared).
+   */
+  private Future<SpareSynthesizer> spareSynthesizer = null;
+
+  /**
+   * A synthesiser that has been opened and loaded in the background and that
+   * is ready to replace the current synthesiser.
+   */
+  private static class SpareSynthesizer {
+
+    final AudioSynthesizer synthesizer;
+    final AudioInputStream stream;
+    final int level;
+
+    SpareSynthesizer(AudioSynthesizer synthesizer, AudioInputStream stream, int level) {
+      this.synthesizer = synthesizer;
+      this.stream = stream;
+      this.level = level;
+    }
+  }
 
   /**
    * Create a new MidiSubSequencer. The Midi events will be rendered on a new
@@ -213,10 +380,24 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * @throws MidiUnavailableException
    */
   public MidiSubSequencer(final String name, Soundbank soundbank) throws MidiUnavailableException {
-    this.name = name;
-    this.synthesizer = new SoftSynthesizer();
-    this.soundbank = soundbank;
-    this.synthMidiReceiver = synthesizer.getReceiver();
+    this(name, soundbank, null);
+  }
+
+  /**
+   * Create a new MidiSubSequencer. The Midi events will be rendered on a new
+   * synthesiser using the given sound-bank. The quality of the synthesiser is
+   * adapted to the level decided by the given quality-governor. Stems are only
+   * used if the default stem-cache is enabled (see {@link StemCache}).
+   *
+   * @param name a name for this MidiSubSequencer
+   * @param soundbank the sound-bank that the synthesiser shall use (may be
+   * null)
+   * @param qualityGovernor the governor that decides on the quality level
+   * (may be null, in this case the best quality is used).
+   * @throws MidiUnavailableException
+   */
+  MidiSubSequencer(final String name, Soundbank soundbank, QualityGovernor qualityGovernor) throws MidiUnavailableException {
+    this(name, new SoftSynthesizer(), soundbank, StemCache.getDefaultIfEnabled(), qualityGovernor);
   }
 
   /**
@@ -230,10 +411,49 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * @throws MidiUnavailableException
    */
   MidiSubSequencer(final String name, AudioSynthesizer synthesizer, Soundbank soundbank) throws MidiUnavailableException {
+    this(name, synthesizer, soundbank, null);
+  }
+
+  /**
+   * Create a new MidiSubSequencer that will render Midi events on the given
+   * synthesiser using the given sound-bank. Once the stems of the tracks are
+   * available in the given stem-cache, the tracks will be played from the
+   * stems instead of being synthesised.
+   *
+   * @param name a name for this MidiSubSequencer.
+   * @param synthesizer the synthesiser that shall render the Midi events.
+   * @param soundbank the sound-bank that the synthesiser shall use (may be
+   * null)
+   * @param stemCache the cache that provides the stems (may be null, in this
+   * case the tracks are always synthesised).
+   * @throws MidiUnavailableException
+   */
+  MidiSubSequencer(final String name, AudioSynthesizer synthesizer, Soundbank soundbank, StemCache stemCache) throws MidiUnavailableException {
+    this(name, synthesizer, soundbank, stemCache, null);
+  }
+
+  /**
+   * Create a new MidiSubSequencer that will render Midi events on the given
+   * synthesiser using the given sound-bank and stem-cache. When the given
+   * quality-governor changes the quality level, the synthesiser is replaced
+   * by a new SoftSynthesizer opened with the settings of the new level.
+   *
+   * @param name a name for this MidiSubSequencer.
+   * @param synthesizer the synthesiser that shall render the Midi events.
+   * @param soundbank the sound-bank that the synthesiser shall use (may be
+   * null)
+   * @param stemCache the cache that provides the stems (may be null).
+   * @param qualityGovernor the governor that decides on the quality level
+   * (may be null, in this case the synthesiser is never replaced).
+   * @throws MidiUnavailableException
+   */
+  MidiSubSequencer(final String name, AudioSynthesizer synthesizer, Soundbank soundbank, StemCache stemCache, QualityGovernor qualityGovernor) throws MidiUnavailableException {
+    this.qualityGovernor = qualityGovernor;
     this.name = name;
     this.synthesizer = synthesizer;
     this.soundbank = soundbank;
     this.synthMidiReceiver = synthesizer.getReceiver();
+    this.stemCache = stemCache;
   }
 
   /**
@@ -242,11 +462,23 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * @return a factory that can make sub-sequencer objects.
    */
   public static MasterSequencer.SubSequencerFactory getFactory() {
+    return getFactory(null);
+  }
+
+  /**
+   * Builds a factory object that provides sub-sequencers whose synthesisers
+   * follow the given quality-governor.
+   *
+   * @param qualityGovernor the governor that decides on the quality level
+   * (may be null).
+   * @return a factory that can make sub-sequencer objects.
+   */
+  static MasterSequencer.SubSequencerFactory getFactory(final QualityGovernor qualityGovernor) {
     MasterSequencer.SubSequencerFactory newFactory =
             new MasterSequencer.SubSequencerFactory() {
               @Override
               public MasterSequencer.MidiSubSequencer make(String name, Soundbank soundbank) throws MidiUnavailableException {
-                return new MidiSubSequencer(name, soundbank);
+                return new MidiSubSequencer(name, soundbank, qualityGovernor);
               }
 
               @Override
@@ -272,6 +504,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * expressed in seconds) when the synthesizer should execute the message.
    */
   private void allSoundsOff(double synthesizerTime) {
+    clearSoundingNotes();
     for (int channel = 0; channel < 16; channel++) {
       try {
         ShortMessage soundsOffMessage = new ShortMessage();
@@ -284,6 +517,18 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
     }
   }
 
+  /**
+   * The time (in seconds from the start of this cycle) at which the playback
+   * ends, when the session stops in this cycle. A session stopped at a given
+   * tick ends within the cycle, otherwise the cycle is played to its end.
+   */
+  private double stopOffset() {
+    if (loopEndProcessing || timeMap_1 == null) {
+      return cycleDuration;
+    }
+    return Math.min(cycleDuration, timeMap_1.getTimeOffset(nextCycleStartTick));
+  }
+
   /**
    * Mute (or un-mute) an individual track. The muting will take place only at
    * the next start.
@@ -296,6 +541,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    */
   void setMute(int trackIndex, boolean value) {
     mute[trackIndex] = value;
+    renderCacheDirty = true;
   }
 
   /**
@@ -305,18 +551,109 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    * produce sound (tracks that have been muted individually must stay mute).
    */
   void setMute(boolean value) {
+    renderCacheDirty = true;
     System.out.println("Not yet implemented SubSequencer.setAttenuation");
   }
 
   /**
-   * Set the attenuation of an individual track.
+   * Set the attenuation of an individual track. Note: the attenuation is
+   * only effective while the tracks are played from stems.
    *
    * @param trackIndex an index into the array given in
    * {@link #setTracks(javax.sound.midi.Track[])}
    * @param value the value in decibels
    */
   void setAttenuation(int trackIndex, float value) {
-    System.out.println("Not yet implemented SubSequencer.setAttenuation");
+    final double F = -0.115129255D; //=-Math.log(10)/20D;
+    renderCacheDirty = true;
+    float[] gain = trackGain;
+    if (trackIndex < gain.length) {
+      if (value > 100F) {
+        gain[trackIndex] = 0F;
+      } else {
+        gain[trackIndex] = (float) Math.exp(value * F);
+      }
+    }
+  }
+
+  /**
+   * Transpose all tracks. The transposition takes effect with the next cycle;
+   * notes that are already sounding are stopped at their original
+   * (transposed) pitch.
+   *
+   * @param semitones the number of semitones (positive values transpose
+   * upwards).
+   */
+  void setTranspose(int semitones) {
+    portTranspose = semitones;
+    transformsChanged();
+  }
+
+  /**
+   * Transpose an individual track (in addition to the transposition of all
+   * tracks).
+   *
+   * @param trackIndex an index into the array given in
+   * {@link #setTracks(javax.sound.midi.Track[])}
+   * @param semitones the number of semitones (positive values transpose
+   * upwards).
+   */
+  void setTranspose(int trackIndex, int semitones) {
+    int[] transpose = trackTranspose;
+    if (trackIndex < transpose.length) {
+      transpose[trackIndex] = semitones;
+    }
+    transformsChanged();
+  }
+
+  /**
+   * Redirect all channel messages of an individual track to the given
+   * channel.
+   *
+   * @param trackIndex an index into the array given in
+   * {@link #setTracks(javax.sound.midi.Track[])}
+   * @param channel a channel between 0 and 15, or -1 to keep the original
+   * channels.
+   */
+  void setChannel(int trackIndex, int channel) {
+    if (channel < -1 || channel > 15) {
+      throw new IllegalArgumentException("Invalid channel " + channel);
+    }
+    int[] channels = trackChannel;
+    if (trackIndex < channels.length) {
+      channels[trackIndex] = channel;
+    }
+    transformsChanged();
+  }
+
+  /**
+   * Scale the note-on velocities of an individual track.
+   *
+   * @param trackIndex an index into the array given in
+   * {@link #setTracks(javax.sound.midi.Track[])}
+   * @param factor the factor (1.0 leaves the velocities unchanged).
+   */
+  void setVelocityScale(int trackIndex, float factor) {
+    if (factor < 0F) {
+      throw new IllegalArgumentException("Negative velocity scale.");
+    }
+    float[] velocity = trackVelocity;
+    if (trackIndex < velocity.length) {
+      velocity[trackIndex] = factor;
+    }
+    transformsChanged();
+  }
+
+  private void transformsChanged() {
+    boolean active = (portTranspose != 0);
+    int[] transpose = trackTranspose;
+    int[] channels = trackChannel;
+    float[] velocity = trackVelocity;
+    for (int i = 0; i < transpose.length && !active; i++) {
+      active = (transpose[i] != 0) || (channels[i] != -1) || (velocity[i] != 1F);
+    }
+    transforming = active;
+    renderCacheDirty = true;
   }
 
   /**
@@ -349,8 +686,24 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
     }
     synchronized (trackLock) {
       this.tracks = tracks;
+      events = new EventStore[tracks.length];
+      for (int i = 0; i < tracks.length; i++) {
+        events[i] = EventStore.forTrack(tracks[i]);
+      }
       mute = new boolean[tracks.length];
       Arrays.fill(mute, false);
+      float[] gain = new float[tracks.length];
+      Arrays.fill(gain, 1F);
+      trackGain = gain;
+      int[] channels = new int[tracks.length];
+      Arrays.fill(channels, -1);
+      trackChannel = channels;
+      trackTranspose = new int[tracks.length];
+      float[] velocity = new float[tracks.length];
+      Arrays.fill(velocity, 1F);
+      trackVelocity = velocity;
+      transformsChanged();
+      renderCacheDirty = true;
 
     }
   }
@@ -367,8 +720,14 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
     synchronized (trackLock) {
       logger.log(Level.FINER, "{0}:preparePlaying({1})", new Object[]{name, startTick});
       activeTracks = Arrays.copyOf(tracks, tracks.length);
+      activeEvents = Arrays.copyOf(events, events.length);
+      if (soundingNotes.length != activeEvents.length) {
+        soundingNotes = new int[activeEvents.length][16 * 128];
+      }
+      clearSoundingNotes();
       activeMute = Arrays.copyOf(mute, mute.length);
       resetTrackEventsToProcess();
+      renderCacheDirty = true;
       playing = true;
       stopping = false;
       starting = true;
@@ -392,15 +751,17 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
     for (int channel = 0; channel < 16; channel++) {
       synthMidiReceiver.send(createResetAllControllersMessage(channel), timestamp);
     }
+    // the reset message also stops all notes
+    clearSoundingNotes();
     //now initialise the controllers
-    for (Track track : activeTracks) {
-      InitializationList initMessages = new InitializationList(track, (long) startPosition);
+    for (int trackIdx = 0; trackIdx < activeTracks.length; trackIdx++) {
+      InitializationList initMessages = new InitializationList(activeTracks[trackIdx], (long) startPosition);
       long increment = 0;
       if (timestamp > 0) {
         increment = 1; //make sure that "ResetAllControllersMessage" is executed before set controller
       }
       for (MidiMessage message : initMessages) {
-        synthMidiReceiver.send(message, timestamp + increment);
+        sendTrackMessage(trackIdx, message, timestamp + increment);
       }
     }
   }
@@ -410,10 +771,8 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
    */
   @Override
   public void stopSession() {
-    synchronized (trackLock) {
-      stopping = true;
-
-    }
+    // no lock, the flag is handled by the next process() call
+    stopping = true;
   }
 
   /**
@@ -434,6 +793,18 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
         throw new IllegalStateException("Cannot process in closed state.");
       }
 
+      // play the tracks from pre-rendered stems if possible
+      if (playStemCycle()) {
+        return soundFloatArray;
+      }
+      // replay the loop from the render cache if possible
+      if (replayCachedCycle()) {
+        return soundFloatArray;
+      }
+
+      // replace the synthesiser if the quality level has changed
+      applyQualityLevel();
+
       double offset = synthesizerTime - streamTime;
       double cycleEndStreamTime = streamTime + cycleDuration;
 
@@ -445,13 +816,13 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
           initializeControllers(thisCycleStartTick, synthesizerTime);
           starting = false;
         }
+        if (playing) {
+          sendTrackEvents();
+        }
         if (stopping) {
           playing = false;
           stopping = false;
-          allSoundsOff(synthesizerTime + cycleDuration);
-        }
-        if (playing) {
-          sendTrackEvents();
+          allSoundsOff(synthesizerTime + stopOffset());
         }
       }
 
@@ -464,6 +835,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
       soundFloatBuffer.clear();
       soundFloatBuffer.get(soundFloatArray);
 
+      recordCycle();
 
       // Note: Gervill's "getMicrosecondPosition()" seems to be buggy
       // the statement:   10L*synthesizer.getMicrosecondPosition()
@@ -484,6 +856,13 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
 
       synthesizerTime = 0D;
       cycleDuration = (double) framesPerCycle / (double) samplingRate;
+      this.samplingRate = samplingRate;
+      this.framesPerCycle = framesPerCycle;
+      this.outputChannelCount = outputChannelCount;
+      int maxCachedFrames = (int) (MAXCACHEDLOOP * samplingRate);
+      renderCache = new LoopRenderCache(outputChannelCount,
+              Math.min(maxCachedFrames, Math.max(framesPerCycle, loopFrames(loopDuration))),
+              maxCachedFrames);
 
       int floatLength = outputChannelCount * framesPerCycle;
       int byteLenght = floatLength * (Float.SIZE / Byte.SIZE);
@@ -505,10 +884,10 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
       boolean useBigEndian = (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
       AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, samplingRate, 32, outputChannelCount, 4 * outputChannelCount, samplingRate, useBigEndian); // ...............bigEndian        - indicates whether the data for a single sample is stored in big-endian byte order
 
-      Map<String, Object> info = new HashMap<>();
-      info.put("interpolation", "linear");
-      //info.put("max polyphony", "1024");
-      info.put("max polyphony", "128");
+      cancelSpareSynthesizer();
+      synthesizerFormat = format;
+      synthesizerLevel = (qualityGovernor == null) ? 0 : qualityGovernor.getLevel();
+      Map<String, Object> info = QualityGovernor.getSynthesizerInfo(synthesizerLevel);
 
       synthesizerStream = synthesizer.openStream(format, info);
       if (!synthesizer.isOpen()) {
@@ -529,11 +908,41 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
   public void close() {
     synchronized (processLock) {
       synthesizer.close();
+      cancelSpareSynthesizer();
+      closeStemPlayer();
       opened = false;
       playing = false;
     }
   }
 
+  /**
+   * Reserves the memory of the render cache for the announced loop, so that
+   * the first pass can be recorded without allocating in the audio thread.
+   *
+   * @param loopDuration the duration of one pass through the loop in
+   * seconds.
+   */
+  @Override
+  public void prepareLoop(double loopDuration) {
+    this.loopDuration = loopDuration;
+    LoopRenderCache cache = renderCache;
+    if (cache != null) {
+      cache.reserve(loopFrames(loopDuration));
+    }
+  }
+
+  /**
+   * @return the number of frames of a pass through a loop of the given
+   * duration (including the tolerance of the render cache), or 0 if the loop
+   * is too long to be cached.
+   */
+  private int loopFrames(double loopDuration) {
+    if (loopDuration > MAXCACHEDLOOP) {
+      return 0;
+    }
+    return (int) Math.ceil(loopDuration * samplingRate) + LoopRenderCache.TOLERANCE;
+  }
+
   @Override
   public void prepareNormalCycle(TimeMap timeMap, double thisCycleStartTick, double nextCycleStartTick) {
     synchronized (processLock) {
@@ -564,19 +973,375 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
     return tracks;
   }
 
-  private void resetTrackEventsToProcess() {
-    nextTrackEventToProcess.clear();
+  /**
+   * Tries to fill the current cycle from the render cache. If the render
+   * cache cannot be used anymore, it is discarded and the synthesiser is
+   * re-synchronised to the current position, so that the cycle can be
+   * rendered live.
+   *
+   * @return true if the cycle has been replayed from the cache, false if the
+   * cycle must be rendered by the synthesiser.
+   */
+  private boolean replayCachedCycle() {
+    synchronized (trackLock) {
+      if (renderCacheDirty || !playing || starting || stopping) {
+        renderCacheDirty = false;
+        discardRenderCache();
+        return false;
+      }
+      if (!renderCache.isReplaying()) {
+        return false;
+      }
+      if (messageQueue.isEmpty()
+              && renderCache.matchesTempo(timeMap_1.getTempoFactor())
+              && renderCache.replay(soundFloatArray, framesPerCycle, loopJumpFrame(),
+              loopStartTick, loopEndTick)) {
+        return true;
+      }
+      discardRenderCache();
+      return false;
+    }
+  }
+
+  /**
+   * Passes the live rendered cycle to the render cache.
+   */
+  private void recordCycle() {
+    synchronized (trackLock) {
+      if (!playing || timeMap_1 == null) {
+        return;
+      }
+      renderCache.record(soundFloatArray, framesPerCycle, loopJumpFrame(),
+              loopStartTick, loopEndTick, timeMap_1.getTempoFactor());
+    }
+  }
+
+  /**
+   * Discards the render cache. If the cache has been replaying, the
+   * synthesiser has been idle; so we need to bring it up to the current
+   * position before it can render the next cycle.
+   */
+  private void discardRenderCache() {
+    if (renderCache.isReplaying()) {
+      resynchronizeSynthesizer();
+    }
+    renderCache.clear();
+  }
+
+  /**
+   * Brings the idle synthesiser up to the current position, so that it can
+   * take over the rendering in the current cycle.
+   */
+  private void resynchronizeSynthesizer() {
+    if (playing && !starting && !stopping) {
+      allSoundsOff(synthesizerTime);
+      seekTrackEventsToProcess(thisCycleStartTick);
+      initializeControllers(thisCycleStartTick, synthesizerTime);
+    }
+  }
+
+  /**
+   * Adapts the synthesiser to the quality level decided by the
+   * quality-governor. Because the settings of a SoftSynthesizer can only be
+   * given when its stream is opened, a replacement synthesiser is opened (and
+   * its sound-bank loaded) in the background. The replacement takes over at
+   * the next safe point: at the start of a session, or at the loop end (notes
+   * sounding across the loop end are cut in this case).
+   */
+  private void applyQualityLevel() {
+    if (qualityGovernor == null) {
+      return;
+    }
+    if (spareSynthesizer == null) {
+      int level = qualityGovernor.getLevel();
+      if (level != synthesizerLevel) {
+        prepareSpareSynthesizer(level);
+      }
+      return;
+    }
+    if (!spareSynthesizer.isDone()) {
+      return;
+    }
+    synchronized (trackLock) {
+      boolean safePoint = playing && (starting || loopEndProcessing);
+      if (!safePoint) {
+        return;
+      }
+      SpareSynthesizer spare;
+      try {
+        spare = spareSynthesizer.get();
+      } catch (InterruptedException | ExecutionException ex) {
+        logger.log(Level.WARNING, "Could not prepare a synthesizer.", ex);
+        // do not try again before the level changes
+        synthesizerLevel = qualityGovernor.getLevel();
+        spareSynthesizer = null;
+        return;
+      }
+      spareSynthesizer = null;
+      final AudioSynthesizer oldSynthesizer = synthesizer;
+      synthesizer = spare.synthesizer;
+      synthesizerStream = spare.stream;
+      synthesizerLevel = spare.level;
+      try {
+        synthMidiReceiver = synthesizer.getReceiver();
+      } catch (MidiUnavailableException ex) {
+        throw new RuntimeException(ex);
+      }
+      synthesizerTime = 0D;
+      renderCache.clear();
+      if (!starting) {
+        // on session start, the controllers are initialised anyway.
+        initializeControllers(thisCycleStartTick, synthesizerTime);
+      }
+      synthesizerSetupExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          oldSynthesizer.close();
+        }
+      });
+    }
+  }
+
+  /**
+   * Starts to open a new SoftSynthesizer for the given quality level in the
+   * background.
+   *
+   * @param level the quality level.
+   */
+  private void prepareSpareSynthesizer(final int level) {
+    if (synthesizerSetupExecutor == null) {
+      synthesizerSetupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          thread.setName("FreeCreationsSynthesizerSetup_" + name);
+          return thread;
+        }
+      });
+    }
+    final AudioFormat format = synthesizerFormat;
+    spareSynthesizer = synthesizerSetupExecutor.submit(new Callable<SpareSynthesizer>() {
+      @Override
+      public SpareSynthesizer call() throws MidiUnavailableException {
+        AudioSynthesizer newSynthesizer = new SoftSynthesizer();
+        AudioInputStream stream = newSynthesizer.openStream(format,
+                QualityGovernor.getSynthesizerInfo(level));
+        if (soundbank != null) {
+          if (!newSynthesizer.loadAllInstruments(soundbank)) {
+            newSynthesizer.close();
+            throw new MidiUnavailableException("Could not load " + soundbank + ".");
+          }
+        }
+        return new SpareSynthesizer(newSynthesizer, stream, level);
+      }
+    });
+  }
+
+  /**
+   * Discards the synthesiser that is being prepared (if any).
+   */
+  private void cancelSpareSynthesizer() {
+    if (spareSynthesizer == null) {
+      return;
+    }
+    final Future<SpareSynthesizer> spare = spareSynthesizer;
+    spareSynthesizer = null;
+    synthesizerSetupExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          spare.get().synthesizer.close();
+        } catch (InterruptedException | ExecutionException ignored) {
+        }
+      }
+    });
+  }
+
+  /**
+   * Tries to fill the current cycle from the pre-rendered stems. On the first
+   * cycle of a session, the stems for the active tracks are requested (they
+   * will be rendered in the background if necessary); if they are already
+   * available, the session is played from the stems. If the tempo factor
+   * changes or a Midi message is sent, the synthesiser takes over again.
+   *
+   * @return true if the cycle has been filled from the stems, false if the
+   * cycle must be rendered by the synthesiser.
+   */
+  private boolean playStemCycle() {
+    if (stemCache == null) {
+      return false;
+    }
+    synchronized (trackLock) {
+      if (starting && playing && timeMap_1 != null) {
+        closeStemPlayer();
+        requestStems();
+        if (openStemPlayer()) {
+          starting = false;
+        }
+      }
+      if (stemPlayer == null) {
+        return false;
+      }
+      if (!playing || stopping
+              || !messageQueue.isEmpty()
+              || transforming
+              || timeMap_1.getTempoFactor() != stemTempoFactor) {
+        closeStemPlayer();
+        resynchronizeSynthesizer();
+        return false;
+      }
+      Arrays.fill(soundFloatArray, 0F);
+      boolean[] stemMute = mute;
+      float[] stemGain = trackGain;
+      if (stemMute.length != stemTracks.length) {
+        stemMute = activeMute;
+        stemGain = null;
+      }
+      int jumpFrame = loopJumpFrame();
+      if (jumpFrame < 0) {
+        stemPlayer.mix(soundFloatArray, 0, framesPerCycle, stemPosition, stemMute, stemGain);
+        stemPosition += framesPerCycle;
+      } else {
+        stemPlayer.mix(soundFloatArray, 0, jumpFrame, stemPosition, stemMute, stemGain);
+        stemPosition = stemFrame(loopStartTick);
+        stemPlayer.setLoopStart(stemPosition);
+        stemPlayer.mix(soundFloatArray, jumpFrame, framesPerCycle - jumpFrame, stemPosition, stemMute, stemGain);
+        stemPosition += framesPerCycle - jumpFrame;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Requests the stems for the active tracks at the current tempo factor. The
+   * stems are only requested again if the tracks or the tempo factor have
+   * changed.
+   */
+  @SuppressWarnings("unchecked")
+  private void requestStems() {
+    TempoTrack tempoTrack = timeMap_1.getTempoTrack();
+    double tempoFactor = timeMap_1.getTempoFactor();
+    if (stemRequests != null
+            && Arrays.equals(stemTracks, activeTracks)
+            && stemTempoTrack == tempoTrack
+            && stemTempoFactor == tempoFactor) {
+      return;
+    }
+    stemTracks = activeTracks;
+    stemTempoTrack = tempoTrack;
+    stemTempoFactor = tempoFactor;
+    stemTimeMap = tempoTrack.CreateTimeMap(0D, Double.MAX_VALUE, tempoFactor);
+    @SuppressWarnings("unchecked")
+    Future<File>[] requests = (Future<File>[]) new Future<?>[activeTracks.length];
+    stemRequests = requests;
     for (int i = 0; i < activeTracks.length; i++) {
-      nextTrackEventToProcess.add(0);
+      stemRequests[i] = stemCache.provide(activeTracks[i], tempoTrack,
+              tempoFactor, soundbank, samplingRate, outputChannelCount);
+    }
+  }
+
+  /**
+   * Opens the stem-player if all requested stems are available.
+   *
+   * @return true if the stem-player could be opened.
+   */
+  private boolean openStemPlayer() {
+    if (transforming) {
+      // the stems are rendered without transformation.
+      return false;
+    }
+    if (stemRequests == null || stemRequests.length == 0
+            || !StemCache.allDone(stemRequests)) {
+      return false;
+    }
+    try {
+      File[] stems = new File[stemRequests.length];
+      for (int i = 0; i < stems.length; i++) {
+        stems[i] = stemRequests[i].get();
+      }
+      if (stemExecutor == null) {
+        stemExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName("FreeCreationsStemReader_" + name);
+            return thread;
+          }
+        });
+      }
+      stemPosition = stemFrame(thisCycleStartTick);
+      stemPlayer = new StemPlayer(stems, outputChannelCount, STEMWINDOWFRAMES, stemExecutor);
+      stemPlayer.start(stemPosition);
+      return true;
+    } catch (InterruptedException | ExecutionException | IOException ex) {
+      logger.log(Level.WARNING, "Stems not usable, falling back to the synthesizer.", ex);
+      closeStemPlayer();
+      stemRequests = null;
+      return false;
+    }
+  }
+
+  private void closeStemPlayer() {
+    if (stemPlayer != null) {
+      stemPlayer.close();
+      stemPlayer = null;
+    }
+  }
+
+  /**
+   * Calculates the position in the stems for a given Midi tick.
+   *
+   * @param tick a Midi tick.
+   * @return the position in frames.
+   */
+  private long stemFrame(double tick) {
+    return Math.round(stemTimeMap.getTimeOffset(tick) * samplingRate);
+  }
+
+  /**
+   * Calculates the frame within the current cycle where the cursor jumps back
+   * to the loop start.
+   *
+   * @return the frame index or -1 if the current cycle does not contain a
+   * loop-end point.
+   */
+  private int loopJumpFrame() {
+    if (!loopEndProcessing) {
+      return -1;
+    }
+    long frame = Math.round(timeMap_1.getTimeOffset(loopEndTick) * samplingRate);
+    return (int) Math.max(0, Math.min(framesPerCycle, frame));
+  }
+
+  private void resetTrackEventsToProcess() {
+    if (nextTrackEventToProcess.length != activeEvents.length) {
+      nextTrackEventToProcess = new int[activeEvents.length];
+    }
+    Arrays.fill(nextTrackEventToProcess, 0);
+  }
+
+  /**
+   * Positions the pointers into the tracks on the first events at or after
+   * the given tick.
+   *
+   * @param tick the Midi tick where processing continues.
+   */
+  private void seekTrackEventsToProcess(double tick) {
+    resetTrackEventsToProcess();
+    long firstTick = (long) Math.ceil(tick);
+    for (int i = 0; i < activeEvents.length; i++) {
+      nextTrackEventToProcess[i] = activeEvents[i].indexOf(firstTick);
     }
   }
 
   private void setNextEventToProcess(int trackIdx, int eventIdx) {
-    nextTrackEventToProcess.set(trackIdx, eventIdx);
+    nextTrackEventToProcess[trackIdx] = eventIdx;
   }
 
   private int getNextEventToProcess(int trackIdx) {
-    return nextTrackEventToProcess.get(trackIdx);
+    return nextTrackEventToProcess[trackIdx];
   }
 
   /**
@@ -593,7 +1358,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
 
     if (loopEndProcessing) {
       double synthesizerTime_2 = synthesizerTime + timeMap_1.getTimeOffset(loopEndTick);
-      resetTrackEventsToProcess();
+      seekTrackEventsToProcess(loopStartTick);
       initializeControllers(loopStartTick, synthesizerTime_2);
       sendTrackEvents(loopStartTick, nextCycleStartTick, timeMap_2, synthesizerTime_2);
     }
@@ -613,7 +1378,7 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
   private void sendTrackEvents(double lowerTickLimit, double upperTickLimit,
           TimeMap timeMap, double lowerSynthesizerTime) {
 
-    for (int trackIdx = 0; trackIdx < this.activeTracks.length; trackIdx++) {
+    for (int trackIdx = 0; trackIdx < this.activeEvents.length; trackIdx++) {
       int eventIdx = getNextEventToProcess(trackIdx);
       boolean toBeDoneLater = sendTrackEvent(eventIdx, trackIdx, lowerTickLimit,
               upperTickLimit, timeMap, lowerSynthesizerTime);
@@ -648,26 +1413,129 @@ class MidiSubSequencer implements MasterSequencer.MidiSubSequencer, AudioProcess
           double lowerTickLimit, double upperTickLimit,
           TimeMap timeMap, double lowerSynthesizerTime) {
 
-    if (eventIdx >= activeTracks[trackIdx].size()) {
+    EventStore trackEvents = activeEvents[trackIdx];
+    if (eventIdx >= trackEvents.size()) {
       // although there are no more events to process,
       // we return true to indicate that we can stop to search for more 
       // events in *this* cycle.
       return true;
     }
-    MidiEvent event = activeTracks[trackIdx].get(eventIdx);
-    if (event.getTick() >= upperTickLimit) {
+    long tick = trackEvents.getTick(eventIdx);
+    if (tick >= upperTickLimit) {
       return true;
     }
-    if (event.getTick() >= lowerTickLimit) {
+    if (tick >= lowerTickLimit) {
       if (!activeMute[trackIdx]) {
-        double offset = timeMap.getTimeOffset(event.getTick());
+        double offset = timeMap.getTimeOffset(tick);
         long timeStamp = (long) (1E6 * (lowerSynthesizerTime + offset));
-        synthMidiReceiver.send(event.getMessage(), timeStamp);
+        sendTrackMessage(trackIdx, trackEvents.getMessage(eventIdx), timeStamp);
       }
     }
     return false;
   }
 
+  /**
+   * Sends a message of the given track to the synthesiser, after applying
+   * the transposition, the channel redirection and the velocity scaling of
+   * the track. Note-offs are sent to the note that has actually been started
+   * by the corresponding note-on.
+   *
+   * @param trackIdx the index of the track (out of activeTracks).
+   * @param message the original message.
+   * @param timeStamp the synthesiser time-stamp in microseconds.
+   */
+  private void sendTrackMessage(int trackIdx, MidiMessage message, long timeStamp) {
+    if (!(message instanceof ShortMessage)) {
+      synthMidiReceiver.send(message, timeStamp);
+      return;
+    }
+    ShortMessage shortMessage = (ShortMessage) message;
+    int command = shortMessage.getCommand();
+    boolean noteOn = (command == ShortMessage.NOTE_ON) && (shortMessage.getData2() != 0);
+    boolean noteOff = (command == ShortMessage.NOTE_OFF)
+            || ((command == ShortMessage.NOTE_ON) && (shortMessage.getData2() == 0));
+    if (!transforming && !noteOff) {
+      // the fast path
+      synthMidiReceiver.send(message, timeStamp);
+      return;
+    }
+    if (command == 0xF0) {
+      // system messages have no channel
+      synthMidiReceiver.send(message, timeStamp);
+      return;
+    }
+    int channel = shortMessage.getChannel();
+    int data1 = shortMessage.getData1();
+    int data2 = shortMessage.getData2();
+    int[] sounding = soundingNotes[trackIdx];
+    int note = (channel << 7) | data1;
+    int newChannel = transformedChannel(trackIdx, channel);
+    int newData1 = data1;
+    int newData2 = data2;
+    if (noteOn) {
+      newData1 = data1 + transposition(trackIdx);
+      if (newData1 < 0 || newData1 > 127) {
+        // out of range, cannot be played
+        return;
+      }
+      newData2 = Math.max(1, Math.min(127, Math.round(data2 * velocityScale(trackIdx))));
+      sounding[note] = ((newChannel << 7) | newData1) + 1;
+    } else if (noteOff || command == ShortMessage.POLY_PRESSURE) {
+      int soundingNote = sounding[note] - 1;
+      if (soundingNote < 0) {
+        // the note has not been started by us; send it unchanged.
+        synthMidiReceiver.send(message, timeStamp);
+        return;
+      }
+      newChannel = soundingNote >> 7;
+      newData1 = soundingNote & 0x7F;
+      if (noteOff) {
+        sounding[note] = 0;
+      }
+    }
+    if (newChannel == channel && newData1 == data1 && newData2 == data2) {
+      synthMidiReceiver.send(message, timeStamp);
+      return;
+    }
+    try {
+      transformedMessage.setMessage(command, newChannel, newData1, newData2);
+    } catch (InvalidMidiDataException ex) {
+      logger.log(Level.SEVERE, null, ex);
+      return;
+    }
+    synthMidiReceiver.send(transformedMessage, timeStamp);
+  }
+
+  private int transposition(int trackIdx) {
+    int[] transpose = trackTranspose;
+    if (trackIdx < transpose.length) {
+      return portTranspose + transpose[trackIdx];
+    }
+    return portTranspose;
+  }
+
+  private int transformedChannel(int trackIdx, int channel) {
+    int[] channels = trackChannel;
+    if (trackIdx < channels.length && channels[trackIdx] >= 0) {
+      return channels[trackIdx];
+    }
+    return channel;
+  }
+
+  private float velocityScale(int trackIdx) {
+    float[] velocity = trackVelocity;
+    if (trackIdx < velocity.length) {
+      return velocity[trackIdx];
+    }
+    return 1F;
+  }
+
+  private void clearSoundingNotes() {
+    for (int[] sounding : soundingNotes) {
+      Arrays.fill(sounding, 0);
+    }
+  }
+
   /**
    * Sends the queued messages to the synthesiser. Messages who's timestamp is
    * after the current cycle's end are not send but re-queued.
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * Identifies the outputs on which a sequencer instance plays. Several
+ * sequencers (for example one per practice station) can play at the same time
+ * if each of them uses its own output bus, that is a different range of
+ * channels on the device.
+ *
+ * All buses are played through one shared stream (see {@link SharedStream}),
+ * so they must all be on the same device; the device, the sample rate and the
+ * buffer size are taken from the stored audio configuration unless a device
+ * is given here. The number of channels of a bus is the number of output
+ * channels of the stored configuration.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public final class OutputBus {
+
+  /**
+   * Device number meaning "the output device of the stored configuration".
+   */
+  public static final int CONFIGUREDDEVICE = -1;
+  private final int deviceId;
+  private final int firstChannel;
+
+  /**
+   * Creates a new output bus.
+   *
+   * @param deviceId the device number as given by the audio system or
+   * {@link #CONFIGUREDDEVICE}.
+   * @param firstChannel the first output channel (zero based) of the bus.
+   */
+  public OutputBus(int deviceId, int firstChannel) {
+    if (firstChannel < 0) {
+      throw new IllegalArgumentException("firstChannel must not be negative.");
+    }
+    this.deviceId = deviceId;
+    this.firstChannel = firstChannel;
+  }
+
+  public int getDeviceId() {
+    return deviceId;
+  }
+
+  public int getFirstChannel() {
+    return firstChannel;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof OutputBus)) {
+      return false;
+    }
+    OutputBus other = (OutputBus) obj;
+    return deviceId == other.deviceId && firstChannel == other.firstChannel;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * deviceId + firstChannel;
+  }
+
+  @Override
+  public String toString() {
+    return "OutputBus{" + "deviceId=" + deviceId + ", firstChannel=" + firstChannel + '}';
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The quality-governor decides how much effort the synthesisers may spend.
+ * The {@link AudioMixer} reports the maximum cycle load at regular intervals;
+ * if the load stays too high, the governor steps down to a cheaper quality
+ * level (fewer voices, simpler interpolation, no chorus, no reverb). If the
+ * load stays low for a longer period, the governor steps up again. The
+ * different durations for stepping down and up provide the hysteresis that
+ * keeps the level from oscillating.
+ *
+ * The governor only takes decisions; the {@link MidiSubSequencer} applies the
+ * level at a safe point (see there). The changes of level are logged by a
+ * thread of the governor, never by the process thread.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class QualityGovernor {
+
+  private static final Logger logger = Logger.getLogger(QualityGovernor.class.getName());
+  /**
+   * A load above this value counts as overload.
+   */
+  static final double OVERLOAD = 0.8D;
+  /**
+   * A load below this value leaves enough headroom to increase the quality.
+   */
+  static final double UNDERLOAD = 0.4D;
+  /**
+   * The number of consecutive overloaded reports before the quality is
+   * reduced.
+   */
+  static final int DOWNCOUNT = 2;
+  /**
+   * The number of consecutive relaxed reports before the quality is
+   * increased.
+   */
+  static final int UPCOUNT = 30;
+  /*
+   * The quality levels, the best quality is at index 0.
+   */
+  private static final String[] INTERPOLATION = {"linear", "linear", "linear", "point"};
+  private static final int[] POLYPHONY = {128, 96, 64, 32};
+  private static final boolean[] REVERB = {true, true, false, false};
+  private static final boolean[] CHORUS = {true, false, false, false};
+  /**
+   * The number of available quality levels.
+   */
+  static final int LEVELCOUNT = POLYPHONY.length;
+  private volatile int level = 0;
+  private int overloadCount = 0;
+  private int underloadCount = 0;
+  /**
+   * Logs the changes of level. The thread is started in advance, so the
+   * process thread only has to queue a task.
+   */
+  private final ThreadPoolExecutor reporter;
+
+  QualityGovernor() {
+    reporter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setName("FreeCreationsQualityGovernor");
+        return thread;
+      }
+    });
+    reporter.prestartCoreThread();
+  }
+
+  /**
+   * Reports the maximum load measured since the last report. This function
+   * is called by the process thread.
+   *
+   * @param maxLoad the ratio between the time used to process one cycle and
+   * the duration of the cycle.
+   */
+  void reportLoad(double maxLoad) {
+    if (maxLoad > OVERLOAD) {
+      underloadCount = 0;
+      overloadCount++;
+      if (overloadCount >= DOWNCOUNT && level < LEVELCOUNT - 1) {
+        overloadCount = 0;
+        level++;
+        report("Load {0}, reducing synthesizer quality to level {1}.", maxLoad, level);
+      }
+    } else if (maxLoad < UNDERLOAD) {
+      overloadCount = 0;
+      underloadCount++;
+      if (underloadCount >= UPCOUNT && level > 0) {
+        underloadCount = 0;
+        level--;
+        report("Load {0}, increasing synthesizer quality to level {1}.", maxLoad, level);
+      }
+    } else {
+      overloadCount = 0;
+      underloadCount = 0;
+    }
+  }
+
+  /**
+   * Let the reporter thread log a change of level.
+   */
+  private void report(final String message, final double maxLoad, final int newLevel) {
+    reporter.execute(new Runnable() {
+      @Override
+      public void run() {
+        logger.log(Level.INFO, message, new Object[]{maxLoad, newLevel});
+      }
+    });
+  }
+
+  /**
+   * @return the current quality level, 0 is the best quality.
+   */
+  int getLevel() {
+    return level;
+  }
+
+  /**
+   * Provides the synthesiser settings for the given quality level.
+   *
+   * @param level a quality level between 0 (best) and LEVELCOUNT-1.
+   * @return the info map to be passed to AudioSynthesizer.openStream().
+   */
+  static Map<String, Object> getSynthesizerInfo(int level) {
+    Map<String, Object> info = new HashMap<>();
+    info.put("interpolation", INTERPOLATION[level]);
+    info.put("max polyphony", Integer.toString(POLYPHONY[level]));
+    info.put("reverb", REVERB[level]);
+    info.put("chorus", CHORUS[level]);
+    return info;
+  }
+}
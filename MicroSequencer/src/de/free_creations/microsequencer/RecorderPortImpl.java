@@ -15,11 +15,13 @@
  */
 package de.free_creations.microsequencer;
 
+import de.free_creations.midiutil.WaveformSummary;
+
 /**
- * Implementation of the {@link SequencerMidiPort} interface.
+ * Implementation of the {@link AudioRecorderPort} interface.
  * @author Harald Postner <Harald at H-Postner.de>
  */
-class RecorderPortImpl implements SequencerPort {
+class RecorderPortImpl implements AudioRecorderPort {
 
   public final AudioPort audioPort;
   public final AudioRecorderSubSequencer subsequencer;
@@ -50,5 +52,13 @@ class RecorderPortImpl implements SequencerPort {
     subsequencer.setMute(value);
   }
 
+  /**
+   * {@inheritDoc }
+   */
+  @Override
+  public WaveformSummary getRecordedWaveform() {
+    return subsequencer.getRecordedWaveform();
+  }
+
 
 }
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The worker threads that render the audio ports. There is one single
+ * threaded executor per available processor; all sequencer instances (one
+ * per output bus) share these executors, so adding a station spreads the
+ * work over the processors instead of adding threads that compete for them.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class RenderPool {
+
+  private static final List<ExecutorService> executors = new ArrayList<>();
+  /**
+   * The number of times the function provide() has been called.
+   */
+  private static int provideCount = 0;
+  private static final ThreadFactory threadFactory = new ThreadFactory() {
+    private int threadCount = 0;
+
+    @Override
+    public synchronized Thread newThread(Runnable r) {
+      threadCount++;
+      Thread thread = new Thread(r);
+      thread.setPriority(Thread.MAX_PRIORITY - 1);
+      // the pool lives as long as the application, it must not keep it alive.
+      thread.setDaemon(true);
+      thread.setName("AudioWorker_" + threadCount);
+      return thread;
+    }
+  };
+
+  private RenderPool() {
+  }
+
+  /**
+   * Provide an executor that can be attached to an audio port. In order to
+   * balance the load onto all available CPU's, the executors are handed out
+   * in turn; new executors are created until there is one per processor.
+   *
+   * @return an executor with a single worker thread.
+   */
+  static synchronized ExecutorService provide() {
+    int executorIdx = provideCount % Runtime.getRuntime().availableProcessors();
+    while (executors.size() <= executorIdx) {
+      executors.add(Executors.newSingleThreadExecutor(threadFactory));
+    }
+    provideCount++;
+    return executors.get(executorIdx);
+  }
+
+  /**
+   * @return the number of worker threads created so far.
+   */
+  static synchronized int getWorkerCount() {
+    return executors.size();
+  }
+}
@@ -75,4 +75,32 @@ public interface SequencerMidiPort extends SequencerPort {
    * @param value the value in decibels
    */
   public void setAttenuation(int trackIndex, float value);
+
+  /**
+   * Transpose all tracks of this port. The transposition is applied while
+   * the notes are sent to the synthesiser, the tracks remain unchanged.
+   * @param semitones the number of semitones (positive values transpose upwards)
+   */
+  public void setTranspose(int semitones);
+
+  /**
+   * Transpose an individual track (in addition to the transposition of the port).
+   * @param trackIndex an index into the array given in {@link #setTracks(javax.sound.midi.Track[]) }
+   * @param semitones the number of semitones (positive values transpose upwards)
+   */
+  public void setTranspose(int trackIndex, int semitones);
+
+  /**
+   * Redirect all channel messages of an individual track to the given channel.
+   * @param trackIndex an index into the array given in {@link #setTracks(javax.sound.midi.Track[]) }
+   * @param channel a channel between 0 and 15, or -1 to keep the channels of the track
+   */
+  public void setChannel(int trackIndex, int channel);
+
+  /**
+   * Scale the note-on velocities of an individual track.
+   * @param trackIndex an index into the array given in {@link #setTracks(javax.sound.midi.Track[]) }
+   * @param factor the factor applied to the velocities (1.0 leaves them unchanged)
+   */
+  public void setVelocityScale(int trackIndex, float factor);
 }
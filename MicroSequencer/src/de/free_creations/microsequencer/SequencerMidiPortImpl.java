@@ -26,16 +26,23 @@ class SequencerMidiPortImpl implements SequencerMidiPort {
 
   public final AudioPort audioPort;
   public final MidiSubSequencer subsequncer;
+  private final CallbackTrace trace;
+  private final int portIndex;
 
   /**
    * Creates an immutable combination of a given {@link AudioPort}
    * and a given {@link MidiSubSequencer}.
    * @param audioPort the audio-port on which the sub-sequencer operates.
    * @param subsequncer the sub-sequencer operates that uses the given audio-port.
+   * @param trace records the messages sent to this port (may be null).
+   * @param portIndex identifies this port in the trace.
    */
-  public SequencerMidiPortImpl(AudioPort audioPort, MidiSubSequencer subsequncer) {
+  public SequencerMidiPortImpl(AudioPort audioPort, MidiSubSequencer subsequncer,
+          CallbackTrace trace, int portIndex) {
     this.audioPort = audioPort;
     this.subsequncer = subsequncer;
+    this.trace = trace;
+    this.portIndex = portIndex;
   }
 
   /**
@@ -59,6 +66,9 @@ class SequencerMidiPortImpl implements SequencerMidiPort {
    */
   @Override
   public void send(MidiMessage message, double streamTime) {
+    if (trace != null) {
+      trace.recordMidi(portIndex, message, streamTime);
+    }
     subsequncer.send(message, streamTime);
   }
 
@@ -81,4 +91,24 @@ class SequencerMidiPortImpl implements SequencerMidiPort {
   public void setAttenuation(int trackIndex, float value) {
     subsequncer.setAttenuation(trackIndex,  value);
   }
+
+  @Override
+  public void setTranspose(int semitones) {
+    subsequncer.setTranspose(semitones);
+  }
+
+  @Override
+  public void setTranspose(int trackIndex, int semitones) {
+    subsequncer.setTranspose(trackIndex, semitones);
+  }
+
+  @Override
+  public void setChannel(int trackIndex, int channel) {
+    subsequncer.setChannel(trackIndex, channel);
+  }
+
+  @Override
+  public void setVelocityScale(int trackIndex, float factor) {
+    subsequncer.setVelocityScale(trackIndex, factor);
+  }
 }
@@ -0,0 +1,377 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.MidiUnavailableException;
+import rtaudio4java.AudioProcessor_Float32;
+import rtaudio4java.AudioSystem;
+import rtaudio4java.RtError;
+
+/**
+ * The one audio stream that all sequencer instances play on.
+ *
+ * The audio system of an architecture is a singleton that can only hold one
+ * stream; opening a second stream closes the first. So sequencers that play
+ * at the same time (for example one per practice station) cannot each open
+ * their own stream. Instead, the shared stream is opened on all output
+ * channels of the device and every sequencer attaches its mixer as a
+ * {@link Bus} on its own range of channels.
+ *
+ * On every cycle the stream first begins the cycles of all buses, so that the
+ * ports of all stations render in parallel on the {@link RenderPool}, then it
+ * collects the results and copies each of them into the channels of its bus.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class SharedStream {
+
+  private static final Logger logger = Logger.getLogger(SharedStream.class.getName());
+  private static final SharedStream defaultStream = new SharedStream();
+  /**
+   * How long detach() waits for the audio thread to leave a bus.
+   */
+  private static final long DETACHTIMEOUTMILLIS = 1000;
+
+  /**
+   * A mixer attached to a range of output channels of the shared stream.
+   */
+  static final class Bus {
+
+    private final AudioMixer mixer;
+    private final int firstChannel;
+    private final int channelCount;
+    private final boolean input;
+
+    private Bus(AudioMixer mixer, int firstChannel, int channelCount, boolean input) {
+      this.mixer = mixer;
+      this.firstChannel = firstChannel;
+      this.channelCount = channelCount;
+      this.input = input;
+    }
+
+    int getFirstChannel() {
+      return firstChannel;
+    }
+
+    int getChannelCount() {
+      return channelCount;
+    }
+  }
+
+  /**
+   * Receives the callbacks of the audio system and mixes the buses into the
+   * device channels.
+   */
+  private class Callback extends AudioProcessor_Float32 {
+
+    @Override
+    public void onOpenStream(int samplingRate, int framesPerCycle, int inputChannelCount,
+            int outputChannelCount, boolean noninterleaved) {
+      streamFrames = framesPerCycle;
+      streamInputChannels = inputChannelCount;
+      streamOutputChannels = outputChannelCount;
+      streamNoninterleaved = noninterleaved;
+      output = new float[framesPerCycle * outputChannelCount];
+      streamOpen = true;
+    }
+
+    @Override
+    public void onStartStream() {
+    }
+
+    @Override
+    public void onStopStream() {
+    }
+
+    @Override
+    public void onCloseStream() {
+      streamOpen = false;
+    }
+
+    @Override
+    public float[] process(float[] input, double streamTime, int status) throws Throwable {
+      float[] deviceOutput = output;
+      Arrays.fill(deviceOutput, 0F);
+      Bus[] current = buses;
+      Throwable failure = null;
+      int begun = 0;
+      try {
+        for (; begun < current.length; begun++) {
+          Bus bus = current[begun];
+          bus.mixer.beginCycle(bus.input ? input : null, streamTime, status);
+        }
+      } catch (Throwable ex) {
+        failure = ex;
+      }
+      // every begun cycle must be ended, as it holds the ports of its mixer.
+      for (int i = 0; i < begun; i++) {
+        Bus bus = current[i];
+        try {
+          mix(bus, bus.mixer.endCycle(bus.input ? input : null), deviceOutput);
+        } catch (Throwable ex) {
+          if (failure == null) {
+            failure = ex;
+          }
+        }
+      }
+      cycleCount++;
+      if (failure != null) {
+        throw failure;
+      }
+      return deviceOutput;
+    }
+
+    /**
+     * Copies the output of a bus into its channels of the device.
+     */
+    private void mix(Bus bus, float[] busOutput, float[] deviceOutput) {
+      int frames = streamFrames;
+      if (streamNoninterleaved) {
+        System.arraycopy(busOutput, 0, deviceOutput, bus.firstChannel * frames,
+                bus.channelCount * frames);
+      } else {
+        for (int frame = 0; frame < frames; frame++) {
+          System.arraycopy(busOutput, frame * bus.channelCount,
+                  deviceOutput, frame * streamOutputChannels + bus.firstChannel, bus.channelCount);
+        }
+      }
+    }
+  }
+  private final Callback callback = new Callback();
+  /**
+   * The buses that are processed, replaced (never modified) on attach and
+   * detach so the audio thread can read it without locking.
+   */
+  private volatile Bus[] buses = new Bus[0];
+  /**
+   * The number of cycles processed so far (written by the audio thread only).
+   */
+  private volatile long cycleCount = 0;
+  private volatile boolean streamOpen = false;
+  private volatile float[] output = new float[0];
+  private volatile int streamFrames;
+  private volatile int streamInputChannels;
+  private volatile int streamOutputChannels;
+  private volatile boolean streamNoninterleaved;
+  private AudioSystem audioSystem = null;
+  private int deviceId;
+  private int sampleRate;
+  private int bufferSize;
+  private long latency;
+
+  /**
+   * @return the stream shared by all sequencers of this application.
+   */
+  static SharedStream getDefault() {
+    return defaultStream;
+  }
+
+  /**
+   * Opens and starts the stream on all output channels of the given device.
+   * If the stream is already open with the same device, sample rate and
+   * buffer size, nothing is done.
+   *
+   * @param system the audio system of the requested architecture.
+   * @param deviceId the output device.
+   * @param minChannels the number of output channels needed at least (used
+   * if the device does not report its channels).
+   * @param inputParameters the input (may be null).
+   * @param sampleRate the requested sample rate.
+   * @param bufferSize the requested number of frames per cycle.
+   * @param options the stream options.
+   * @throws MidiUnavailableException if the stream could not be started or
+   * if it is already open with other settings.
+   */
+  synchronized void open(AudioSystem system, int deviceId, int minChannels,
+          AudioSystem.StreamParameters inputParameters, int sampleRate, int bufferSize,
+          AudioSystem.StreamOptions options) throws MidiUnavailableException {
+    if (audioSystem != null && streamOpen) {
+      if (system == audioSystem && deviceId == this.deviceId
+              && sampleRate == this.sampleRate && bufferSize == this.bufferSize) {
+        return;
+      }
+      logger.log(Level.SEVERE, "The audio stream is already open on device {0}.", this.deviceId);
+      throw new MidiUnavailableException("The audio stream is already open with other settings; all output buses share one stream.");
+    }
+    int deviceChannels = minChannels;
+    try {
+      deviceChannels = Math.max(minChannels, system.getDeviceInfo(deviceId).get().getOutputChannels());
+    } catch (RtError | InterruptedException | ExecutionException ex) {
+      logger.log(Level.INFO, "The output channels of device {0} are not known.", deviceId);
+    }
+    AudioSystem.StreamParameters outputParameters =
+            new AudioSystem.StreamParameters(deviceId, 0, deviceChannels);
+    buses = new Bus[0];
+    audioSystem = system;
+    this.deviceId = deviceId;
+    this.sampleRate = sampleRate;
+    this.bufferSize = bufferSize;
+    latency = (options.numberOfBuffers + 1) * bufferSize;
+    try {
+      system.openStream(outputParameters,
+              inputParameters,
+              sampleRate,
+              bufferSize,
+              callback,
+              options);
+      long reportedLatency = system.getStreamLatency();
+      if (reportedLatency > 0) {
+        latency = reportedLatency;
+      }
+      if (!system.isStreamOpen()) {
+        logger.log(Level.SEVERE, "Could not open the stream.");
+        throw new MidiUnavailableException("Could not open the stream.");
+      }
+      system.startStream();
+      if (!system.isStreamRunning()) {
+        logger.log(Level.SEVERE, "Clould not start the stream.");
+        throw new MidiUnavailableException("Clould not start the stream.");
+      }
+    } catch (RtError ex) {
+      logger.log(Level.SEVERE, null, ex);
+      close();
+      throw new MidiUnavailableException(ex.getMessage());
+    } catch (MidiUnavailableException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return the latency of the open stream in frames.
+   */
+  synchronized long getLatency() {
+    return latency;
+  }
+
+  /**
+   * Attaches a mixer to the given output channels of the open stream. The
+   * mixer is opened and started before the audio thread sees it.
+   *
+   * @param mixer the mixer to be played.
+   * @param firstChannel the first output channel (zero based) of the bus.
+   * @param channelCount the number of output channels of the bus.
+   * @param input true if the mixer shall receive the input of the stream.
+   * @return the attached bus (to be given to {@link #detach(Bus)}).
+   * @throws MidiUnavailableException if the stream is not open or the
+   * channels are not available.
+   */
+  synchronized Bus attach(AudioMixer mixer, int firstChannel, int channelCount, boolean input) throws MidiUnavailableException {
+    if (audioSystem == null || !streamOpen) {
+      throw new MidiUnavailableException("The audio stream is not open.");
+    }
+    if (firstChannel < 0 || channelCount <= 0
+            || firstChannel + channelCount > streamOutputChannels) {
+      closeIfUnused();
+      throw new MidiUnavailableException("The output channels " + firstChannel + " to "
+              + (firstChannel + channelCount - 1) + " are not available.");
+    }
+    for (Bus other : buses) {
+      if (firstChannel < other.firstChannel + other.channelCount
+              && other.firstChannel < firstChannel + channelCount) {
+        throw new MidiUnavailableException("The output channels " + firstChannel + " to "
+                + (firstChannel + channelCount - 1) + " are already in use.");
+      }
+    }
+    Bus bus = new Bus(mixer, firstChannel, channelCount, input);
+    try {
+      mixer.onOpenStream(sampleRate, streamFrames, input ? streamInputChannels : 0,
+              channelCount, streamNoninterleaved);
+      mixer.onStartStream();
+    } catch (Throwable ex) {
+      logger.log(Level.SEVERE, null, ex);
+      closeIfUnused();
+      throw new MidiUnavailableException(ex.getMessage());
+    }
+    Bus[] newBuses = Arrays.copyOf(buses, buses.length + 1);
+    newBuses[buses.length] = bus;
+    buses = newBuses;
+    return bus;
+  }
+
+  /**
+   * Removes a bus from the stream, waits until the audio thread has left it
+   * and stops and closes its mixer. The stream itself is closed when the last
+   * bus is detached.
+   *
+   * @param bus a bus obtained by {@link #attach}.
+   */
+  synchronized void detach(Bus bus) {
+    Bus[] newBuses = new Bus[buses.length];
+    int count = 0;
+    for (Bus other : buses) {
+      if (other != bus) {
+        newBuses[count++] = other;
+      }
+    }
+    if (count == buses.length) {
+      return;
+    }
+    buses = Arrays.copyOf(newBuses, count);
+    awaitCycle();
+    bus.mixer.onStopStream();
+    bus.mixer.onCloseStream();
+    closeIfUnused();
+  }
+
+  /**
+   * Waits until a cycle that might still see a removed bus has finished.
+   */
+  private void awaitCycle() {
+    if (audioSystem == null || !audioSystem.isStreamRunning()) {
+      return;
+    }
+    long target = cycleCount + 1;
+    long deadline = System.currentTimeMillis() + DETACHTIMEOUTMILLIS;
+    while (cycleCount < target && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void closeIfUnused() {
+    if (buses.length == 0) {
+      close();
+    }
+  }
+
+  private void close() {
+    if (audioSystem == null) {
+      return;
+    }
+    try {
+      if (audioSystem.isStreamRunning()) {
+        audioSystem.stopStream().get();
+      }
+      if (audioSystem.isStreamOpen()) {
+        audioSystem.closeStream().get();
+      }
+    } catch (InterruptedException | ExecutionException | RtError ex) {
+      logger.log(Level.INFO, null, ex);
+    } finally {
+      audioSystem = null;
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.TempoEvent;
+import de.free_creations.midiutil.TempoTrack;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Track;
+import org.openide.modules.Places;
+
+/**
+ * The stem-cache keeps pre-rendered audio files (stems) of single Midi tracks
+ * on disk. A stem is identified by a hash over the content of the track, the
+ * tempo track, the tempo factor, the sound-bank and the audio format; so the
+ * same song opened a second time will find its stems again.
+ *
+ * Stems that are not yet on disk are rendered by a background thread with
+ * minimum priority.
+ *
+ * Playing from stems is opt-in: each stem is rendered on a synthesiser of its
+ * own, so voice allocation and the reverb and chorus sends sound different
+ * from one synthesiser shared by all tracks. The default stem-cache is only
+ * used if the system property {@value #PROPERTY} is set to "true".
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class StemCache {
+
+  private static final Logger logger = Logger.getLogger(StemCache.class.getName());
+  private static final String SUFFIX = ".stem";
+  /**
+   * When the cache grows beyond this size (in bytes), the least recently used
+   * stems are deleted.
+   */
+  private static final long MAXCACHESIZE = 2L * 1024L * 1024L * 1024L;
+  /**
+   * The number of requests remembered before finished requests are
+   * forgotten.
+   */
+  private static final int MAXREQUESTS = 64;
+  private static StemCache defaultCache = null;
+  /**
+   * The system property that enables the default stem-cache.
+   */
+  static final String PROPERTY = "de.free_creations.microsequencer.stems";
+  private final File directory;
+  private final Object requestLock = new Object();
+  private final Map<Request, Future<File>> requests = new HashMap<>();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.setDaemon(true);
+      thread.setName("FreeCreationsStemRenderer");
+      return thread;
+    }
+  });
+
+  /**
+   * Identifies a request by the identity of the involved objects. Two requests
+   * for the same track objects are only executed once.
+   */
+  private static class Request {
+
+    private final Track track;
+    private final TempoTrack tempoTrack;
+    private final Soundbank soundbank;
+    private final double tempoFactor;
+    private final int samplingRate;
+    private final int channelCount;
+
+    Request(Track track, TempoTrack tempoTrack, Soundbank soundbank,
+            double tempoFactor, int samplingRate, int channelCount) {
+      this.track = track;
+      this.tempoTrack = tempoTrack;
+      this.soundbank = soundbank;
+      this.tempoFactor = tempoFactor;
+      this.samplingRate = samplingRate;
+      this.channelCount = channelCount;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Request)) {
+        return false;
+      }
+      Request other = (Request) obj;
+      return track == other.track
+              && tempoTrack == other.tempoTrack
+              && soundbank == other.soundbank
+              && tempoFactor == other.tempoFactor
+              && samplingRate == other.samplingRate
+              && channelCount == other.channelCount;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = System.identityHashCode(track);
+      hash = 31 * hash + System.identityHashCode(tempoTrack);
+      hash = 31 * hash + System.identityHashCode(soundbank);
+      hash = 31 * hash + Double.valueOf(tempoFactor).hashCode();
+      hash = 31 * hash + samplingRate;
+      hash = 31 * hash + channelCount;
+      return hash;
+    }
+  }
+
+  /**
+   * The default stem-cache resides in the cache directory of the user.
+   *
+   * @return the default stem-cache.
+   */
+  static synchronized StemCache getDefault() {
+    if (defaultCache == null) {
+      defaultCache = new StemCache(
+              Places.getCacheSubdirectory("FreeCreationsStems"));
+    }
+    return defaultCache;
+  }
+
+  /**
+   * @return the default stem-cache if the system property {@value #PROPERTY}
+   * is set to "true", otherwise null.
+   */
+  static StemCache getDefaultIfEnabled() {
+    if (!Boolean.getBoolean(PROPERTY)) {
+      return null;
+    }
+    return getDefault();
+  }
+
+  /**
+   * Creates a stem-cache in the given directory.
+   *
+   * @param directory the directory where the stems are stored. If it does not
+   * exist it will be created.
+   */
+  StemCache(File directory) {
+    this.directory = directory;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Provides the stem for the given track. If the stem is not yet available, it
+   * will be rendered in the background.
+   *
+   * Note: this function is non-blocking and can be called from within the
+   * process thread.
+   *
+   * @param track the track to be rendered.
+   * @param tempoTrack the tempo track that maps Midi ticks to seconds.
+   * @param tempoFactor the factor by which the sequence shall be accelerated.
+   * @param soundbank the sound-bank to be used (may be null).
+   * @param samplingRate the sampling rate of the stem.
+   * @param channelCount the number of interleaved channels.
+   * @return a future that will provide the stem file.
+   */
+  Future<File> provide(final Track track, final TempoTrack tempoTrack,
+          final double tempoFactor, final Soundbank soundbank,
+          final int samplingRate, final int channelCount) {
+    Request request = new Request(track, tempoTrack, soundbank, tempoFactor, samplingRate, channelCount);
+    synchronized (requestLock) {
+      Future<File> result = requests.get(request);
+      if (result != null) {
+        return result;
+      }
+      result = executor.submit(new Callable<File>() {
+        @Override
+        public File call() throws Exception {
+          return lookupOrRender(track, tempoTrack, tempoFactor, soundbank,
+                  samplingRate, channelCount);
+        }
+      });
+      forgetDoneRequests();
+      requests.put(request, result);
+      return result;
+    }
+  }
+
+  /**
+   * Removes the finished requests from the request map, so that we do not
+   * keep references on tracks of songs that are not used anymore.
+   */
+  private void forgetDoneRequests() {
+    if (requests.size() < MAXREQUESTS) {
+      return;
+    }
+    Iterator<Future<File>> iterator = requests.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().isDone()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private File lookupOrRender(Track track, TempoTrack tempoTrack,
+          double tempoFactor, Soundbank soundbank, int samplingRate,
+          int channelCount) throws Exception {
+    String key = makeKey(track, tempoTrack, tempoFactor, soundbank, samplingRate, channelCount);
+    File stem = new File(directory, key + SUFFIX);
+    if (stem.exists()) {
+      // mark as recently used
+      stem.setLastModified(System.currentTimeMillis());
+      return stem;
+    }
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory.getAbsolutePath());
+    }
+    logger.log(Level.FINE, "Rendering stem {0}", stem.getName());
+    try {
+      StemRenderer.render(track, tempoTrack, tempoFactor, soundbank,
+              samplingRate, channelCount, stem);
+    } catch (Exception ex) {
+      logger.log(Level.WARNING, "Could not render stem.", ex);
+      throw ex;
+    }
+    evict();
+    return stem;
+  }
+
+  /**
+   * Deletes the least recently used stems until the cache is small enough.
+   */
+  private void evict() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> stems = new ArrayList<>();
+    long size = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(SUFFIX)) {
+        stems.add(file);
+        size += file.length();
+      }
+    }
+    if (size <= MAXCACHESIZE) {
+      return;
+    }
+    Collections.sort(stems, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f1.lastModified(), f2.lastModified());
+      }
+    });
+    for (File stem : stems) {
+      if (size <= MAXCACHESIZE) {
+        break;
+      }
+      long length = stem.length();
+      if (stem.delete()) {
+        size -= length;
+      }
+    }
+  }
+
+  /**
+   * Calculates a hash that identifies the stem of the given track.
+   *
+   * @return a hexadecimal string.
+   */
+  static String makeKey(Track track, TempoTrack tempoTrack, double tempoFactor,
+          Soundbank soundbank, int samplingRate, int channelCount) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+    for (int i = 0; i < track.size(); i++) {
+      MidiEvent event = track.get(i);
+      updateLong(digest, event.getTick());
+      digest.update(event.getMessage().getMessage());
+    }
+    for (TempoEvent tempoEvent : tempoTrack) {
+      updateLong(digest, tempoEvent.getTickPos());
+      updateLong(digest, (long) tempoEvent.getTempoPerQuarter());
+    }
+    updateLong(digest, Double.doubleToLongBits(tempoFactor));
+    updateLong(digest, samplingRate);
+    updateLong(digest, channelCount);
+    if (soundbank != null) {
+      String soundbankId = soundbank.getName() + "|" + soundbank.getVersion()
+              + "|" + soundbank.getVendor();
+      digest.update(soundbankId.getBytes(StandardCharsets.UTF_8));
+    }
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) {
+      key.append(String.format("%02x", b));
+    }
+    return key.toString();
+  }
+
+  private static void updateLong(MessageDigest digest, long value) {
+    byte[] bytes = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      bytes[i] = (byte) (value >>> (8 * i));
+    }
+    digest.update(bytes);
+  }
+
+  /**
+   * Checks whether all the given stems are ready.
+   *
+   * @param stems the futures as returned by provide().
+   * @return true if all stems have been successfully rendered.
+   */
+  static boolean allDone(Future<File>[] stems) {
+    for (Future<File> stem : stems) {
+      if (!stem.isDone() || stem.isCancelled()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.microsequencer.filestreaming.Const;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The stem-player mixes a number of pre-rendered stems (see
+ * {@link StemRenderer}). Similar to the
+ * {@link de.free_creations.microsequencer.filestreaming.AudioReader}, every
+ * stem is read in windows; while one window is consumed, the next window is
+ * read by a background task. In addition, the window at the loop start is
+ * kept in memory, so that jumping back to the loop start does not need to
+ * wait for the disk.
+ *
+ * Note: positioning the player on an arbitrary frame (start() or a first
+ * jump to a new loop start) reads the first window synchronously. All other
+ * reads are done in the background. If a window is not ready in time, the
+ * stem is silent for this cycle and the underrun is counted.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class StemPlayer {
+
+  private static final Logger logger = Logger.getLogger(StemPlayer.class.getName());
+  private final StemStream[] streams;
+  private final int channelCount;
+  private final int windowFrames;
+  private final ExecutorService executor;
+  private int underrunCount = 0;
+
+  /**
+   * A window is a contiguous part of a stem held in memory.
+   */
+  private static class Window {
+
+    final long startFrame;
+    final long endFrame;
+    final FloatBuffer samples;
+
+    Window(long startFrame, int frames, FloatBuffer samples) {
+      this.startFrame = startFrame;
+      this.endFrame = startFrame + frames;
+      this.samples = samples;
+    }
+
+    boolean contains(long frame) {
+      return (startFrame <= frame) && (frame < endFrame);
+    }
+  }
+
+  /**
+   * Reads one window from the given channel.
+   */
+  private class WindowReadTask implements Callable<Window> {
+
+    private final FileChannel channel;
+    private final long startFrame;
+
+    WindowReadTask(FileChannel channel, long startFrame) {
+      this.channel = channel;
+      this.startFrame = startFrame;
+    }
+
+    @Override
+    public Window call() throws IOException {
+      int bytesPerFrame = channelCount * Const.bytesPerFloat;
+      ByteBuffer buffer = ByteBuffer.allocate(windowFrames * bytesPerFrame).order(ByteOrder.LITTLE_ENDIAN);
+      long filePosition = startFrame * bytesPerFrame;
+      while (buffer.hasRemaining()) {
+        int n = channel.read(buffer, filePosition + buffer.position());
+        if (n < 0) {
+          break;
+        }
+      }
+      buffer.flip();
+      int frames = buffer.limit() / bytesPerFrame;
+      return new Window(startFrame, frames, buffer.asFloatBuffer());
+    }
+  }
+
+  /**
+   * The reading state of one stem.
+   */
+  private class StemStream {
+
+    private final FileChannel channel;
+    private final long frameCount;
+    private Window current = null;
+    private Future<Window> next = null;
+    private Future<Window> loop = null;
+    private long loopStartFrame = -1;
+
+    StemStream(File file) throws IOException {
+      channel = new FileInputStream(file).getChannel();
+      frameCount = channel.size() / (channelCount * Const.bytesPerFloat);
+    }
+
+    /**
+     * Positions the stream on the given frame (blocking).
+     */
+    void start(long frame) throws IOException {
+      current = new WindowReadTask(channel, frame).call();
+      next = executor.submit(new WindowReadTask(channel, current.endFrame));
+    }
+
+    /**
+     * Adds the given number of frames, starting at the given stem position,
+     * to the output.
+     */
+    void mix(float[] output, int outputFrame, int frames, long position, float gain) {
+      while (frames > 0) {
+        if (position >= frameCount) {
+          return;
+        }
+        Window window = windowFor(position);
+        if (window == null) {
+          underrunCount++;
+          return;
+        }
+        int available = (int) Math.min(frames, window.endFrame - position);
+        int source = (int) (position - window.startFrame) * channelCount;
+        int target = outputFrame * channelCount;
+        int count = available * channelCount;
+        for (int i = 0; i < count; i++) {
+          output[target + i] += gain * window.samples.get(source + i);
+        }
+        frames -= available;
+        outputFrame += available;
+        position += available;
+      }
+    }
+
+    /**
+     * Finds the window that contains the given frame and advances the
+     * read-ahead if necessary.
+     *
+     * @return the window or null if the frame is not (yet) in memory.
+     */
+    private Window windowFor(long frame) {
+      if (current != null && current.contains(frame)) {
+        return current;
+      }
+      Window nextWindow = readyWindow(next);
+      if (nextWindow != null && nextWindow.contains(frame)) {
+        advanceTo(nextWindow);
+        return current;
+      }
+      if (frame == loopStartFrame) {
+        Window loopWindow = readyWindow(loop);
+        if (loopWindow == null) {
+          // the first jump to this loop start, we have to read it now.
+          loopWindow = readLoopWindow();
+        }
+        if (loopWindow != null && loopWindow.contains(frame)) {
+          advanceTo(loopWindow);
+          return current;
+        }
+      }
+      if (next == null || next.isDone()) {
+        // we are lost, start reading at the requested position.
+        next = executor.submit(new WindowReadTask(channel, frame));
+      }
+      return null;
+    }
+
+    private void advanceTo(Window window) {
+      current = window;
+      next = executor.submit(new WindowReadTask(channel, current.endFrame));
+    }
+
+    private Window readLoopWindow() {
+      try {
+        Window loopWindow = new WindowReadTask(channel, loopStartFrame).call();
+        loop = new RealizedWindow(loopWindow);
+        return loopWindow;
+      } catch (IOException ex) {
+        logger.log(Level.SEVERE, null, ex);
+        return null;
+      }
+    }
+
+    void setLoopStart(long frame) {
+      if (frame != loopStartFrame) {
+        loopStartFrame = frame;
+        loop = null;
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        logger.log(Level.SEVERE, null, ex);
+      }
+    }
+  }
+
+  /**
+   * Retrieves the window from a finished read task.
+   *
+   * @return the window or null if the task is not finished or has failed.
+   */
+  private Window readyWindow(Future<Window> future) {
+    if (future == null || !future.isDone()) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException ex) {
+      logger.log(Level.SEVERE, null, ex);
+      return null;
+    }
+  }
+
+  /**
+   * A window that is already in memory.
+   */
+  private static class RealizedWindow implements Future<Window> {
+
+    private final Window window;
+
+    RealizedWindow(Window window) {
+      this.window = window;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public Window get() {
+      return window;
+    }
+
+    @Override
+    public Window get(long timeout, TimeUnit unit) {
+      return window;
+    }
+  }
+
+  /**
+   * Opens the given stems.
+   *
+   * Note: this call is potentially blocking.
+   *
+   * @param stems the stem files, one per track.
+   * @param channelCount the number of interleaved channels.
+   * @param windowFrames the number of frames read in one step.
+   * @param executor the executor that performs the background reads.
+   * @throws IOException if a stem cannot be opened.
+   */
+  StemPlayer(File[] stems, int channelCount, int windowFrames, ExecutorService executor) throws IOException {
+    this.channelCount = channelCount;
+    this.windowFrames = windowFrames;
+    this.executor = executor;
+    this.streams = new StemStream[stems.length];
+    try {
+      for (int i = 0; i < stems.length; i++) {
+        streams[i] = new StemStream(stems[i]);
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Positions all stems on the given frame. The first window of every stem
+   * is read synchronously.
+   *
+   * @param frame the position in frames.
+   * @throws IOException
+   */
+  void start(long frame) throws IOException {
+    for (StemStream stream : streams) {
+      stream.start(frame);
+    }
+  }
+
+  /**
+   * Informs the player about the position of the loop start, so that the
+   * window at the loop start can be kept in memory.
+   *
+   * @param frame the loop start position in frames.
+   */
+  void setLoopStart(long frame) {
+    for (StemStream stream : streams) {
+      stream.setLoopStart(frame);
+    }
+  }
+
+  /**
+   * Adds the samples of all stems to the output array.
+   *
+   * @param output an array of interleaved samples.
+   * @param outputFrame the first frame in the output array to be filled.
+   * @param frames the number of frames.
+   * @param position the position (in frames) in the stems.
+   * @param mute the mute flags per stem (may be null).
+   * @param gain the gain factors per stem (may be null).
+   */
+  void mix(float[] output, int outputFrame, int frames, long position,
+          boolean[] mute, float[] gain) {
+    for (int i = 0; i < streams.length; i++) {
+      if (mute != null && i < mute.length && mute[i]) {
+        continue;
+      }
+      float g = 1F;
+      if (gain != null && i < gain.length) {
+        g = gain[i];
+      }
+      if (g == 0F) {
+        continue;
+      }
+      streams[i].mix(output, outputFrame, frames, position, g);
+    }
+  }
+
+  /**
+   * @return the number of times a stem window was not ready in time.
+   */
+  int getUnderrunCount() {
+    return underrunCount;
+  }
+
+  /**
+   * Closes all stems.
+   */
+  final void close() {
+    for (StemStream stream : streams) {
+      if (stream != null) {
+        stream.close();
+      }
+    }
+  }
+
+  /**
+   * Waits until all pending background reads are done. (For test only.)
+   */
+  void waitForReads() throws InterruptedException, ExecutionException {
+    for (StemStream stream : streams) {
+      if (stream.next != null) {
+        stream.next.get();
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import com.sun.media.sound.AudioSynthesizer;
+import com.sun.media.sound.SoftSynthesizer;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import de.free_creations.microsequencer.filestreaming.Const;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * The stem-renderer renders a single Midi track offline (faster than real
+ * time) into a raw audio file. The file contains interleaved little-endian
+ * floats, the same format as used by the
+ * {@link de.free_creations.microsequencer.filestreaming.AudioReader}. The
+ * first frame of the file corresponds to Midi tick zero.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+class StemRenderer {
+
+  /**
+   * The time (in seconds) that is rendered after the last event, so that
+   * reverb and release tails are not cut.
+   */
+  static final double TAILTIME = 3.0D;
+  /**
+   * The number of frames rendered in one step.
+   */
+  private static final int FRAMESPERSTEP = 4096;
+
+  private StemRenderer() {
+  }
+
+  /**
+   * Renders the given track into the given file.
+   *
+   * Note: this call is blocking and takes a considerable amount of time. It
+   * should be executed in a background thread.
+   *
+   * @param track the track to be rendered.
+   * @param tempoTrack the tempo track that maps Midi ticks to seconds.
+   * @param tempoFactor the factor by which the sequence shall be accelerated.
+   * @param soundbank the sound-bank to be used (if null, the built-in sound
+   * bank of the synthesiser is used).
+   * @param samplingRate the sampling rate of the stem.
+   * @param channelCount the number of interleaved channels.
+   * @param target the file that will receive the audio data.
+   * @throws IOException if the file cannot be written.
+   * @throws MidiUnavailableException if the synthesiser cannot be opened.
+   */
+  static void render(Track track, TempoTrack tempoTrack, double tempoFactor,
+          Soundbank soundbank, int samplingRate, int channelCount, File target)
+          throws IOException, MidiUnavailableException {
+    render(new SoftSynthesizer(), track, tempoTrack, tempoFactor, soundbank,
+            samplingRate, channelCount, target);
+  }
+
+  /**
+   * Renders the given track into the given file using the given synthesiser.
+   *
+   * @see #render(javax.sound.midi.Track,
+   * de.free_creations.midiutil.TempoTrack, double, javax.sound.midi.Soundbank,
+   * int, int, java.io.File)
+   */
+  static void render(AudioSynthesizer synthesizer, Track track,
+          TempoTrack tempoTrack, double tempoFactor, Soundbank soundbank,
+          int samplingRate, int channelCount, File target)
+          throws IOException, MidiUnavailableException {
+
+    AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT,
+            samplingRate, 32, channelCount, Const.bytesPerFloat * channelCount,
+            samplingRate, false);
+    Map<String, Object> info = new HashMap<>();
+    info.put("interpolation", "linear");
+    info.put("max polyphony", "128");
+    AudioInputStream synthesizerStream = synthesizer.openStream(format, info);
+    try {
+      if (soundbank != null) {
+        if (!synthesizer.loadAllInstruments(soundbank)) {
+          throw new MidiUnavailableException("Could not load " + soundbank + ".");
+        }
+      }
+      // a time map that covers the whole sequence
+      TimeMap timeMap = tempoTrack.CreateTimeMap(0D, Double.MAX_VALUE, tempoFactor);
+      Receiver receiver = synthesizer.getReceiver();
+      double lastEventTime = 0D;
+      for (int i = 0; i < track.size(); i++) {
+        MidiEvent event = track.get(i);
+        double eventTime = timeMap.getTimeOffset(event.getTick());
+        receiver.send(event.getMessage(), (long) (1E6 * eventTime));
+        lastEventTime = Math.max(lastEventTime, eventTime);
+      }
+      long framesToRender = (long) ((lastEventTime + TAILTIME) * samplingRate);
+
+      File partialFile = new File(target.getPath() + ".part");
+      byte[] soundByteArray = new byte[FRAMESPERSTEP * format.getFrameSize()];
+      ByteBuffer soundByteBuffer = ByteBuffer.wrap(soundByteArray);
+      try (FileOutputStream output = new FileOutputStream(partialFile)) {
+        FileChannel channel = output.getChannel();
+        long framesRendered = 0;
+        while (framesRendered < framesToRender) {
+          if (Thread.interrupted()) {
+            throw new IOException("Rendering of " + target.getName() + " interrupted.");
+          }
+          int frames = (int) Math.min(FRAMESPERSTEP, framesToRender - framesRendered);
+          int bytes = frames * format.getFrameSize();
+          int bytesRead = 0;
+          while (bytesRead < bytes) {
+            int n = synthesizerStream.read(soundByteArray, bytesRead, bytes - bytesRead);
+            if (n < 0) {
+              throw new IOException("Unexpected end of synthesizer stream.");
+            }
+            bytesRead += n;
+          }
+          soundByteBuffer.clear();
+          soundByteBuffer.limit(bytes);
+          while (soundByteBuffer.hasRemaining()) {
+            channel.write(soundByteBuffer);
+          }
+          framesRendered += frames;
+        }
+      }
+      if (!partialFile.renameTo(target)) {
+        partialFile.delete();
+        throw new IOException("Could not create " + target.getAbsolutePath());
+      }
+    } finally {
+      synthesizer.close();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * Estimates the stream time between two audio cycles. The audio callbacks do
+ * not arrive at regular intervals (the driver and the scheduler add jitter),
+ * so taking the time of the last callback plus the time elapsed since then
+ * makes the position jump back and forth at every cycle.
+ *
+ * This clock filters the callback times with a second order delay-locked
+ * loop (see F. Adriaensen, "Using a DLL to filter time", 2005). The loop
+ * predicts when the next cycle will start; between two cycles the stream
+ * time is interpolated linearly from the start of the current cycle to the
+ * predicted start of the next one. The result is smooth and never goes
+ * backwards. The loop also measures the real duration of a cycle, and thus
+ * the drift of the sample clock against the system clock.
+ *
+ * The clock is updated by the audio thread and read by any thread; the
+ * estimate is published as an immutable object, so reading needs no lock.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class StreamClock {
+
+  /**
+   * The default bandwidth of the loop in Hertz. Lower values filter more
+   * jitter but follow changes of the cycle period more slowly.
+   */
+  static final double DEFAULTBANDWIDTH = 1.0;
+
+  /**
+   * The state of the loop after a cycle has started.
+   */
+  private static final class Estimate {
+
+    /**
+     * The filtered system time (in nanoseconds) when the current cycle began.
+     */
+    final double cycleStartNano;
+    /**
+     * The predicted system time (in nanoseconds) when the next cycle begins.
+     */
+    final double nextCycleNano;
+    /**
+     * The stream time (in seconds) of the current cycle.
+     */
+    final double cycleStreamTime;
+    /**
+     * The stream time (in seconds) of the next cycle.
+     */
+    final double nextStreamTime;
+
+    Estimate(double cycleStartNano, double nextCycleNano, double cycleStreamTime, double nextStreamTime) {
+      this.cycleStartNano = cycleStartNano;
+      this.nextCycleNano = nextCycleNano;
+      this.cycleStreamTime = cycleStreamTime;
+      this.nextStreamTime = nextStreamTime;
+    }
+  }
+  private final double bandwidth;
+  private volatile Estimate estimate = null;
+  private volatile double driftRatio = 1.0;
+  // the state of the loop (only accessed by the audio thread)
+  private double cycleDuration;
+  private double b;
+  private double c;
+  private double t1;
+  private double e2;
+  // the filtered time and the stream time when the loop had settled.
+  private double originNano;
+  private double originStreamTime;
+  private boolean settled;
+
+  StreamClock() {
+    this(DEFAULTBANDWIDTH);
+  }
+
+  /**
+   * @param bandwidth the bandwidth of the loop in Hertz.
+   */
+  StreamClock(double bandwidth) {
+    this.bandwidth = bandwidth;
+  }
+
+  /**
+   * Restart the loop (for example when the stream is opened or restarted).
+   *
+   * @param cycleDuration the nominal duration of a cycle in seconds.
+   */
+  void reset(double cycleDuration) {
+    this.cycleDuration = cycleDuration;
+    double omega = 2 * Math.PI * bandwidth * cycleDuration;
+    b = Math.sqrt(2) * omega;
+    c = omega * omega;
+    estimate = null;
+    driftRatio = 1.0;
+  }
+
+  /**
+   * Inform the clock that a cycle has started. This function must be called by
+   * the audio thread at the beginning of every cycle.
+   *
+   * @param nowNano the System.nanoTime() when the cycle started.
+   * @param streamTime the stream time of the cycle in seconds.
+   */
+  void update(long nowNano, double streamTime) {
+    Estimate current = estimate;
+    if (current == null
+            || Math.abs(streamTime - current.nextStreamTime) > 0.5 * cycleDuration) {
+      // first cycle, or the stream has jumped (over- or under-run).
+      e2 = 1E9 * cycleDuration;
+      t1 = nowNano + e2;
+      originStreamTime = streamTime;
+      settled = false;
+      estimate = new Estimate(nowNano, t1, streamTime, streamTime + cycleDuration);
+      return;
+    }
+    double error = nowNano - t1;
+    double t0 = t1;
+    t1 = t1 + b * error + e2;
+    e2 = e2 + c * error;
+    double elapsedStreamTime = streamTime - originStreamTime;
+    if (!settled) {
+      driftRatio = e2 / (1E9 * cycleDuration);
+      if (elapsedStreamTime > 2D / bandwidth) {
+        // from now on, the drift is measured over the whole run, so the
+        // jitter averages out.
+        settled = true;
+        originNano = t0;
+        originStreamTime = streamTime;
+      }
+    } else if (elapsedStreamTime > 0D) {
+      driftRatio = (t0 - originNano) / (1E9 * elapsedStreamTime);
+    }
+    estimate = new Estimate(t0, t1, streamTime, streamTime + cycleDuration);
+  }
+
+  /**
+   * Estimate the stream time at the given system time.
+   *
+   * @param nowNano a System.nanoTime() value (usually the current time).
+   * @return the estimated stream time in seconds (zero if no cycle has been
+   * processed yet).
+   */
+  double getStreamTime(long nowNano) {
+    Estimate current = estimate;
+    if (current == null) {
+      return 0D;
+    }
+    double fraction = (nowNano - current.cycleStartNano)
+            / (current.nextCycleNano - current.cycleStartNano);
+    if (fraction < 0D) {
+      // (possible if the start has been filtered into the future)
+      fraction = 0D;
+    } else if (fraction > 1D) {
+      // the next cycle is late; wait for it rather than guessing ahead.
+      fraction = 1D;
+    }
+    return current.cycleStreamTime
+            + fraction * (current.nextStreamTime - current.cycleStreamTime);
+  }
+
+  /**
+   * Estimate the system time at which the given stream time is reached (the
+   * inverse of {@link #getStreamTime(long)}). Stream times beyond the next
+   * cycle are extrapolated with the measured cycle duration.
+   *
+   * @param streamTime a stream time in seconds.
+   * @return the estimated System.nanoTime() value (the current time if no
+   * cycle has been processed yet).
+   */
+  long getNanoTime(double streamTime) {
+    Estimate current = estimate;
+    if (current == null) {
+      return System.nanoTime();
+    }
+    double fraction = (streamTime - current.cycleStreamTime)
+            / (current.nextStreamTime - current.cycleStreamTime);
+    return (long) (current.cycleStartNano
+            + fraction * (current.nextCycleNano - current.cycleStartNano));
+  }
+
+  /**
+   * The ratio between the measured and the nominal cycle duration, averaged
+   * since the loop has settled. A value of 1.0001 means that the sound card
+   * plays 100 ppm slower than the system clock would let expect.
+   *
+   * @return the measured cycle duration divided by the nominal one.
+   */
+  double getDriftRatio() {
+    return driftRatio;
+  }
+}
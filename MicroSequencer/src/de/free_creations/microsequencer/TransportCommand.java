@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+/**
+ * A change of the transport state, passed from the calling threads (user
+ * interface, remote controllers) to the audio thread. The commands are
+ * queued without locking and executed by the master-sequencer at the start
+ * of the next cycle, in the order they were given.
+ *
+ * The commands "stop at" and "jump at" carry a Midi tick; they wait until
+ * the cycle that contains this tick and are then executed at the exact
+ * sample that corresponds to the tick.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class TransportCommand {
+
+  enum Kind {
+
+    START, STOP, TEMPO, LOOPSTART, LOOPEND, LOOPCOUNT, STOPAT, JUMP
+  }
+  final Kind kind;
+  /**
+   * The session the command refers to (START, STOP, STOPAT and JUMP); a
+   * stop or a jump requested for a session that has meanwhile ended is
+   * ignored.
+   */
+  final ActiveMasterSequencer session;
+  /**
+   * The tempo factor (TEMPO), the tick of the loop point (LOOPSTART,
+   * LOOPEND), the loop count (LOOPCOUNT) or the tick at which the command
+   * shall be executed (STOPAT, JUMP).
+   */
+  final double value;
+  /**
+   * The tick where the playback continues (JUMP only).
+   */
+  final double target;
+
+  private TransportCommand(Kind kind, ActiveMasterSequencer session, double value, double target) {
+    this.kind = kind;
+    this.session = session;
+    this.value = value;
+    this.target = target;
+  }
+
+  static TransportCommand start(ActiveMasterSequencer session) {
+    return new TransportCommand(Kind.START, session, 0D, 0D);
+  }
+
+  static TransportCommand stop(ActiveMasterSequencer session) {
+    return new TransportCommand(Kind.STOP, session, 0D, 0D);
+  }
+
+  static TransportCommand tempo(double factor) {
+    return new TransportCommand(Kind.TEMPO, null, factor, 0D);
+  }
+
+  static TransportCommand loopStart(double tick) {
+    return new TransportCommand(Kind.LOOPSTART, null, tick, 0D);
+  }
+
+  static TransportCommand loopEnd(double tick) {
+    return new TransportCommand(Kind.LOOPEND, null, tick, 0D);
+  }
+
+  static TransportCommand loopCount(int count) {
+    return new TransportCommand(Kind.LOOPCOUNT, null, count, 0D);
+  }
+
+  static TransportCommand stopAt(ActiveMasterSequencer session, double tick) {
+    return new TransportCommand(Kind.STOPAT, session, tick, 0D);
+  }
+
+  static TransportCommand jump(ActiveMasterSequencer session, double atTick, double toTick) {
+    return new TransportCommand(Kind.JUMP, session, atTick, toTick);
+  }
+}
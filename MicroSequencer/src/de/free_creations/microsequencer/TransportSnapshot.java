@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.BeatPosition;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import de.free_creations.midiutil.TimeSignatureTrack;
+
+/**
+ * An immutable picture of the transport state, as it has been established by
+ * the last cycle. The master sequencer publishes a new snapshot once per
+ * cycle (through a volatile reference); the position queries of the user
+ * interface are answered from the snapshot, so they never have to wait for
+ * the audio thread and the audio thread never has to wait for them.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class TransportSnapshot {
+
+  private static final BeatPosition DEFAULTBEATPOSITION = new BeatPosition() {
+    @Override
+    public int getNumerator() {
+      return 4;
+    }
+
+    @Override
+    public int getDenominator() {
+      return 4;
+    }
+
+    @Override
+    public long getMeasure() {
+      return 0;
+    }
+
+    @Override
+    public double getBeat() {
+      return 0D;
+    }
+  };
+  private final long version;
+  private final boolean playing;
+  private final double streamTime;
+  private final double previousStreamTime;
+  private final double cycleStartTick;
+  private final TimeMap timeMap;
+  private final TimeMap previousTimeMap;
+  private final double tempoFactor;
+  private final int loopCount;
+  private final TimeSignatureTrack timeSignatureTrack;
+
+  /**
+   * Create a snapshot of a running sequencer.
+   *
+   * @param version the sequence number of the snapshot.
+   * @param streamTime the stream time (in seconds) of the last cycle.
+   * @param previousStreamTime the stream time of the cycle before.
+   * @param cycleStartTick the tick position at the start of the last cycle.
+   * @param timeMap the time map of the last cycle (may be null).
+   * @param previousTimeMap the time map of the cycle before (may be null).
+   * @param tempoFactor the tempo factor of the last cycle.
+   * @param loopCount the remaining number of loops.
+   * @param timeSignatureTrack the time signatures (may be null).
+   */
+  TransportSnapshot(long version, double streamTime, double previousStreamTime,
+          double cycleStartTick, TimeMap timeMap, TimeMap previousTimeMap,
+          double tempoFactor, int loopCount, TimeSignatureTrack timeSignatureTrack) {
+    this.version = version;
+    this.playing = true;
+    this.streamTime = streamTime;
+    this.previousStreamTime = previousStreamTime;
+    this.cycleStartTick = cycleStartTick;
+    this.timeMap = timeMap;
+    this.previousTimeMap = previousTimeMap;
+    this.tempoFactor = tempoFactor;
+    this.loopCount = loopCount;
+    this.timeSignatureTrack = timeSignatureTrack;
+  }
+
+  /**
+   * Create a snapshot of a stopped sequencer.
+   *
+   * @param version the sequence number of the snapshot.
+   * @param startPosition the position where the sequencer will start.
+   * @param tempoFactor the current tempo factor.
+   * @param loopCount the number of loops.
+   * @param timeSignatureTrack the time signatures (may be null).
+   */
+  TransportSnapshot(long version, double startPosition, double tempoFactor,
+          int loopCount, TimeSignatureTrack timeSignatureTrack) {
+    this.version = version;
+    this.playing = false;
+    this.streamTime = 0D;
+    this.previousStreamTime = 0D;
+    this.cycleStartTick = startPosition;
+    this.timeMap = null;
+    this.previousTimeMap = null;
+    this.tempoFactor = tempoFactor;
+    this.loopCount = loopCount;
+    this.timeSignatureTrack = timeSignatureTrack;
+  }
+
+  /**
+   * @return the sequence number; a newer snapshot has a higher number.
+   */
+  long getVersion() {
+    return version;
+  }
+
+  boolean isPlaying() {
+    return playing;
+  }
+
+  /**
+   * @return the stream time (in seconds) of the cycle this snapshot has been
+   * taken for.
+   */
+  double getStreamTime() {
+    return streamTime;
+  }
+
+  double getTempoFactor() {
+    return tempoFactor;
+  }
+
+  int getLoopCount() {
+    return loopCount;
+  }
+
+  /**
+   * Calculate the tick position for a stream time within the current or the
+   * previous cycle (or shortly after the current cycle).
+   *
+   * @param streamTime a stream time in seconds.
+   * @return the tick position at the given time.
+   */
+  double getTickPosition(double streamTime) {
+    if (streamTime > this.streamTime) {
+      if (timeMap == null) {
+        return cycleStartTick;
+      }
+      return timeMap.getTickForOffset(streamTime - this.streamTime);
+    } else {
+      if (previousTimeMap == null) {
+        return cycleStartTick;
+      }
+      return previousTimeMap.getTickForOffset(streamTime - previousStreamTime);
+    }
+  }
+
+  /**
+   * Calculate the beat position for a stream time within the current or the
+   * previous cycle.
+   *
+   * @param streamTime a stream time in seconds.
+   * @return the beat position at the given time (4/4 at the beginning, if
+   * there are no time signatures).
+   */
+  BeatPosition getBeatPosition(double streamTime) {
+    if (timeSignatureTrack == null) {
+      return DEFAULTBEATPOSITION;
+    }
+    return timeSignatureTrack.getBeatPosition(getTickPosition(streamTime));
+  }
+}
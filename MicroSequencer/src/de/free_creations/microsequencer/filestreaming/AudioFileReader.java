@@ -0,0 +1,512 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.microsequencer.filestreaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Reads an audio file at arbitrary positions without blocking the caller.
+ * All formats that javax.sound.sampled can decode are supported; out of the
+ * box these are WAV, AIFF and AU files with linear PCM or with the compressed
+ * u-law and a-law encodings. Further formats (for example Ogg-Vorbis) become
+ * available when a decoder is installed as a service provider.
+ *
+ * The file is divided into windows of a fixed number of frames. A window is
+ * decoded by a background task into an array of interleaved floats. The tasks
+ * share one open stream, so reading on from one window to the next does not
+ * skip from the start of the file again; only a jump backwards reopens the
+ * file. Similar
+ * to the {@link AudioReader}, the window following the one being read is
+ * prepared in advance. In addition, the windows at one position (usually the
+ * loop start) can be pinned, so that jumping there does not need to wait for
+ * the disk.
+ *
+ * If a window is not ready when it is needed, the missing frames are filled
+ * with silence and the underrun is counted; the caller never waits.
+ *
+ * Note: the functions of this class are not thread safe; the caller must
+ * make sure they are not called concurrently.
+ *
+ * @author Harald Postner
+ */
+public class AudioFileReader {
+
+  private static final Logger logger = Logger.getLogger(AudioFileReader.class.getName());
+  /**
+   * The default number of frames in one window (about 1.5 seconds at 44100
+   * Hz).
+   */
+  public static final int DEFAULTWINDOWFRAMES = 65536;
+  private static final int SLOTS = 6;
+  private final File file;
+  private final ExecutorService executor;
+  private final int windowFrames;
+  private final AudioFormat format;
+  private final int channelCount;
+  private final long frameLength;
+  private final long[] slotWindow = new long[SLOTS];
+  private final long[] slotLastUse = new long[SLOTS];
+  private final Future<float[]>[] slotData = newFutureArray(SLOTS);
+  private long useCount = 0;
+  private long pinnedWindow = -1;
+  private int underrunCount = 0;
+  /**
+   * Guards the stream shared by the read tasks.
+   */
+  private final Object streamLock = new Object();
+  /**
+   * The stream the windows are read from (null if not open).
+   */
+  private AudioInputStream stream = null;
+  /**
+   * The window at which the stream is positioned.
+   */
+  private long streamWindow = 0;
+  /**
+   * The number of times the file has been opened (for test only).
+   */
+  private volatile int openCount = 0;
+
+  @SuppressWarnings("unchecked")
+  private static Future<float[]>[] newFutureArray(int length) {
+    return (Future<float[]>[]) new Future<?>[length];
+  }
+
+  /**
+   * Decodes one window.
+   */
+  private class WindowReadTask implements Callable<float[]> {
+
+    private final long window;
+
+    WindowReadTask(long window) {
+      this.window = window;
+    }
+
+    @Override
+    public float[] call() throws IOException, UnsupportedAudioFileException {
+      synchronized (streamLock) {
+        try {
+          if (stream == null || streamWindow > window) {
+            closeStream();
+            stream = openDecoded();
+            streamWindow = 0;
+          }
+          int frameSize = format.getFrameSize();
+          skipFully(stream, (window - streamWindow) * windowFrames * frameSize);
+          byte[] bytes = new byte[windowFrames * frameSize];
+          int length = 0;
+          while (length < bytes.length) {
+            int n = stream.read(bytes, length, bytes.length - length);
+            if (n < 0) {
+              break;
+            }
+            length += n;
+          }
+          streamWindow = window + 1;
+          return toFloat(bytes, length / frameSize);
+        } catch (IOException ex) {
+          // the position of the stream is unknown now.
+          closeStream();
+          throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Prepares the reading of the given file. The header of the file is read
+   * (blocking), the samples are read later.
+   *
+   * @param file the audio file.
+   * @param executor the executor that decodes the windows in the background.
+   * @param windowFrames the number of frames in one window.
+   * @throws IOException if the file cannot be read.
+   * @throws UnsupportedAudioFileException if the format of the file is not
+   * supported.
+   */
+  public AudioFileReader(File file, ExecutorService executor, int windowFrames) throws IOException, UnsupportedAudioFileException {
+    this.file = file;
+    this.executor = executor;
+    this.windowFrames = windowFrames;
+    try (AudioInputStream stream = openDecoded()) {
+      format = stream.getFormat();
+      frameLength = stream.getFrameLength();
+    }
+    channelCount = format.getChannels();
+    Arrays.fill(slotWindow, -1);
+  }
+
+  /**
+   * Opens the file as a stream in a format that {@link #toFloat} can handle.
+   */
+  private AudioInputStream openDecoded() throws IOException, UnsupportedAudioFileException {
+    openCount++;
+    AudioInputStream source = AudioSystem.getAudioInputStream(file);
+    AudioFormat sourceFormat = source.getFormat();
+    if (isDirectlyReadable(sourceFormat)) {
+      return source;
+    }
+    AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+            sourceFormat.getSampleRate(), 16, sourceFormat.getChannels(),
+            2 * sourceFormat.getChannels(), sourceFormat.getSampleRate(), false);
+    try {
+      return AudioSystem.getAudioInputStream(pcm, source);
+    } catch (IllegalArgumentException ex) {
+      source.close();
+      throw new UnsupportedAudioFileException(file.getName() + ": cannot decode " + sourceFormat);
+    }
+  }
+
+  /**
+   * Closes the stream shared by the read tasks (the caller must hold the
+   * streamLock).
+   */
+  private void closeStream() {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException ex) {
+        logger.log(Level.INFO, "Could not close " + file.getName(), ex);
+      }
+      stream = null;
+    }
+  }
+
+  private static boolean isDirectlyReadable(AudioFormat format) {
+    int bits = format.getSampleSizeInBits();
+    if (AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())) {
+      return bits == 16 || bits == 24;
+    }
+    if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding())) {
+      return bits == 32;
+    }
+    return false;
+  }
+
+  private static void skipFully(AudioInputStream stream, long bytes) throws IOException {
+    byte[] scratch = null;
+    while (bytes > 0) {
+      long skipped = stream.skip(bytes);
+      if (skipped <= 0) {
+        // some decoders cannot skip, we have to read.
+        if (scratch == null) {
+          scratch = new byte[4096];
+        }
+        int n = stream.read(scratch, 0, (int) Math.min(scratch.length, bytes));
+        if (n < 0) {
+          return;
+        }
+        skipped = n;
+      }
+      bytes -= skipped;
+    }
+  }
+
+  /**
+   * Converts the given frames into interleaved floats between -1 and 1.
+   */
+  private float[] toFloat(byte[] bytes, int frames) {
+    int samples = frames * channelCount;
+    float[] result = new float[samples];
+    int bytesPerSample = format.getSampleSizeInBits() / 8;
+    boolean bigEndian = format.isBigEndian();
+    boolean isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding());
+    for (int i = 0; i < samples; i++) {
+      int offset = i * bytesPerSample;
+      int value = 0;
+      for (int b = 0; b < bytesPerSample; b++) {
+        int index = bigEndian ? offset + b : offset + bytesPerSample - 1 - b;
+        value = (value << 8) | (bytes[index] & 0xFF);
+      }
+      if (isFloat) {
+        result[i] = Float.intBitsToFloat(value);
+      } else if (bytesPerSample == 2) {
+        result[i] = (short) value / 32768F;
+      } else {
+        // sign-extend the 24 bit value.
+        result[i] = ((value << 8) >> 8) / 8388608F;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of interleaved channels.
+   */
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  /**
+   * @return the number of frames per second.
+   */
+  public float getSampleRate() {
+    return format.getSampleRate();
+  }
+
+  /**
+   * @return the length of the file in frames (or
+   * AudioSystem.NOT_SPECIFIED).
+   */
+  public long getFrameLength() {
+    return frameLength;
+  }
+
+  /**
+   * Starts to decode the windows around the given frame (if they are not
+   * yet in memory).
+   *
+   * @param frame a frame that will be read soon.
+   */
+  public void prefetch(long frame) {
+    if (frame < 0) {
+      frame = 0;
+    }
+    long window = frame / windowFrames;
+    request(window);
+    request(window + 1);
+  }
+
+  /**
+   * Keeps the windows at the given frame in memory, so jumping there is
+   * possible without waiting (for example to the loop start).
+   *
+   * @param frame the frame to be kept in memory.
+   */
+  public void pin(long frame) {
+    long window = Math.max(0, frame) / windowFrames;
+    if (window != pinnedWindow) {
+      pinnedWindow = window;
+      request(window);
+      request(window + 1);
+    }
+  }
+
+  /**
+   * Copies the given frames into the target array. Frames before the start or
+   * after the end of the file are silent. Frames whose window has not been
+   * decoded yet are silent as well (this is counted as underrun). The window
+   * after the last window read is decoded in advance.
+   *
+   * @param firstFrame the first frame to copy (may be negative).
+   * @param frames the number of frames.
+   * @param target receives the interleaved samples.
+   * @param targetOffset the index in the target of the first sample.
+   * @return true if all frames were available.
+   */
+  public boolean read(long firstFrame, int frames, float[] target, int targetOffset) {
+    boolean complete = true;
+    int done = 0;
+    while (done < frames) {
+      long frame = firstFrame + done;
+      int targetIndex = targetOffset + done * channelCount;
+      if (frame < 0) {
+        int count = (int) Math.min(frames - done, -frame);
+        Arrays.fill(target, targetIndex, targetIndex + count * channelCount, 0F);
+        done += count;
+        continue;
+      }
+      long window = frame / windowFrames;
+      int inWindow = (int) (frame - window * windowFrames);
+      int count = Math.min(frames - done, windowFrames - inWindow);
+      float[] data = available(window);
+      if (data == null) {
+        if (frameLength == AudioSystem.NOT_SPECIFIED || frame < frameLength) {
+          complete = false;
+        }
+        Arrays.fill(target, targetIndex, targetIndex + count * channelCount, 0F);
+      } else {
+        int from = inWindow * channelCount;
+        int length = Math.max(0, Math.min(count * channelCount, data.length - from));
+        if (length > 0) {
+          System.arraycopy(data, from, target, targetIndex, length);
+        }
+        Arrays.fill(target, targetIndex + length, targetIndex + count * channelCount, 0F);
+      }
+      // read ahead
+      if (frameLength == AudioSystem.NOT_SPECIFIED || (window + 1) * windowFrames < frameLength) {
+        request(window + 1);
+      }
+      done += count;
+    }
+    if (!complete) {
+      underrunCount++;
+    }
+    return complete;
+  }
+
+  /**
+   * @return the number of read() calls that could not be fully served.
+   */
+  public int getUnderrunCount() {
+    return underrunCount;
+  }
+
+  /**
+   * Forgets all windows in memory and closes the file. The file is closed by
+   * the executor after the pending reads, so the caller does not wait for
+   * the disk.
+   */
+  public void close() {
+    for (int i = 0; i < SLOTS; i++) {
+      if (slotData[i] != null) {
+        slotData[i].cancel(false);
+      }
+      slotData[i] = null;
+      slotWindow[i] = -1;
+    }
+    pinnedWindow = -1;
+    Runnable closer = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (streamLock) {
+          closeStream();
+        }
+      }
+    };
+    try {
+      executor.execute(closer);
+    } catch (RejectedExecutionException ex) {
+      closer.run();
+    }
+  }
+
+  /**
+   * Get the decoded samples of a window. If the window is not requested yet,
+   * it is requested now.
+   *
+   * @return the samples or null if the window is not decoded yet.
+   */
+  private float[] available(long window) {
+    int slot = request(window);
+    Future<float[]> future = slotData[slot];
+    if (!future.isDone()) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException ex) {
+      logger.log(Level.SEVERE, "Could not read " + file.getName(), ex);
+      // do not try again and again.
+      slotData[slot] = new RealizedWindow(new float[0]);
+      return null;
+    }
+  }
+
+  /**
+   * Makes sure the given window is being decoded. If all slots are in use,
+   * the slot used least recently (but not pinned) is reused.
+   *
+   * @return the slot of the window.
+   */
+  private int request(long window) {
+    useCount++;
+    int victim = -1;
+    for (int i = 0; i < SLOTS; i++) {
+      if (slotWindow[i] == window) {
+        slotLastUse[i] = useCount;
+        return i;
+      }
+      if (isPinned(slotWindow[i])) {
+        continue;
+      }
+      if (victim < 0 || slotLastUse[i] < slotLastUse[victim]) {
+        victim = i;
+      }
+    }
+    if (slotData[victim] != null) {
+      slotData[victim].cancel(false);
+    }
+    slotWindow[victim] = window;
+    slotLastUse[victim] = useCount;
+    slotData[victim] = executor.submit(new WindowReadTask(window));
+    return victim;
+  }
+
+  private boolean isPinned(long window) {
+    return pinnedWindow >= 0
+            && (window == pinnedWindow || window == pinnedWindow + 1);
+  }
+
+  /**
+   * A window that is already in memory.
+   */
+  private static class RealizedWindow implements Future<float[]> {
+
+    private final float[] samples;
+
+    RealizedWindow(float[] samples) {
+      this.samples = samples;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public float[] get() {
+      return samples;
+    }
+
+    @Override
+    public float[] get(long timeout, java.util.concurrent.TimeUnit unit) {
+      return samples;
+    }
+  }
+
+  /**
+   * @return the number of times the file has been opened. (For test only.)
+   */
+  int getOpenCount() {
+    return openCount;
+  }
+
+  /**
+   * Waits until all pending windows are decoded. (For test only.)
+   */
+  void waitForReads() throws InterruptedException, ExecutionException {
+    for (Future<float[]> future : slotData) {
+      if (future != null && !future.isCancelled()) {
+        future.get();
+      }
+    }
+  }
+}
@@ -15,6 +15,7 @@
  */
 package de.free_creations.microsequencer.filestreaming;
 
+import de.free_creations.midiutil.WaveformSummary;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -86,6 +87,17 @@ public class AudioWriter {
   private File outputFile;
   private final int requestedFileBufferSizeFloat;
   private int overflowCount = 0;
+  /**
+   * The min/max summary of the take being written (null if no summary is
+   * made). The summary is built by the background tasks, in the order the
+   * buffers are streamed.
+   */
+  private WaveformSummary summary = null;
+  /**
+   * The task that summarises the start buffer (null if not yet submitted).
+   * The file write tasks wait for it, so the buffers are summarised in order.
+   */
+  private Future<?> startSummaryTask = null;
 
   private class AlwaysStreamedBuffer implements Future<FileWriteTaskResult> {
 
@@ -136,11 +148,27 @@ public class AudioWriter {
     private final Future<FileChannel> channel;
     private final int samplesWritten;
     private final SyncBuffer startBuffer;
+    private final WaveformSummary summary;
 
     protected WriterResult(SyncBuffer firstBuffer, Future<FileChannel> channel, int samplesWritten) {
+      this(firstBuffer, channel, samplesWritten, null);
+    }
+
+    protected WriterResult(SyncBuffer firstBuffer, Future<FileChannel> channel, int samplesWritten,
+            WaveformSummary summary) {
       this.startBuffer = firstBuffer;
       this.channel = channel;
       this.samplesWritten = samplesWritten;
+      this.summary = summary;
+    }
+
+    /**
+     * @return the min/max summary of the take (null if no summary has been
+     * requested). The summary is complete once it is finished, this happens
+     * in the background shortly after the writer has been stopped.
+     */
+    public WaveformSummary getSummary() {
+      return summary;
     }
 
     public SyncBuffer getStartBuffer() {
@@ -196,6 +224,8 @@ public class AudioWriter {
     private final SyncBuffer buffer;
     private final FileChannel channel;
     private final File file;
+    private final WaveformSummary summary;
+    private final Future<?> predecessor;
 
     /**
      * Creates a new FileWriteTask.
@@ -204,15 +234,22 @@ public class AudioWriter {
      * @param channel the file channel to be used. This parameter might be null
      * if the file has not yet been opened.
      * @param buffer the buffer to take the samples from.
+     * @param summary the summary to be extended by the samples (may be null).
+     * @param predecessor a task that must have summarised its samples before
+     * (may be null).
      */
-    public FileWriteTask(File file, FileChannel channel, SyncBuffer buffer) {
+    public FileWriteTask(File file, FileChannel channel, SyncBuffer buffer,
+            WaveformSummary summary, Future<?> predecessor) {
       this.buffer = buffer;
       this.channel = channel;
       this.file = file;
+      this.summary = summary;
+      this.predecessor = predecessor;
     }
 
     @Override
-    public FileWriteTaskResult call() throws FileNotFoundException, IOException {
+    public FileWriteTaskResult call() throws FileNotFoundException, IOException,
+            InterruptedException, ExecutionException {
       FileChannel openedChannel;
       if (channel == null) {
         openedChannel = openChannel(file);
@@ -221,6 +258,12 @@ public class AudioWriter {
       }
 
       buffer.flipFloats();
+      if (summary != null) {
+        if (predecessor != null) {
+          predecessor.get();
+        }
+        summary.add(buffer.asFloatBuffer());
+      }
       openedChannel.write(buffer.asByteBuffer());
       buffer.clear();
 
@@ -245,6 +288,8 @@ public class AudioWriter {
     private final SyncBuffer buffer;
     private final FileChannel channel;
     private final File file;
+    private final WaveformSummary summary;
+    private final Future<?> predecessor;
 
     /**
      * Creates a new LastFileWriteTask.
@@ -253,17 +298,25 @@ public class AudioWriter {
      * @param channel the file channel to be used. This parameter might be null
      * if the file has not yet been opened.
      * @param buffer the buffer to take the samples from.
+     * @param summary the summary to be completed (may be null).
+     * @param predecessor a task that must have summarised its samples before
+     * (may be null).
      */
-    public LastFileWriteTask(File file, FileChannel channel, SyncBuffer buffer) {
+    public LastFileWriteTask(File file, FileChannel channel, SyncBuffer buffer,
+            WaveformSummary summary, Future<?> predecessor) {
       this.buffer = buffer;
       this.channel = channel;
       this.file = file;
+      this.summary = summary;
+      this.predecessor = predecessor;
     }
 
     @Override
-    public FileChannel call() throws FileNotFoundException, IOException {
-      FileWriteTask fileWriteTask = new FileWriteTask(file, channel, buffer);
+    public FileChannel call() throws FileNotFoundException, IOException,
+            InterruptedException, ExecutionException {
+      FileWriteTask fileWriteTask = new FileWriteTask(file, channel, buffer, summary, predecessor);
       FileWriteTaskResult fileWriteResult = fileWriteTask.call();
+      finishSummary(summary, file);
       return reopenForInput(fileWriteResult.getChannel());
     }
 
@@ -275,6 +328,68 @@ public class AudioWriter {
     }
   }
 
+  /**
+   * The SummaryTask adds the samples of the start buffer (which is not
+   * streamed to file) to the summary.
+   */
+  private static class SummaryTask implements Callable<Object> {
+
+    private final WaveformSummary summary;
+    private final FloatBuffer samples;
+    private final File file;
+
+    /**
+     * @param summary the summary to be extended.
+     * @param samples a view on the samples that nobody else modifies.
+     * @param file if not null, the summary is finished and stored next to
+     * this file.
+     */
+    SummaryTask(WaveformSummary summary, FloatBuffer samples, File file) {
+      this.summary = summary;
+      this.samples = samples;
+      this.file = file;
+    }
+
+    @Override
+    public Object call() {
+      summary.add(samples);
+      if (file != null) {
+        finishSummary(summary, file);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Finish the summary and store it next to the take.
+   */
+  private static void finishSummary(WaveformSummary summary, File take) {
+    if (summary == null) {
+      return;
+    }
+    summary.finish();
+    try {
+      summary.writeTo(getSummaryFile(take));
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Could not store the waveform summary.", ex);
+    }
+  }
+
+  /**
+   * Determines the file where the summary of a take is stored.
+   *
+   * @param take the file holding the samples.
+   * @return the file with the same name but the extension ".peaks".
+   */
+  public static File getSummaryFile(File take) {
+    String name = take.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot > 0) {
+      name = name.substring(0, dot);
+    }
+    return new File(take.getParentFile(), name + ".peaks");
+  }
+
   /**
    * Creates a new Audio writer.
    *
@@ -315,6 +430,26 @@ public class AudioWriter {
    * @param file the file to write to. If the file exists it will be erased.
    */
   public void start(File file) {
+    start(file, null);
+  }
+
+  /**
+   * Starts writing samples and summarising them. The summary is stored next
+   * to the file (see {@link #getSummaryFile(java.io.File)}) when the writer
+   * is stopped.
+   *
+   * Note: this function is non-blocking and can be called from within the
+   * process tread.
+   *
+   * @param file the file to write to. If the file exists it will be erased.
+   * @param channelCount the number of interleaved channels.
+   * @param samplingRate the number of frames per second.
+   */
+  public void start(File file, int channelCount, int samplingRate) {
+    start(file, new WaveformSummary(channelCount, samplingRate));
+  }
+
+  private void start(File file, WaveformSummary newSummary) {
     synchronized (processingLock) {
       if (started) {
         throw new RuntimeException("Attempt to start twice.");
@@ -333,6 +468,8 @@ public class AudioWriter {
 
       startBufferDone = false;
       firstFileBufferDone = false;
+      summary = newSummary;
+      startSummaryTask = null;
       started = true;
     }
   }
@@ -482,12 +619,18 @@ public class AudioWriter {
 
 
     if (startBufferDone) {
-      FileWriteTask fileWriteTask = new FileWriteTask(outputFile, channel, oldBuffer);
+      FileWriteTask fileWriteTask = new FileWriteTask(outputFile, channel, oldBuffer,
+              summary, startSummaryTask);
       currentBufferProvider = bussyBufferProvider;
       bussyBufferProvider = executor.submit(fileWriteTask);
       firstFileBufferDone = true;
     } else {
       // we just have processed the first buffer:
+      if (summary != null) {
+        FloatBuffer startSamples = oldFloatBuffer.duplicate();
+        startSamples.flip();
+        startSummaryTask = executor.submit(new SummaryTask(summary, startSamples, null));
+      }
       currentBufferProvider = bussyBufferProvider;
       bussyBufferProvider = null;
       startBufferDone = true;
@@ -533,15 +676,21 @@ public class AudioWriter {
         }
         if (result != null) {
           SyncBuffer buffer = result.getbuffer();
-          LastFileWriteTask lastFileWriteTask = new LastFileWriteTask(outputFile, channel, buffer);
+          LastFileWriteTask lastFileWriteTask = new LastFileWriteTask(outputFile, channel, buffer,
+                  summary, startSummaryTask);
           readerChannel = executor.submit(lastFileWriteTask);
         }
+      } else if (summary != null) {
+        // the whole take fits into the start buffer.
+        executor.submit(new SummaryTask(summary, startBuffer.asFloatBuffer().duplicate(), outputFile));
       }
 
-      WriterResult result = new WriterResult(startBuffer, readerChannel, samplesProcessed);
+      WriterResult result = new WriterResult(startBuffer, readerChannel, samplesProcessed, summary);
       currentBufferProvider = null;
       bussyBufferProvider = null;
       startBuffer = null;
+      summary = null;
+      startSummaryTask = null;
       started = false;
       return result;
     }
@@ -582,6 +731,16 @@ public class AudioWriter {
     return overflowCount;
   }
 
+  /**
+   * @return the summary of the take currently being written (null if the
+   * writer is not started or no summary has been requested).
+   */
+  public WaveformSummary getSummary() {
+    synchronized (processingLock) {
+      return summary;
+    }
+  }
+
   public boolean isStarted() {
     synchronized (processingLock) {
       return started;
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class AudioMeterTest {
+
+  private static final int SAMPLINGRATE = 44100;
+  private static final int FRAMES = 441;
+
+  /**
+   * Fill a stereo block: a sine of the given amplitude on the left channel,
+   * silence on the right channel.
+   */
+  private float[] sineBlock(float amplitude, int block) {
+    float[] samples = new float[2 * FRAMES];
+    for (int frame = 0; frame < FRAMES; frame++) {
+      double t = (double) (block * FRAMES + frame) / SAMPLINGRATE;
+      samples[2 * frame] = amplitude * (float) Math.sin(2 * Math.PI * 1000 * t);
+      samples[2 * frame + 1] = 0F;
+    }
+    return samples;
+  }
+
+  /**
+   * A sine with amplitude 0.5 has a peak of -6 dB and a mean power of -9 dB.
+   */
+  @Test
+  public void testMeasure() {
+    System.out.println("testMeasure");
+    AudioMeter instance = new AudioMeter();
+    instance.open(SAMPLINGRATE, FRAMES, 2);
+    assertEquals(2, instance.getChannelCount());
+    assertEquals(LevelMeter.SILENCE, instance.getPeakVuAndClear(0), 0F);
+
+    instance.measure(sineBlock(0.5F, 0));
+    assertEquals(-6.02F, instance.getPeakVuAndClear(0), 0.01F);
+    assertEquals(-9.03F, instance.getRmsVu(0), 0.01F);
+    assertEquals(-9.03F, instance.getLoudness(0), 0.01F);
+    // the peak is cleared when read.
+    assertEquals(LevelMeter.SILENCE, instance.getPeakVuAndClear(0), 0F);
+    assertEquals(LevelMeter.SILENCE, instance.getPeakVuAndClear(1), 0F);
+    assertEquals(LevelMeter.SILENCE, instance.getRmsVu(1), 0F);
+
+    // the peak holds the maximum of all blocks since the last read.
+    instance.measure(sineBlock(0.5F, 1));
+    instance.measure(sineBlock(0.25F, 2));
+    assertEquals(-6.02F, instance.getPeakVuAndClear(0), 0.01F);
+    assertEquals(-15.05F, instance.getRmsVu(0), 0.01F);
+  }
+
+  /**
+   * The loudness is the mean power of the last three seconds.
+   */
+  @Test
+  public void testLoudness() {
+    System.out.println("testLoudness");
+    AudioMeter instance = new AudioMeter();
+    instance.open(SAMPLINGRATE, FRAMES, 2);
+    int blocksPerWindow = (int) (AudioMeter.LOUDNESSWINDOW * SAMPLINGRATE / FRAMES);
+
+    // three seconds of loud signal followed by three seconds of silence.
+    for (int block = 0; block < blocksPerWindow; block++) {
+      instance.measure(sineBlock(1F, block));
+    }
+    assertEquals(-3.01F, instance.getLoudness(0), 0.01F);
+    for (int block = 0; block < blocksPerWindow / 2; block++) {
+      instance.measure(new float[2 * FRAMES]);
+    }
+    assertEquals(-6.02F, instance.getLoudness(0), 0.05F);
+    for (int block = 0; block < blocksPerWindow / 2; block++) {
+      instance.measure(new float[2 * FRAMES]);
+    }
+    assertEquals(LevelMeter.SILENCE, instance.getLoudness(0), 0F);
+    assertEquals(LevelMeter.SILENCE, instance.getRmsVu(0), 0F);
+  }
+}
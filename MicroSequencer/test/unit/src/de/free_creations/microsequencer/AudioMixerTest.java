@@ -17,10 +17,12 @@
 package de.free_creations.microsequencer;
 
 import de.free_creations.midiutil.*;
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Soundbank;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -211,6 +213,16 @@ public class AudioMixerTest {
       throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public void stopMidiAtTick(double tick) {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public void jumpAtTick(double atTick, double toTick) {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public void setTickPosition(double tick) {
       throw new UnsupportedOperationException("Not supported yet.");
@@ -306,6 +318,16 @@ public class AudioMixerTest {
       throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public MidiSubSequencer createAudioTrackSubSequencer(String name, File file) throws IOException {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public MidiSubSequencer createExternalMidiSubSequencer(String name, Receiver receiver, StreamClock clock) {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public void startMidi(PlayingMode playingMode) {
       throw new UnsupportedOperationException("Not supported yet.");
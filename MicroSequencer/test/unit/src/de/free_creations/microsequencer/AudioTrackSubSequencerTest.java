@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class AudioTrackSubSequencerTest {
+
+  private final int samplingRate = 44100;
+  private final int framesPerCycle = 441;
+  private final int fileFrames = 20000;
+  private TempoTrack tempoTrack;
+  private File testDir;
+
+  @Before
+  public void setUp() throws Exception {
+    testDir = Files.createTempDirectory("AudioTrackTest").toFile();
+    testDir.deleteOnExit();
+    // 120 beats per minute at 480 ticks per beat: 960 ticks per second
+    Sequence sequence = new Sequence(Sequence.PPQ, 480);
+    byte[] data = new byte[]{0x07, (byte) 0xA1, 0x20};
+    sequence.createTrack().add(new MidiEvent(new MetaMessage(0x51, data, data.length), 0));
+    tempoTrack = new TempoTrack(sequence);
+  }
+
+  /**
+   * Writes a mono file where each frame contains its frame number.
+   */
+  private File makeFile(float fileRate) throws IOException {
+    AudioFormat format = new AudioFormat(fileRate, 16, 1, true, false);
+    byte[] bytes = new byte[2 * fileFrames];
+    for (int frame = 0; frame < fileFrames; frame++) {
+      bytes[2 * frame] = (byte) frame;
+      bytes[2 * frame + 1] = (byte) (frame >> 8);
+    }
+    File file = new File(testDir, "track" + (int) fileRate + ".wav");
+    file.deleteOnExit();
+    AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, fileFrames),
+            AudioFileFormat.Type.WAVE, file);
+    return file;
+  }
+
+  private AudioTrackSubSequencer makeInstance(float fileRate) throws Exception {
+    AudioTrackSubSequencer instance = new AudioTrackSubSequencer("test", makeFile(fileRate));
+    instance.open(samplingRate, framesPerCycle, 0, 2, false, 0);
+    instance.prepareSession(0, PlayingMode.MidiOnly);
+    return instance;
+  }
+
+  /**
+   * Process the given cycle until the file has been read.
+   */
+  private float[] processCycle(AudioTrackSubSequencer instance, TimeMap timeMap,
+          double thisCycleStartTick, double nextCycleStartTick) throws Exception {
+    int underruns = -1;
+    float[] result = null;
+    while (underruns != instance.getUnderrunCount()) {
+      underruns = instance.getUnderrunCount();
+      instance.prepareNormalCycle(timeMap, thisCycleStartTick, nextCycleStartTick);
+      result = instance.process(0, null);
+      Thread.sleep(100);
+    }
+    return result;
+  }
+
+  /**
+   * The cycle plays the frames of the file that belong to its ticks.
+   */
+  @Test
+  public void testSameRate() throws Exception {
+    System.out.println("testSameRate");
+    AudioTrackSubSequencer instance = makeInstance(samplingRate);
+    double startTick = 240; // a quarter second
+    double cycleTicks = 960D * framesPerCycle / samplingRate;
+    TimeMap timeMap = tempoTrack.CreateTimeMap(startTick, 1, 1D);
+    float[] output = processCycle(instance, timeMap, startTick, startTick + cycleTicks);
+    for (int i = 0; i < framesPerCycle; i++) {
+      assertEquals((samplingRate / 4 + i) / 32768F, output[2 * i], 1E-5F);
+      assertEquals(output[2 * i], output[2 * i + 1], 0F);
+    }
+    instance.close();
+  }
+
+  /**
+   * A file with half the sampling rate and a tempo factor of two.
+   */
+  @Test
+  public void testResample() throws Exception {
+    System.out.println("testResample");
+    AudioTrackSubSequencer instance = makeInstance(samplingRate / 2);
+    double cycleTicks = 960D * framesPerCycle / samplingRate;
+    TimeMap timeMap = tempoTrack.CreateTimeMap(480, 1, 1D);
+    float[] output = processCycle(instance, timeMap, 480, 480 + cycleTicks);
+    for (int i = 0; i < framesPerCycle; i++) {
+      assertEquals((samplingRate / 4 + 0.5F * i) / 32768F, output[2 * i], 1E-5F);
+    }
+
+    timeMap = tempoTrack.CreateTimeMap(480, 1, 2D);
+    output = processCycle(instance, timeMap, 480, 480 + 2 * cycleTicks);
+    for (int i = 0; i < framesPerCycle; i++) {
+      assertEquals((samplingRate / 4 + i) / 32768F, output[2 * i], 1E-5F);
+    }
+    instance.close();
+  }
+
+  /**
+   * At the loop end, the cycle continues with the frames of the loop start.
+   */
+  @Test
+  public void testLoop() throws Exception {
+    System.out.println("testLoop");
+    AudioTrackSubSequencer instance = makeInstance(samplingRate);
+    double cycleTicks = 960D * framesPerCycle / samplingRate;
+    double loopStartTick = 96; // frame 4410
+    double loopEndTick = 288; // frame 13230
+    double thisCycleStartTick = loopEndTick - cycleTicks / 2;
+    double nextCycleStartTick = loopStartTick + cycleTicks / 2;
+    TimeMap timeMap = tempoTrack.CreateTimeMap(thisCycleStartTick, 1, 1D);
+    // read both parts of the file first
+    processCycle(instance, timeMap, thisCycleStartTick, thisCycleStartTick + cycleTicks);
+    processCycle(instance, timeMap, loopStartTick, loopStartTick + cycleTicks);
+
+    instance.prepareLoopEndCycle(timeMap, timeMap, thisCycleStartTick,
+            nextCycleStartTick, loopStartTick, loopEndTick);
+    float[] output = instance.process(0, null);
+    int jumpFrame = framesPerCycle / 2;
+    assertEquals((13230 - jumpFrame) / 32768F, output[0], 1E-4F);
+    assertEquals((13230 - 1) / 32768F, output[2 * (jumpFrame - 1)], 1E-4F);
+    assertEquals(4410 / 32768F, output[2 * (jumpFrame + 1)], 1E-4F);
+    instance.close();
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.io.File;
+import java.nio.file.Files;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class CallbackTraceTest {
+
+  private final int samplingRate = 44100;
+  private final int framesPerCycle = 256;
+
+  private Sequence makeSequence() throws Exception {
+    Sequence sequence = new Sequence(Sequence.PPQ, 480);
+    byte[] data = new byte[]{0x07, (byte) 0xA1, 0x20};
+    sequence.createTrack().add(new MidiEvent(new MetaMessage(0x51, data, data.length), 0));
+    Track notes = sequence.createTrack();
+    for (int beat = 0; beat < 8; beat++) {
+      notes.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + beat, 80), 480 * beat));
+      notes.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60 + beat, 0), 480 * beat + 240));
+    }
+    return sequence;
+  }
+
+  /**
+   * A recorded trace is replayed cycle by cycle.
+   */
+  @Test
+  public void testRecordAndReplay() throws Exception {
+    System.out.println("testRecordAndReplay");
+    CallbackTrace instance = new CallbackTrace();
+    instance.recordCycleStart(0, 0D, 0); // ignored, not recording
+    instance.start(CallbackTrace.DEFAULTCAPACITY);
+    assertTrue(instance.isRecording());
+    instance.recordOpen(samplingRate, framesPerCycle, 0, 2);
+    instance.recordTempoFactor(1.5);
+    instance.recordLoopCount(2);
+    instance.recordStart(PlayingMode.MidiOnly);
+    double cycleDuration = (double) framesPerCycle / samplingRate;
+    int cycles = 200;
+    for (int cycle = 0; cycle < cycles; cycle++) {
+      instance.recordCycleStart(System.nanoTime(), cycle * cycleDuration, cycle == 7 ? 1 : 0);
+      if (cycle == 50) {
+        instance.recordMidi(0, new ShortMessage(ShortMessage.NOTE_ON, 1, 72, 100), -1D);
+      }
+      instance.recordCycleEnd(1000 + cycle);
+    }
+    instance.recordStop();
+    instance.stop();
+    assertFalse(instance.isTruncated());
+
+    File testDir = Files.createTempDirectory("CallbackTraceTest").toFile();
+    testDir.deleteOnExit();
+    File file = new File(testDir, "test.fctr");
+    file.deleteOnExit();
+    instance.writeTo(file);
+
+    CallbackTraceReplayer.Report report = CallbackTraceReplayer.replay(file, makeSequence(), null);
+    assertEquals(cycles, report.getCycleCount());
+    assertEquals(cycleDuration, report.getCycleDuration(), 1E-12);
+    assertEquals(1000, report.getRecordedNanos(0));
+    assertEquals(1000 + cycles - 1, report.getRecordedNanos(cycles - 1));
+    assertTrue(report.getRenderNanos(10) > 0);
+    assertTrue(report.getPercentileNanos(0.5) <= report.getPercentileNanos(1.0));
+  }
+
+  /**
+   * When the buffer is full, the recording stops.
+   */
+  @Test
+  public void testTruncated() throws Exception {
+    System.out.println("testTruncated");
+    CallbackTrace instance = new CallbackTrace();
+    instance.start(1000);
+    for (int cycle = 0; cycle < 100; cycle++) {
+      instance.recordCycleStart(System.nanoTime(), cycle, 0);
+      instance.recordCycleEnd(1);
+    }
+    assertTrue(instance.isTruncated());
+    assertFalse(instance.isRecording());
+  }
+}
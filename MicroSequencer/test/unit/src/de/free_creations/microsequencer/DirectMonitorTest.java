@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class DirectMonitorTest {
+
+  private final int samplingRate = 44100;
+  private final int framesPerCycle = 64;
+
+  /**
+   * A mono input is added to both output channels in the same cycle.
+   */
+  @Test
+  public void testMonitoring() {
+    System.out.println("testMonitoring");
+    DirectMonitor instance = new DirectMonitor();
+    instance.open(samplingRate, framesPerCycle, 1, 2);
+    float[] input = new float[framesPerCycle];
+    float[] output = new float[2 * framesPerCycle];
+
+    // not monitoring: the output is untouched
+    Arrays.fill(input, 0.5F);
+    Arrays.fill(output, 0.1F);
+    instance.process(input, output);
+    assertFalse(instance.isMonitoring());
+    assertEquals(0.1F, output[2 * framesPerCycle - 1], 0F);
+
+    instance.setMonitoring(new int[]{0}, 6F);
+    assertTrue(instance.isMonitoring());
+    // let the gain settle (one second)
+    for (int cycle = 0; cycle < samplingRate / framesPerCycle; cycle++) {
+      Arrays.fill(output, 0F);
+      instance.process(input, output);
+    }
+    float expected = 0.5F * (float) Math.pow(10, -6D / 20D);
+    assertEquals(expected, output[0], 1E-3F);
+    assertEquals(expected, output[1], 1E-3F);
+    assertEquals(expected, output[2 * framesPerCycle - 1], 1E-3F);
+
+    // a deselected channel is not heard
+    instance.setMonitoring(new int[]{1}, 0F);
+    Arrays.fill(output, 0F);
+    instance.process(input, output);
+    assertEquals(0F, output[0], 0F);
+  }
+
+  /**
+   * The limiter keeps loud input below the limit.
+   */
+  @Test
+  public void testLimiter() {
+    System.out.println("testLimiter");
+    DirectMonitor instance = new DirectMonitor();
+    instance.open(samplingRate, framesPerCycle, 2, 2);
+    instance.setMonitoring(new int[]{0, 1}, -20F);
+    float[] input = new float[2 * framesPerCycle];
+    float[] output = new float[2 * framesPerCycle];
+    for (int cycle = 0; cycle < 1000; cycle++) {
+      for (int i = 0; i < input.length; i++) {
+        input[i] = (float) Math.sin(0.1 * (cycle * input.length + i));
+      }
+      Arrays.fill(output, 0F);
+      instance.process(input, output);
+      for (float sample : output) {
+        assertTrue(Math.abs(sample) <= DirectMonitor.LIMIT + 1E-6F);
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class EngineWarmerTest {
+
+  /**
+   * The generated sequence must actually be rendered by the synthesiser (with
+   * its default sound-bank), otherwise the render path would not be warmed.
+   */
+  @Test
+  public void testWarmUp() throws Exception {
+    System.out.println("testWarmUp");
+    float peak = EngineWarmer.warmUp(400);
+    assertTrue("nothing rendered", peak > 0.001F);
+    assertTrue("clipped", peak <= 1F);
+  }
+}
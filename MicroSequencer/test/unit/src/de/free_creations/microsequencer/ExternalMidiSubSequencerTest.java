@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.microsequencer.MidiDispatcherTest.RecordingReceiver;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.TempoTrack.TimeMap;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class ExternalMidiSubSequencerTest {
+
+  private final int samplingRate = 44100;
+  private final int framesPerCycle = 441;
+  private final double cycleDuration = (double) framesPerCycle / samplingRate;
+  private final int latencyFrames = 441;
+  // 120 beats per minute at 480 ticks per beat: 960 ticks per second
+  private final double ticksPerSecond = 960D;
+  private final double cycleTicks = ticksPerSecond * cycleDuration;
+  private TempoTrack tempoTrack;
+  private Track[] tracks;
+
+  @Before
+  public void setUp() throws Exception {
+    Sequence sequence = new Sequence(Sequence.PPQ, 480);
+    byte[] data = new byte[]{0x07, (byte) 0xA1, 0x20};
+    sequence.createTrack().add(new MidiEvent(new MetaMessage(0x51, data, data.length), 0));
+    tempoTrack = new TempoTrack(sequence);
+    // a note every 48 ticks (50 milliseconds), each lasts 24 ticks.
+    Track notes = sequence.createTrack();
+    for (int i = 0; i < 20; i++) {
+      notes.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 40 + i, 80), 48 * i));
+      notes.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 40 + i, 0), 48 * i + 24));
+    }
+    tracks = new Track[]{notes};
+  }
+
+  private ExternalMidiSubSequencer makeInstance(RecordingReceiver receiver, StreamClock clock) throws Exception {
+    ExternalMidiSubSequencer instance = new ExternalMidiSubSequencer("test", receiver, clock);
+    instance.open(samplingRate, framesPerCycle, 0, 2, false, latencyFrames);
+    instance.setTracks(tracks);
+    instance.prepareSession(0, PlayingMode.MidiOnly);
+    return instance;
+  }
+
+  /**
+   * Counts the note-on and note-off messages received so far and verifies
+   * that they alternate.
+   */
+  private int countNotes(RecordingReceiver receiver, int firstKey) {
+    int notes = 0;
+    for (int i = 0; i < receiver.size(); i++) {
+      ShortMessage message = (ShortMessage) receiver.getMessage(i);
+      if (message.getCommand() == ShortMessage.NOTE_ON) {
+        assertEquals(firstKey + notes, message.getData1());
+      }
+      if (message.getCommand() == ShortMessage.NOTE_OFF) {
+        assertEquals(firstKey + notes, message.getData1());
+        notes++;
+      }
+    }
+    return notes;
+  }
+
+  /**
+   * The notes are played in real time: a cycle is processed every ten
+   * milliseconds. Each note must arrive at its stream time plus the output
+   * latency minus the device latency.
+   */
+  @Test
+  public void testTiming() throws Exception {
+    System.out.println("testTiming");
+    RecordingReceiver receiver = new RecordingReceiver();
+    StreamClock clock = new StreamClock();
+    clock.reset(cycleDuration);
+    ExternalMidiSubSequencer instance = makeInstance(receiver, clock);
+    double deviceLatency = 0.004;
+    instance.setDeviceLatency(deviceLatency);
+
+    int cycles = 110;
+    long origin = System.nanoTime();
+    for (int cycle = 0; cycle < cycles; cycle++) {
+      long cycleStart = origin + (long) (1E9 * cycle * cycleDuration);
+      while (System.nanoTime() < cycleStart) {
+        LockSupport.parkNanos(100000L);
+      }
+      double streamTime = cycle * cycleDuration;
+      clock.update(System.nanoTime(), streamTime);
+      double tick = cycle * cycleTicks;
+      TimeMap timeMap = tempoTrack.CreateTimeMap(tick, 1, 1D);
+      instance.prepareNormalCycle(timeMap, tick, tick + cycleTicks);
+      float[] output = instance.process(streamTime, null);
+      assertEquals(0F, output[0], 0F);
+    }
+    // 16 "all notes off" from the start, and 20 notes.
+    receiver.await(16 + 40, 2000);
+    assertEquals(16 + 40, receiver.size());
+    instance.close();
+    assertEquals(20, countNotes(receiver, 40));
+
+    double offset = (double) latencyFrames / samplingRate - deviceLatency;
+    long[] errors = new long[40];
+    for (int i = 0; i < 40; i++) {
+      long tick = 24 * i;
+      long due = origin + (long) (1E9 * (tick / ticksPerSecond + offset));
+      errors[i] = receiver.getArrival(16 + i) - due;
+    }
+    double[] jitter = MidiDispatcherTest.jitterMillis(errors);
+    System.out.println("... median jitter " + jitter[0] + " ms, maximum " + jitter[1] + " ms");
+    assertTrue(jitter[0] < 2.0);
+  }
+
+  /**
+   * At the loop end, the sounding notes are stopped and the notes of the
+   * loop start follow.
+   */
+  @Test
+  public void testLoop() throws Exception {
+    System.out.println("testLoop");
+    RecordingReceiver receiver = new RecordingReceiver();
+    // a clock that has never been updated lets all messages be sent at once.
+    ExternalMidiSubSequencer instance = makeInstance(receiver, new StreamClock());
+    double loopStartTick = 96;
+    double loopEndTick = 140;
+    TimeMap timeMap_1 = tempoTrack.CreateTimeMap(130, 1, 1D);
+    TimeMap timeMap_2 = tempoTrack.CreateTimeMap(loopStartTick, 1, 1D);
+    instance.prepareNormalCycle(tempoTrack.CreateTimeMap(0, 1, 1D), 0, 130);
+    instance.process(0, null);
+    instance.prepareLoopEndCycle(timeMap_1, timeMap_2, 130, 120, loopStartTick, loopEndTick);
+    instance.process(0.1, null);
+    // start: 16 + 3 notes; loop: 16 + note-on at 96
+    receiver.await(16 + 6 + 16 + 1, 2000);
+    assertEquals(16 + 6 + 16 + 1, receiver.size());
+    ShortMessage last = (ShortMessage) receiver.getMessage(receiver.size() - 1);
+    assertEquals(ShortMessage.NOTE_ON, last.getCommand());
+    assertEquals(42, last.getData1());
+    ShortMessage allNotesOff = (ShortMessage) receiver.getMessage(receiver.size() - 2);
+    assertEquals(ShortMessage.CONTROL_CHANGE, allNotesOff.getCommand());
+    instance.close();
+  }
+
+  /**
+   * Transposed notes are stopped with the transposed key, even if the
+   * transposition changes while they sound. The muted port stops all notes
+   * once.
+   */
+  @Test
+  public void testTransposeAndMute() throws Exception {
+    System.out.println("testTransposeAndMute");
+    RecordingReceiver receiver = new RecordingReceiver();
+    ExternalMidiSubSequencer instance = makeInstance(receiver, new StreamClock());
+    instance.setTranspose(2);
+    instance.prepareNormalCycle(tempoTrack.CreateTimeMap(0, 1, 1D), 0, 10);
+    instance.process(0, null);
+    instance.setTranspose(5);
+    instance.prepareNormalCycle(tempoTrack.CreateTimeMap(10, 1, 1D), 10, 30);
+    instance.process(0.01, null);
+    receiver.await(16 + 2, 2000);
+    assertEquals(16 + 2, receiver.size());
+    assertEquals(42, ((ShortMessage) receiver.getMessage(16)).getData1());
+    assertEquals(ShortMessage.NOTE_OFF, ((ShortMessage) receiver.getMessage(17)).getCommand());
+    assertEquals(42, ((ShortMessage) receiver.getMessage(17)).getData1());
+
+    instance.setMute(true);
+    for (int cycle = 0; cycle < 3; cycle++) {
+      double tick = 30 + 40 * cycle;
+      instance.prepareNormalCycle(tempoTrack.CreateTimeMap(tick, 1, 1D), tick, tick + 40);
+      instance.process(0.02 + 0.01 * cycle, null);
+    }
+    receiver.await(16 + 2 + 16, 2000);
+    Thread.sleep(50);
+    assertEquals(16 + 2 + 16, receiver.size());
+    // closing stops all notes once more.
+    instance.close();
+    assertEquals(16 + 2 + 16 + 16, receiver.size());
+  }
+}
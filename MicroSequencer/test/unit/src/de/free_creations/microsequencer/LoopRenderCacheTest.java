@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class LoopRenderCacheTest {
+
+  private final int channelCount = 2;
+  private final int framesPerCycle = 10;
+  private final double loopStart = 100D;
+  private final double loopEnd = 200D;
+  private final double tempo = 1.0D;
+
+  /**
+   * Creates a cycle where each frame contains its absolute frame number (the
+   * second channel carries the negated value).
+   */
+  private float[] makeCycle(int firstFrame) {
+    float[] cycle = new float[framesPerCycle * channelCount];
+    for (int frame = 0; frame < framesPerCycle; frame++) {
+      cycle[channelCount * frame] = firstFrame + frame;
+      cycle[channelCount * frame + 1] = -(firstFrame + frame);
+    }
+    return cycle;
+  }
+
+  /**
+   * Record one pass of a loop that lasts 25 frames. The first jump occurs at
+   * frame 5 of the first cycle, the second jump at frame 0 of the fourth cycle.
+   * The recorded pass must contain the frames 5 to 29.
+   */
+  @Test
+  public void testRecordAndReplay() {
+    System.out.println("testRecordAndReplay");
+    LoopRenderCache instance = new LoopRenderCache(channelCount, 4, 1000);
+    instance.reserve(30);
+
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    assertTrue(instance.isRecording());
+    instance.record(makeCycle(10), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(20), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(30), framesPerCycle, 0, loopStart, loopEnd, tempo);
+    assertTrue(instance.isReplaying());
+    assertEquals(25, instance.getRecordedFrames());
+
+    // frames 30..39 have been rendered live, they correspond to recorded
+    // frames 0..9 => replay must continue with recorded frame 10 (= frame 15)
+    float[] cycle = new float[framesPerCycle * channelCount];
+    assertTrue(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+    assertEquals(15F, cycle[0], 0F);
+    assertEquals(-15F, cycle[1], 0F);
+    assertEquals(24F, cycle[channelCount * 9], 0F);
+
+    // the next loop end is at frame 5 of the next cycle
+    assertTrue(instance.replay(cycle, framesPerCycle, 5, loopStart, loopEnd));
+    assertEquals(25F, cycle[0], 0F);
+    assertEquals(29F, cycle[channelCount * 4], 0F);
+    assertEquals(5F, cycle[channelCount * 5], 0F);
+    assertEquals(9F, cycle[channelCount * 9], 0F);
+  }
+
+  /**
+   * When the loop end is reported too late (or not at all), the replay must
+   * be refused.
+   */
+  @Test
+  public void testLoopLeft() {
+    System.out.println("testLoopLeft");
+    LoopRenderCache instance = recordedCache();
+    float[] cycle = new float[framesPerCycle * channelCount];
+    assertTrue(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+    assertFalse(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+  }
+
+  /**
+   * A loop end that deviates by a frame is accepted, the replay is
+   * re-anchored on the reported position.
+   */
+  @Test
+  public void testTolerance() {
+    System.out.println("testTolerance");
+    LoopRenderCache instance = recordedCache();
+    float[] cycle = new float[framesPerCycle * channelCount];
+    assertTrue(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+    assertTrue(instance.replay(cycle, framesPerCycle, 6, loopStart, loopEnd));
+    assertEquals(29F, cycle[channelCount * 5], 0F);// last frame repeated
+    assertEquals(5F, cycle[channelCount * 6], 0F);
+
+    instance = recordedCache();
+    assertTrue(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+    assertFalse(instance.replay(cycle, framesPerCycle, 9, loopStart, loopEnd));
+  }
+
+  /**
+   * A change of tempo or loop region must prevent the replay.
+   */
+  @Test
+  public void testInvalidation() {
+    System.out.println("testInvalidation");
+    LoopRenderCache instance = recordedCache();
+    assertTrue(instance.matchesTempo(tempo));
+    assertFalse(instance.matchesTempo(1.5D));
+
+    float[] cycle = new float[framesPerCycle * channelCount];
+    assertTrue(instance.replay(cycle, framesPerCycle, -1, loopStart, loopEnd));
+    assertFalse(instance.replay(cycle, framesPerCycle, 5, loopStart, loopEnd + 1));
+
+    // a tempo change while recording discards the recording
+    instance = new LoopRenderCache(channelCount, 4, 1000);
+    instance.reserve(30);
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(10), framesPerCycle, -1, loopStart, loopEnd, 1.5D);
+    assertFalse(instance.isRecording());
+    assertFalse(instance.isReplaying());
+
+    instance = recordedCache();
+    instance.clear();
+    assertFalse(instance.isReplaying());
+  }
+
+  /**
+   * Loops that do not fit into the cache are not recorded.
+   */
+  @Test
+  public void testOversized() {
+    System.out.println("testOversized");
+    LoopRenderCache instance = new LoopRenderCache(channelCount, 4, 20);
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(10), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(20), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    assertFalse(instance.isRecording());
+    instance.record(makeCycle(30), framesPerCycle, 0, loopStart, loopEnd, tempo);
+    assertFalse(instance.isRecording());
+    assertFalse(instance.isReplaying());
+  }
+
+  /**
+   * The cache never grows while recording. A pass that does not fit is
+   * skipped; once more memory has been reserved, the next pass is recorded.
+   */
+  @Test
+  public void testReserve() {
+    System.out.println("testReserve");
+    LoopRenderCache instance = new LoopRenderCache(channelCount, 4, 1000);
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    assertFalse(instance.isRecording());
+
+    instance.reserve(30);
+    instance.record(makeCycle(30), framesPerCycle, 0, loopStart, loopEnd, tempo);
+    assertTrue(instance.isRecording());
+    instance.record(makeCycle(40), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(50), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    assertTrue(instance.isReplaying());
+    assertEquals(25, instance.getRecordedFrames());
+
+    // passes longer than the maximum are not reserved for
+    instance = new LoopRenderCache(channelCount, 4, 20);
+    instance.reserve(30);
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    assertFalse(instance.isRecording());
+  }
+
+  private LoopRenderCache recordedCache() {
+    LoopRenderCache instance = new LoopRenderCache(channelCount, 4, 1000);
+    instance.reserve(30);
+    instance.record(makeCycle(0), framesPerCycle, 5, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(10), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(20), framesPerCycle, -1, loopStart, loopEnd, tempo);
+    instance.record(makeCycle(30), framesPerCycle, 0, loopStart, loopEnd, tempo);
+    return instance;
+  }
+}
@@ -24,6 +24,9 @@ import de.free_creations.midiutil.TempoTrack;
 import de.free_creations.midiutil.TempoTrack.TimeMap;
 import de.free_creations.midiutil.TimeSignatureTrack;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
@@ -156,6 +159,36 @@ public class MasterSequencerImplTest {
 
   }
 
+  /**
+   * Every change of the transport state must publish a newer snapshot.
+   */
+  @Test
+  public void testTransportSnapshot() {
+    System.out.println("testTransportSnapshot");
+    MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    TransportSnapshot snapshot_1 = instance.getTransportSnapshot();
+    assertFalse(snapshot_1.isPlaying());
+
+    instance.setTickPosition(100D);
+    TransportSnapshot snapshot_2 = instance.getTransportSnapshot();
+    assertTrue(snapshot_2.getVersion() > snapshot_1.getVersion());
+    assertEquals(100D, snapshot_2.getTickPosition(0D), 1E-9D);
+
+    instance.startMidi(PlayingMode.MidiOnly);
+    instance.prepareCycle(1D, 1D);
+    TransportSnapshot snapshot_3 = instance.getTransportSnapshot();
+    assertTrue(snapshot_3.isPlaying());
+    assertTrue(snapshot_3.getVersion() > snapshot_2.getVersion());
+    assertEquals(1D, snapshot_3.getStreamTime(), 1E-9D);
+    assertEquals(100D + 90D, snapshot_3.getTickPosition(1.5D), 1E-9D);
+    // an old snapshot is not affected by the new cycles.
+    assertEquals(100D, snapshot_2.getTickPosition(1.5D), 1E-9D);
+
+    instance.stopMidi();
+    assertFalse(instance.getTransportSnapshot().isPlaying());
+  }
+
   @Test
   public void testGetBeatPosition() {
     System.out.println("testGetBeatPosition");
@@ -365,6 +398,222 @@ public class MasterSequencerImplTest {
     assertFalse(subsequencer.started);
 
   }
+  /**
+   * A stop requested at a given tick is executed in the cycle that contains
+   * this tick; the last cycle ends exactly at the tick.
+   */
+  @Test
+  public void testStopAtTick() throws InvalidMidiDataException, MidiUnavailableException, InterruptedException, ExecutionException {
+    System.out.println("testStopAtTick");
+    MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    SubsequencerMock subsequencer = (SubsequencerMock) instance.createMidiSubSequencer(null, null);
+
+    double cycleLength = 0.5D; //half a second, 90 ticks per cycle (see initialize)
+    double streamTime = 123.0D;
+    double startTick = 456.0D;
+    double stopTick = startTick + 150D; // in the second cycle
+
+    instance.setTickPosition(startTick);
+    instance.startMidi(PlayingMode.MidiOnly);
+    instance.stopMidiAtTick(stopTick);
+
+    //--the first cycle is not affected
+    instance.prepareCycle(streamTime, cycleLength);
+    assertTrue(instance.isRunning());
+    assertEquals(startTick + 90.0D, subsequencer.nextCycleStartTick, 1E-10D);
+
+    //--the second cycle ends at the stop tick and is the last one
+    streamTime = streamTime + cycleLength;
+    instance.prepareCycle(streamTime, cycleLength);
+    assertEquals(startTick + 90.0D, subsequencer.thisCycleStartTick, 1E-10D);
+    assertEquals(stopTick, subsequencer.nextCycleStartTick, 1E-10D);
+    assertFalse(instance.isRunning());
+    MasterSequencerImpl.awaitNotifications();
+    assertFalse(subsequencer.started);
+    assertFalse(instance.getTransportSnapshot().isPlaying());
+
+    //--further cycles do not reach the sub-sequencer
+    int cycleCount = subsequencer.prepareNormalCycleCount;
+    streamTime = streamTime + cycleLength;
+    instance.prepareCycle(streamTime, cycleLength);
+    assertEquals(cycleCount, subsequencer.prepareNormalCycleCount);
+  }
+
+  private volatile Thread notifyingThread;
+
+  /**
+   * When a session ends within a cycle, the sub-sequencers are stopped and the
+   * listeners informed by the notifier, not by the thread that prepares the
+   * cycle.
+   */
+  @Test
+  public void testEndSessionNotifiesOffCycleThread() throws InvalidMidiDataException, MidiUnavailableException, InterruptedException, ExecutionException {
+    System.out.println("testEndSessionNotifiesOffCycleThread");
+    MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    SubsequencerMock subsequencer = (SubsequencerMock) instance.createMidiSubSequencer(null, null);
+    notifyingThread = null;
+    instance.add(new SequencerEventListener() {
+      @Override
+      public void loopDone(int newLoopCount) {
+      }
+
+      @Override
+      public void notifyPlaying(boolean isPlaying) {
+        if (!isPlaying) {
+          notifyingThread = Thread.currentThread();
+        }
+      }
+    });
+
+    double startTick = 456.0D;
+    instance.setTickPosition(startTick);
+    instance.startMidi(PlayingMode.MidiOnly);
+    instance.stopMidiAtTick(startTick + 10D);
+    instance.prepareCycle(123.0D, 0.5D);
+    assertFalse(instance.isRunning());
+
+    MasterSequencerImpl.awaitNotifications();
+    assertFalse(subsequencer.started);
+    assertNotNull(notifyingThread);
+    assertNotSame(Thread.currentThread(), notifyingThread);
+  }
+
+  /**
+   * A listener that calls back into the master-sequencer while a new session
+   * is being started must not dead-lock: the start does not wait for the
+   * notifier.
+   */
+  @Test(timeout = 10000)
+  public void testListenerCallsBackDuringStart() throws InvalidMidiDataException, MidiUnavailableException, InterruptedException, ExecutionException {
+    System.out.println("testListenerCallsBackDuringStart");
+    final MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    SubsequencerMock subsequencer = (SubsequencerMock) instance.createMidiSubSequencer(null, null);
+    final CountDownLatch loopDoneEntered = new CountDownLatch(1);
+    final CountDownLatch startRunning = new CountDownLatch(1);
+    instance.add(new SequencerEventListener() {
+      @Override
+      public void loopDone(int newLoopCount) {
+        loopDoneEntered.countDown();
+        try {
+          startRunning.await();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        instance.setLoopCount(7);
+      }
+
+      @Override
+      public void notifyPlaying(boolean isPlaying) {
+      }
+    });
+
+    double startTick = 456.0D;
+    instance.setTickPosition(startTick);
+    instance.setLoopStartPoint(startTick + 10D);
+    instance.setLoopEndPoint(startTick + 50D); // in the first cycle
+    instance.setLoopCount(3);
+    instance.startMidi(PlayingMode.MidiOnly);
+    instance.prepareCycle(123.0D, 0.5D);
+    assertTrue(loopDoneEntered.await(5, TimeUnit.SECONDS));
+    instance.stopMidi();
+
+    // the listener is released while the next start holds the update lock
+    subsequencer.onPrepareSession = new Runnable() {
+      @Override
+      public void run() {
+        startRunning.countDown();
+      }
+    };
+    instance.startMidi(PlayingMode.MidiOnly);
+    assertTrue(instance.isRunning());
+
+    MasterSequencerImpl.awaitNotifications();
+    assertEquals(7, instance.getLoopCount());
+    instance.stopMidi();
+  }
+
+  /**
+   * A jump requested at a given tick is rendered like a loop end, without
+   * touching the loop count.
+   */
+  @Test
+  public void testJumpAtTick() throws InvalidMidiDataException, MidiUnavailableException {
+    System.out.println("testJumpAtTick");
+    MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    SubsequencerMock subsequencer = (SubsequencerMock) instance.createMidiSubSequencer(null, null);
+
+    double cycleLength = 0.5D; //half a second, 90 ticks per cycle (see initialize)
+    double streamTime = 123.0D;
+    double startTick = 456.0D;
+    double atTick = startTick + 120D; // in the second cycle
+    double toTick = 3000D;
+
+    instance.setTickPosition(startTick);
+    instance.setLoopCount(3);
+    instance.startMidi(PlayingMode.MidiOnly);
+
+    instance.prepareCycle(streamTime, cycleLength);
+    instance.jumpAtTick(atTick, toTick);
+    assertEquals(0, subsequencer.prepareLoopEndCycleCount);
+
+    streamTime = streamTime + cycleLength;
+    instance.prepareCycle(streamTime, cycleLength);
+    assertEquals(1, subsequencer.prepareLoopEndCycleCount);
+    assertEquals(startTick + 90.0D, subsequencer.thisCycleStartTick, 1E-10D);
+    assertEquals(atTick, subsequencer.loopEndTick, 1E-10D);
+    assertEquals(toTick, subsequencer.loopStartTick, 1E-10D);
+    assertEquals(toTick + 60.0D, subsequencer.nextCycleStartTick, 1E-10D);
+    assertEquals(3, instance.getTransportSnapshot().getLoopCount());
+
+    //--the playback goes on from the new position
+    streamTime = streamTime + cycleLength;
+    instance.prepareCycle(streamTime, cycleLength);
+    assertEquals(toTick + 60.0D, subsequencer.thisCycleStartTick, 1E-10D);
+    assertEquals(toTick + 150.0D, subsequencer.nextCycleStartTick, 1E-10D);
+
+    instance.stopMidi();
+  }
+
+  /**
+   * Loop points changed while playing become effective at the next cycle.
+   */
+  @Test
+  public void testChangeLoopWhilePlaying() throws InvalidMidiDataException, MidiUnavailableException {
+    System.out.println("testChangeLoopWhilePlaying");
+    MasterSequencerImpl instance = new MasterSequencerImpl(MidiSubsequencerMockFactory, null);
+    instance.setMasterTrack(tempoTrack, timeSignatureTrack, tickLength);
+    SubsequencerMock subsequencer = (SubsequencerMock) instance.createMidiSubSequencer(null, null);
+
+    double cycleLength = 0.5D; //half a second, 90 ticks per cycle (see initialize)
+    double streamTime = 123.0D;
+    double startTick = 456.0D;
+
+    instance.setTickPosition(startTick);
+    instance.startMidi(PlayingMode.MidiOnly);
+    instance.prepareCycle(streamTime, cycleLength);
+
+    double loopStartTick = startTick + 10D;
+    double loopEndTick = startTick + 100D; // in the second cycle
+    instance.setLoopStartPoint(loopStartTick);
+    instance.setLoopEndPoint(loopEndTick);
+    instance.setLoopCount(Sequencer.LOOP_CONTINUOUSLY);
+    // not yet executed
+    assertEquals(0, subsequencer.prepareLoopEndCycleCount);
+
+    streamTime = streamTime + cycleLength;
+    instance.prepareCycle(streamTime, cycleLength);
+    assertEquals(1, subsequencer.prepareLoopEndCycleCount);
+    assertEquals(loopEndTick, subsequencer.loopEndTick, 1E-10D);
+    assertEquals(loopStartTick, subsequencer.loopStartTick, 1E-10D);
+    assertEquals(loopStartTick + 80.0D, subsequencer.nextCycleStartTick, 1E-10D);
+
+    instance.stopMidi();
+  }
+
   private int loopEventListenerCount = 0;
   private boolean propPlaying;
 
@@ -372,7 +621,7 @@ public class MasterSequencerImplTest {
    * This test verifies that the master-sequencer correctly counts the loops.
    */
   @Test
-  public void testLoopingProcessingLoopCount() throws InvalidMidiDataException, MidiUnavailableException {
+  public void testLoopingProcessingLoopCount() throws InvalidMidiDataException, MidiUnavailableException, InterruptedException, ExecutionException {
     System.out.println("testLoopingProcessingLoopCount()");
 
     //create a test-candidate and add the sequence created in the initialize() step
@@ -407,6 +656,8 @@ public class MasterSequencerImplTest {
     instance.setLoopEndPoint(loopEndTick);
     final int LOOPCOUNT = 3;
     instance.setLoopCount(LOOPCOUNT);
+    // the loop duration is announced to the sub-sequencers (180 ticks per second)
+    assertEquals(100D / 180D, subsequencer.loopDuration, 1E-9D);
     propPlaying = false;
 
     instance.startMidi(PlayingMode.MidiOnly);
@@ -423,6 +674,7 @@ public class MasterSequencerImplTest {
     // now the prepareLoopEndCycle() procedure should have been called 
     // "LOOPCOUNT" times.
     assertEquals(LOOPCOUNT, subsequencer.prepareLoopEndCycleCount);
+    MasterSequencerImpl.awaitNotifications();
     assertEquals(LOOPCOUNT, loopEventListenerCount);
 
 
@@ -738,6 +990,8 @@ public class MasterSequencerImplTest {
     public TimeMap timeMap_2 = null;
     public double loopStartTick = 1;
     public double loopEndTick = -1;
+    public double loopDuration = -1;
+    public Runnable onPrepareSession = null;
 
     @Override
     public void prepareNormalCycle(TimeMap timeMap, double thisCycleStartTick, double nextCycleStartTick) {
@@ -758,9 +1012,17 @@ public class MasterSequencerImplTest {
       this.loopEndTick = loopEndTick;
     }
 
+    @Override
+    public void prepareLoop(double loopDuration) {
+      this.loopDuration = loopDuration;
+    }
+
     @Override
     public void prepareSession(double startPosition, PlayingMode mode) {
       started = true;
+      if (onPrepareSession != null) {
+        onPrepareSession.run();
+      }
     }
 
     @Override
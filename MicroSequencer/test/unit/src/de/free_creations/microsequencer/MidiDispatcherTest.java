@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class MidiDispatcherTest {
+
+  /**
+   * A stand-in for the receiver of an external device. It records the
+   * messages and the System.nanoTime() at which they arrived.
+   */
+  static class RecordingReceiver implements Receiver {
+
+    final List<MidiMessage> messages = new ArrayList<MidiMessage>();
+    final List<Long> arrivals = new ArrayList<Long>();
+
+    @Override
+    public synchronized void send(MidiMessage message, long timeStamp) {
+      arrivals.add(System.nanoTime());
+      messages.add(message);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    synchronized int size() {
+      return messages.size();
+    }
+
+    synchronized MidiMessage getMessage(int i) {
+      return messages.get(i);
+    }
+
+    synchronized long getArrival(int i) {
+      return arrivals.get(i);
+    }
+
+    /**
+     * Wait until the given number of messages has arrived.
+     */
+    void await(int count, long timeoutMillis) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeoutMillis;
+      while (size() < count && System.currentTimeMillis() < end) {
+        Thread.sleep(5);
+      }
+    }
+  }
+
+  /**
+   * Describes the differences between the arrival and the due times in
+   * milliseconds (the median and the maximum of the absolute values).
+   */
+  static double[] jitterMillis(long[] errorNanos) {
+    long[] sorted = new long[errorNanos.length];
+    for (int i = 0; i < errorNanos.length; i++) {
+      sorted[i] = Math.abs(errorNanos[i]);
+    }
+    Arrays.sort(sorted);
+    return new double[]{1E-6 * sorted[sorted.length / 2], 1E-6 * sorted[sorted.length - 1]};
+  }
+
+  /**
+   * Messages arrive when they are due.
+   */
+  @Test
+  public void testJitter() throws Exception {
+    System.out.println("testJitter");
+    RecordingReceiver receiver = new RecordingReceiver();
+    MidiDispatcher instance = new MidiDispatcher(receiver, "test");
+    instance.start();
+    int count = 100;
+    long interval = 5000000L;
+    long origin = System.nanoTime() + 20000000L;
+    long[] due = new long[count];
+    // scheduled in reverse order, the dispatcher must sort them.
+    for (int i = count - 1; i >= 0; i--) {
+      due[i] = origin + i * interval;
+      instance.schedule(new ShortMessage(ShortMessage.NOTE_ON, 0, i, 64), due[i]);
+    }
+    receiver.await(count, 5000);
+    assertEquals(count, receiver.size());
+    instance.close();
+    long[] errors = new long[count];
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, ((ShortMessage) receiver.getMessage(i)).getData1());
+      errors[i] = receiver.getArrival(i) - due[i];
+      // never early
+      assertTrue(errors[i] >= 0);
+    }
+    double[] jitter = jitterMillis(errors);
+    System.out.println("... median jitter " + jitter[0] + " ms, maximum " + jitter[1] + " ms");
+    assertTrue(jitter[0] < 1.0);
+  }
+
+  /**
+   * Messages due at the same time keep the order in which they were
+   * scheduled; messages in the past are sent immediately.
+   */
+  @Test
+  public void testOrder() throws Exception {
+    System.out.println("testOrder");
+    RecordingReceiver receiver = new RecordingReceiver();
+    MidiDispatcher instance = new MidiDispatcher(receiver, "test");
+    instance.start();
+    long due = System.nanoTime() - 1000000000L;
+    for (int i = 0; i < 50; i++) {
+      instance.schedule(new ShortMessage(ShortMessage.NOTE_ON, 0, i, 64), due);
+    }
+    receiver.await(50, 5000);
+    assertEquals(50, receiver.size());
+    instance.close();
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, ((ShortMessage) receiver.getMessage(i)).getData1());
+    }
+    assertEquals(50, instance.getLateCount());
+    assertEquals(0, instance.getPendingCount());
+  }
+
+  /**
+   * Closing discards the messages that are not yet due, but no note is left
+   * hanging: "all notes off" is sent on all channels.
+   */
+  @Test
+  public void testClose() throws Exception {
+    System.out.println("testClose");
+    RecordingReceiver receiver = new RecordingReceiver();
+    MidiDispatcher instance = new MidiDispatcher(receiver, "test");
+    instance.start();
+    instance.schedule(new ShortMessage(ShortMessage.NOTE_ON, 3, 60, 64), System.nanoTime());
+    instance.schedule(new ShortMessage(ShortMessage.NOTE_OFF, 3, 60, 0), System.nanoTime() + 10000000000L);
+    receiver.await(1, 5000);
+    instance.close();
+    assertEquals(0, instance.getPendingCount());
+    assertEquals(1 + 16, receiver.size());
+    for (int channel = 0; channel < 16; channel++) {
+      ShortMessage message = (ShortMessage) receiver.getMessage(1 + channel);
+      assertEquals(ShortMessage.CONTROL_CHANGE, message.getCommand());
+      assertEquals(channel, message.getChannel());
+      assertEquals(123, message.getData1());
+    }
+  }
+}
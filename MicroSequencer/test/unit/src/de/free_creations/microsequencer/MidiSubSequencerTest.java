@@ -528,6 +528,64 @@ public class MidiSubSequencerTest {
 
   }
 
+  /**
+   * Verify that notes are transposed, redirected and scaled and that a
+   * note-off reaches the note that has been started, even if the
+   * transposition changes while the note is sounding.
+   */
+  @Test
+  public void testTranspose() throws InvalidMidiDataException, MidiUnavailableException, Exception {
+    System.out.println("testTranspose");
+
+    Sequence sequence = new Sequence(Sequence.PPQ, 360, 2);
+    Track[] newTracks = sequence.getTracks();
+    newTracks[1].add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 360)); // at 2 seconds
+    newTracks[1].add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0), 720)); // at 4 seconds
+    newTracks[1].add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 1080)); // at 6 seconds
+    newTracks[1].add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 125, 100), 1260)); // at 7 seconds
+    newTracks[1].add(newNoteOffEvent(108000)); //just to shift the End-of-Track far away
+    tracks = new Track[]{newTracks[1]};
+
+    double testDuration = 8.0D;
+    int samplingRate = 44100;
+    int framesPerCycle = 33;
+    double cycleDuration = (double) framesPerCycle / (double) samplingRate;
+    double thisCycleStartTick = 0D;
+    double nextCycleStartTick = 0D;
+    int cycleCount = (int) Math.ceil(samplingRate * testDuration / framesPerCycle);
+
+    SynthMockup synth = new SynthMockup();
+    MidiSubSequencer instance = new MidiSubSequencer("test", synth, null);
+    instance.setTracks(tracks);
+    instance.setTranspose(2);
+    instance.setChannel(0, 3);
+    instance.setVelocityScale(0, 0.5F);
+    instance.open(samplingRate, framesPerCycle, 0, 2, false, 0);
+    instance.prepareSession(thisCycleStartTick, null);
+    double streamTimeSeconds = 24 * 60 * 60;
+    for (int i = 0; i < cycleCount; i++) {
+      if (i == cycleCount / 3) {
+        // at about 2.7 seconds, while the first note is sounding
+        instance.setTranspose(0, 3);
+      }
+      streamTimeSeconds += cycleDuration;
+      thisCycleStartTick = nextCycleStartTick;
+      TimeMap timeMap = tempoTrack.CreateTimeMap(thisCycleStartTick, 1.1 * cycleDuration, 1.0);
+      nextCycleStartTick = timeMap.getTickForOffset(cycleDuration);
+      instance.prepareNormalCycle(timeMap, thisCycleStartTick, nextCycleStartTick);
+      instance.process(streamTimeSeconds, null);
+    }
+
+    // 16 reset-controllers, the first note-on, its note-off and the second
+    // note-on (the third note-on is out of range and must be dropped).
+    assertEquals(16 + 3, synth.timedEvents.size());
+    SynthMockup.TimedEvent[] events = synth.timedEvents.values().toArray(new SynthMockup.TimedEvent[]{});
+
+    assertArrayEquals(new byte[]{(byte) 0x93, 62, 50}, events[16].data);
+    assertArrayEquals(new byte[]{(byte) 0x93, 62, 0}, events[17].data);
+    assertArrayEquals(new byte[]{(byte) 0x93, 65, 50}, events[18].data);
+  }
+
   /**
    * utility function to  create a "note on" message.
    * @return a new midi message
@@ -619,10 +677,13 @@ public class MidiSubSequencerTest {
     public class TimedEvent {
 
       final MidiMessage message;
+      final byte[] data;
       final long microsecondsTimestamp;
 
       public TimedEvent(MidiMessage message, long microsecondsTimestamp) {
         this.message = message;
+        // like the real synthesiser, we copy the data (messages may be re-used)
+        this.data = message.getMessage();
         this.microsecondsTimestamp = microsecondsTimestamp;
       }
     }
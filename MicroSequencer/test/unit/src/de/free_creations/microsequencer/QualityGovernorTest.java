@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class QualityGovernorTest {
+
+  /**
+   * The level must go down after DOWNCOUNT overloaded reports and must not
+   * go below the cheapest level.
+   */
+  @Test
+  public void testStepDown() {
+    System.out.println("testStepDown");
+    QualityGovernor instance = new QualityGovernor();
+    assertEquals(0, instance.getLevel());
+    for (int i = 0; i < QualityGovernor.DOWNCOUNT - 1; i++) {
+      instance.reportLoad(0.9);
+    }
+    assertEquals(0, instance.getLevel());
+    instance.reportLoad(0.9);
+    assertEquals(1, instance.getLevel());
+    for (int i = 0; i < 100; i++) {
+      instance.reportLoad(1.5);
+    }
+    assertEquals(QualityGovernor.LEVELCOUNT - 1, instance.getLevel());
+  }
+
+  /**
+   * The level must only go up after UPCOUNT consecutive relaxed reports; a
+   * report in the hysteresis band restarts the count.
+   */
+  @Test
+  public void testStepUp() {
+    System.out.println("testStepUp");
+    QualityGovernor instance = new QualityGovernor();
+    for (int i = 0; i < QualityGovernor.DOWNCOUNT; i++) {
+      instance.reportLoad(0.9);
+    }
+    assertEquals(1, instance.getLevel());
+    for (int i = 0; i < QualityGovernor.UPCOUNT - 1; i++) {
+      instance.reportLoad(0.1);
+    }
+    instance.reportLoad(0.6);
+    assertEquals(1, instance.getLevel());
+    for (int i = 0; i < QualityGovernor.UPCOUNT - 1; i++) {
+      instance.reportLoad(0.1);
+    }
+    assertEquals(1, instance.getLevel());
+    instance.reportLoad(0.1);
+    assertEquals(0, instance.getLevel());
+  }
+
+  /**
+   * The best level corresponds to the settings used so far.
+   */
+  @Test
+  public void testGetSynthesizerInfo() {
+    System.out.println("testGetSynthesizerInfo");
+    Map<String, Object> info = QualityGovernor.getSynthesizerInfo(0);
+    assertEquals("linear", info.get("interpolation"));
+    assertEquals("128", info.get("max polyphony"));
+    assertEquals(Boolean.TRUE, info.get("reverb"));
+    Map<String, Object> cheapest = QualityGovernor.getSynthesizerInfo(QualityGovernor.LEVELCOUNT - 1);
+    assertEquals(Boolean.FALSE, cheapest.get("reverb"));
+    assertEquals(Boolean.FALSE, cheapest.get("chorus"));
+  }
+}
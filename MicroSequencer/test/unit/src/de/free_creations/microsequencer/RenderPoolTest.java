@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import javax.sound.midi.MidiUnavailableException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class RenderPoolTest {
+
+  private static final int SAMPLINGRATE = 44100;
+  private static final int FRAMES = 256;
+
+  /**
+   * The executors are handed out in turn, there are never more executors than
+   * processors, no matter how many sequencers ask for them.
+   */
+  @Test
+  public void testProvide() {
+    System.out.println("testProvide");
+    int processors = Runtime.getRuntime().availableProcessors();
+    HashSet<ExecutorService> provided = new HashSet<>();
+    for (int i = 0; i < 3 * processors; i++) {
+      provided.add(RenderPool.provide());
+    }
+    assertEquals(processors, provided.size());
+    assertEquals(processors, RenderPool.getWorkerCount());
+  }
+
+  /**
+   * Simulates several stations, each with its own mixer and master sequencer,
+   * whose ports are rendered by the shared pool. Every station is driven by
+   * its own thread here, to measure the pool alone (the real stations share
+   * one stream, see SharedStreamTest). The throughput (rendered cycles per
+   * second) is printed for an increasing number of stations; on a machine
+   * with several processors it grows with the number of stations until all
+   * processors are busy.
+   */
+  @Test
+  public void testStationThroughput() throws Throwable {
+    System.out.println("testStationThroughput");
+    int processors = Runtime.getRuntime().availableProcessors();
+    int maxStations = Math.max(2, Math.min(4, processors));
+    int cycles = 200;
+    for (int stationCount = 1; stationCount <= maxStations; stationCount++) {
+      Station[] stations = new Station[stationCount];
+      for (int i = 0; i < stationCount; i++) {
+        stations[i] = new Station(cycles);
+      }
+      long start = System.nanoTime();
+      for (Station station : stations) {
+        station.start();
+      }
+      for (Station station : stations) {
+        station.join();
+      }
+      double seconds = 1E-9 * (System.nanoTime() - start);
+      for (Station station : stations) {
+        station.close();
+        if (station.error != null) {
+          throw station.error;
+        }
+        assertEquals(2 * cycles, station.processed());
+      }
+      System.out.printf("... %d station(s): %.0f cycles per second.%n",
+              stationCount, (stationCount * cycles) / seconds);
+    }
+  }
+
+  /**
+   * A station with two synthesiser-like ports.
+   */
+  private static class Station extends Thread {
+
+    private final int cycles;
+    private final AudioMixer mixer;
+    private final BusyProcessor[] processors = {new BusyProcessor(), new BusyProcessor()};
+    private volatile Throwable error = null;
+
+    Station(int cycles) throws Throwable {
+      this.cycles = cycles;
+      mixer = new AudioMixer(new MasterSequencerImpl(null, null));
+      for (BusyProcessor processor : processors) {
+        mixer.createPort(processor, RenderPool.provide());
+      }
+      mixer.onOpenStream(SAMPLINGRATE, FRAMES, 0, 2, false);
+      mixer.onStartStream();
+    }
+
+    @Override
+    public void run() {
+      try {
+        double streamTime = 0;
+        for (int i = 0; i < cycles; i++) {
+          mixer.process(null, streamTime, 0);
+          streamTime += (double) FRAMES / SAMPLINGRATE;
+        }
+      } catch (Throwable ex) {
+        error = ex;
+      }
+    }
+
+    void close() {
+      mixer.onStopStream();
+      mixer.onCloseStream();
+    }
+
+    int processed() {
+      int count = 0;
+      for (BusyProcessor processor : processors) {
+        count += processor.processCount;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Does some arithmetic on every sample, roughly like a synthesiser voice.
+   */
+  private static class BusyProcessor implements AudioProcessor {
+
+    private float[] output;
+    private volatile int processCount = 0;
+    private double phase = 0;
+
+    @Override
+    public void open(int samplingRate, int nFrames, int inputChannelCount, int outputChannelCount,
+            boolean noninterleaved, long latency) throws MidiUnavailableException {
+      output = new float[nFrames * outputChannelCount];
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public float[] process(double streamTime, float[] input) {
+      for (int voice = 0; voice < 16; voice++) {
+        for (int i = 0; i < output.length; i++) {
+          phase += 0.01;
+          output[i] = (float) Math.sin(phase);
+        }
+      }
+      processCount++;
+      return output;
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.sound.midi.MidiUnavailableException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import rtaudio4java.AudioProcessor_Float32;
+import rtaudio4java.AudioSystem;
+import rtaudio4java.DeviceInfo;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class SharedStreamTest {
+
+  private static final int SAMPLINGRATE = 44100;
+  private static final int FRAMES = 256;
+  private static final AudioSystem.StreamOptions INTERLEAVED =
+          new AudioSystem.StreamOptions(false, true, false, true, 2, 0, "SharedStreamTest");
+
+  /**
+   * Two station sequencers on different channels of the same device are
+   * opened together. The audio system (like RtAudio) closes its stream when
+   * a second one is opened, so both stations must play through one stream;
+   * each keeps playing while the other is opened and closed.
+   */
+  @Test
+  public void testTwoStations() throws Exception {
+    System.out.println("testTwoStations");
+    FakeAudioSystem system = new FakeAudioSystem(4);
+    AudioSystem.StreamParameters configured = new AudioSystem.StreamParameters(0, 0, 2);
+    MicroSequencerImpl station1 = new MicroSequencerImpl(new OutputBus(OutputBus.CONFIGUREDDEVICE, 0));
+    MicroSequencerImpl station2 = new MicroSequencerImpl(new OutputBus(OutputBus.CONFIGUREDDEVICE, 2));
+
+    station1.open(system, configured, null, SAMPLINGRATE, FRAMES, INTERLEAVED);
+    station2.open(system, configured, null, SAMPLINGRATE, FRAMES, INTERLEAVED);
+    assertEquals(1, system.openCount);
+    system.awaitCycles(10);
+    assertFalse(Double.isNaN(station1.getTimeToFirstSound()));
+    assertFalse(Double.isNaN(station2.getTimeToFirstSound()));
+
+    // both are processed at the same time.
+    station1.getMaxLoadAndClear();
+    station2.getMaxLoadAndClear();
+    system.awaitCycles(10);
+    assertTrue(station1.getMaxLoadAndClear() > 0D);
+    assertTrue(station2.getMaxLoadAndClear() > 0D);
+
+    // closing one station leaves the other playing.
+    station1.close();
+    assertTrue(system.isStreamRunning());
+    station2.getMaxLoadAndClear();
+    system.awaitCycles(10);
+    assertTrue(station2.getMaxLoadAndClear() > 0D);
+
+    station2.close();
+    assertFalse(system.isStreamOpen());
+    assertEquals(1, system.openCount);
+  }
+
+  /**
+   * The output of every bus appears in its own channels of the device.
+   */
+  @Test
+  public void testChannelOffsets() throws Exception {
+    System.out.println("testChannelOffsets");
+    FakeAudioSystem system = new FakeAudioSystem(6);
+    SharedStream stream = new SharedStream();
+    ExecutorService executor = RenderPool.provide();
+    stream.open(system, 0, 2, null, SAMPLINGRATE, FRAMES, INTERLEAVED);
+
+    AudioMixer mixer1 = new AudioMixer(new MasterSequencerImpl(null, null));
+    unattenuated(mixer1.createPort(new ConstantProcessor(0.25F), executor));
+    AudioMixer mixer2 = new AudioMixer(new MasterSequencerImpl(null, null));
+    unattenuated(mixer2.createPort(new ConstantProcessor(0.5F), executor));
+    SharedStream.Bus bus1 = stream.attach(mixer1, 0, 2, false);
+    SharedStream.Bus bus2 = stream.attach(mixer2, 4, 2, false);
+    try {
+      stream.attach(new AudioMixer(new MasterSequencerImpl(null, null)), 1, 2, false);
+      fail("overlapping buses must be refused");
+    } catch (MidiUnavailableException ignored) {
+    }
+
+    // let the ports fade in.
+    system.awaitCycles(200);
+    float[] expected = {0.25F, 0.25F, 0F, 0F, 0.5F, 0.5F};
+    assertChannels(expected, system.lastOutput);
+
+    stream.detach(bus1);
+    assertTrue(system.isStreamRunning());
+    // let the ports fade in.
+    system.awaitCycles(200);
+    expected = new float[]{0F, 0F, 0F, 0F, 0.5F, 0.5F};
+    assertChannels(expected, system.lastOutput);
+
+    stream.detach(bus2);
+    assertFalse(system.isStreamOpen());
+  }
+
+  private void unattenuated(AudioPort port) {
+    port.setAttenuation(0, 0.0F);
+    port.setAttenuation(1, 0.0F);
+  }
+
+  private void assertChannels(float[] expected, float[] output) {
+    int channels = expected.length;
+    assertEquals(FRAMES * channels, output.length);
+    for (int frame = 0; frame < FRAMES; frame++) {
+      for (int channel = 0; channel < channels; channel++) {
+        assertEquals(expected[channel], output[frame * channels + channel], 1E-3F);
+      }
+    }
+  }
+
+  /**
+   * Produces a constant signal on all channels.
+   */
+  private static class ConstantProcessor implements AudioProcessor {
+
+    private final float value;
+    private float[] output;
+
+    ConstantProcessor(float value) {
+      this.value = value;
+    }
+
+    @Override
+    public void open(int samplingRate, int nFrames, int inputChannelCount, int outputChannelCount,
+            boolean noninterleaved, long latency) throws MidiUnavailableException {
+      output = new float[nFrames * outputChannelCount];
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public float[] process(double streamTime, float[] input) {
+      Arrays.fill(output, value);
+      return output;
+    }
+  }
+
+  /**
+   * Behaves like RtAudio: there is only one stream, opening a new stream
+   * closes the current one. The callbacks are driven by a thread of its own.
+   */
+  private static class FakeAudioSystem implements AudioSystem {
+
+    private final int deviceChannels;
+    private volatile int openCount = 0;
+    private volatile boolean open = false;
+    private volatile boolean running = false;
+    private volatile long cycles = 0;
+    private volatile float[] lastOutput = null;
+    private AudioProcessor_Float32 processor;
+    private Thread callbackThread;
+    private int bufferSize;
+    private int sampleRate;
+
+    FakeAudioSystem(int deviceChannels) {
+      this.deviceChannels = deviceChannels;
+    }
+
+    void awaitCycles(int count) throws InterruptedException {
+      long target = cycles + count;
+      long deadline = System.currentTimeMillis() + 5000;
+      while (cycles < target) {
+        assertTrue("the stream does not run", System.currentTimeMillis() < deadline);
+        Thread.sleep(1);
+      }
+    }
+
+    private static Future<Boolean> done() {
+      return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public int getCurrentApi() {
+      return 0;
+    }
+
+    @Override
+    public String getCurrentApiDescription() {
+      return "Fake";
+    }
+
+    @Override
+    public int getDeviceCount() {
+      return 1;
+    }
+
+    @Override
+    public Future<DeviceInfo> getDeviceInfo(int device) {
+      return CompletableFuture.completedFuture(new DeviceInfo(true, "Fake", deviceChannels, 0, 0,
+              true, false, new HashSet<Integer>(), new HashSet<Long>()));
+    }
+
+    @Override
+    public int getDefaultOutputDevice() {
+      return 0;
+    }
+
+    @Override
+    public int getDefaultInputDevice() {
+      return 0;
+    }
+
+    @Override
+    public synchronized Future<Boolean> openStream(StreamParameters outputParameters,
+            StreamParameters inputParameters, int sampleRate, int bufferSize,
+            rtaudio4java.AudioProcessor processor, StreamOptions options) {
+      if (open) {
+        closeStream();
+      }
+      openCount++;
+      this.processor = (AudioProcessor_Float32) processor;
+      this.sampleRate = sampleRate;
+      this.bufferSize = bufferSize;
+      try {
+        this.processor.onOpenStream(sampleRate, bufferSize,
+                inputParameters == null ? 0 : inputParameters.nChannels,
+                outputParameters.nChannels, options.noninterleaved);
+      } catch (Throwable ex) {
+        throw new RuntimeException(ex);
+      }
+      open = true;
+      return done();
+    }
+
+    @Override
+    public synchronized Future<Boolean> closeStream() {
+      if (running) {
+        stopStream();
+      }
+      if (open) {
+        open = false;
+        try {
+          processor.onCloseStream();
+        } catch (Throwable ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+      return done();
+    }
+
+    @Override
+    public synchronized Future<Boolean> startStream() {
+      try {
+        processor.onStartStream();
+      } catch (Throwable ex) {
+        throw new RuntimeException(ex);
+      }
+      running = true;
+      final AudioProcessor_Float32 current = processor;
+      callbackThread = new Thread() {
+        @Override
+        public void run() {
+          double streamTime = 0;
+          while (running) {
+            try {
+              lastOutput = current.process(null, streamTime, 0).clone();
+              streamTime += (double) bufferSize / sampleRate;
+              cycles++;
+              Thread.sleep(1);
+            } catch (Throwable ex) {
+              ex.printStackTrace();
+              return;
+            }
+          }
+        }
+      };
+      callbackThread.setDaemon(true);
+      callbackThread.start();
+      return done();
+    }
+
+    @Override
+    public synchronized Future<Boolean> stopStream() {
+      running = false;
+      try {
+        callbackThread.join();
+        processor.onStopStream();
+      } catch (Throwable ex) {
+        throw new RuntimeException(ex);
+      }
+      return done();
+    }
+
+    @Override
+    public Future<Boolean> abortStream() {
+      return stopStream();
+    }
+
+    @Override
+    public boolean isStreamOpen() {
+      return open;
+    }
+
+    @Override
+    public boolean isStreamRunning() {
+      return running;
+    }
+
+    @Override
+    public double getStreamTime() {
+      return 1E-9 * System.nanoTime();
+    }
+
+    @Override
+    public long getStreamLatency() {
+      return 0;
+    }
+
+    @Override
+    public int getStreamSampleRate() {
+      return sampleRate;
+    }
+
+    @Override
+    public void showWarnings(boolean value) {
+    }
+
+    @Override
+    public boolean getShowWarnings() {
+      return false;
+    }
+
+    @Override
+    public String rtAudioFormatToString(long format) {
+      return "Float32";
+    }
+  }
+}
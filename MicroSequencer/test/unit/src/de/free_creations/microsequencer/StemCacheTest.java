@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.microsequencer.filestreaming.Const;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.Future;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class StemCacheTest {
+
+  private Track track;
+  private TempoTrack tempoTrack;
+
+  @Before
+  public void setUp() throws InvalidMidiDataException {
+    Sequence sequence = new Sequence(Sequence.PPQ, 360, 2);
+    track = sequence.getTracks()[1];
+    // 120 BPM (default tempo) => 720 ticks per second
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 360));
+    tempoTrack = new TempoTrack(sequence);
+  }
+
+  /**
+   * The key must be stable and must change when the tempo factor, the format
+   * or the track changes.
+   */
+  @Test
+  public void testMakeKey() throws InvalidMidiDataException {
+    System.out.println("testMakeKey");
+    String key1 = StemCache.makeKey(track, tempoTrack, 1.0, null, 44100, 2);
+    String key2 = StemCache.makeKey(track, tempoTrack, 1.0, null, 44100, 2);
+    assertEquals(key1, key2);
+    assertFalse(key1.equals(StemCache.makeKey(track, tempoTrack, 0.8, null, 44100, 2)));
+    assertFalse(key1.equals(StemCache.makeKey(track, tempoTrack, 1.0, null, 48000, 2)));
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 62, 100), 400));
+    assertFalse(key1.equals(StemCache.makeKey(track, tempoTrack, 1.0, null, 44100, 2)));
+  }
+
+  /**
+   * Render a short track and verify that a second request provides the same
+   * file.
+   */
+  @Test
+  public void testProvide() throws Exception {
+    System.out.println("testProvide");
+    File testDir = Files.createTempDirectory("StemCacheTest").toFile();
+    StemCache instance = new StemCache(testDir);
+    Future<File> request1 = instance.provide(track, tempoTrack, 2.0, null, 44100, 2);
+    File stem = request1.get();
+    assertTrue(stem.exists());
+    // half a second at double speed plus the tail
+    long expectedFrames = (long) ((0.25 + StemRenderer.TAILTIME) * 44100);
+    assertEquals(expectedFrames * 2 * Const.bytesPerFloat, stem.length());
+
+    Future<File> request2 = instance.provide(track, tempoTrack, 2.0, null, 44100, 2);
+    assertSame(request1, request2);
+
+    // a new cache on the same directory finds the stem on disk
+    StemCache otherInstance = new StemCache(testDir);
+    assertEquals(stem, otherInstance.provide(track, tempoTrack, 2.0, null, 44100, 2).get());
+
+    stem.delete();
+    testDir.delete();
+  }
+}
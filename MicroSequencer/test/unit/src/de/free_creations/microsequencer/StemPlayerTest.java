@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import de.free_creations.microsequencer.filestreaming.Const;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class StemPlayerTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r);
+              thread.setDaemon(true);
+              thread.setName("StemPlayerTest");
+              return thread;
+            }
+          });
+  private final int channelCount = 2;
+  private final int stemFrames = 1000;
+  private File stem1;
+  private File stem2;
+
+  @Before
+  public void setUp() throws IOException {
+    File testDir = Files.createTempDirectory("StemTest").toFile();
+    testDir.deleteOnExit();
+    stem1 = makeStem(testDir, "stem1.stem", 1F);
+    stem2 = makeStem(testDir, "stem2.stem", 1000F);
+  }
+
+  /**
+   * Creates a stem where the first channel of each frame contains the frame
+   * number multiplied by the given factor, and the second channel contains
+   * the negated value.
+   */
+  private File makeStem(File dir, String name, float factor) throws IOException {
+    File file = new File(dir, name);
+    file.deleteOnExit();
+    ByteBuffer buffer = ByteBuffer.allocate(stemFrames * channelCount * Const.bytesPerFloat);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    for (int frame = 0; frame < stemFrames; frame++) {
+      buffer.putFloat(factor * frame);
+      buffer.putFloat(-factor * frame);
+    }
+    buffer.flip();
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.getChannel().write(buffer);
+    }
+    return file;
+  }
+
+  /**
+   * Mix two stems over several windows.
+   */
+  @Test
+  public void testMix() throws Exception {
+    System.out.println("testMix");
+    StemPlayer instance = new StemPlayer(new File[]{stem1, stem2}, channelCount, 64, executor);
+    long position = 10;
+    instance.start(position);
+    int frames = 50;
+    float[] output = new float[frames * channelCount];
+    for (int cycle = 0; cycle < 10; cycle++) {
+      instance.waitForReads();
+      Arrays.fill(output, 0F);
+      instance.mix(output, 0, frames, position, null, null);
+      for (int frame = 0; frame < frames; frame++) {
+        assertEquals(1001F * (position + frame), output[channelCount * frame], 1E-3F);
+        assertEquals(-1001F * (position + frame), output[channelCount * frame + 1], 1E-3F);
+      }
+      position += frames;
+    }
+    assertEquals(0, instance.getUnderrunCount());
+    instance.close();
+  }
+
+  /**
+   * Mute and gain must be applied per stem.
+   */
+  @Test
+  public void testMuteAndGain() throws Exception {
+    System.out.println("testMuteAndGain");
+    StemPlayer instance = new StemPlayer(new File[]{stem1, stem2}, channelCount, 64, executor);
+    instance.start(0);
+    float[] output = new float[10 * channelCount];
+    instance.mix(output, 0, 10, 0, new boolean[]{false, true}, new float[]{0.5F, 1F});
+    assertEquals(0.5F * 9, output[channelCount * 9], 1E-3F);
+    instance.close();
+  }
+
+  /**
+   * Play three passes through a loop, the loop end lies in the middle of a
+   * cycle.
+   */
+  @Test
+  public void testLoop() throws Exception {
+    System.out.println("testLoop");
+    StemPlayer instance = new StemPlayer(new File[]{stem1}, channelCount, 64, executor);
+    long loopStart = 100;
+    long loopEnd = 295;
+    int frames = 20;
+    instance.start(loopStart);
+    instance.setLoopStart(loopStart);
+    float[] output = new float[frames * channelCount];
+    long position = loopStart;
+    long expected = loopStart;
+    for (int cycle = 0; cycle < 40; cycle++) {
+      instance.waitForReads();
+      Arrays.fill(output, 0F);
+      if (position + frames <= loopEnd) {
+        instance.mix(output, 0, frames, position, null, null);
+        position += frames;
+      } else {
+        int jumpFrame = (int) (loopEnd - position);
+        instance.mix(output, 0, jumpFrame, position, null, null);
+        instance.mix(output, jumpFrame, frames - jumpFrame, loopStart, null, null);
+        position = loopStart + frames - jumpFrame;
+      }
+      for (int frame = 0; frame < frames; frame++) {
+        assertEquals(expected, output[channelCount * frame], 1E-3F);
+        expected++;
+        if (expected == loopEnd) {
+          expected = loopStart;
+        }
+      }
+    }
+    assertEquals(0, instance.getUnderrunCount());
+    instance.close();
+  }
+
+  /**
+   * Positions after the end of the stem are silent.
+   */
+  @Test
+  public void testEndOfStem() throws Exception {
+    System.out.println("testEndOfStem");
+    StemPlayer instance = new StemPlayer(new File[]{stem1}, channelCount, 64, executor);
+    instance.start(stemFrames - 5);
+    float[] output = new float[10 * channelCount];
+    instance.mix(output, 0, 10, stemFrames - 5, null, null);
+    assertEquals(stemFrames - 1, output[channelCount * 4], 1E-3F);
+    assertEquals(0F, output[channelCount * 5], 0F);
+    instance.close();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.microsequencer;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class StreamClockTest {
+
+  private static final double CYCLEDURATION = 256D / 44100D;
+
+  /**
+   * The callbacks arrive with up to two milliseconds of jitter, the sound
+   * card runs 100 ppm slower than the system clock. The estimated stream time
+   * must never go backwards, must stay close to the true stream time and the
+   * drift must be found.
+   */
+  @Test
+  public void testJitter() {
+    System.out.println("testJitter");
+    StreamClock instance = new StreamClock();
+    instance.reset(CYCLEDURATION);
+    Random random = new Random(4711);
+    double realCycleNano = 1E9 * CYCLEDURATION * 1.0001;
+    long startNano = 1000000000L;
+    int cycles = 5000;
+    long[] callbackNano = new long[cycles + 1];
+    for (int cycle = 0; cycle <= cycles; cycle++) {
+      long jitter = (long) (2E6 * random.nextDouble());
+      callbackNano[cycle] = startNano + (long) (cycle * realCycleNano) + jitter;
+    }
+    double previous = -1D;
+    double maxError = 0D;
+    for (int cycle = 0; cycle < cycles; cycle++) {
+      instance.update(callbackNano[cycle], cycle * CYCLEDURATION);
+      // read the clock ten times until the next callback
+      long interval = callbackNano[cycle + 1] - callbackNano[cycle];
+      for (int i = 0; i < 10; i++) {
+        long nowNano = callbackNano[cycle] + i * interval / 10;
+        double streamTime = instance.getStreamTime(nowNano);
+        assertTrue("backwards in cycle " + cycle, streamTime >= previous);
+        previous = streamTime;
+        if (cycle > 1000) {
+          // the jitter is one millisecond on average.
+          double expected = (nowNano - startNano - 1E6) / realCycleNano * CYCLEDURATION;
+          maxError = Math.max(maxError, Math.abs(streamTime - expected));
+        }
+      }
+    }
+    // the raw method would have errors of up to two milliseconds.
+    assertTrue("error " + maxError, maxError < 1.5E-3);
+    assertEquals(1.0001, instance.getDriftRatio(), 2E-5);
+  }
+
+  /**
+   * A jump in the stream time (for example after an under-run) restarts the
+   * loop.
+   */
+  @Test
+  public void testJump() {
+    System.out.println("testJump");
+    StreamClock instance = new StreamClock();
+    instance.reset(CYCLEDURATION);
+    assertEquals(0D, instance.getStreamTime(0), 0D);
+    long cycleNano = (long) (1E9 * CYCLEDURATION);
+    for (int cycle = 0; cycle < 100; cycle++) {
+      instance.update(cycle * cycleNano, cycle * CYCLEDURATION);
+    }
+    instance.update(100 * cycleNano, 10D);
+    assertEquals(10D, instance.getStreamTime(100 * cycleNano), 1E-9);
+    assertEquals(10D + 0.5 * CYCLEDURATION,
+            instance.getStreamTime(100 * cycleNano + cycleNano / 2), 1E-6);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.microsequencer.filestreaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner
+ */
+public class AudioFileReaderTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r);
+              thread.setDaemon(true);
+              thread.setName("AudioFileReaderTest");
+              return thread;
+            }
+          });
+  private final int frames = 5000;
+  private final int windowFrames = 1024;
+  private File testDir;
+
+  @Before
+  public void setUp() throws IOException {
+    testDir = Files.createTempDirectory("AudioFileReaderTest").toFile();
+    testDir.deleteOnExit();
+  }
+
+  /**
+   * Writes a 16 bit stereo file where the left channel of each frame contains
+   * the frame number and the right channel the negated frame number.
+   */
+  private File makeFile(String name, AudioFormat.Encoding encoding) throws IOException {
+    AudioFormat pcm = new AudioFormat(44100F, 16, 2, true, false);
+    byte[] bytes = new byte[frames * pcm.getFrameSize()];
+    for (int frame = 0; frame < frames; frame++) {
+      putShort(bytes, 4 * frame, frame);
+      putShort(bytes, 4 * frame + 2, -frame);
+    }
+    AudioInputStream stream = new AudioInputStream(
+            new ByteArrayInputStream(bytes), pcm, frames);
+    if (encoding != null) {
+      stream = AudioSystem.getAudioInputStream(encoding, stream);
+    }
+    File file = new File(testDir, name);
+    file.deleteOnExit();
+    AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+    return file;
+  }
+
+  private static void putShort(byte[] bytes, int index, int value) {
+    bytes[index] = (byte) value;
+    bytes[index + 1] = (byte) (value >> 8);
+  }
+
+  /**
+   * Reading across window boundaries and beyond the ends of the file.
+   */
+  @Test
+  public void testRead() throws Exception {
+    System.out.println("testRead");
+    AudioFileReader instance = new AudioFileReader(
+            makeFile("pcm.wav", null), executor, windowFrames);
+    assertEquals(2, instance.getChannelCount());
+    assertEquals(44100F, instance.getSampleRate(), 0F);
+    assertEquals(frames, instance.getFrameLength());
+
+    float[] target = new float[2 * 100];
+    long firstFrame = 3 * windowFrames - 50;
+    // nothing has been read yet (the executor is kept busy): silence and an
+    // underrun
+    final CountDownLatch busy = new CountDownLatch(1);
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        busy.await();
+        return null;
+      }
+    });
+    assertFalse(instance.read(firstFrame, 100, target, 0));
+    busy.countDown();
+    assertEquals(1, instance.getUnderrunCount());
+    assertEquals(0F, target[0], 0F);
+
+    instance.prefetch(firstFrame);
+    instance.waitForReads();
+    assertTrue(instance.read(firstFrame, 100, target, 0));
+    for (int i = 0; i < 100; i++) {
+      assertEquals((firstFrame + i) / 32768F, target[2 * i], 1E-6F);
+      assertEquals(-(firstFrame + i) / 32768F, target[2 * i + 1], 1E-6F);
+    }
+
+    // before the start and after the end of the file it is silent.
+    instance.prefetch(0);
+    instance.waitForReads();
+    assertTrue(instance.read(-10, 20, target, 0));
+    assertEquals(0F, target[2 * 9], 0F);
+    assertEquals(1 / 32768F, target[2 * 11], 1E-6F);
+    instance.prefetch(frames - 10);
+    instance.waitForReads();
+    assertTrue(instance.read(frames - 10, 20, target, 0));
+    assertEquals((frames - 1) / 32768F, target[2 * 9], 1E-6F);
+    assertEquals(0F, target[2 * 10], 0F);
+    assertEquals(1, instance.getUnderrunCount());
+  }
+
+  /**
+   * A pinned window stays in memory while other windows are read.
+   */
+  @Test
+  public void testPin() throws Exception {
+    System.out.println("testPin");
+    AudioFileReader instance = new AudioFileReader(
+            makeFile("pin.wav", null), executor, 256);
+    float[] target = new float[2];
+    instance.pin(10);
+    instance.waitForReads();
+    for (long frame = 512; frame < frames; frame += 256) {
+      instance.prefetch(frame);
+      instance.waitForReads();
+    }
+    assertTrue(instance.read(10, 1, target, 0));
+    assertEquals(10 / 32768F, target[0], 1E-6F);
+  }
+
+  /**
+   * Windows read one after the other come from one open stream; only a jump
+   * backwards opens the file again.
+   */
+  @Test
+  public void testSequentialRead() throws Exception {
+    System.out.println("testSequentialRead");
+    AudioFileReader instance = new AudioFileReader(
+            makeFile("sequential.wav", null), executor, 256);
+    // the header has been read by the constructor.
+    assertEquals(1, instance.getOpenCount());
+    float[] target = new float[2];
+    for (long frame = 0; frame < frames; frame += 256) {
+      instance.prefetch(frame);
+      instance.waitForReads();
+      assertTrue(instance.read(frame + 3, 1, target, 0));
+      assertEquals((frame + 3) / 32768F, target[0], 1E-6F);
+    }
+    assertEquals(2, instance.getOpenCount());
+
+    instance.prefetch(700);
+    instance.waitForReads();
+    assertTrue(instance.read(700, 1, target, 0));
+    assertEquals(700 / 32768F, target[0], 1E-6F);
+    assertEquals(3, instance.getOpenCount());
+    instance.close();
+  }
+
+  /**
+   * A compressed (u-law) file is decoded.
+   */
+  @Test
+  public void testCompressed() throws Exception {
+    System.out.println("testCompressed");
+    AudioFileReader instance = new AudioFileReader(
+            makeFile("ulaw.wav", AudioFormat.Encoding.ULAW), executor, windowFrames);
+    assertEquals(2, instance.getChannelCount());
+    float[] target = new float[2];
+    instance.prefetch(4000);
+    instance.waitForReads();
+    assertTrue(instance.read(4000, 1, target, 0));
+    // u-law has about two percent resolution at this level.
+    assertEquals(4000 / 32768F, target[0], 0.03F * 4000 / 32768F);
+    assertEquals(-4000 / 32768F, target[1], 0.03F * 4000 / 32768F);
+  }
+}
@@ -16,6 +16,7 @@
 package de.free_creations.microsequencer.filestreaming;
 
 import de.free_creations.microsequencer.filestreaming.AudioWriter.WriterResult;
+import de.free_creations.midiutil.WaveformSummary;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -481,6 +482,65 @@ public class AudioWriterTest {
     outFile.delete();
   }
 
+  /**
+   * Verify that the AudioWriter summarises all samples (those of the start
+   * buffer and those streamed to file) and stores the summary next to the
+   * file.
+   */
+  @Test
+  public void testWriteSummary() throws InterruptedException, ExecutionException, IOException {
+    System.out.println("testWriteSummary");
+    File outFile = new File(testDir, "testWriteSummary.test");
+    int audioArraySize = 503;
+    int bufferSize = 1499;
+    int channelCount = 1;
+
+    int audioArraysToPut = (13 * bufferSize) / audioArraySize;
+
+    float[] audioArray = new float[audioArraySize];
+
+    AudioWriter audioWriter = new AudioWriter(executor, bufferSize);
+
+    audioWriter.start(outFile, channelCount, 44100);
+    assertNotNull(audioWriter.getSummary());
+    //... put asceding integers.
+    int samplesWritten = 0;
+    for (int i = 0; i < audioArraysToPut; i++) {
+      for (int sample = 0; sample < audioArraySize; sample++) {
+        audioArray[sample] = samplesWritten;
+        samplesWritten++;
+      }
+      audioWriter.waitForBufferReady();
+      audioWriter.putNext(audioArray);
+    }
+    audioWriter.waitForBufferReady();
+    WriterResult result = audioWriter.stop();
+    assertNull(audioWriter.getSummary());
+    // the last write task finishes the summary.
+    result.getChannel().get();
+    audioWriter.close();
+
+    WaveformSummary summary = result.getSummary();
+    assertNotNull(summary);
+    assertTrue(summary.isFinished());
+    assertEquals(samplesWritten, summary.getFrameCount());
+    float[] range = new float[2];
+    assertTrue(summary.getRange(0, 0, samplesWritten - 1, range));
+    assertEquals(0F, range[0], 0F);
+    assertEquals(samplesWritten - 1, range[1], 0F);
+    assertTrue(summary.getRange(0, bufferSize, bufferSize, range));
+    assertEquals((bufferSize / WaveformSummary.BASEFRAMES) * WaveformSummary.BASEFRAMES, range[0], 0F);
+
+    File summaryFile = AudioWriter.getSummaryFile(outFile);
+    assertEquals("testWriteSummary.peaks", summaryFile.getName());
+    assertTrue(summaryFile.exists());
+    WaveformSummary stored = WaveformSummary.readFrom(summaryFile);
+    assertEquals(samplesWritten, stored.getFrameCount());
+    assertEquals(summary.getLength(0), stored.getLength(0));
+    outFile.delete();
+    summaryFile.delete();
+  }
+
   /**
    * Verify that the AudioWriter correctly writes file buffers, skipping some
    * samples before each buffer.
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midisong;
+
+import de.free_creations.microsequencer.ExternalMidiPort;
+import de.free_creations.microsequencer.MicroSequencer;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * This class represents an external Midi device (for example a hardware
+ * sound module) attached to a {@link MidiSynthesizerTrack}. The tracks are
+ * not rendered by the built-in synthesiser but sent to the device.
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+@XmlRootElement
+@XmlType
+@XmlAccessorType(value = XmlAccessType.NONE)
+public class ExternalSynthesizer extends SynthesizerData implements Cloneable {
+
+  private ExternalMidiPort port;
+  private MidiDevice device;
+  /**
+   * A name for this instance of synthesiser.
+   */
+  @XmlAttribute
+  private String name;
+  /**
+   * The name of the Midi output device (as reported by the system). The
+   * first device whose name contains this string is used.
+   */
+  @XmlElement
+  private String devicename;
+  /**
+   * The time in milliseconds the device needs to make a note audible.
+   */
+  @XmlElement(required = false)
+  private double latency = 0D;
+
+  public ExternalSynthesizer() {
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = StringUtil.cleanXmlString(name);
+  }
+
+  public String getDeviceName() {
+    return devicename;
+  }
+
+  public void setDeviceName(String deviceName) {
+    if (isImmutable()) {
+      throw new EIllegalUpdate("Internal Error: object is immutable.");
+    }
+    this.devicename = StringUtil.cleanXmlString(deviceName);
+  }
+
+  /**
+   * @return the latency of the device in milliseconds.
+   */
+  public double getLatency() {
+    return latency;
+  }
+
+  public void setLatency(double latency) {
+    if (isImmutable()) {
+      throw new EIllegalUpdate("Internal Error: object is immutable.");
+    }
+    this.latency = latency;
+  }
+
+  /**
+   * Returns the port that this Synthesiser uses to communicate with
+   * the sequencer. This function is not for public use its sole use is
+   * unit testing.
+   * @return 
+   */
+  ExternalMidiPort getPort() {
+    return port;
+  }
+
+  /**
+   * Open the device and create a port on the given sequencer that plays on
+   * the device.
+   * @param sequencer the sequencer.
+   * @return the new port.
+   * @throws MidiUnavailableException if the device does not exist or cannot
+   * be opened.
+   */
+  ExternalMidiPort attach(MicroSequencer sequencer) throws MidiUnavailableException {
+    detach();
+    MidiDevice newDevice = findDevice();
+    newDevice.open();
+    try {
+      port = sequencer.createExternalMidiPort(getName(), newDevice.getReceiver());
+    } catch (MidiUnavailableException ex) {
+      newDevice.close();
+      throw ex;
+    }
+    port.setDeviceLatency(1E-3 * latency);
+    device = newDevice;
+    return port;
+  }
+
+  private MidiDevice findDevice() throws MidiUnavailableException {
+    if (devicename != null) {
+      for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+        if (info.getName().contains(devicename)) {
+          MidiDevice candidate = MidiSystem.getMidiDevice(info);
+          if (candidate.getMaxReceivers() != 0) {
+            return candidate;
+          }
+        }
+      }
+    }
+    throw new MidiUnavailableException("No Midi output device \"" + devicename + "\".");
+  }
+
+  @Override
+  public ExternalSynthesizer clone() throws CloneNotSupportedException {
+    if (port != null) {
+      throw new CloneNotSupportedException("Cannot clone when connected to a port.");
+    }
+    return (ExternalSynthesizer) super.clone();
+  }
+
+  @Override
+  public void detach() {
+    port = null;
+    if (device != null) {
+      device.close();
+      device = null;
+    }
+  }
+
+  /**
+   * The sound of an external device cannot be measured.
+   * @return always zero.
+   */
+  @Override
+  public float getVuLevel(int audioChannel) {
+    return 0F;
+  }
+}
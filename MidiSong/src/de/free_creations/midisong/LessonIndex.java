@@ -0,0 +1,595 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.midisong;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.modules.Places;
+
+/**
+ * An index of all known lessons, sorted by song and container, so that the
+ * lessons of one song can be found without looking at all the others.
+ *
+ * The index is kept in a single file and loaded in the background; only the
+ * lesson files that have changed since the index was stored are read again.
+ * The directories that contain lessons are watched, lessons that are
+ * created, changed or deleted while the application runs are taken into
+ * account immediately. Listeners are informed (property
+ * {@link #PROP_LESSONS}) whenever the content of the index has changed.
+ *
+ * @author Harald Postner
+ */
+public final class LessonIndex {
+
+  public static final String PROP_LESSONS = "lessons";
+  static final String EXTENSION = ".lesson";
+  private static final Logger logger = Logger.getLogger(LessonIndex.class.getName());
+  private static final int MAGIC = 0x4C494458; // "LIDX"
+  private static LessonIndex defaultIndex = null;
+
+  /**
+   * One indexed lesson.
+   */
+  private static class Entry {
+
+    final File file;
+    final long lastModified;
+    final LessonProperties lesson;
+    final String key;
+
+    Entry(File file, long lastModified, LessonProperties lesson) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.lesson = lesson;
+      this.key = makeKey(lesson.getSong(), lesson.getContainer(), file);
+    }
+  }
+  private final File storeFile;
+  // all access to the following maps is synchronised on "this".
+  private final TreeMap<String, Entry> byKey = new TreeMap<>();
+  private final HashMap<File, Entry> byFile = new HashMap<>();
+  private final HashMap<Path, File> directories = new HashMap<>();
+  private boolean dirty = false;
+  private final PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
+  /**
+   * All reading and writing of files is done by this executor.
+   */
+  private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      thread.setName("LessonIndexWorker");
+      return thread;
+    }
+  });
+  private final Future<?> loaded;
+  private WatchService watchService = null;
+
+  /**
+   * The default index resides in the cache directory of the user. If it is
+   * lost, it is rebuilt from the lesson files.
+   *
+   * @return the default lesson index.
+   */
+  public static synchronized LessonIndex getDefault() {
+    if (defaultIndex == null) {
+      defaultIndex = new LessonIndex(
+              Places.getCacheSubfile("FreeCreationsLessons.index"));
+    }
+    return defaultIndex;
+  }
+
+  /**
+   * Creates an index and starts loading it in the background.
+   *
+   * @param storeFile the file where the index is stored.
+   */
+  LessonIndex(File storeFile) {
+    this.storeFile = storeFile;
+    loaded = worker.submit(new Runnable() {
+      @Override
+      public void run() {
+        load();
+      }
+    });
+  }
+
+  /**
+   * The key is built such that all lessons of a song (and within the song all
+   * lessons of a container) follow each other in the sorted index.
+   */
+  private static String makeKey(String song, String container, File file) {
+    return songPrefix(song) + container + '\u0000' + file.getPath();
+  }
+
+  private static String songPrefix(String song) {
+    return song.toLowerCase(Locale.ROOT) + '\u0000';
+  }
+
+  /**
+   * @return the first key that sorts behind all keys starting with the given
+   * prefix (the prefix must end with '\u0000').
+   */
+  private static String behind(String prefix) {
+    return prefix.substring(0, prefix.length() - 1) + '\u0001';
+  }
+
+  /**
+   * Get the lessons of the given song, sorted by description. Lessons that do
+   * not indicate a container belong to every container.
+   *
+   * Note: this call blocks until the index has been loaded; it should not be
+   * called from the AWT thread.
+   *
+   * @param song the name of the song (the case is ignored).
+   * @param container the name of the container of the song.
+   * @return the lessons of the song.
+   */
+  public List<LessonProperties> getLessons(String song, String container) {
+    waitLoaded();
+    ArrayList<LessonProperties> result = new ArrayList<>();
+    synchronized (this) {
+      addRange(songPrefix(song) + '\u0000', result);
+      if (!container.isEmpty()) {
+        addRange(songPrefix(song) + container + '\u0000', result);
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private void addRange(String prefix, List<LessonProperties> result) {
+    for (Entry entry : byKey.subMap(prefix, true, behind(prefix), false).values()) {
+      result.add(entry.lesson);
+    }
+  }
+
+  /**
+   * Get all lessons. Note: this call blocks until the index has been loaded.
+   *
+   * @return a list of all lessons.
+   */
+  public List<LessonProperties> getAllLessons() {
+    waitLoaded();
+    synchronized (this) {
+      ArrayList<LessonProperties> result = new ArrayList<>(byFile.size());
+      for (Entry entry : byKey.values()) {
+        result.add(entry.lesson);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @param file a lesson file.
+   * @return true if the given file is in the index (lessons that are still
+   * being loaded may not yet be known).
+   */
+  public synchronized boolean contains(File file) {
+    return byFile.containsKey(file.getAbsoluteFile());
+  }
+
+  /**
+   * Add (or replace) a lesson whose properties are already known, for
+   * example because it has just been written.
+   *
+   * @param file the file where the lesson resides on disk.
+   * @param lesson the properties of the lesson.
+   */
+  public void addLesson(File file, LessonProperties lesson) {
+    File absoluteFile = file.getAbsoluteFile();
+    synchronized (this) {
+      put(new Entry(absoluteFile, absoluteFile.lastModified(), lesson));
+    }
+    watchLater(absoluteFile.getParentFile());
+    changed();
+  }
+
+  /**
+   * Add a lesson file that has been discovered. The file is read in the
+   * background, and only if it is not yet in the index or has changed; the
+   * directory of the file is watched from now on. This call does not block.
+   *
+   * @param file a lesson file.
+   */
+  public void addLessonFile(final File file) {
+    final File absoluteFile = file.getAbsoluteFile();
+    worker.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (update(absoluteFile)) {
+          changed();
+        }
+        watch(absoluteFile.getParentFile());
+        saveIfDirty();
+      }
+    });
+  }
+
+  /**
+   * Waits until all the work that has been requested so far is done (for
+   * tests).
+   */
+  void sync() throws InterruptedException, ExecutionException {
+    worker.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get();
+  }
+
+  /**
+   * Stops watching and stores the index.
+   */
+  public void close() {
+    worker.submit(new Runnable() {
+      @Override
+      public void run() {
+        saveIfDirty();
+        WatchService service = watchService;
+        watchService = null;
+        if (service != null) {
+          try {
+            service.close();
+          } catch (IOException ex) {
+            logger.log(Level.WARNING, null, ex);
+          }
+        }
+      }
+    });
+    worker.shutdown();
+  }
+
+  private void waitLoaded() {
+    try {
+      loaded.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      logger.log(Level.WARNING, "The lesson index could not be loaded.", ex);
+    }
+  }
+
+  private void put(Entry entry) {
+    Entry old = byFile.put(entry.file, entry);
+    if (old != null) {
+      byKey.remove(old.key);
+    }
+    byKey.put(entry.key, entry);
+    dirty = true;
+  }
+
+  private synchronized boolean remove(File file) {
+    Entry old = byFile.remove(file);
+    if (old == null) {
+      return false;
+    }
+    byKey.remove(old.key);
+    dirty = true;
+    return true;
+  }
+
+  /**
+   * Bring the entry of the given file up to date. Only to be called on the
+   * worker thread.
+   *
+   * @return true if the index has changed.
+   */
+  private boolean update(File file) {
+    if (!file.isFile()) {
+      return remove(file);
+    }
+    long lastModified = file.lastModified();
+    synchronized (this) {
+      Entry entry = byFile.get(file);
+      if (entry != null && entry.lastModified == lastModified) {
+        return false;
+      }
+    }
+    LessonProperties lesson = new LessonProperties(file);
+    synchronized (this) {
+      put(new Entry(file, lastModified, lesson));
+    }
+    return true;
+  }
+
+  /**
+   * Read the stored index and bring it up to date. Runs on the worker
+   * thread.
+   */
+  private void load() {
+    List<File> storedFiles = read();
+    boolean changed = !storedFiles.isEmpty();
+    ArrayList<File> storedDirectories = new ArrayList<>();
+    for (File file : storedFiles) {
+      update(file);
+      File directory = file.getParentFile();
+      if (directory != null && !storedDirectories.contains(directory)) {
+        storedDirectories.add(directory);
+      }
+    }
+    for (File directory : storedDirectories) {
+      watch(directory);
+    }
+    saveIfDirty();
+    if (changed) {
+      changed();
+    }
+  }
+
+  /**
+   * Read the stored entries into the index.
+   *
+   * @return the files of the stored entries.
+   */
+  private List<File> read() {
+    ArrayList<File> files = new ArrayList<>();
+    if (!storeFile.exists()) {
+      return files;
+    }
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(storeFile)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(storeFile.getPath() + " is not a lesson index.");
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        File file = new File(in.readUTF());
+        long lastModified = in.readLong();
+        int propertyCount = in.readInt();
+        Properties values = new Properties();
+        for (int p = 0; p < propertyCount; p++) {
+          String key = in.readUTF();
+          values.setProperty(key, in.readUTF());
+        }
+        synchronized (this) {
+          put(new Entry(file, lastModified, new LessonProperties(file, values)));
+        }
+        files.add(file);
+      }
+      synchronized (this) {
+        dirty = false;
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "The lesson index will be rebuilt.", ex);
+      synchronized (this) {
+        byKey.clear();
+        byFile.clear();
+      }
+      files.clear();
+    }
+    return files;
+  }
+
+  /**
+   * Store the index, if it has changed. Runs on the worker thread.
+   */
+  private void saveIfDirty() {
+    ArrayList<Entry> entries;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      dirty = false;
+      entries = new ArrayList<>(byKey.values());
+    }
+    File tempFile = new File(storeFile.getPath() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          out.writeUTF(entry.file.getPath());
+          out.writeLong(entry.lastModified);
+          out.writeInt(entry.lesson.size());
+          for (Map.Entry<Object, Object> property : entry.lesson.entrySet()) {
+            out.writeUTF(String.valueOf(property.getKey()));
+            out.writeUTF(String.valueOf(property.getValue()));
+          }
+        }
+      }
+      if (storeFile.exists() && !storeFile.delete()) {
+        throw new IOException("Could not replace " + storeFile.getPath());
+      }
+      if (!tempFile.renameTo(storeFile)) {
+        throw new IOException("Could not write " + storeFile.getPath());
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "The lesson index could not be stored.", ex);
+    }
+  }
+
+  private void watchLater(final File directory) {
+    worker.submit(new Runnable() {
+      @Override
+      public void run() {
+        watch(directory);
+        saveIfDirty();
+      }
+    });
+  }
+
+  /**
+   * Watch the given directory for lesson files and add the lessons that are
+   * not yet known. Runs on the worker thread.
+   */
+  private void watch(File directory) {
+    if (directory == null || !directory.isDirectory()) {
+      return;
+    }
+    Path path = directory.toPath().toAbsolutePath();
+    synchronized (this) {
+      if (directories.containsKey(path)) {
+        return;
+      }
+      directories.put(path, directory.getAbsoluteFile());
+    }
+    try {
+      if (watchService == null) {
+        watchService = FileSystems.getDefault().newWatchService();
+        startWatching(watchService);
+      }
+      path.register(watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE,
+              StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Cannot watch " + directory.getPath(), ex);
+    }
+    if (scan(directory.getAbsoluteFile())) {
+      changed();
+    }
+  }
+
+  /**
+   * Bring the index up to date with the lesson files of a directory. Runs on
+   * the worker thread.
+   *
+   * @return true if the index has changed.
+   */
+  private boolean scan(File directory) {
+    boolean changed = false;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (isLessonFile(file.getName())) {
+          changed |= update(file);
+        }
+      }
+    }
+    // lessons that have been deleted
+    ArrayList<File> known = new ArrayList<>();
+    synchronized (this) {
+      for (File file : byFile.keySet()) {
+        if (directory.equals(file.getParentFile())) {
+          known.add(file);
+        }
+      }
+    }
+    for (File file : known) {
+      if (!file.exists()) {
+        changed |= remove(file);
+      }
+    }
+    return changed;
+  }
+
+  private static boolean isLessonFile(String name) {
+    return name.toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+  }
+
+  /**
+   * Start a thread that waits for the events of the watch service and hands
+   * them over to the worker thread.
+   */
+  private void startWatching(final WatchService service) {
+    Thread watcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final WatchKey key = service.take();
+            final List<WatchEvent<?>> events = key.pollEvents();
+            key.reset();
+            worker.submit(new Runnable() {
+              @Override
+              public void run() {
+                processEvents((Path) key.watchable(), events);
+              }
+            });
+          }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+          // the index has been closed.
+        }
+      }
+    });
+    watcher.setDaemon(true);
+    watcher.setName("LessonIndexWatcher");
+    watcher.start();
+  }
+
+  /**
+   * Runs on the worker thread.
+   */
+  private void processEvents(Path directoryPath, List<WatchEvent<?>> events) {
+    File directory;
+    synchronized (this) {
+      directory = directories.get(directoryPath);
+    }
+    if (directory == null) {
+      return;
+    }
+    boolean changed = false;
+    for (WatchEvent<?> event : events) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed |= scan(directory);
+        continue;
+      }
+      Path name = (Path) event.context();
+      if (isLessonFile(name.toString())) {
+        changed |= update(new File(directory, name.toString()));
+      }
+    }
+    saveIfDirty();
+    if (changed) {
+      changed();
+    }
+  }
+
+  private void changed() {
+    propertyChangeSupport.firePropertyChange(PROP_LESSONS, null, null);
+  }
+
+  public void addPropertyChangeListener(PropertyChangeListener listener) {
+    propertyChangeSupport.addPropertyChangeListener(listener);
+  }
+
+  public void removePropertyChangeListener(PropertyChangeListener listener) {
+    propertyChangeSupport.removePropertyChangeListener(listener);
+  }
+}
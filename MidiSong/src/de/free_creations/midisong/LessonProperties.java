@@ -56,6 +56,19 @@ public class LessonProperties extends Properties implements Comparable<LessonPro
     identity = caculateIdentiy(file);
   }
 
+  /**
+   * Restores a lesson from values that have been read from the given file
+   * before (see {@link LessonIndex}); the file is not read again.
+   *
+   * @param file the file where the lesson resides on disk.
+   * @param values the properties of the lesson.
+   */
+  LessonProperties(File file, Properties values) {
+    this();
+    putAll(values);
+    identity = caculateIdentiy(file);
+  }
+
   /**
    * Get the value of identity
    *
@@ -39,6 +39,7 @@ public class MidiSynthesizerTrack extends MidiTrack implements Cloneable {
 
   @XmlElementRefs({
     @XmlElementRef(type = BuiltinSynthesizer.class),
+    @XmlElementRef(type = ExternalSynthesizer.class),
     @XmlElementRef(type = AsioSynthesizer.class)})
   private SynthesizerData synthesizer;
 
@@ -17,7 +17,8 @@
 package de.free_creations.midisong;
 
 
-import java.io.FileNotFoundException;
+import de.free_creations.midiutil.MidiFileParser;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import javax.sound.midi.InvalidMidiDataException;
@@ -31,6 +32,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
 
 /**
  * This class represents one single Track in a
@@ -218,24 +220,36 @@ public class MidiTrack extends GenericTrack implements Cloneable {
     if (midiFile == null) {
       throw new EInvalidSongFile("Could not load file " + sequencefile);
     }
-    InputStream stream;
-    try {
-      stream = midiFile.getInputStream();
-    } catch (FileNotFoundException ex) {
-      throw new EInvalidSongFile(ex);
-    }
-
     // extract the midi sequence 
     try {
-      sequence = MidiSystem.getSequence(stream);
+      sequence = parseSequence(midiFile);
     } catch (InvalidMidiDataException ex) {
-      throw new EInvalidSongFile(ex);
+      // not a plain Standard Midi File, let the Midi system try its readers.
+      try (InputStream stream = midiFile.getInputStream()) {
+        sequence = MidiSystem.getSequence(stream);
+      } catch (InvalidMidiDataException | IOException ex2) {
+        throw new EInvalidSongFile(ex2);
+      }
     } catch (IOException ex) {
       throw new EInvalidSongFile(ex);
     }
 
   }
 
+  /**
+   * Reads the given Midi file with the fast parser. Files on the local disk
+   * are memory-mapped.
+   */
+  private Sequence parseSequence(FileObject midiFile) throws IOException, InvalidMidiDataException {
+    File file = FileUtil.toFile(midiFile);
+    if (file != null) {
+      return MidiFileParser.parse(file).getSequence();
+    }
+    try (InputStream stream = midiFile.getInputStream()) {
+      return MidiFileParser.parse(stream).getSequence();
+    }
+  }
+
   @Override
   public MidiTrack clone() {
     MidiTrack clonedTrack = null;
@@ -167,6 +167,7 @@ public class Song implements Cloneable {
    */
   public void marshal(OutputStream stream) throws JAXBException {
     JAXBContext jAXBContext = JAXBContext.newInstance(BuiltinSynthesizer.class,
+            ExternalSynthesizer.class,
             SynthesizerData.class,
             MidiSynthesizerTrack.class,
             MasterTrack.class,
@@ -187,6 +188,7 @@ public class Song implements Cloneable {
   static Song unmarshal(InputStream stream) throws EInvalidSongFile {
     try {
       JAXBContext jAXBContext = JAXBContext.newInstance(BuiltinSynthesizer.class,
+              ExternalSynthesizer.class,
               SynthesizerData.class,
               MidiSynthesizerTrack.class,
               MasterTrack.class,
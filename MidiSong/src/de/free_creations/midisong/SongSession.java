@@ -17,6 +17,7 @@
 package de.free_creations.midisong;
 
 import de.free_creations.microsequencer.AudioPort;
+import de.free_creations.microsequencer.AudioRecorderPort;
 import de.free_creations.microsequencer.MicroSequencer;
 import de.free_creations.microsequencer.PlayingMode;
 import de.free_creations.microsequencer.SequencerEventListener;
@@ -25,6 +26,8 @@ import de.free_creations.microsequencer.SequencerPort;
 import de.free_creations.midiutil.BeatPosition;
 import de.free_creations.midiutil.RPosition;
 import de.free_creations.midiutil.RPositionEx;
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.WaveformSummary;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
@@ -128,6 +131,10 @@ public class SongSession {
     }
   };
   private SequencerPort audioRecorderPort = null;
+  /**
+   * The tempo events of the song (null if not yet collected).
+   */
+  private TempoTrack tempoTrack = null;
   private double lastStopingTickPosition = 0;
 
   /**
@@ -887,6 +894,46 @@ public class SongSession {
     }
   }
 
+  /**
+   * This is provisional code to provide Audio Recoding facilities.
+   *
+   * @return the min/max summary of the most recent audio take (null if
+   * nothing has been recorded).
+   */
+  public WaveformSummary getRecordedWaveform() {
+    if (audioRecorderPort instanceof AudioRecorderPort) {
+      return ((AudioRecorderPort) audioRecorderPort).getRecordedWaveform();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * The tempo events of the song; permits to convert between MIDI ticks and
+   * seconds (for example to align a recorded take to the song).
+   *
+   * @return the tempo track of the song or null if the song has no sequence.
+   */
+  public synchronized TempoTrack getTempoTrack() {
+    if (tempoTrack == null) {
+      MasterTrack masterTrack = song.getMastertrack();
+      if (masterTrack == null) {
+        return null;
+      }
+      try {
+        Sequence sequence = masterTrack.getSequence();
+        if (sequence == null) {
+          return null;
+        }
+        tempoTrack = new TempoTrack(sequence);
+      } catch (EInvalidSongFile ex) {
+        logger.log(Level.WARNING, null, ex);
+        return null;
+      }
+    }
+    return tempoTrack;
+  }
+
   /**
    * Forces the sequencer to close.
    *
@@ -1101,6 +1148,13 @@ public class SongSession {
           synthTrack.addEventHandler(handler);
           hasHandler = true;
           tracks = new ArrayList<Track>();
+        } else if (synth instanceof ExternalSynthesizer) {
+          ExternalSynthesizer externalSynthData = (ExternalSynthesizer) synth;
+          port = externalSynthData.attach(sequencer);
+          SynthrackHandler handler = new SynthrackHandler(port);
+          synthTrack.addEventHandler(handler);
+          hasHandler = true;
+          tracks = new ArrayList<Track>();
         }
       }
     }
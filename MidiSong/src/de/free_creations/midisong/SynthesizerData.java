@@ -26,7 +26,8 @@ import javax.xml.bind.annotation.XmlType;
  * A synthesiser object is always attached to a 
  * {@link MidiSynthesizerTrack } object. This class should not 
  * be initialised as it is, but rather one of its descendant classes
- * {@link BuiltinSynthesizer} or {@link AsioSynthesizer}.
+ * {@link BuiltinSynthesizer}, {@link ExternalSynthesizer} or
+ * {@link AsioSynthesizer}.
  * @author Harald Postner 
  */
 @XmlRootElement
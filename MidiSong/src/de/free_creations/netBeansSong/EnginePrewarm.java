@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.netBeansSong;
+
+import org.openide.modules.OnStart;
+
+/**
+ * Pre-warms the audio engine when the application starts (see
+ * {@link SongSessionManager#prewarm()}). The work is done in a low priority
+ * background thread, so the start of the application is not delayed.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+@OnStart
+public class EnginePrewarm implements Runnable {
+
+  @Override
+  public void run() {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        SongSessionManager.prewarm();
+      }
+    });
+    thread.setName("EnginePrewarm");
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
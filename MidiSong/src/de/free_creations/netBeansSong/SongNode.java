@@ -16,6 +16,7 @@
  */
 package de.free_creations.netBeansSong;
 
+import de.free_creations.midisong.LessonIndex;
 import de.free_creations.midisong.LessonProperties;
 import de.free_creations.midisong.SongSession;
 import java.awt.Image;
@@ -24,7 +25,6 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Logger;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -54,29 +54,28 @@ public class SongNode extends DataNode {
   private static class SongNodeChildFactory extends ChildFactory<LessonProperties> {
 
     private final SongDataSupport songDataSupport;
+    private final PropertyChangeListener indexListener = new PropertyChangeListener() {
+      @Override
+      public void propertyChange(PropertyChangeEvent evt) {
+        refresh(false);
+      }
+    };
 
     public SongNodeChildFactory(SongDataSupport dataSupport) {
       this.songDataSupport = dataSupport;
+      LessonIndex index = LessonIndex.getDefault();
+      index.addPropertyChangeListener(WeakListeners.propertyChange(indexListener, index));
     }
 
+    /**
+     * Called in a background thread (the children are created
+     * asynchronously), so we may wait for the lesson index to be loaded.
+     */
     @Override
     protected boolean createKeys(List<LessonProperties> toPopulate) {
-      Set<LessonProperties> lessons = SongSessionManager.getLessons();
-      String songname = songDataSupport.getName();
-      String containerName = songDataSupport.getContainerName();
-      for (LessonProperties lesson : lessons) {
-        if (songname.equalsIgnoreCase(lesson.getSong())) {
-          if (lesson.getContainer().equals("")) {
-            // if the lesson does not indicate the container, we just add.
-            toPopulate.add(lesson);
-          } else {
-            // if the lesson does indicate the container, we match for the container name.
-            if (lesson.getContainer().equals(containerName)) {
-              toPopulate.add(lesson);
-            }
-          }
-        }
-      }
+      // lessons that do not indicate the container are included.
+      toPopulate.addAll(SongSessionManager.getLessons(
+              songDataSupport.getName(), songDataSupport.getContainerName()));
       return true;
     }
 
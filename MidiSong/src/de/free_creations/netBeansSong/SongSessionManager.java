@@ -18,14 +18,17 @@ package de.free_creations.netBeansSong;
 
 import de.free_creations.microsequencer.MicroSequencer;
 import de.free_creations.microsequencer.MicroSequencerManager;
+import de.free_creations.microsequencer.OutputBus;
 import de.free_creations.midisong.EInvalidSongFile;
+import de.free_creations.midisong.LessonIndex;
 import de.free_creations.midisong.LessonProperties;
 import de.free_creations.midisong.Song;
 import de.free_creations.midisong.SongSession;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
@@ -61,8 +64,10 @@ public class SongSessionManager {
   public static final String PROP_ACTIVELESSON = "activeLesson";
   private static volatile SessionActivationTask currentSessionActivationTask = null;
   private PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
-  private static final ArrayList<File> lessonPathes = new ArrayList<File>();
-  private static final TreeSet<LessonProperties> lessons = new TreeSet<LessonProperties>();
+  /**
+   * The sessions attached to the sequencers of the practice stations.
+   */
+  private static final HashMap<OutputBus, SongSession> stationSessions = new HashMap<OutputBus, SongSession>();
 
   /**
    * Create a new {@link SongSession SongSession}.
@@ -189,6 +194,56 @@ public class SongSessionManager {
     }
   }
 
+  /**
+   * Attaches a song session to the sequencer of a practice station. Every
+   * station plays on its own output bus and has its own song, tempo and loop;
+   * the session that was previously attached to the station is detached.
+   * Stations are independent of the active session (see
+   * {@link #activate(de.free_creations.midisong.SongSession)}), which keeps
+   * playing on the configured outputs.
+   *
+   * Note: this function blocks while the audio system is opened, it should
+   * not be called from the AWT thread.
+   *
+   * @param songSession the session to be played on the station (if null, the
+   * station becomes idle).
+   * @param outputBus the outputs of the station.
+   * @throws EInvalidSongFile if the song could not be attached.
+   * @throws MidiUnavailableException if the station's sequencer could not be
+   * opened.
+   */
+  public static synchronized void attachToStation(SongSession songSession, OutputBus outputBus)
+          throws EInvalidSongFile, MidiUnavailableException {
+    if (outputBus == null) {
+      throw new IllegalArgumentException("outputBus is null.");
+    }
+    SongSession previousSession = stationSessions.get(outputBus);
+    if (previousSession == songSession) {
+      return;
+    }
+    MicroSequencer microSequencer = MicroSequencerManager.getInstance(outputBus);
+    if (!microSequencer.isOpen()) {
+      microSequencer.open();
+    }
+    if (previousSession != null) {
+      previousSession.setPlaying(false);
+      previousSession.detachSequencer();
+      stationSessions.remove(outputBus);
+    }
+    if (songSession != null) {
+      songSession.attachSequencer(microSequencer);
+      stationSessions.put(outputBus, songSession);
+    }
+  }
+
+  /**
+   * @param outputBus the outputs of a practice station.
+   * @return the session attached to the given station or null.
+   */
+  public static synchronized SongSession getStationSession(OutputBus outputBus) {
+    return stationSessions.get(outputBus);
+  }
+
   /**
    * Add PropertyChangeListener.
    *
@@ -215,7 +270,7 @@ public class SongSessionManager {
    * found), this function returns null.
    * @throws MidiUnavailableException
    */
-  private static MicroSequencer initializeAudioSystem() {
+  private static synchronized MicroSequencer initializeAudioSystem() {
     MicroSequencer microSequencer = MicroSequencerManager.getInstance();
     if (microSequencer == null) {
       return null;
@@ -236,6 +291,31 @@ public class SongSessionManager {
     return microSequencer;
   }
 
+  /**
+   * Prepares the audio engine, so the first song can be played without
+   * delays and dropouts. The audio stream is opened (if the audio settings
+   * allow it), and the render path is run offline for a few seconds, so the
+   * default sound-bank is loaded and the hot methods are compiled.
+   *
+   * Note: this procedure blocks for several seconds, it must not be called
+   * from within the AWT thread.
+   */
+  public static void prewarm() {
+    long startNano = System.nanoTime();
+    if (initializeAudioSystem() == null) {
+      // the user will be asked to configure the audio settings when
+      // opening a song; the render path can be warmed nevertheless.
+      logger.info("Pre-warm: the audio stream could not be opened.");
+    }
+    try {
+      MicroSequencerManager.warmUp();
+    } catch (MidiUnavailableException ex) {
+      logger.log(Level.WARNING, "Pre-warm: the render path could not be warmed.", ex);
+    }
+    logger.log(Level.INFO, "Pre-warm finished after {0} ms.",
+            (System.nanoTime() - startNano) / 1000000);
+  }
+
   /**
    * A temporal workaround to indicate to the user that he should reconfigure
    * the audio settings. this procedure must be called from within the AWT
@@ -253,7 +333,10 @@ public class SongSessionManager {
   }
 
   public static void closeAudioSystem() {
-    MicroSequencerManager.closeInstance();
+    synchronized (SongSessionManager.class) {
+      stationSessions.clear();
+    }
+    MicroSequencerManager.closeAllInstances();
   }
 
   /**
@@ -275,25 +358,29 @@ public class SongSessionManager {
   }
 
   /**
-   * Adds a lesson to the list of lessons.
+   * Adds a lesson to the list of lessons (or replaces it).
    *
    * Note: this solution is a hack to get the lesson handling implemented
    * quickly. The Song Session Manager is miss-used to have a central point that
-   * collects all lessons. The MediaNodesFactory in package MediaContainer2 adds
-   * the lessons whenever it discovers one.
+   * collects all lessons. The lessons are kept in the {@link LessonIndex}.
    *
    * @param filePath the file where the lesson resides on disk.
    * @param lesson a property object describing the lesson.
    */
   public static void addLesson(File filePath, LessonProperties lesson) {
-    if (hasLesson(filePath)) {
-      return;
-    }
-    lessonPathes.add(filePath);
-    lessons.add(lesson);
-    logger.log(Level.INFO, ">>>>> !!!! a new lesson has been added: {0} !!!!!", filePath.getName());
-    logger.log(Level.INFO, ">>>>> !!!! description: {0} !!!!!", lesson.getProperty("description"));
-    logger.log(Level.INFO, ">>>>> !!!! song: {0} !!!!!", lesson.getProperty("song"));
+    LessonIndex.getDefault().addLesson(filePath, lesson);
+    logger.log(Level.FINE, "A lesson has been added: {0}", filePath.getName());
+  }
+
+  /**
+   * Adds a lesson file that has been discovered (for example by the
+   * MediaNodesFactory in package MediaContainer2). The file is read in the
+   * background, only if the index does not yet know it in its current state.
+   *
+   * @param filePath the file where the lesson resides on disk.
+   */
+  public static void addLessonFile(File filePath) {
+    LessonIndex.getDefault().addLessonFile(filePath);
   }
 
   /**
@@ -303,11 +390,29 @@ public class SongSessionManager {
    * @return true if this lesson has already been registered.
    */
   public static boolean hasLesson(File filePath) {
-    return lessonPathes.contains(filePath);
+    return LessonIndex.getDefault().contains(filePath);
   }
 
+  /**
+   * Get all lessons. Note: this call blocks until the lesson index has been
+   * loaded.
+   *
+   * @return all lessons sorted by description.
+   */
   public static Set<LessonProperties> getLessons() {
-    return lessons;
+    return new TreeSet<LessonProperties>(LessonIndex.getDefault().getAllLessons());
+  }
+
+  /**
+   * Get the lessons of a song. Note: this call blocks until the lesson index
+   * has been loaded.
+   *
+   * @param song the name of the song.
+   * @param container the name of the container of the song.
+   * @return the lessons of the song sorted by description.
+   */
+  public static List<LessonProperties> getLessons(String song, String container) {
+    return LessonIndex.getDefault().getLessons(song, container);
   }
   
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.midisong;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner
+ */
+public class LessonIndexTest {
+
+  private File writeLesson(File directory, String name, String song, String container, String description) {
+    LessonProperties lesson = new LessonProperties();
+    lesson.setSong(song);
+    lesson.setContainer(container);
+    lesson.setDescription(description);
+    File file = new File(directory, name + LessonIndex.EXTENSION);
+    lesson.writeToFile(file);
+    return file;
+  }
+
+  /**
+   * The lessons of a song are found by song (ignoring the case) and by
+   * container; lessons without container belong to every container.
+   */
+  @Test
+  public void testGetLessons() throws Exception {
+    System.out.println("testGetLessons");
+    File directory = Files.createTempDirectory("LessonIndexTest").toFile();
+    File store = new File(directory, "index");
+    LessonIndex instance = new LessonIndex(store);
+    instance.addLessonFile(writeLesson(directory, "a", "Requiem", "", "B lesson"));
+    instance.addLessonFile(writeLesson(directory, "b", "requiem", "Mozart", "A lesson"));
+    instance.addLessonFile(writeLesson(directory, "c", "Requiem", "Verdi", "C lesson"));
+    instance.addLessonFile(writeLesson(directory, "d", "Messiah", "", "D lesson"));
+    instance.sync();
+
+    List<LessonProperties> lessons = instance.getLessons("REQUIEM", "Mozart");
+    assertEquals(2, lessons.size());
+    assertEquals("A lesson", lessons.get(0).getDescription());
+    assertEquals("B lesson", lessons.get(1).getDescription());
+    assertEquals(1, instance.getLessons("Requiem", "").size());
+    assertEquals(1, instance.getLessons("Messiah", "Handel").size());
+    assertEquals(0, instance.getLessons("Mozart", "").size());
+    assertEquals(4, instance.getAllLessons().size());
+    assertTrue(instance.contains(new File(directory, "c" + LessonIndex.EXTENSION)));
+    instance.close();
+  }
+
+  /**
+   * A stored index must be loaded again, lessons changed or deleted in the
+   * meantime must be taken into account.
+   */
+  @Test
+  public void testStoreAndReload() throws Exception {
+    System.out.println("testStoreAndReload");
+    File directory = Files.createTempDirectory("LessonIndexTest").toFile();
+    File store = new File(directory, "index");
+    LessonIndex instance = new LessonIndex(store);
+    File a = writeLesson(directory, "a", "Requiem", "", "first");
+    File b = writeLesson(directory, "b", "Requiem", "", "second");
+    instance.addLessonFile(a);
+    instance.sync();
+    instance.close();
+    assertTrue(store.exists());
+
+    // changes while the index is not running.
+    assertTrue(b.delete());
+    writeLesson(directory, "a", "Requiem", "", "changed");
+    assertTrue(a.setLastModified(a.lastModified() + 2000));
+    writeLesson(directory, "c", "Requiem", "", "third");
+
+    LessonIndex reloaded = new LessonIndex(store);
+    reloaded.sync();
+    List<LessonProperties> lessons = reloaded.getLessons("Requiem", "");
+    assertEquals(2, lessons.size());
+    assertEquals("changed", lessons.get(0).getDescription());
+    assertEquals("third", lessons.get(1).getDescription());
+    reloaded.close();
+  }
+
+  /**
+   * Lessons written into a watched directory appear in the index.
+   */
+  @Test
+  public void testWatch() throws Exception {
+    System.out.println("testWatch");
+    File directory = Files.createTempDirectory("LessonIndexTest").toFile();
+    LessonIndex instance = new LessonIndex(new File(directory, "index"));
+    instance.addLessonFile(writeLesson(directory, "a", "Requiem", "", "first"));
+    instance.sync();
+    File b = writeLesson(directory, "b", "Requiem", "", "second");
+    // the watch service may take a while (polling implementations).
+    for (int i = 0; i < 200 && !instance.contains(b); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(instance.contains(b));
+    assertTrue(b.delete());
+    for (int i = 0; i < 200 && instance.contains(b); i++) {
+      Thread.sleep(50);
+    }
+    assertFalse(instance.contains(b));
+    instance.close();
+  }
+}
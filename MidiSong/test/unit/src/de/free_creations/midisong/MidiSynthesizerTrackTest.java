@@ -333,6 +333,26 @@ public class MidiSynthesizerTrackTest {
       public void setAttenuation(int trackIndex, float value) {
         throw new UnsupportedOperationException("Not supported yet.");
       }
+
+      @Override
+      public void setTranspose(int semitones) {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
+
+      @Override
+      public void setTranspose(int trackIndex, int semitones) {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
+
+      @Override
+      public void setChannel(int trackIndex, int channel) {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
+
+      @Override
+      public void setVelocityScale(int trackIndex, float factor) {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
     });
     // -------------------------------------------------------------------------
     // now call detachAudio on the song => we expect the port on the sysnth to have disapeard
@@ -18,6 +18,9 @@ package de.free_creations.midisong;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import de.free_creations.microsequencer.AudioPort;
+import de.free_creations.microsequencer.AudioTrackPort;
+import de.free_creations.microsequencer.ExternalMidiPort;
+import de.free_creations.microsequencer.LevelMeter;
 import de.free_creations.microsequencer.SequencerEventListener;
 import de.free_creations.microsequencer.MicroSequencer;
 import de.free_creations.microsequencer.PlayingMode;
@@ -26,6 +29,7 @@ import de.free_creations.microsequencer.SequencerPort;
 import de.free_creations.midiutil.BeatPosition;
 import de.free_creations.midiutil.RPosition;
 import de.free_creations.midiutil.RPositionEx;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -750,6 +754,16 @@ public class SongSessionTest {
         throw new UnsupportedOperationException("Not supported yet.");
       }
 
+      @Override
+      public LevelMeter getOutputMeter() {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
+
+      @Override
+      public LevelMeter getInputMeter() {
+        throw new UnsupportedOperationException("Not supported yet.");
+      }
+
       @Override
       public float getAttenuation(int channel) {
         return attenuations[channel];
@@ -807,6 +821,22 @@ public class SongSessionTest {
     public void setAttenuation(int trackIndex, float value) {
       tracksAttenuation[trackIndex] = value;
     }
+
+    @Override
+    public void setTranspose(int semitones) {
+    }
+
+    @Override
+    public void setTranspose(int trackIndex, int semitones) {
+    }
+
+    @Override
+    public void setChannel(int trackIndex, int channel) {
+    }
+
+    @Override
+    public void setVelocityScale(int trackIndex, float factor) {
+    }
   }
 
   private class AudioPortMock implements AudioPort {
@@ -816,6 +846,16 @@ public class SongSessionTest {
       return 0F;
     }
 
+    @Override
+    public LevelMeter getOutputMeter() {
+      return null;
+    }
+
+    @Override
+    public LevelMeter getInputMeter() {
+      return null;
+    }
+
     @Override
     public float getAttenuation(int channel) {
       return 0F;
@@ -1215,11 +1255,35 @@ public class SongSessionTest {
       };
     }
 
+    @Override
+    public void setDirectMonitoring(int[] channels, float attenuation) {
+    }
+
+    @Override
+    public AudioTrackPort createAudioTrackPort(String name, File file) throws IOException, MidiUnavailableException {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public ExternalMidiPort createExternalMidiPort(String name, Receiver receiver) throws MidiUnavailableException {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public void start(PlayingMode playingMode) {
       running = true;
       this.playingMode = playingMode;
     }
+
+    @Override
+    public void stopAtTick(double tick) {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public void jumpAtTick(double atTick, double toTick) {
+      throw new UnsupportedOperationException("Not supported yet.");
+    }
   }
 
   /**
@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * An EventStore is an immutable, compact copy of the events of a Midi track.
+ * The positions are kept in an array of longs and the short messages are
+ * packed into an array of integers (status, data1 and data2 in the lower
+ * three bytes). So the events can be scanned without calling the
+ * (synchronised) {@link Track#get(int)} and without dereferencing a
+ * {@link MidiEvent} and a {@link MidiMessage} per event.
+ *
+ * The message objects themselves are kept in a side table; they are shared
+ * with the track (not copied) and are only needed to pass an event on to a
+ * receiver or to read the data of a meta or system-exclusive message. All
+ * messages exist when the store has been built, so reading a store never
+ * allocates and needs no synchronisation.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public final class EventStore {
+
+  /**
+   * The packed value of messages that are not short messages (meta and
+   * system-exclusive messages).
+   */
+  public static final int NOTSHORT = -1;
+  private static final Map<Track, EventStore> cache = new WeakHashMap<>();
+  private final long[] ticks;
+  private final int[] packed;
+  private final MidiMessage[] messages;
+  private final long tickLength;
+
+  /**
+   * Builds the event store for the given track.
+   *
+   * @param track a Midi track.
+   */
+  public EventStore(Track track) {
+    if (track == null) {
+      throw new IllegalArgumentException("Track is null.");
+    }
+    int size = track.size();
+    ticks = new long[size];
+    packed = new int[size];
+    messages = new MidiMessage[size];
+    for (int i = 0; i < size; i++) {
+      MidiEvent event = track.get(i);
+      MidiMessage message = event.getMessage();
+      ticks[i] = event.getTick();
+      messages[i] = message;
+      packed[i] = pack(message);
+    }
+    tickLength = track.ticks();
+  }
+
+  /**
+   * Builds an event store from decoded arrays (used by the
+   * {@link MidiFileParser}). The arrays are taken over, not copied.
+   */
+  EventStore(long[] ticks, int[] packed, MidiMessage[] messages, long tickLength) {
+    this.ticks = ticks;
+    this.packed = packed;
+    this.messages = messages;
+    this.tickLength = tickLength;
+  }
+
+  /**
+   * Associates an event store with a track that has been built from it, so
+   * that forTrack() does not need to build the store again.
+   */
+  static void register(Track track, EventStore store) {
+    synchronized (cache) {
+      cache.put(track, store);
+    }
+  }
+
+  /**
+   * Provides the event store for the given track. The event store is built
+   * only once per track and then re-used; it is rebuilt if the number of
+   * events or the length of the track have changed in the meantime.
+   *
+   * @param track a Midi track.
+   * @return the event store for the given track.
+   */
+  public static EventStore forTrack(Track track) {
+    if (track == null) {
+      throw new IllegalArgumentException("Track is null.");
+    }
+    synchronized (cache) {
+      EventStore store = cache.get(track);
+      if (store == null
+              || store.size() != track.size()
+              || store.ticks() != track.ticks()) {
+        store = new EventStore(track);
+        cache.put(track, store);
+      }
+      return store;
+    }
+  }
+
+  private static int pack(MidiMessage message) {
+    if (!(message instanceof ShortMessage)) {
+      return NOTSHORT;
+    }
+    ShortMessage shortMessage = (ShortMessage) message;
+    return (shortMessage.getStatus() & 0xFF)
+            | ((shortMessage.getData1() & 0xFF) << 8)
+            | ((shortMessage.getData2() & 0xFF) << 16);
+  }
+
+  /**
+   * @return the number of events in the store.
+   */
+  public int size() {
+    return ticks.length;
+  }
+
+  /**
+   * @return the length of the track in Midi ticks.
+   */
+  public long ticks() {
+    return tickLength;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the position of the event in Midi ticks.
+   */
+  public long getTick(int index) {
+    return ticks[index];
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the message of the event (shared with the original track, must
+   * not be modified).
+   */
+  public MidiMessage getMessage(int index) {
+    return messages[index];
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the packed short message (status | data1 &lt;&lt; 8 | data2
+   * &lt;&lt; 16) or NOTSHORT.
+   */
+  public int getPacked(int index) {
+    return packed[index];
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return true if the event is a short (channel or system) message.
+   */
+  public boolean isShortMessage(int index) {
+    return packed[index] != NOTSHORT;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the command (the upper nibble of the status) of a short message
+   * or -1 for other messages.
+   */
+  public int getCommand(int index) {
+    int p = packed[index];
+    if (p == NOTSHORT) {
+      return -1;
+    }
+    return p & 0xF0;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the channel of a short message.
+   */
+  public int getChannel(int index) {
+    return packed[index] & 0x0F;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the first data byte of a short message.
+   */
+  public int getData1(int index) {
+    return (packed[index] >> 8) & 0xFF;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the second data byte of a short message.
+   */
+  public int getData2(int index) {
+    return (packed[index] >> 16) & 0xFF;
+  }
+
+  /**
+   * @param index the index of an event.
+   * @return the type of a meta message or -1 if the event is not a meta
+   * message.
+   */
+  public int getMetaType(int index) {
+    if (packed[index] != NOTSHORT) {
+      return -1;
+    }
+    MidiMessage message = messages[index];
+    if (!(message instanceof MetaMessage)) {
+      return -1;
+    }
+    return ((MetaMessage) message).getType();
+  }
+
+  /**
+   * Same as {@link Note#isNoteOnMessage(javax.sound.midi.MidiMessage) }.
+   *
+   * @param index the index of an event.
+   * @return true if the event is a note-on with a velocity above zero.
+   */
+  public boolean isNoteOn(int index) {
+    return getCommand(index) == ShortMessage.NOTE_ON && getData2(index) != 0;
+  }
+
+  /**
+   * Same as {@link Note#isNoteOffMessage(javax.sound.midi.MidiMessage) }.
+   *
+   * @param index the index of an event.
+   * @return true if the event is a note-off or a note-on with velocity zero.
+   */
+  public boolean isNoteOff(int index) {
+    int command = getCommand(index);
+    if (command == ShortMessage.NOTE_OFF) {
+      return true;
+    }
+    return command == ShortMessage.NOTE_ON && getData2(index) == 0;
+  }
+
+  /**
+   * Finds the first event that is positioned on or after the given tick.
+   *
+   * @param tick a position in Midi ticks.
+   * @return the index of the first event at or after the given tick, or
+   * size() if there is no such event.
+   */
+  public int indexOf(long tick) {
+    int low = 0;
+    int high = ticks.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (ticks[middle] < tick) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
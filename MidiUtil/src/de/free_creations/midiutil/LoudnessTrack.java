@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.ListIterator;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 
@@ -60,30 +61,43 @@ public class LoudnessTrack implements List<LoudnessEvent> {
    * @param sequence the given sequence
    */
   public LoudnessTrack(Track track, boolean includeNoteOn) {
+    this(includeNoteOn, EventStore.forTrack(track));
+  }
+
+  /**
+   * Create a loudnessList of all the loudness events contained in the given
+   * event store.
+   *
+   * @param events the events of a track
+   */
+  private LoudnessTrack(boolean includeNoteOn, EventStore events) {
     loudnessList = new ArrayList<LoudnessEvent>();
-    if (track == null) {
+    if (events == null) {
       throw new IllegalArgumentException("Track is null.");
     }
     // go backwards through  the track and create appropriate Loudness Events.
     int soundingNoteCount = 0;
     boolean precedesNoteOn = false;
 
-    for (int i = track.size() - 1; i >= 0; i--) {
-      MidiEvent event = track.get(i);
-      if (Note.isNoteOffEvent(event)) {
-        setChannelFromEvent(event);
+    for (int i = events.size() - 1; i >= 0; i--) {
+      if (!events.isShortMessage(i)) {
+        continue;
+      }
+      if (events.isNoteOff(i)) {
+        checkChannel(events.getChannel(i));
         soundingNoteCount++;
       }
-      if (Note.isNoteOnEvent(event)) {
-        setChannelFromEvent(event);
+      if (events.isNoteOn(i)) {
+        checkChannel(events.getChannel(i));
         soundingNoteCount--;
         if (soundingNoteCount == 0) {
           precedesNoteOn = true;
         }
       }
-      if (isLoudnessEvent(event, includeNoteOn)) {
-        setChannelFromEvent(event);
-        LoudnessEvent newLoudnessEvent = new LoudnessEvent(event);
+      if (isLoudnessMessage(events.getMessage(i), includeNoteOn)) {
+        checkChannel(events.getChannel(i));
+        LoudnessEvent newLoudnessEvent = new LoudnessEvent(
+                new MidiEvent(events.getMessage(i), events.getTick(i)));
         newLoudnessEvent.setObsolete(true);
         if (soundingNoteCount > 0) {
           newLoudnessEvent.setObsolete(false);
@@ -96,7 +110,7 @@ public class LoudnessTrack implements List<LoudnessEvent> {
       }
     }
 
-    maxTicks = track.ticks();
+    maxTicks = events.ticks();
     Collections.sort(loudnessList);
 
     determineLoudnessLevel();
@@ -104,11 +118,11 @@ public class LoudnessTrack implements List<LoudnessEvent> {
 
   }
 
-  private boolean isLoudnessEvent(MidiEvent event, boolean includeNoteOn) {
+  private boolean isLoudnessMessage(MidiMessage message, boolean includeNoteOn) {
     if (includeNoteOn) {
-      return LoudnessEvent.isLoudnessEventEx(event);
+      return LoudnessEvent.isLoudnessMessageEx(message);
     } else {
-      return LoudnessEvent.isLoudnessEvent(event);
+      return LoudnessEvent.isLoudnessMessage(message);
     }
   }
 
@@ -422,9 +436,7 @@ public class LoudnessTrack implements List<LoudnessEvent> {
     return new MidiEvent(message, pos);
   }
 
-  private void setChannelFromEvent(MidiEvent event) {
-    ShortMessage message = (ShortMessage) event.getMessage();
-    int messageChannel = message.getChannel();
+  private void checkChannel(int messageChannel) {
     if (this.channel == NOT_SET_YET) {
       this.channel = messageChannel;
     } else {
@@ -42,19 +42,25 @@ public class LyricTrack implements List<Lyric> {
    * @param track the given track
    */
   public LyricTrack(Track track) {
+    this((track == null) ? null : EventStore.forTrack(track));
+  }
+
+  /**
+   * Create a list of all the lyrics contained in the given event store.
+   * @param events the events of a track (may be null)
+   */
+  private LyricTrack(EventStore events) {
     list = new ArrayList<Lyric>();
-    if (track == null) {
+    if (events == null) {
       return;
     }
 
-    for (int i = 0; i < track.size(); i++) {
-      MidiEvent event = track.get(i);
-      if (Lyric.isLyricsEvent(event)) {
-        list.add(new Lyric(event));
+    for (int i = 0; i < events.size(); i++) {
+      if (events.getMetaType(i) == Lyric.LYRICSTYPE) {
+        list.add(new Lyric(new MidiEvent(events.getMessage(i), events.getTick(i))));
       }
-      Collections.sort(list);
-
     }
+    Collections.sort(list);
   }
 
   public int size() {
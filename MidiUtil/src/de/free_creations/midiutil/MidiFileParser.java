@@ -0,0 +1,387 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * A fast reader for Standard Midi Files. The file is memory-mapped, the
+ * track chunks are located up front and then decoded in parallel into
+ * {@link EventStore event stores}, including the message objects. The
+ * {@link Sequence} built by {@link #getSequence()} shares these messages, so
+ * building it only costs the Midi events.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public final class MidiFileParser {
+
+  private static final int MTHD = 0x4d546864;
+  private static final int MTRK = 0x4d54726b;
+  private static final int METAEVENT = 0xFF;
+  private static final int ENDOFTRACK = 0x2F;
+  /**
+   * Files with less bytes of track data are decoded sequentially.
+   */
+  private static final int PARALLELTHRESHOLD = 64 * 1024;
+  private final int fileType;
+  private final float divisionType;
+  private final int resolution;
+  private final EventStore[] tracks;
+  private Sequence sequence = null;
+
+  private MidiFileParser(int fileType, float divisionType, int resolution, EventStore[] tracks) {
+    this.fileType = fileType;
+    this.divisionType = divisionType;
+    this.resolution = resolution;
+    this.tracks = tracks;
+  }
+
+  /**
+   * Reads the given Midi file.
+   *
+   * @param file a Standard Midi File.
+   * @return the parsed file.
+   * @throws IOException if the file cannot be read.
+   * @throws InvalidMidiDataException if the file is not a valid Standard Midi
+   * File.
+   */
+  public static MidiFileParser parse(File file) throws IOException, InvalidMidiDataException {
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      FileChannel channel = input.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return parse(buffer);
+    }
+  }
+
+  /**
+   * Reads a Midi file from the given stream. The stream is read to its end
+   * but not closed.
+   *
+   * @param stream an input stream delivering a Standard Midi File.
+   * @return the parsed file.
+   * @throws IOException if the stream cannot be read.
+   * @throws InvalidMidiDataException if the data is not a valid Standard Midi
+   * File.
+   */
+  public static MidiFileParser parse(InputStream stream) throws IOException, InvalidMidiDataException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] chunk = new byte[16 * 1024];
+    int n;
+    while ((n = stream.read(chunk)) >= 0) {
+      bytes.write(chunk, 0, n);
+    }
+    return parse(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  /**
+   * Parses a Standard Midi File held in the given buffer.
+   *
+   * @param content the content of a Standard Midi File starting at index
+   * zero (the position of the buffer is not changed).
+   * @return the parsed file.
+   * @throws InvalidMidiDataException if the data is not a valid Standard Midi
+   * File.
+   */
+  public static MidiFileParser parse(ByteBuffer content) throws InvalidMidiDataException {
+    // a duplicate is always big-endian
+    final ByteBuffer buffer = content.duplicate();
+    int limit = buffer.limit();
+    if (limit < 14 || buffer.getInt(0) != MTHD) {
+      throw new InvalidMidiDataException("Not a Standard Midi File.");
+    }
+    int headerLength = buffer.getInt(4);
+    if (headerLength < 6 || 8L + headerLength > limit) {
+      throw new InvalidMidiDataException("Invalid header length: " + headerLength);
+    }
+    int fileType = buffer.getShort(8) & 0xFFFF;
+    int trackCount = buffer.getShort(10) & 0xFFFF;
+    int division = buffer.getShort(12);
+    float divisionType;
+    int resolution;
+    if (division >= 0) {
+      divisionType = Sequence.PPQ;
+      resolution = division;
+    } else {
+      switch (-(division >> 8)) {
+        case 24:
+          divisionType = Sequence.SMPTE_24;
+          break;
+        case 25:
+          divisionType = Sequence.SMPTE_25;
+          break;
+        case 29:
+          divisionType = Sequence.SMPTE_30DROP;
+          break;
+        case 30:
+          divisionType = Sequence.SMPTE_30;
+          break;
+        default:
+          throw new InvalidMidiDataException("Unknown frame code: " + -(division >> 8));
+      }
+      resolution = division & 0xFF;
+    }
+
+    // locate the track chunks
+    List<int[]> chunks = new ArrayList<>();
+    int position = 8 + headerLength;
+    int trackBytes = 0;
+    while (chunks.size() < trackCount && position + 8 <= limit) {
+      int magic = buffer.getInt(position);
+      long length = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+      int start = position + 8;
+      if (start + length > limit) {
+        throw new InvalidMidiDataException("Chunk exceeds the end of the file.");
+      }
+      if (magic == MTRK) {
+        // unknown chunks are skipped
+        chunks.add(new int[]{start, (int) length});
+        trackBytes += length;
+      }
+      position = start + (int) length;
+    }
+    if (chunks.size() < trackCount) {
+      throw new InvalidMidiDataException("Expected " + trackCount + " tracks, found " + chunks.size() + ".");
+    }
+
+    // decode the tracks
+    EventStore[] tracks = new EventStore[trackCount];
+    if (trackCount < 2 || trackBytes < PARALLELTHRESHOLD) {
+      for (int i = 0; i < trackCount; i++) {
+        int[] chunk = chunks.get(i);
+        tracks[i] = decodeTrack(buffer, chunk[0], chunk[1]);
+      }
+    } else {
+      List<Future<EventStore>> decoded = new ArrayList<>(trackCount);
+      for (final int[] chunk : chunks) {
+        decoded.add(ForkJoinPool.commonPool().submit(new Callable<EventStore>() {
+          @Override
+          public EventStore call() throws InvalidMidiDataException {
+            return decodeTrack(buffer, chunk[0], chunk[1]);
+          }
+        }));
+      }
+      try {
+        for (int i = 0; i < trackCount; i++) {
+          tracks[i] = decoded.get(i).get();
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InvalidMidiDataException("Interrupted while decoding.");
+      } catch (ExecutionException ex) {
+        if (ex.getCause() instanceof InvalidMidiDataException) {
+          throw (InvalidMidiDataException) ex.getCause();
+        }
+        throw new RuntimeException(ex.getCause());
+      }
+    }
+    return new MidiFileParser(fileType, divisionType, resolution, tracks);
+  }
+
+  /**
+   * Decodes the events of one track chunk. Different from the
+   * javax.sound.midi reader, running status is not cancelled by meta and
+   * system exclusive events; the reader accepts all files that the
+   * javax.sound.midi reader accepts.
+   */
+  private static EventStore decodeTrack(ByteBuffer buffer, int start, int length)
+          throws InvalidMidiDataException {
+    int end = start + length;
+    // a rough estimate: at least three bytes per event
+    int capacity = Math.max(16, length / 3);
+    long[] ticks = new long[capacity];
+    int[] packed = new int[capacity];
+    MidiMessage[] messages = new MidiMessage[capacity];
+    int count = 0;
+    long tick = 0;
+    int runningStatus = 0;
+    int position = start;
+    boolean endOfTrackFound = false;
+    try {
+      while (position < end && !endOfTrackFound) {
+        // the delta time (variable length quantity)
+        long delta = 0;
+        int b;
+        do {
+          b = buffer.get(position++) & 0xFF;
+          delta = (delta << 7) | (b & 0x7F);
+        } while ((b & 0x80) != 0);
+        tick += delta;
+
+        int status = buffer.get(position) & 0xFF;
+        if (status >= 0x80) {
+          position++;
+        } else {
+          status = runningStatus;
+        }
+        MidiMessage message = null;
+        int packedMessage = EventStore.NOTSHORT;
+        switch (status & 0xF0) {
+          case 0x80:
+          case 0x90:
+          case 0xA0:
+          case 0xB0:
+          case 0xE0:
+            // two data bytes
+            packedMessage = status
+                    | ((buffer.get(position) & 0x7F) << 8)
+                    | ((buffer.get(position + 1) & 0x7F) << 16);
+            message = new ShortMessage(status, buffer.get(position) & 0x7F,
+                    buffer.get(position + 1) & 0x7F);
+            position += 2;
+            runningStatus = status;
+            break;
+          case 0xC0:
+          case 0xD0:
+            // one data byte
+            packedMessage = status | ((buffer.get(position) & 0x7F) << 8);
+            message = new ShortMessage(status, buffer.get(position) & 0x7F, 0);
+            position += 1;
+            runningStatus = status;
+            break;
+          case 0xF0:
+            int metaType = -1;
+            if (status == METAEVENT) {
+              metaType = buffer.get(position++) & 0xFF;
+            } else if (status != 0xF0 && status != 0xF7) {
+              throw new InvalidMidiDataException("Invalid status byte: " + status);
+            }
+            int dataLength = 0;
+            do {
+              b = buffer.get(position++) & 0xFF;
+              dataLength = (dataLength << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            if (dataLength < 0 || position + dataLength > end) {
+              throw new InvalidMidiDataException("Message length is out of bounds: " + dataLength);
+            }
+            byte[] data = new byte[dataLength];
+            for (int i = 0; i < dataLength; i++) {
+              data[i] = buffer.get(position + i);
+            }
+            position += dataLength;
+            if (status == METAEVENT) {
+              message = new MetaMessage(metaType, data, dataLength);
+              endOfTrackFound = (metaType == ENDOFTRACK);
+            } else {
+              message = new SysexMessage(status, data, dataLength);
+            }
+            break;
+          default:
+            throw new InvalidMidiDataException("Invalid status byte: " + status);
+        }
+        if (count == ticks.length) {
+          int newCapacity = 2 * count;
+          ticks = Arrays.copyOf(ticks, newCapacity);
+          packed = Arrays.copyOf(packed, newCapacity);
+          messages = Arrays.copyOf(messages, newCapacity);
+        }
+        ticks[count] = tick;
+        packed[count] = packedMessage;
+        messages[count] = message;
+        count++;
+      }
+    } catch (IndexOutOfBoundsException ex) {
+      throw new InvalidMidiDataException("Unexpected end of track.");
+    }
+    if (position > end) {
+      throw new InvalidMidiDataException("Unexpected end of track.");
+    }
+    return new EventStore(Arrays.copyOf(ticks, count), Arrays.copyOf(packed, count),
+            Arrays.copyOf(messages, count), tick);
+  }
+
+  /**
+   * @return the type of the Midi file (0, 1 or 2).
+   */
+  public int getFileType() {
+    return fileType;
+  }
+
+  /**
+   * @return the timing division type as defined in {@link Sequence}.
+   */
+  public float getDivisionType() {
+    return divisionType;
+  }
+
+  /**
+   * @return the timing resolution as defined in {@link Sequence}.
+   */
+  public int getResolution() {
+    return resolution;
+  }
+
+  /**
+   * @return the number of tracks in the file.
+   */
+  public int getTrackCount() {
+    return tracks.length;
+  }
+
+  /**
+   * @param index the index of a track.
+   * @return the events of the given track.
+   */
+  public EventStore getEvents(int index) {
+    return tracks[index];
+  }
+
+  /**
+   * Builds (on the first call) a javax.sound.midi sequence containing the
+   * events of this file. The tracks of the sequence are associated with the
+   * event stores, so that {@link EventStore#forTrack(javax.sound.midi.Track)}
+   * does not need to rebuild them.
+   *
+   * @return the sequence.
+   * @throws InvalidMidiDataException if the division type is not supported.
+   */
+  public synchronized Sequence getSequence() throws InvalidMidiDataException {
+    if (sequence != null) {
+      return sequence;
+    }
+    Sequence newSequence = new Sequence(divisionType, resolution);
+    for (EventStore events : tracks) {
+      Track track = newSequence.createTrack();
+      for (int i = 0; i < events.size(); i++) {
+        track.add(new MidiEvent(events.getMessage(i), events.getTick(i)));
+      }
+      EventStore.register(track, events);
+    }
+    sequence = newSequence;
+    return sequence;
+  }
+}
@@ -22,7 +22,6 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
-import javax.sound.midi.MidiEvent;
 import javax.sound.midi.Track;
 
 /**
@@ -34,10 +33,21 @@ import javax.sound.midi.Track;
 public class NoteTrack implements List<Note> {
 
   private ArrayList<Note> list;
-  private ArrayList<MidiEvent> unmatchedNoteOns;
+  /**
+   * The indices (into the event store) of the note-on events that have not
+   * been matched by a note-off yet.
+   */
+  private ArrayList<Integer> unmatchedNoteOns;
   boolean severecheck = false;
   private int minPitch;
   private int maxPitch;
+  /**
+   * For each note (in the sorted list), the highest end position of this note
+   * and all the notes before it. Together with the ascending start positions
+   * this permits to find the notes that sound in a given interval without
+   * scanning the whole list.
+   */
+  private long[] maxEnd = new long[]{};
 
   /**
    * Create a list of all the notes contained in the given track.
@@ -59,28 +69,37 @@ public class NoteTrack implements List<Note> {
    * @throws RuntimeException if in mode "severecheck" errors are encountered.
    */
   public NoteTrack(Track track, boolean severecheck) {
+    this(severecheck, (track == null) ? null : EventStore.forTrack(track));
+  }
+
+  /**
+   * Create a list of all the notes contained in the given event store.
+   * @param severecheck see above
+   * @param events the events of a track (may be null)
+   */
+  private NoteTrack(boolean severecheck, EventStore events) {
     this.severecheck = severecheck;
     list = new ArrayList<Note>();
-    if (track == null) {
+    if (events == null) {
       maxPitch = 127;
       minPitch = 0;
       return;
     }
     maxPitch = -1;
     minPitch = 0xFFFF;
-    unmatchedNoteOns = new ArrayList<MidiEvent>();
+    unmatchedNoteOns = new ArrayList<Integer>();
 
-    for (int i = 0; i < track.size(); i++) {
-      MidiEvent event = track.get(i);
-      if (Note.isNoteOnEvent(event)) {
-        unmatchedNoteOns.add(event);
+    for (int i = 0; i < events.size(); i++) {
+      if (events.isNoteOn(i)) {
+        unmatchedNoteOns.add(i);
       } else {
-        if (Note.isNoteOffEvent(event)) {
-          matchNoteOff(event);
+        if (events.isNoteOff(i)) {
+          matchNoteOff(events, i);
         }
       }
     }
     Collections.sort(list);
+    buildIntervalIndex();
     if (maxPitch < 0) {
       maxPitch = 127;
     }
@@ -112,6 +131,50 @@ public class NoteTrack implements List<Note> {
     return maxPitch;
   }
 
+  /**
+   * Find the first note that might sound at or after the given position.
+   * All notes before the returned index end before the given position.
+   * Notes after the returned index may also end before the given position
+   * (if they are short and an earlier note is long), so callers must still
+   * check the notes they iterate over.
+   * @param tick a position in Midi ticks
+   * @return the index of the first note whose end, or the end of a note
+   * before it, is at or after the given position; size() if there is none.
+   */
+  public int indexOfFirstSounding(long tick) {
+    int low = 0;
+    int high = maxEnd.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (maxEnd[middle] < tick) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Find the first note that starts after the given position.
+   * @param tick a position in Midi ticks
+   * @return the index of the first note starting after the given position;
+   * size() if there is none.
+   */
+  public int indexOfFirstAfter(long tick) {
+    int low = 0;
+    int high = list.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (list.get(middle).getTickPos() <= tick) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
   public int size() {
     return list.size();
   }
@@ -207,6 +270,16 @@ public class NoteTrack implements List<Note> {
     return list.subList(fromIndex, toIndex);
   }
 
+  private void buildIntervalIndex() {
+    maxEnd = new long[list.size()];
+    long end = Long.MIN_VALUE;
+    for (int i = 0; i < maxEnd.length; i++) {
+      Note note = list.get(i);
+      end = Math.max(end, note.getTickPos() + note.getDuration());
+      maxEnd[i] = end;
+    }
+  }
+
   private void addNote(Note newNote) {
     list.add(newNote);
     if (newNote.getPitch() > maxPitch) {
@@ -217,12 +290,19 @@ public class NoteTrack implements List<Note> {
     }
   }
 
-  private void matchNoteOff(MidiEvent noteOff) {
-    for (MidiEvent noteOn : unmatchedNoteOns) {
-      if (Note.isNoteOffEventFor(noteOn, noteOff)) {
-        Note newNote = new Note(noteOn, noteOff);
+  private void matchNoteOff(EventStore events, int noteOff) {
+    Iterator<Integer> iterator = unmatchedNoteOns.iterator();
+    while (iterator.hasNext()) {
+      int noteOn = iterator.next();
+      // same conditions as in Note.isNoteOffEventFor()
+      if (events.getTick(noteOn) <= events.getTick(noteOff)
+              && events.getChannel(noteOn) == events.getChannel(noteOff)
+              && events.getData1(noteOn) == events.getData1(noteOff)) {
+        long tickPos = events.getTick(noteOn);
+        Note newNote = new Note(events.getChannel(noteOn), events.getData1(noteOn),
+                events.getData2(noteOn), tickPos, events.getTick(noteOff) - tickPos);
         addNote(newNote);
-        unmatchedNoteOns.remove(noteOn);
+        iterator.remove();
         return;
       }
     }
@@ -104,6 +104,22 @@ public class TempoTrack implements List<TempoEvent> {
       }
     }
 
+    /**
+     * The tempo factor that was used to create this time-map.
+     * @return the factor by which the sequence is accelerated.
+     */
+    public double getTempoFactor() {
+      return 1 / timeStretch;
+    }
+
+    /**
+     * The tempo track from which this time-map has been created.
+     * @return the tempo track of this time-map.
+     */
+    public TempoTrack getTempoTrack() {
+      return TempoTrack.this;
+    }
+
     /**
      * Calculate the time in seconds for a given midi tick
      * (laying within the region defined by the time-map).
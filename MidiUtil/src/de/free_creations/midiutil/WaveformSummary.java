@@ -0,0 +1,369 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A multi-resolution summary of a recorded audio take. The summary consists of
+ * several levels; on level zero an entry holds the minimum and the maximum of
+ * {@link #BASEFRAMES} frames (over all channels), on each further level an
+ * entry summarises two entries of the level below. To display the waveform
+ * at any zoom, it suffices to pick the level whose entries are about one
+ * pixel wide.
+ *
+ * The summary is built incrementally while the samples are streamed to disk
+ * and can be read by other threads while it grows (all access is
+ * synchronised).
+ *
+ * A summary also records where the take lies in the song: the MIDI tick at
+ * which the recording started and the number of frames by which the
+ * recording lags behind (the input latency).
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public final class WaveformSummary {
+
+  /**
+   * The number of frames summarised by one entry on level zero.
+   */
+  public static final int BASEFRAMES = 64;
+  /**
+   * The maximum number of levels. On the highest level an entry covers
+   * BASEFRAMES * 2^15 frames (about 47 seconds at 44100 Hz).
+   */
+  public static final int MAXLEVELS = 16;
+  private static final int MAGIC = 0x57465331; // "WFS1"
+  private static final int INITIALCAPACITY = 256;
+  private final int channelCount;
+  private final int samplingRate;
+  private double startTick = Double.NaN;
+  private int frameOffset = 0;
+  private long frameCount = 0;
+  private boolean finished = false;
+  private final float[][] minima = new float[MAXLEVELS][];
+  private final float[][] maxima = new float[MAXLEVELS][];
+  private final int[] lengths = new int[MAXLEVELS];
+  // the entry of level zero that is being filled.
+  private float pendingMinimum = Float.MAX_VALUE;
+  private float pendingMaximum = -Float.MAX_VALUE;
+  private int pendingFrames = 0;
+  private int pendingChannel = 0;
+
+  /**
+   * Create an empty summary.
+   *
+   * @param channelCount the number of interleaved channels.
+   * @param samplingRate the number of frames per second.
+   */
+  public WaveformSummary(int channelCount, int samplingRate) {
+    if (channelCount <= 0) {
+      throw new IllegalArgumentException("channelCount must be positive.");
+    }
+    this.channelCount = channelCount;
+    this.samplingRate = samplingRate;
+    for (int level = 0; level < MAXLEVELS; level++) {
+      minima[level] = new float[INITIALCAPACITY];
+      maxima[level] = new float[INITIALCAPACITY];
+    }
+  }
+
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+  public int getSamplingRate() {
+    return samplingRate;
+  }
+
+  /**
+   * @return the MIDI tick where the recording has started (NaN if unknown).
+   */
+  public synchronized double getStartTick() {
+    return startTick;
+  }
+
+  /**
+   * @param startTick the MIDI tick where the recording has started.
+   */
+  public synchronized void setStartTick(double startTick) {
+    this.startTick = startTick;
+  }
+
+  /**
+   * @return the number of frames by which the recording lags behind the
+   * sequencer.
+   */
+  public synchronized int getFrameOffset() {
+    return frameOffset;
+  }
+
+  /**
+   * @param frameOffset the number of frames by which the recording lags
+   * behind the sequencer.
+   */
+  public synchronized void setFrameOffset(int frameOffset) {
+    this.frameOffset = frameOffset;
+  }
+
+  /**
+   * @return the number of frames summarised so far.
+   */
+  public synchronized long getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * @return true if no more samples will be added.
+   */
+  public synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * @param level a level between 0 and MAXLEVELS-1.
+   * @return the number of frames covered by one entry on the given level.
+   */
+  public static long getFramesPerEntry(int level) {
+    return (long) BASEFRAMES << level;
+  }
+
+  /**
+   * Find the coarsest level whose entries are not wider than the given number
+   * of frames.
+   *
+   * @param framesPerPixel the number of frames that fall on one pixel.
+   * @return the level best suited to draw the waveform.
+   */
+  public static int chooseLevel(double framesPerPixel) {
+    int level = 0;
+    while (level < MAXLEVELS - 1 && getFramesPerEntry(level + 1) <= framesPerPixel) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * @param level a level between 0 and MAXLEVELS-1.
+   * @return the number of complete entries on the given level.
+   */
+  public synchronized int getLength(int level) {
+    return lengths[level];
+  }
+
+  /**
+   * Add interleaved samples.
+   *
+   * @param samples the samples; the frames may be split over several calls.
+   * @param offset the index of the first sample.
+   * @param length the number of samples.
+   */
+  public synchronized void add(float[] samples, int offset, int length) {
+    checkNotFinished();
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      addSample(samples[i]);
+    }
+  }
+
+  /**
+   * Add the remaining interleaved samples of the given buffer. The position of
+   * the buffer is not changed.
+   *
+   * @param samples the buffer holding the samples between position and limit.
+   */
+  public synchronized void add(FloatBuffer samples) {
+    checkNotFinished();
+    int end = samples.limit();
+    for (int i = samples.position(); i < end; i++) {
+      addSample(samples.get(i));
+    }
+  }
+
+  private void checkNotFinished() {
+    if (finished) {
+      throw new IllegalStateException("The summary has been finished.");
+    }
+  }
+
+  private void addSample(float sample) {
+    if (sample < pendingMinimum) {
+      pendingMinimum = sample;
+    }
+    if (sample > pendingMaximum) {
+      pendingMaximum = sample;
+    }
+    pendingChannel++;
+    if (pendingChannel < channelCount) {
+      return;
+    }
+    pendingChannel = 0;
+    frameCount++;
+    pendingFrames++;
+    if (pendingFrames == BASEFRAMES) {
+      flushPending();
+    }
+  }
+
+  private void flushPending() {
+    append(0, pendingMinimum, pendingMaximum);
+    pendingMinimum = Float.MAX_VALUE;
+    pendingMaximum = -Float.MAX_VALUE;
+    pendingFrames = 0;
+  }
+
+  /**
+   * Append an entry to the given level; every second entry is summarised
+   * into the next level.
+   */
+  private void append(int level, float minimum, float maximum) {
+    int index = lengths[level];
+    if (index == minima[level].length) {
+      minima[level] = Arrays.copyOf(minima[level], 2 * index);
+      maxima[level] = Arrays.copyOf(maxima[level], 2 * index);
+    }
+    minima[level][index] = minimum;
+    maxima[level][index] = maximum;
+    lengths[level] = index + 1;
+    if ((index % 2 == 1) && (level + 1 < MAXLEVELS)) {
+      append(level + 1,
+              Math.min(minima[level][index - 1], minimum),
+              Math.max(maxima[level][index - 1], maximum));
+    }
+  }
+
+  /**
+   * Mark the end of the take. The incomplete entries at the end are
+   * summarised, so the last frames become visible on all levels. No more
+   * samples can be added afterwards.
+   */
+  public synchronized void finish() {
+    if (finished) {
+      return;
+    }
+    if (pendingFrames > 0) {
+      flushPending();
+    }
+    // promote the unpaired last entry of each level.
+    for (int level = 0; level < MAXLEVELS - 1; level++) {
+      int length = lengths[level];
+      if (length % 2 == 1 && (long) (lengths[level + 1]) * 2 < length) {
+        append(level + 1, minima[level][length - 1], maxima[level][length - 1]);
+      }
+    }
+    finished = true;
+  }
+
+  /**
+   * Determine the minimum and maximum of the given range of frames, using the
+   * entries of the given level.
+   *
+   * @param level the level to be used.
+   * @param firstFrame the first frame of the range.
+   * @param lastFrame the last frame of the range (inclusive).
+   * @param result receives the minimum (index 0) and the maximum (index 1).
+   * @return false if there are no entries in the range.
+   */
+  public synchronized boolean getRange(int level, long firstFrame, long lastFrame, float[] result) {
+    long framesPerEntry = getFramesPerEntry(level);
+    long first = Math.max(0, firstFrame / framesPerEntry);
+    long last = Math.min(lengths[level] - 1, lastFrame / framesPerEntry);
+    if (lastFrame < 0 || first > last) {
+      return false;
+    }
+    float minimum = Float.MAX_VALUE;
+    float maximum = -Float.MAX_VALUE;
+    float[] levelMinima = minima[level];
+    float[] levelMaxima = maxima[level];
+    for (int i = (int) first; i <= last; i++) {
+      minimum = Math.min(minimum, levelMinima[i]);
+      maximum = Math.max(maximum, levelMaxima[i]);
+    }
+    result[0] = minimum;
+    result[1] = maximum;
+    return true;
+  }
+
+  /**
+   * Store the summary in a file (usually next to the take).
+   *
+   * @param file the file to be written.
+   * @throws IOException if the file could not be written.
+   */
+  public synchronized void writeTo(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(channelCount);
+      out.writeInt(samplingRate);
+      out.writeDouble(startTick);
+      out.writeInt(frameOffset);
+      out.writeLong(frameCount);
+      out.writeBoolean(finished);
+      for (int level = 0; level < MAXLEVELS; level++) {
+        out.writeInt(lengths[level]);
+        for (int i = 0; i < lengths[level]; i++) {
+          out.writeFloat(minima[level][i]);
+          out.writeFloat(maxima[level][i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a summary that has been stored by {@link #writeTo(java.io.File)}.
+   *
+   * @param file the file to be read.
+   * @return the summary.
+   * @throws IOException if the file could not be read or has the wrong
+   * format.
+   */
+  public static WaveformSummary readFrom(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file.getPath() + " is not a waveform summary.");
+      }
+      WaveformSummary summary = new WaveformSummary(in.readInt(), in.readInt());
+      summary.startTick = in.readDouble();
+      summary.frameOffset = in.readInt();
+      summary.frameCount = in.readLong();
+      summary.finished = in.readBoolean();
+      for (int level = 0; level < MAXLEVELS; level++) {
+        int length = in.readInt();
+        int capacity = Math.max(INITIALCAPACITY, length);
+        summary.minima[level] = new float[capacity];
+        summary.maxima[level] = new float[capacity];
+        for (int i = 0; i < length; i++) {
+          summary.minima[level][i] = in.readFloat();
+          summary.maxima[level][i] = in.readFloat();
+        }
+        summary.lengths[level] = length;
+      }
+      return summary;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.net.URL;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class EventStoreTest {
+
+  /**
+   * The store must contain the same events as the track.
+   */
+  @Test
+  public void testCreation() throws Exception {
+    System.out.println("testCreation");
+    URL midiUrl = this.getClass().getResource("resources/GoodNightLadies.midi");
+    Sequence sequence = MidiSystem.getSequence(midiUrl);
+    for (Track track : sequence.getTracks()) {
+      EventStore instance = new EventStore(track);
+      assertEquals(track.size(), instance.size());
+      assertEquals(track.ticks(), instance.ticks());
+      for (int i = 0; i < track.size(); i++) {
+        MidiEvent event = track.get(i);
+        assertEquals(event.getTick(), instance.getTick(i));
+        assertSame(event.getMessage(), instance.getMessage(i));
+        assertEquals(Note.isNoteOnEvent(event), instance.isNoteOn(i));
+        assertEquals(Note.isNoteOffEvent(event), instance.isNoteOff(i));
+        if (event.getMessage() instanceof ShortMessage) {
+          ShortMessage message = (ShortMessage) event.getMessage();
+          assertEquals(message.getCommand(), instance.getCommand(i));
+          assertEquals(message.getChannel(), instance.getChannel(i));
+          assertEquals(message.getData1(), instance.getData1(i));
+          assertEquals(message.getData2(), instance.getData2(i));
+        } else {
+          assertFalse(instance.isShortMessage(i));
+        }
+        if (event.getMessage() instanceof MetaMessage) {
+          assertEquals(((MetaMessage) event.getMessage()).getType(), instance.getMetaType(i));
+        } else {
+          assertEquals(-1, instance.getMetaType(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * The store of a track is built only once, unless the track changes.
+   */
+  @Test
+  public void testForTrack() throws Exception {
+    System.out.println("testForTrack");
+    Sequence sequence = new Sequence(Sequence.PPQ, 360);
+    Track track = sequence.createTrack();
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), 10));
+    EventStore store1 = EventStore.forTrack(track);
+    assertSame(store1, EventStore.forTrack(track));
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 1, 60, 0), 20));
+    EventStore store2 = EventStore.forTrack(track);
+    assertNotSame(store1, store2);
+    assertEquals(track.size(), store2.size());
+  }
+
+  /**
+   * Test of indexOf method, of class EventStore.
+   */
+  @Test
+  public void testIndexOf() throws Exception {
+    System.out.println("testIndexOf");
+    Sequence sequence = new Sequence(Sequence.PPQ, 360);
+    Track track = sequence.createTrack();
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), 10));
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 62, 100), 10));
+    track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 1, 60, 0), 20));
+    // plus the end-of-track event at tick 20
+    EventStore instance = new EventStore(track);
+    assertEquals(0, instance.indexOf(0));
+    assertEquals(0, instance.indexOf(10));
+    assertEquals(2, instance.indexOf(11));
+    assertEquals(2, instance.indexOf(20));
+    assertEquals(instance.size(), instance.indexOf(21));
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2013 Harald Postner <Harald at H-Postner.de>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class MidiFileParserTest {
+
+  /**
+   * The parser must produce the same sequence as the javax.sound.midi reader.
+   */
+  @Test
+  public void testGetSequence() throws Exception {
+    System.out.println("testGetSequence");
+    for (String name : new String[]{"resources/GoodNightLadies.midi", "resources/4_WieLieblich.mid"}) {
+      URL midiUrl = this.getClass().getResource(name);
+      Sequence expected = MidiSystem.getSequence(midiUrl);
+      MidiFileParser parser = MidiFileParser.parse(new File(midiUrl.toURI()));
+      Sequence result = parser.getSequence();
+      assertSame(result, parser.getSequence());
+
+      assertEquals(expected.getDivisionType(), result.getDivisionType(), 0F);
+      assertEquals(expected.getResolution(), result.getResolution());
+      assertEquals(expected.getTickLength(), result.getTickLength());
+      Track[] expectedTracks = expected.getTracks();
+      Track[] resultTracks = result.getTracks();
+      assertEquals(expectedTracks.length, resultTracks.length);
+      for (int t = 0; t < expectedTracks.length; t++) {
+        assertEquals(expectedTracks[t].size(), resultTracks[t].size());
+        for (int i = 0; i < expectedTracks[t].size(); i++) {
+          MidiEvent expectedEvent = expectedTracks[t].get(i);
+          MidiEvent resultEvent = resultTracks[t].get(i);
+          assertEquals(expectedEvent.getTick(), resultEvent.getTick());
+          assertTrue(Arrays.equals(expectedEvent.getMessage().getMessage(),
+                  resultEvent.getMessage().getMessage()));
+        }
+        // the event store is associated with the track.
+        assertSame(parser.getEvents(t), EventStore.forTrack(resultTracks[t]));
+      }
+    }
+  }
+
+  /**
+   * Parsing from a stream and from a buffer must give the same result.
+   */
+  @Test
+  public void testParseStream() throws Exception {
+    System.out.println("testParseStream");
+    URL midiUrl = this.getClass().getResource("resources/GoodNightLadies.midi");
+    MidiFileParser fromFile = MidiFileParser.parse(new File(midiUrl.toURI()));
+    MidiFileParser fromStream;
+    try (InputStream stream = midiUrl.openStream()) {
+      fromStream = MidiFileParser.parse(stream);
+    }
+    assertEquals(fromFile.getTrackCount(), fromStream.getTrackCount());
+    for (int t = 0; t < fromFile.getTrackCount(); t++) {
+      EventStore expected = fromFile.getEvents(t);
+      EventStore result = fromStream.getEvents(t);
+      assertEquals(expected.size(), result.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.getTick(i), result.getTick(i));
+        assertEquals(expected.getPacked(i), result.getPacked(i));
+      }
+    }
+  }
+
+  /**
+   * Running status must be handled and invalid data must be rejected.
+   */
+  @Test
+  public void testRunningStatus() throws Exception {
+    System.out.println("testRunningStatus");
+    byte[] file = new byte[]{
+      'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0x01, (byte) 0xE0,
+      'M', 'T', 'r', 'k', 0, 0, 0, 14,
+      0, (byte) 0x90, 60, 100,
+      10, 62, 100, // running status
+      10, 60, 0, // running status
+      0, (byte) 0xFF, 0x2F, 0};
+    MidiFileParser parser = MidiFileParser.parse(ByteBuffer.wrap(file));
+    assertEquals(480, parser.getResolution());
+    EventStore events = parser.getEvents(0);
+    assertEquals(4, events.size());
+    assertTrue(events.isNoteOn(1));
+    assertEquals(62, events.getData1(1));
+    assertEquals(10, events.getTick(1));
+    assertTrue(events.isNoteOff(2));
+    assertEquals(20, events.ticks());
+
+    file[23] = 60; // a data byte without a running status
+    try {
+      MidiFileParser.parse(ByteBuffer.wrap(file));
+      fail("InvalidMidiDataException expected");
+    } catch (InvalidMidiDataException ex) {
+      // expected
+    }
+  }
+}
@@ -98,6 +98,41 @@ public class NoteTrackTest {
     assertEquals(127, instance.getMaxPitch());
   }
 
+  /**
+   * Test of indexOfFirstSounding and indexOfFirstAfter, of class NoteTrack.
+   */
+  @Test
+  public void testIntervalIndex() throws InvalidMidiDataException {
+    System.out.println("testIntervalIndex");
+    Sequence sequence = new Sequence(Sequence.PPQ, 240, 1);
+    Track track = sequence.getTracks()[0];
+    // a long note from 0 to 1000 and short notes at 100, 200 and 2000
+    track.add(makeNoteOn(20, 0));
+    track.add(makeNoteOff(20, 1000));
+    track.add(makeNoteOn(21, 100));
+    track.add(makeNoteOff(21, 110));
+    track.add(makeNoteOn(22, 200));
+    track.add(makeNoteOff(22, 210));
+    track.add(makeNoteOn(23, 2000));
+    track.add(makeNoteOff(23, 2010));
+
+    NoteTrack instance = new NoteTrack(track, true);
+    assertEquals(4, instance.size());
+
+    // the long note sounds at 500, so the search must begin with it
+    assertEquals(0, instance.indexOfFirstSounding(500));
+    assertEquals(3, instance.indexOfFirstAfter(500));
+    // after the long note only the last note is left
+    assertEquals(3, instance.indexOfFirstSounding(1001));
+    assertEquals(4, instance.indexOfFirstAfter(2000));
+    assertEquals(4, instance.indexOfFirstSounding(3000));
+    assertEquals(0, instance.indexOfFirstAfter(-1));
+
+    NoteTrack empty = new NoteTrack(null);
+    assertEquals(0, empty.indexOfFirstSounding(0));
+    assertEquals(0, empty.indexOfFirstAfter(0));
+  }
+
   private MidiEvent makeNoteOn(int pitch, long tick) {
     ShortMessage message = new ShortMessage();
     try {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.midiutil;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+public class WaveformSummaryTest {
+
+  /**
+   * A stereo ramp: frame f has the value f on the left and -f on the right
+   * channel.
+   */
+  private float[] ramp(int firstFrame, int frames) {
+    float[] samples = new float[2 * frames];
+    for (int i = 0; i < frames; i++) {
+      samples[2 * i] = firstFrame + i;
+      samples[2 * i + 1] = -(firstFrame + i);
+    }
+    return samples;
+  }
+
+  /**
+   * Every level must summarise its part of the take, no matter how the
+   * samples are split into blocks.
+   */
+  @Test
+  public void testLevels() {
+    System.out.println("testLevels");
+    int frames = 10 * WaveformSummary.BASEFRAMES;
+    WaveformSummary instance = new WaveformSummary(2, 44100);
+    float[] samples = ramp(0, frames);
+    // odd block sizes, so frames are split between blocks.
+    int position = 0;
+    while (position < samples.length) {
+      int length = Math.min(37, samples.length - position);
+      instance.add(samples, position, length);
+      position += length;
+    }
+    assertEquals(frames, instance.getFrameCount());
+    assertEquals(10, instance.getLength(0));
+    assertEquals(5, instance.getLength(1));
+    assertEquals(2, instance.getLength(2));
+    assertEquals(1, instance.getLength(3));
+
+    float[] range = new float[2];
+    assertTrue(instance.getRange(0, 64, 127, range));
+    assertEquals(-127F, range[0], 0F);
+    assertEquals(127F, range[1], 0F);
+    assertTrue(instance.getRange(2, 0, 255, range));
+    assertEquals(-255F, range[0], 0F);
+    assertEquals(255F, range[1], 0F);
+    assertFalse(instance.getRange(0, frames, frames + 100, range));
+
+    // after finishing, the last entries reach the top.
+    instance.finish();
+    assertEquals(3, instance.getLength(2));
+    assertEquals(2, instance.getLength(3));
+    assertEquals(1, instance.getLength(4));
+    assertTrue(instance.getRange(4, 0, frames, range));
+    assertEquals(-(frames - 1), range[0], 0F);
+    assertEquals(frames - 1, range[1], 0F);
+  }
+
+  @Test
+  public void testChooseLevel() {
+    System.out.println("testChooseLevel");
+    assertEquals(0, WaveformSummary.chooseLevel(1));
+    assertEquals(0, WaveformSummary.chooseLevel(127));
+    assertEquals(1, WaveformSummary.chooseLevel(128));
+    assertEquals(3, WaveformSummary.chooseLevel(600));
+    assertEquals(WaveformSummary.MAXLEVELS - 1, WaveformSummary.chooseLevel(1E12));
+  }
+
+  /**
+   * A summary that has been written and read again must give the same
+   * results.
+   */
+  @Test
+  public void testWriteRead() throws Exception {
+    System.out.println("testWriteRead");
+    WaveformSummary instance = new WaveformSummary(2, 48000);
+    instance.add(FloatBuffer.wrap(ramp(0, 1000)));
+    instance.setStartTick(960);
+    instance.setFrameOffset(256);
+    instance.finish();
+
+    File file = File.createTempFile("WaveformSummaryTest", ".peaks");
+    file.deleteOnExit();
+    instance.writeTo(file);
+    WaveformSummary result = WaveformSummary.readFrom(file);
+
+    assertEquals(2, result.getChannelCount());
+    assertEquals(48000, result.getSamplingRate());
+    assertEquals(960D, result.getStartTick(), 0D);
+    assertEquals(256, result.getFrameOffset());
+    assertEquals(1000, result.getFrameCount());
+    assertTrue(result.isFinished());
+    float[] expected = new float[2];
+    float[] actual = new float[2];
+    for (int level = 0; level < WaveformSummary.MAXLEVELS; level++) {
+      assertEquals(instance.getLength(level), result.getLength(level));
+      instance.getRange(level, 0, 999, expected);
+      result.getRange(level, 0, 999, actual);
+      assertArrayEquals(expected, actual, 0F);
+    }
+  }
+}
@@ -89,7 +89,11 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
     public void run() {
       String localErrorMessage = null;
       try {
-        audioSystemInfo = new AudioSystemInfo();
+        // a probe from this session is recent enough to populate the panel.
+        audioSystemInfo = DeviceProbeCache.getDefault().getLatestProbe();
+        if (audioSystemInfo == null) {
+          audioSystemInfo = DeviceProbeCache.getDefault().probe();
+        }
       } catch (Throwable ex) {
         audioSystemInfo = null;
         localErrorMessage = ex.getMessage();
@@ -117,6 +121,8 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
   private class MicrophoneUpdater implements ActionListener {
 
     private final Recorder recorder;
+    private final float[] minima = new float[WaveformPreview.SECTIONS];
+    private final float[] maxima = new float[WaveformPreview.SECTIONS];
 
     public MicrophoneUpdater(Recorder recorder) {
       this.recorder = recorder;
@@ -124,6 +130,11 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
 
     @Override
     public void actionPerformed(ActionEvent e) {
+      int sections = recorder.getWaveform(minima, maxima);
+      waveformPreview.setWaveform(minima, maxima, sections);
+      if (recorder.getClipCountAndClear() > 0) {
+        setWarningMessage("The input signal is clipping, please reduce the input level.");
+      }
       int level = recorder.getPeakLevelAndClear();
       switch (level) {
         case 0:
@@ -400,6 +411,7 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
     lblTestInput = new javax.swing.JLabel();
     btnTestInput = new javax.swing.JButton();
     btnStopInput = new javax.swing.JButton();
+    waveformPreview = new de.free_creations.audioconfig.WaveformPreview();
     errorMessagePage = new javax.swing.JPanel();
     lblErrorMessages = new javax.swing.JLabel();
 
@@ -495,16 +507,20 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
         .addComponent(btnTestInput)
         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
         .addComponent(btnStopInput)
-        .addContainerGap(92, Short.MAX_VALUE))
+        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+        .addComponent(waveformPreview, javax.swing.GroupLayout.DEFAULT_SIZE, 80, Short.MAX_VALUE)
+        .addContainerGap())
     );
     inputTestPaneLayout.setVerticalGroup(
       inputTestPaneLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
       .addGroup(inputTestPaneLayout.createSequentialGroup()
         .addContainerGap()
-        .addGroup(inputTestPaneLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
-          .addComponent(lblTestInput)
-          .addComponent(btnTestInput)
-          .addComponent(btnStopInput))
+        .addGroup(inputTestPaneLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.CENTER)
+          .addGroup(inputTestPaneLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+            .addComponent(lblTestInput)
+            .addComponent(btnTestInput)
+            .addComponent(btnStopInput))
+          .addComponent(waveformPreview, javax.swing.GroupLayout.PREFERRED_SIZE, 32, javax.swing.GroupLayout.PREFERRED_SIZE))
         .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
     );
 
@@ -661,6 +677,7 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
     animationTimer = null;
 
     lblTestInput.setIcon(micro_off);
+    waveformPreview.clear();
     lblTestOutput.setIcon(phone_animated[0]);
     btnTestInput.setEnabled(true);
     btnTestOutput.setEnabled(true);
@@ -741,5 +758,6 @@ public class AudioSettingsPanelContent extends javax.swing.JPanel implements Con
   private javax.swing.JLabel lblTestInput;
   private javax.swing.JLabel lblTestOutput;
   private javax.swing.JPanel outputTestPanel;
+  private de.free_creations.audioconfig.WaveformPreview waveformPreview;
   // End of variables declaration//GEN-END:variables
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.audioconfig;
+
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import rtaudio4java.AudioSystem.StreamParameters;
+import rtaudio4java.AudioSystemFactory;
+
+/**
+ * Remembers the stream configuration that could be opened the last time, so
+ * the next start does not need to probe all audio devices (which can take
+ * several seconds with some drivers).
+ *
+ * The remembered configuration is only used if the driver fingerprint has not
+ * changed. The fingerprint combines the native build of RtAudio, the compiled
+ * architectures, the number of devices of the stored architecture and all
+ * stored settings. Counting the devices is cheap, probing them is not.
+ *
+ * Because a device may have been exchanged without changing the fingerprint,
+ * the caller should open the remembered configuration optimistically and then
+ * verify it with {@link #refreshInBackground(StoredConfig)}.
+ *
+ * @author Harald Postner
+ */
+public class DeviceProbeCache {
+
+  private static final Logger logger = Logger.getLogger(DeviceProbeCache.class.getName());
+  private static final String fingerprintFlag = "fingerprint";
+  private static final String outDeviceFlag = "outDevice";
+  private static final String outFirstChannelFlag = "outFirstChannel";
+  private static final String outNumberOfChannelsFlag = "outNumberOfChannels";
+  private static final String inDeviceFlag = "inDevice";
+  private static final String inFirstChannelFlag = "inFirstChannel";
+  private static final String inNumberOfChannelsFlag = "inNumberOfChannels";
+  private static final int none = -1;
+  private static DeviceProbeCache defaultCache = null;
+  private final Preferences prefs;
+  private final ExecutorService probeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      thread.setName("DeviceProbe");
+      return thread;
+    }
+  });
+  private volatile AudioSystemInfo latestProbe = null;
+
+  /**
+   * @return the cache that is stored in the audio settings.
+   */
+  public static synchronized DeviceProbeCache getDefault() {
+    if (defaultCache == null) {
+      defaultCache = new DeviceProbeCache(
+              Preferences.userNodeForPackage(StoredConfig.class).node("deviceProbeCache"));
+    }
+    return defaultCache;
+  }
+
+  DeviceProbeCache(Preferences prefs) {
+    this.prefs = prefs;
+  }
+
+  /**
+   * Get the configuration that could be opened the last time.
+   *
+   * @param config the stored settings.
+   * @return a record that can be used to open an rtaudio4java audio stream or
+   * null if there is no record for the current driver fingerprint.
+   */
+  public StoredConfig.ConfigRecord lookup(StoredConfig config) {
+    String fingerprint;
+    try {
+      fingerprint = fingerprint(config);
+    } catch (Throwable ex) {
+      logger.log(Level.INFO, "Could not determine the driver fingerprint.", ex);
+      return null;
+    }
+    return lookup(config, fingerprint);
+  }
+
+  synchronized StoredConfig.ConfigRecord lookup(StoredConfig config, String fingerprint) {
+    if (!fingerprint.equals(prefs.get(fingerprintFlag, null))) {
+      return null;
+    }
+    StreamParameters outputParameters = readParameters(outDeviceFlag,
+            outFirstChannelFlag, outNumberOfChannelsFlag);
+    if (outputParameters == null) {
+      return null;
+    }
+    StreamParameters inputParameters = readParameters(inDeviceFlag,
+            inFirstChannelFlag, inNumberOfChannelsFlag);
+    return config.makeRecord(outputParameters, inputParameters);
+  }
+
+  /**
+   * Remember a configuration that has been opened successfully.
+   *
+   * @param config the stored settings.
+   * @param record the configuration that has been opened.
+   */
+  public void remember(StoredConfig config, StoredConfig.ConfigRecord record) {
+    try {
+      remember(fingerprint(config), record);
+    } catch (Throwable ex) {
+      logger.log(Level.INFO, "Could not remember the audio configuration.", ex);
+    }
+  }
+
+  synchronized void remember(String fingerprint, StoredConfig.ConfigRecord record) throws BackingStoreException {
+    prefs.put(fingerprintFlag, fingerprint);
+    writeParameters(record.getOutputParameters(), outDeviceFlag,
+            outFirstChannelFlag, outNumberOfChannelsFlag);
+    writeParameters(record.getInputParameters(), inDeviceFlag,
+            inFirstChannelFlag, inNumberOfChannelsFlag);
+    prefs.flush();
+  }
+
+  /**
+   * Forget the remembered configuration (for example because it could not be
+   * opened).
+   */
+  public synchronized void forget() {
+    prefs.remove(fingerprintFlag);
+    try {
+      prefs.flush();
+    } catch (BackingStoreException ex) {
+      logger.log(Level.INFO, null, ex);
+    }
+  }
+
+  /**
+   * Probe all audio devices in a background thread, match the stored settings
+   * against them and remember the result. If the result differs from the
+   * remembered configuration, the new configuration will be used on the next
+   * start.
+   *
+   * @param config the stored settings.
+   * @return the result of the probe.
+   */
+  public Future<AudioSystemInfo> refreshInBackground(final StoredConfig config) {
+    return probeExecutor.submit(new Callable<AudioSystemInfo>() {
+      @Override
+      public AudioSystemInfo call() throws Exception {
+        AudioSystemInfo info;
+        try {
+          info = probe();
+        } catch (Throwable ex) {
+          throw new Exception("Could not probe the audio devices.", ex);
+        }
+        StoredConfig.ConfigRecord matched = config.match(info);
+        if (matched == null || matched.getOutputParameters() == null) {
+          logger.log(Level.WARNING, "The stored audio configuration does not match the installed devices.");
+          forget();
+          return info;
+        }
+        if (!sameParameters(matched, lookup(config))) {
+          logger.log(Level.INFO, "The audio devices have changed; the new configuration is used on the next start.");
+          remember(config, matched);
+        }
+        return info;
+      }
+    });
+  }
+
+  /**
+   * Probe all audio devices (blocking). The result is kept as the latest
+   * probe.
+   *
+   * @return the result of the probe.
+   * @throws Throwable if the audio hardware or software could not be accessed.
+   */
+  public AudioSystemInfo probe() throws Throwable {
+    AudioSystemInfo info = new AudioSystemInfo();
+    latestProbe = info;
+    return info;
+  }
+
+  /**
+   * @return the result of the latest probe in this session (null if the
+   * devices have not been probed yet).
+   */
+  public AudioSystemInfo getLatestProbe() {
+    return latestProbe;
+  }
+
+  /**
+   * Determine the driver fingerprint. This does not probe the devices.
+   */
+  private String fingerprint(StoredConfig config) {
+    int deviceCount = AudioSystemFactory
+            .getRtAudioInstance(config.getArchitectureNumber())
+            .getDeviceCount();
+    return AudioSystemFactory.getNativeBuildRevison()
+            + "|" + new TreeSet<>(AudioSystemFactory.getCompiledApi())
+            + "|" + deviceCount
+            + "|" + config.describe();
+  }
+
+  private StreamParameters readParameters(String deviceFlag, String firstChannelFlag, String numberOfChannelsFlag) {
+    int device = prefs.getInt(deviceFlag, none);
+    if (device == none) {
+      return null;
+    }
+    return new StreamParameters(device,
+            prefs.getInt(firstChannelFlag, 0),
+            prefs.getInt(numberOfChannelsFlag, 0));
+  }
+
+  private void writeParameters(StreamParameters parameters, String deviceFlag, String firstChannelFlag, String numberOfChannelsFlag) {
+    if (parameters == null) {
+      prefs.putInt(deviceFlag, none);
+      return;
+    }
+    prefs.putInt(deviceFlag, parameters.deviceId);
+    prefs.putInt(firstChannelFlag, parameters.firstChannel);
+    prefs.putInt(numberOfChannelsFlag, parameters.nChannels);
+  }
+
+  private static boolean sameParameters(StoredConfig.ConfigRecord a, StoredConfig.ConfigRecord b) {
+    if (a == null || b == null) {
+      return false;
+    }
+    return sameParameters(a.getOutputParameters(), b.getOutputParameters())
+            && sameParameters(a.getInputParameters(), b.getInputParameters());
+  }
+
+  private static boolean sameParameters(StreamParameters a, StreamParameters b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.deviceId == b.deviceId
+            && a.firstChannel == b.firstChannel
+            && a.nChannels == b.nChannels;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.audioconfig;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyses the input of the sound-card while the input is tested. For every
+ * block the analyzer removes the DC offset (by a first order high-pass
+ * filter), determines the peak and the RMS value and counts the clipped
+ * samples. The waveform of the first channel is kept, as minima and maxima
+ * of short sections, in a ring buffer for the preview.
+ *
+ * The {@link #analyze(float[]) analyze} function is called on the audio
+ * thread and does not allocate any memory. The results are handed over
+ * through atomic variables, so the user interface can read them at any time
+ * without ever blocking the audio thread.
+ *
+ * @author Harald Postner
+ */
+final class InputAnalyzer {
+
+  /**
+   * Samples whose absolute value reaches this level are counted as clipped.
+   */
+  static final float CLIPLEVEL = 0.99F;
+  /**
+   * The cut-off frequency (in Hertz) of the DC removal.
+   */
+  static final double DCCUTOFF = 20.0;
+  /**
+   * The number of sections the ring buffer of the preview can hold.
+   */
+  static final int PREVIEWLENGTH = 1024;
+  /**
+   * The duration (in seconds) of one section of the preview.
+   */
+  static final double SECTIONDURATION = 0.005;
+  private static final int ZERO = Float.floatToIntBits(0F);
+  // the results, readable from any thread.
+  private final AtomicInteger peak = new AtomicInteger(ZERO);
+  private final AtomicInteger rms = new AtomicInteger(ZERO);
+  private final AtomicInteger clipCount = new AtomicInteger(0);
+  private final float[] previewMinima = new float[PREVIEWLENGTH];
+  private final float[] previewMaxima = new float[PREVIEWLENGTH];
+  private final AtomicLong previewCount = new AtomicLong(0);
+  // the state of the audio thread.
+  private int channelCount = 0;
+  private int nFrames = 0;
+  private float dcFactor = 1F;
+  private float[] lastInput = new float[0];
+  private float[] lastOutput = new float[0];
+  private int sectionLength = 1;
+  private int sectionFill = 0;
+  private float sectionMinimum = 0F;
+  private float sectionMaximum = 0F;
+  private long sectionsWritten = 0;
+  private float blockPeak;
+  private float blockSum;
+  private int blockClipped;
+
+  /**
+   * Prepare the analyzer for a stream. Must be called before the stream
+   * starts.
+   *
+   * @param samplingRate the number of frames per second.
+   * @param nFrames the number of frames per block.
+   * @param channelCount the number of interleaved input channels.
+   */
+  void open(int samplingRate, int nFrames, int channelCount) {
+    this.channelCount = Math.max(0, channelCount);
+    this.nFrames = nFrames;
+    dcFactor = (float) (1.0 - (2.0 * Math.PI * DCCUTOFF / samplingRate));
+    lastInput = new float[this.channelCount];
+    lastOutput = new float[this.channelCount];
+    sectionLength = Math.max(1, (int) Math.round(samplingRate * SECTIONDURATION));
+    sectionFill = 0;
+    sectionMinimum = 0F;
+    sectionMaximum = 0F;
+    sectionsWritten = 0;
+    Arrays.fill(previewMinima, 0F);
+    Arrays.fill(previewMaxima, 0F);
+    previewCount.set(0);
+    peak.set(ZERO);
+    rms.set(ZERO);
+    clipCount.set(0);
+  }
+
+  /**
+   * Analyse one block of input. Only to be called from the audio thread.
+   *
+   * @param input the interleaved input samples (may be null).
+   */
+  void analyze(float[] input) {
+    int channels = channelCount;
+    if (input == null || channels <= 0) {
+      return;
+    }
+    int frames = Math.min(nFrames, input.length / channels);
+    if (frames <= 0) {
+      return;
+    }
+    int end = frames * channels;
+    blockPeak = 0F;
+    blockSum = 0F;
+    blockClipped = 0;
+    analyzeFirstChannel(input, channels, end);
+    for (int channel = 1; channel < channels; channel++) {
+      analyzeChannel(input, channel, channels, end);
+    }
+    float oldPeak;
+    int oldBits;
+    do {
+      oldBits = peak.get();
+      oldPeak = Float.intBitsToFloat(oldBits);
+    } while (blockPeak > oldPeak
+            && !peak.compareAndSet(oldBits, Float.floatToIntBits(blockPeak)));
+    rms.lazySet(Float.floatToIntBits((float) Math.sqrt(blockSum / end)));
+    if (blockClipped > 0) {
+      clipCount.addAndGet(blockClipped);
+    }
+  }
+
+  private void analyzeChannel(float[] input, int channel, int channels, int end) {
+    float x1 = lastInput[channel];
+    float y1 = lastOutput[channel];
+    float r = dcFactor;
+    for (int i = channel; i < end; i += channels) {
+      float x = input[i];
+      float y = x - x1 + r * y1;
+      x1 = x;
+      y1 = y;
+      if (Math.abs(x) >= CLIPLEVEL) {
+        blockClipped++;
+      }
+      blockPeak = Math.max(blockPeak, Math.abs(y));
+      blockSum += y * y;
+    }
+    lastInput[channel] = x1;
+    lastOutput[channel] = y1;
+  }
+
+  /**
+   * Same as analyzeChannel, but also feeds the preview.
+   */
+  private void analyzeFirstChannel(float[] input, int channels, int end) {
+    float x1 = lastInput[0];
+    float y1 = lastOutput[0];
+    float r = dcFactor;
+    for (int i = 0; i < end; i += channels) {
+      float x = input[i];
+      float y = x - x1 + r * y1;
+      x1 = x;
+      y1 = y;
+      if (Math.abs(x) >= CLIPLEVEL) {
+        blockClipped++;
+      }
+      blockPeak = Math.max(blockPeak, Math.abs(y));
+      blockSum += y * y;
+
+      sectionMinimum = Math.min(sectionMinimum, y);
+      sectionMaximum = Math.max(sectionMaximum, y);
+      sectionFill++;
+      if (sectionFill >= sectionLength) {
+        int index = (int) (sectionsWritten % PREVIEWLENGTH);
+        previewMinima[index] = sectionMinimum;
+        previewMaxima[index] = sectionMaximum;
+        sectionsWritten++;
+        sectionFill = 0;
+        sectionMinimum = 0F;
+        sectionMaximum = 0F;
+      }
+    }
+    lastInput[0] = x1;
+    lastOutput[0] = y1;
+    // publish the sections written in this block.
+    previewCount.lazySet(sectionsWritten);
+  }
+
+  /**
+   * @return the highest (DC free) peak since the last call; the peak is
+   * cleared.
+   */
+  float getPeakAndClear() {
+    return Float.intBitsToFloat(peak.getAndSet(ZERO));
+  }
+
+  /**
+   * @return the (DC free) RMS value of the last block, over all channels.
+   */
+  float getRms() {
+    return Float.intBitsToFloat(rms.get());
+  }
+
+  /**
+   * @return the number of clipped samples since the last call; the count is
+   * cleared.
+   */
+  int getClipCountAndClear() {
+    return clipCount.getAndSet(0);
+  }
+
+  /**
+   * Copy the most recent sections of the preview, the oldest first. At most
+   * half of the ring buffer is copied, so that the audio thread does not
+   * overwrite the sections while they are copied.
+   *
+   * @param minima receives the minima of the sections.
+   * @param maxima receives the maxima of the sections.
+   * @return the number of sections copied.
+   */
+  int getWaveform(float[] minima, float[] maxima) {
+    long written = previewCount.get();
+    int count = (int) Math.min(Math.min(minima.length, maxima.length),
+            Math.min(written, PREVIEWLENGTH / 2));
+    long first = written - count;
+    for (int i = 0; i < count; i++) {
+      int index = (int) ((first + i) % PREVIEWLENGTH);
+      minima[i] = previewMinima[index];
+      maxima[i] = previewMaxima[index];
+    }
+    return count;
+  }
+}
@@ -44,8 +44,7 @@ class Recorder {
     private int outputChannelCount;
     private int inputChannelCount;
     private float[] audioOutArray;
-    private volatile float peakVolt = 0.0F;
-    private final Object peakLock = new Object();
+    private final InputAnalyzer analyzer = new InputAnalyzer();
 
     @Override
     public void onOpenStream(int samplingRate, int nFrames, int inputChannelCount,
@@ -63,6 +62,7 @@ class Recorder {
 
       audioOutArray = new float[outputChannelCount * nFrames];
       Arrays.fill(audioOutArray, 0.0F);
+      analyzer.open(samplingRate, nFrames, inputChannelCount);
 
     }
 
@@ -88,7 +88,7 @@ class Recorder {
         }
       }
       // logger.log(Level.INFO, "streamTime = {0}", streamTime);
-      setPeakValue(inputBuffer);
+      analyzer.analyze(inputBuffer);
       return audioOutArray;
     }
 
@@ -103,42 +103,6 @@ class Recorder {
     @Override
     public void onStopStream() throws Throwable {
     }
-
-    private void setPeakValue(float[] inputBuffer) {
-      synchronized (peakLock) {
-        // calculate the DC current on each channel
-        float[] dcLevels = new float[inputChannelCount];
-        Arrays.fill(dcLevels, 0.0F);
-        int channel = 0;
-        for (float sample : inputBuffer) {
-          dcLevels[channel] += sample;
-          channel++;
-          if (channel == inputChannelCount) {
-            channel = 0;
-          }
-        }
-        for (int i = 0; i < inputChannelCount; i++) {
-          dcLevels[i] = dcLevels[i] / nFrames;
-        }
-
-        channel = 0;
-        for (float sample : inputBuffer) {
-          peakVolt = Math.max(Math.abs(sample - dcLevels[channel]), peakVolt);
-          channel++;
-          if (channel == inputChannelCount) {
-            channel = 0;
-          }
-        }
-      }
-    }
-
-    protected float getPeakVoltAndClear() {
-      synchronized (peakLock) {
-        float result = peakVolt;
-        peakVolt = 0.0F;
-        return result;
-      }
-    }
   }
 
   /**
@@ -262,7 +226,7 @@ class Recorder {
   }
 
   public int getPeakLevelAndClear() {
-    float peakVolt = processor.getPeakVoltAndClear();
+    float peakVolt = processor.analyzer.getPeakAndClear();
     if (peakVolt > level_4_Volt) {
       return 4;
     }
@@ -277,4 +241,29 @@ class Recorder {
     }
     return 0;
   }
+
+  /**
+   * @return the RMS value (DC free) of the last block of input.
+   */
+  public float getRmsVolt() {
+    return processor.analyzer.getRms();
+  }
+
+  /**
+   * @return the number of clipped input samples since the last call.
+   */
+  public int getClipCountAndClear() {
+    return processor.analyzer.getClipCountAndClear();
+  }
+
+  /**
+   * Copy the most recent part of the input waveform (first channel).
+   *
+   * @param minima receives the minima of short sections of the waveform.
+   * @param maxima receives the maxima of short sections of the waveform.
+   * @return the number of sections copied.
+   */
+  public int getWaveform(float[] minima, float[] maxima) {
+    return processor.analyzer.getWaveform(minima, maxima);
+  }
 }
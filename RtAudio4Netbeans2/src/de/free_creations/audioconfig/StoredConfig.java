@@ -187,6 +187,20 @@ public class StoredConfig {
               getNumberOfInputChannels());
     }
 
+    return makeRecord(outputParameters, inputParameters);
+
+  }
+
+  /**
+   * Creates a record from the stored settings and the given stream
+   * parameters.
+   *
+   * @param outputParameters the parameters of the output device (may be null).
+   * @param inputParameters the parameters of the input device (may be null).
+   * @return a record who's elements can be used to open an rtaudio4java audio
+   * stream.
+   */
+  synchronized ConfigRecord makeRecord(StreamParameters outputParameters, StreamParameters inputParameters) {
     AudioSystem.StreamOptions options = new AudioSystem.StreamOptions(
             false, //noninterleaved
             false, // minimizeLatency
@@ -206,7 +220,25 @@ public class StoredConfig {
             options);
     
     return configRecord;
+  }
 
+  /**
+   * Describes the stored settings in one line. Two objects with the same
+   * description would open the same stream on the same hardware.
+   *
+   * @return a description of all settings.
+   */
+  synchronized String describe() {
+    return getArchitectureNumber()
+            + "|" + getOutputDeviceDescription()
+            + "|" + getFirstOutputChannel()
+            + "|" + getNumberOfOutputChannels()
+            + "|" + getInputDeviceDescription()
+            + "|" + getFirstInputChannel()
+            + "|" + getNumberOfInputChannels()
+            + "|" + getSampleRate()
+            + "|" + getBufferSize()
+            + "|" + getBufferCount();
   }
 
   private int deviceName2Number(ArchitectureInfo availableDevices, String deviceName) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.audioconfig;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import javax.swing.JComponent;
+
+/**
+ * Shows the last second (or so) of the input signal while the input is being
+ * tested. Every section of the waveform is drawn as a vertical line from its
+ * minimum to its maximum; sections that reach the clip level are drawn in
+ * red.
+ *
+ * @author Harald Postner
+ */
+public class WaveformPreview extends JComponent {
+
+  /**
+   * The number of sections shown.
+   */
+  public static final int SECTIONS = 200;
+  private final float[] minima = new float[SECTIONS];
+  private final float[] maxima = new float[SECTIONS];
+  private int count = 0;
+  private final Color waveColor = new Color(0x3A, 0x6E, 0xA5);
+
+  public WaveformPreview() {
+    setPreferredSize(new Dimension(SECTIONS, 32));
+    setMinimumSize(new Dimension(40, 16));
+  }
+
+  /**
+   * Show a new part of the waveform.
+   *
+   * @param newMinima the minima of the sections, the oldest first.
+   * @param newMaxima the maxima of the sections.
+   * @param newCount the number of valid entries in the arrays.
+   */
+  public void setWaveform(float[] newMinima, float[] newMaxima, int newCount) {
+    count = Math.min(SECTIONS, newCount);
+    int offset = newCount - count;
+    System.arraycopy(newMinima, offset, minima, 0, count);
+    System.arraycopy(newMaxima, offset, maxima, 0, count);
+    repaint();
+  }
+
+  /**
+   * Remove the waveform.
+   */
+  public void clear() {
+    count = 0;
+    repaint();
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    int width = getWidth();
+    int height = getHeight();
+    int middle = height / 2;
+    g.setColor(getForeground());
+    g.drawLine(0, middle, width - 1, middle);
+    if (count == 0) {
+      return;
+    }
+    // the newest section is always at the right border.
+    int left = Math.max(0, width - count);
+    int first = count - (width - left);
+    for (int x = left; x < width; x++) {
+      float minimum = minima[first + x - left];
+      float maximum = maxima[first + x - left];
+      boolean clipped = (minimum <= -InputAnalyzer.CLIPLEVEL) || (maximum >= InputAnalyzer.CLIPLEVEL);
+      g.setColor(clipped ? Color.RED : waveColor);
+      int top = middle - Math.round(Math.min(1F, maximum) * middle);
+      int bottom = middle - Math.round(Math.max(-1F, minimum) * middle);
+      g.drawLine(x, top, x, bottom);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.audioconfig;
+
+import java.util.prefs.Preferences;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import rtaudio4java.AudioSystem.StreamParameters;
+
+/**
+ *
+ * @author Harald Postner
+ */
+public class DeviceProbeCacheTest {
+
+  private Preferences node;
+
+  @Before
+  public void setUp() throws Exception {
+    node = Preferences.userNodeForPackage(DeviceProbeCacheTest.class).node("deviceProbeCacheTest");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    node.removeNode();
+  }
+
+  /**
+   * A remembered configuration is returned only for the same fingerprint.
+   */
+  @Test
+  public void testRememberAndLookup() throws Exception {
+    System.out.println("testRememberAndLookup");
+    StoredConfig config = new StoredConfig();
+    DeviceProbeCache instance = new DeviceProbeCache(node);
+    assertNull(instance.lookup(config, "driverA"));
+
+    StoredConfig.ConfigRecord record = config.makeRecord(
+            new StreamParameters(3, 2, 2), null);
+    instance.remember("driverA", record);
+
+    StoredConfig.ConfigRecord result = new DeviceProbeCache(node).lookup(config, "driverA");
+    assertNotNull(result);
+    assertEquals(3, result.getOutputParameters().deviceId);
+    assertEquals(2, result.getOutputParameters().firstChannel);
+    assertEquals(2, result.getOutputParameters().nChannels);
+    assertNull(result.getInputParameters());
+    assertEquals(config.getSampleRate(), result.getSampleRate());
+    assertEquals(config.getBufferSize(), result.getBufferSize());
+
+    assertNull(instance.lookup(config, "driverB"));
+
+    instance.forget();
+    assertNull(instance.lookup(config, "driverA"));
+  }
+}
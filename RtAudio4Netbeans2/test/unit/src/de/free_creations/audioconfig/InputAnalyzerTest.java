@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.audioconfig;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Harald Postner
+ */
+public class InputAnalyzerTest {
+
+  private static final int SAMPLINGRATE = 44100;
+  private static final int FRAMES = 441;
+
+  /**
+   * A stereo block: a 1000 Hz sine with the given amplitude on top of a DC
+   * offset on the left channel, silence on the right channel.
+   */
+  private float[] block(float dc, float amplitude, int blockNumber) {
+    float[] samples = new float[2 * FRAMES];
+    for (int frame = 0; frame < FRAMES; frame++) {
+      double t = (double) (blockNumber * FRAMES + frame) / SAMPLINGRATE;
+      samples[2 * frame] = dc + amplitude * (float) Math.sin(2 * Math.PI * 1000 * t);
+    }
+    return samples;
+  }
+
+  /**
+   * The DC offset must not count into the peak and the RMS value.
+   */
+  @Test
+  public void testDcRemoval() {
+    System.out.println("testDcRemoval");
+    InputAnalyzer instance = new InputAnalyzer();
+    instance.open(SAMPLINGRATE, FRAMES, 2);
+    // one second to let the high-pass filter settle.
+    for (int b = 0; b < 100; b++) {
+      instance.analyze(block(0.5F, 0.1F, b));
+    }
+    instance.getPeakAndClear();
+    instance.analyze(block(0.5F, 0.1F, 100));
+    assertEquals(0.1F, instance.getPeakAndClear(), 0.005F);
+    assertEquals(0F, instance.getPeakAndClear(), 0F);
+    // over both channels, the right one being silent.
+    assertEquals(0.1F / 2F, instance.getRms(), 0.003F);
+    assertEquals(0, instance.getClipCountAndClear());
+  }
+
+  /**
+   * Samples at full scale are counted as clipped.
+   */
+  @Test
+  public void testClipping() {
+    System.out.println("testClipping");
+    InputAnalyzer instance = new InputAnalyzer();
+    instance.open(SAMPLINGRATE, FRAMES, 2);
+    float[] samples = block(0F, 0.1F, 0);
+    samples[10] = 1.0F;
+    samples[21] = -1.0F;
+    instance.analyze(samples);
+    instance.analyze(samples);
+    assertEquals(4, instance.getClipCountAndClear());
+    assertEquals(0, instance.getClipCountAndClear());
+  }
+
+  /**
+   * The preview holds the minima and maxima of sections of the first channel.
+   */
+  @Test
+  public void testWaveform() {
+    System.out.println("testWaveform");
+    InputAnalyzer instance = new InputAnalyzer();
+    instance.open(SAMPLINGRATE, FRAMES, 2);
+    float[] minima = new float[1000];
+    float[] maxima = new float[1000];
+    assertEquals(0, instance.getWaveform(minima, maxima));
+
+    // two blocks of 441 frames fill three sections of 221 frames (5 ms).
+    instance.analyze(block(0F, 0.5F, 0));
+    instance.analyze(block(0F, 0.5F, 1));
+    assertEquals(3, instance.getWaveform(minima, maxima));
+    assertEquals(0.5F, maxima[2], 0.01F);
+    assertEquals(-0.5F, minima[2], 0.02F);
+
+    // never more than half of the ring buffer.
+    for (int b = 2; b < 1000; b++) {
+      instance.analyze(block(0F, 0.5F, b));
+    }
+    assertEquals(InputAnalyzer.PREVIEWLENGTH / 2, instance.getWaveform(minima, maxima));
+  }
+}
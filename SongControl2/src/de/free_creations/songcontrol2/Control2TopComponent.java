@@ -17,6 +17,7 @@ package de.free_creations.songcontrol2;
 
 import Wii4Java.Manager;
 import Wii4Java.WiiListener;
+import de.free_creations.guicomponents.FrameScheduler;
 import de.free_creations.guicomponents.SliderVuMeter;
 import de.free_creations.guicomponents.SongTopComponent;
 import de.free_creations.midisong.*;
@@ -295,9 +296,9 @@ public final class Control2TopComponent extends SongTopComponent {
       }
     }
   };
-  private final ActionListener pollingTask = new ActionListener() {
+  private final FrameScheduler.FrameListener pollingTask = new FrameScheduler.FrameListener() {
     @Override
-    public void actionPerformed(ActionEvent e) {
+    public void frame(FrameScheduler.Frame frame) {
       //Control2TopComponent.this.updateCursorPos();
       Control2TopComponent.this.updateVuMeters();
     }
@@ -341,7 +342,6 @@ public final class Control2TopComponent extends SongTopComponent {
       }
     }
   };
-  private final Timer pollTimer = new Timer(pollingDelay, pollingTask);
   private final Timer doubleClickTimer = new Timer(doubleClickDelay, singleClickTask);
   private final int wiiInitialDelay = 1000;
   private final int wiiBetweenEventDelay = 100;
@@ -970,13 +970,13 @@ public final class Control2TopComponent extends SongTopComponent {
 
   private void updateVuMeters() {
     if (oSynth != null) {
-      sliderOrchestra.setVuValue((int) oSynth.getVuLevel(0));
+      sliderOrchestra.updateVuLevel(oSynth.getVuLevel(0));
     }
     if (vSynth != null) {
-      sliderVoices.setVuValue((int) vSynth.getVuLevel(0));
+      sliderVoices.updateVuLevel(vSynth.getVuLevel(0));
     }
     if (activeSongSession != null) {
-      sliderFeedback.setVuValue((int) activeSongSession.getAudioVuLevel());
+      sliderFeedback.updateVuLevel(activeSongSession.getAudioVuLevel());
     }
   }
 
@@ -984,12 +984,12 @@ public final class Control2TopComponent extends SongTopComponent {
     if (newValue instanceof Boolean) {
       boolean isPlaying = (Boolean) newValue;
       if (isPlaying) {
-        pollTimer.start();
+        FrameScheduler.instance().subscribe(pollingTask, pollingDelay);
         disableVoiceSelection();
 
 
       } else {
-        pollTimer.stop();
+        FrameScheduler.instance().unsubscribe(pollingTask);
         sliderOrchestra.setVuValue(sliderOrchestra.getMinVuValue());
         sliderVoices.setVuValue(sliderVoices.getMinVuValue());
         sliderFeedback.setVuValue(sliderFeedback.getMinVuValue());
@@ -15,6 +15,7 @@
  */
 package de.free_creations.songview2;
 
+import java.awt.Graphics2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.logging.Level;
@@ -35,6 +36,11 @@ abstract class Band implements PropertyChangeListener, Layer {
   private int y;
   private int bandHeight = PREF_BANDHEIGHT;
   private boolean active = false;
+  /**
+   * The backing store of this band (null if the band is not cached or has not
+   * been drawn yet).
+   */
+  private BandTileCache tileCache = null;
 
   public Band(SongCanvas canvas) {
     this.canvas = canvas;
@@ -106,12 +112,54 @@ abstract class Band implements PropertyChangeListener, Layer {
   }
 
   protected void invalidate() {
+    if (tileCache != null) {
+      tileCache.invalidate();
+    }
     int x = canvas.getDimensions().getMinimumPixel();
     int width = canvas.getDimensions().getMaximumPixel() - canvas.getDimensions().getMinimumPixel();
     canvas.repaintRectangle(x, getY(), width, getTotalHeight());
 
   }
 
+  /**
+   * Indicates whether this band can be drawn from a backing store. Bands
+   * whose appearance only changes through {@link #invalidate()} (or through
+   * a change of the zoom, position or height) may return true; the default
+   * implementation returns false.
+   *
+   * @return true if the band should be drawn from a backing store.
+   */
+  protected boolean isTileCached() {
+    return false;
+  }
+
+  /**
+   * Draw the band from its backing store, if the band is cached, or directly
+   * otherwise.
+   *
+   * @param g the graphic context of the canvas.
+   */
+  void drawCached(Graphics2D g) {
+    if (!isTileCached()) {
+      draw(g);
+      return;
+    }
+    if (tileCache == null) {
+      tileCache = new BandTileCache(this);
+    }
+    tileCache.draw(g);
+  }
+
+  /**
+   * Release the backing store of this band.
+   */
+  void releaseTiles() {
+    if (tileCache != null) {
+      tileCache.invalidate();
+      tileCache = null;
+    }
+  }
+
   protected abstract void processTrack(Track newTrack);
 
   /**
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.songview2;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.VolatileImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A backing store for a band. The band is rendered into tiles (vertical
+ * stripes of {@link #TILEWIDTH} pixels) which are then copied onto the canvas.
+ * As long as the band does not change, scrolling and repainting the cursor
+ * only copy the tiles instead of drawing all notes and lyrics again.
+ *
+ * The tiles are discarded when the band is invalidated or when the zoom
+ * (the midi to pixel factor), the extent of the canvas, or the position and
+ * height of the band change.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class BandTileCache {
+
+  /**
+   * The width of a tile in pixels.
+   */
+  static final int TILEWIDTH = 256;
+  private final Band band;
+  private final Map<Integer, VolatileImage> tiles = new HashMap<Integer, VolatileImage>();
+  // the properties the tiles have been rendered with.
+  private double midiToPixelFactor = 0.0D;
+  private int minimumPixel = 0;
+  private int maximumPixel = 0;
+  private int bandY = 0;
+  private int bandHeight = 0;
+
+  BandTileCache(Band band) {
+    this.band = band;
+  }
+
+  /**
+   * Discard all tiles; they will be rendered again when they are needed.
+   */
+  void invalidate() {
+    for (VolatileImage tile : tiles.values()) {
+      tile.flush();
+    }
+    tiles.clear();
+  }
+
+  /**
+   * Draw the band by copying the tiles that intersect the clip area (or, if
+   * there is no clip, the viewport). Missing tiles are rendered first.
+   *
+   * @param g the graphic context of the canvas (in canvas coordinates).
+   */
+  void draw(Graphics2D g) {
+    Dimensions dimensions = band.canvas.getDimensions();
+    checkProperties(dimensions);
+    if (bandHeight <= 0) {
+      return;
+    }
+    int left;
+    int right;
+    Rectangle clip = g.getClipBounds();
+    if (clip != null) {
+      if (clip.y >= bandY + bandHeight || clip.y + clip.height <= bandY) {
+        // the band is not visible in the clip area.
+        return;
+      }
+      left = clip.x;
+      right = clip.x + clip.width;
+    } else {
+      left = dimensions.getViewportLeftPixel();
+      right = left + dimensions.getViewportWidthPixel();
+    }
+    int firstTile = Math.floorDiv(left, TILEWIDTH);
+    int lastTile = Math.floorDiv(right - 1, TILEWIDTH);
+    GraphicsConfiguration gc = g.getDeviceConfiguration();
+    for (int index = firstTile; index <= lastTile; index++) {
+      if (!drawTile(g, gc, index)) {
+        // no backing store available, draw the band directly
+        band.draw(g);
+        return;
+      }
+    }
+    // keep the tiles of the neighbouring screens, discard those further away.
+    int viewportTiles = dimensions.getViewportWidthPixel() / TILEWIDTH + 1;
+    discardTiles(firstTile - viewportTiles, lastTile + viewportTiles);
+  }
+
+  private boolean drawTile(Graphics2D g, GraphicsConfiguration gc, int index) {
+    VolatileImage tile = tiles.get(index);
+    int attempts = 0;
+    do {
+      boolean render = false;
+      if (tile == null) {
+        tile = createTile(gc, index);
+        if (tile == null) {
+          return false;
+        }
+        render = true;
+      }
+      int status = tile.validate(gc);
+      if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+        tile.flush();
+        tile = createTile(gc, index);
+        if (tile == null) {
+          return false;
+        }
+        render = true;
+      } else if (status == VolatileImage.IMAGE_RESTORED) {
+        render = true;
+      }
+      if (render) {
+        renderTile(g, tile, index);
+      }
+      g.drawImage(tile, index * TILEWIDTH, bandY, null);
+      attempts++;
+    } while (tile.contentsLost() && attempts < 3);
+    return true;
+  }
+
+  private VolatileImage createTile(GraphicsConfiguration gc, int index) {
+    VolatileImage tile;
+    try {
+      tile = gc.createCompatibleVolatileImage(TILEWIDTH, bandHeight, Transparency.TRANSLUCENT);
+    } catch (RuntimeException ex) {
+      tile = null;
+    }
+    if (tile == null) {
+      tiles.remove(index);
+    } else {
+      tiles.put(index, tile);
+    }
+    return tile;
+  }
+
+  private void renderTile(Graphics2D g, VolatileImage tile, int index) {
+    Graphics2D tileG = tile.createGraphics();
+    try {
+      tileG.setComposite(AlphaComposite.Clear);
+      tileG.fillRect(0, 0, TILEWIDTH, bandHeight);
+      tileG.setComposite(AlphaComposite.SrcOver);
+      tileG.setRenderingHints(g.getRenderingHints());
+      tileG.setFont(g.getFont());
+      int tileX = index * TILEWIDTH;
+      tileG.translate(-tileX, -bandY);
+      tileG.clipRect(tileX, bandY, TILEWIDTH, bandHeight);
+      band.draw(tileG);
+    } finally {
+      tileG.dispose();
+    }
+  }
+
+  private void discardTiles(int firstKept, int lastKept) {
+    Iterator<Map.Entry<Integer, VolatileImage>> iterator = tiles.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Integer, VolatileImage> entry = iterator.next();
+      int index = entry.getKey();
+      if (index < firstKept || index > lastKept) {
+        entry.getValue().flush();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Discard the tiles if they have been rendered with other properties.
+   */
+  private void checkProperties(Dimensions dimensions) {
+    double newMidiToPixelFactor = dimensions.getMidiToPixelFactor();
+    int newMinimumPixel = dimensions.getMinimumPixel();
+    int newMaximumPixel = dimensions.getMaximumPixel();
+    int newBandY = band.getY();
+    int newBandHeight = band.getTotalHeight();
+    if (newMidiToPixelFactor != midiToPixelFactor
+            || newMinimumPixel != minimumPixel
+            || newMaximumPixel != maximumPixel
+            || newBandY != bandY
+            || newBandHeight != bandHeight) {
+      invalidate();
+      midiToPixelFactor = newMidiToPixelFactor;
+      minimumPixel = newMinimumPixel;
+      maximumPixel = newMaximumPixel;
+      bandY = newBandY;
+      bandHeight = newBandHeight;
+    }
+  }
+}
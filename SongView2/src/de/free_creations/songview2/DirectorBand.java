@@ -15,15 +15,13 @@
  */
 package de.free_creations.songview2;
 
+import de.free_creations.guicomponents.FrameScheduler;
 import de.free_creations.midiutil.TimeSignature;
 import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.awt.geom.Line2D;
 import java.util.ArrayList;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.Track;
-import javax.swing.Timer;
 
 /**
  *
@@ -49,10 +47,9 @@ final class DirectorBand extends Band {
     private final double minSpeed = 5E-8; // pixel / per nano-second
     private final double damping = 1E-1; // 
     private final int updatePeriode = 50;
-    private final Timer timer = new Timer(updatePeriode,
-            new ActionListener() {
+    private final FrameScheduler.FrameListener frameListener = new FrameScheduler.FrameListener() {
       @Override
-      public void actionPerformed(ActionEvent e) {
+      public void frame(FrameScheduler.Frame frame) {
         if (Math.abs(speed) < minSpeed) {
           stop();
           return;
@@ -62,21 +59,21 @@ final class DirectorBand extends Band {
         int newLeft = canvas.getDimensions().getViewportLeftPixel() - deltaX;
         canvas.getDimensions().setViewportLeftPixel(newLeft);
       }
-    });
+    };
 
     public void start(double speed) {
       this.speed = speed;
 
-      timer.start();
+      FrameScheduler.instance().subscribe(frameListener, updatePeriode);
     }
 
     public void stop() {
 
-      timer.stop();
+      FrameScheduler.instance().unsubscribe(frameListener);
     }
 
     public boolean isRunning() {
-      return timer.isRunning();
+      return FrameScheduler.instance().isSubscribed(frameListener);
     }
   }
   private Drifter drifter = new Drifter();
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.songview2;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A cache of rendered lyric syllables. The syllables are rasterised when they
+ * are drawn for the first time and are packed into a few large images (the
+ * pages), so that a syllable that occurs several times in a song is only
+ * rendered once.
+ *
+ * The rendered syllables depend on the font, the color and the horizontal
+ * stretch factor; they are discarded when one of these changes. A change of
+ * the zoom alone does not discard them.
+ *
+ * @author Harald Postner <Harald at H-Postner.de>
+ */
+final class LyricAtlas {
+
+  static final int PAGEWIDTH = 1024;
+  static final int PAGEHEIGHT = 256;
+
+  /**
+   * The position of a rendered syllable.
+   */
+  private static final class Slot {
+
+    final BufferedImage page;
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+
+    Slot(BufferedImage page, int x, int y, int width, int height) {
+      this.page = page;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+  }
+  private final ArrayList<BufferedImage> pages = new ArrayList<BufferedImage>();
+  private final HashMap<String, Slot> slots = new HashMap<String, Slot>();
+  private Font font = null;
+  private Color color = null;
+  private double stretch = 0.0D;
+  // the place where the next syllable will be put on the current page
+  private int nextX = 0;
+  private int nextY = 0;
+  private int rowHeight = 0;
+
+  /**
+   * Set the properties that the syllables are rendered with. If one of them
+   * differs from the previous call, all rendered syllables are discarded.
+   *
+   * @param newFont the font of the lyrics.
+   * @param newColor the text color.
+   * @param newStretch the horizontal stretch factor.
+   */
+  void configure(Font newFont, Color newColor, double newStretch) {
+    if (newFont.equals(font) && newColor.equals(color) && newStretch == stretch) {
+      return;
+    }
+    clear();
+    font = newFont;
+    color = newColor;
+    stretch = newStretch;
+  }
+
+  /**
+   * Discard all rendered syllables.
+   */
+  void clear() {
+    for (BufferedImage page : pages) {
+      page.flush();
+    }
+    pages.clear();
+    slots.clear();
+    nextX = 0;
+    nextY = 0;
+    rowHeight = 0;
+  }
+
+  /**
+   * Draw a syllable. The syllable is rendered into the atlas if this has not
+   * been done before.
+   *
+   * @param g the graphic context to draw on.
+   * @param text the syllable.
+   * @param width the width of the syllable box in pixels.
+   * @param height the height of the syllable box in pixels.
+   * @param ascent the ascent of the font.
+   * @param x the left border of the box.
+   * @param y the top border of the box.
+   * @param observer the image observer.
+   */
+  void drawString(Graphics2D g, String text, int width, int height, int ascent,
+          int x, int y, ImageObserver observer) {
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    Slot slot = slots.get(text);
+    if (slot == null) {
+      slot = render(text, width, height, ascent);
+      slots.put(text, slot);
+    }
+    g.drawImage(slot.page,
+            x, y, x + slot.width, y + slot.height,
+            slot.x, slot.y, slot.x + slot.width, slot.y + slot.height,
+            observer);
+  }
+
+  private Slot render(String text, int width, int height, int ascent) {
+    BufferedImage page;
+    int slotX;
+    int slotY;
+    if (width > PAGEWIDTH || height > PAGEHEIGHT) {
+      // too large for a page, gets a page of its own.
+      page = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+      slotX = 0;
+      slotY = 0;
+    } else {
+      if (nextX + width > PAGEWIDTH) {
+        // start a new row
+        nextX = 0;
+        nextY += rowHeight;
+        rowHeight = 0;
+      }
+      if (pages.isEmpty() || nextY + height > PAGEHEIGHT) {
+        // start a new page
+        pages.add(new BufferedImage(PAGEWIDTH, PAGEHEIGHT, BufferedImage.TYPE_INT_ARGB_PRE));
+        nextX = 0;
+        nextY = 0;
+        rowHeight = 0;
+      }
+      page = pages.get(pages.size() - 1);
+      slotX = nextX;
+      slotY = nextY;
+      nextX += width;
+      rowHeight = Math.max(rowHeight, height);
+    }
+
+    Graphics2D pageG = page.createGraphics();
+    try {
+      pageG.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+              RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB);
+      pageG.clipRect(slotX, slotY, width, height);
+      pageG.setComposite(AlphaComposite.Clear);
+      pageG.fillRect(slotX, slotY, width, height);
+      pageG.setComposite(AlphaComposite.SrcOver);
+      pageG.setColor(color);
+      pageG.setFont(font);
+      pageG.translate(slotX, slotY);
+      pageG.scale(stretch, 1.0);
+      pageG.drawString(text, 0, ascent);
+    } finally {
+      pageG.dispose();
+    }
+    return new Slot(page, slotX, slotY, width, height);
+  }
+}
@@ -219,7 +219,11 @@ class SongCanvasImpl extends JPanel
 
 
     for (Layer layer : layers) {
-      layer.draw(g2d);
+      if (layer instanceof Band) {
+        ((Band) layer).drawCached(g2d);
+      } else {
+        layer.draw(g2d);
+      }
     }
 
     // reset the transformation to what it was before.
@@ -298,6 +302,11 @@ class SongCanvasImpl extends JPanel
     // horizontalScrollModel = new HorizontalScrollModel(dimensions);
     dimensions.setMaximumPixel(0);
     dimensions.setMinimumPixel(0);
+    for (Layer layer : layers) {
+      if (layer instanceof Band) {
+        ((Band) layer).releaseTiles();
+      }
+    }
     zones.clear();
     layers.clear();
   }
@@ -15,12 +15,11 @@
  */
 package de.free_creations.songview2;
 
+import de.free_creations.guicomponents.FrameScheduler;
 import de.free_creations.guicomponents.SwingExecutor;
 import de.free_creations.midisong.GenericTrack;
 import de.free_creations.midisong.GenericTrack.EventHandler;
 import de.free_creations.midisong.SongSession;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
@@ -29,7 +28,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.midi.Track;
 import javax.swing.SwingUtilities;
-import javax.swing.Timer;
 import org.openide.util.Exceptions;
 
 /**
@@ -89,19 +87,21 @@ public class SongPanel extends SongCanvasImpl {
 
   private DirectorBand directorBand;
   private ArrayList<TrackBand> trackBands = new ArrayList<TrackBand>();
+  private WaveformBand waveformBand = null;
   private SongSession session = null;
   private final static int cursorUpdatePeriode = 100; // in milliseconds
   /**
-   * The Handler that reacts on cursor update events generated by the cursor
-   * timer.
+   * The Handler that reacts on the frames of the frame scheduler.
    */
-  private final ActionListener cursorUpdateTask = new ActionListener() {
+  private final FrameScheduler.FrameListener cursorUpdateTask = new FrameScheduler.FrameListener() {
     @Override
-    public void actionPerformed(ActionEvent e) {
-      SongPanel.this.synchronizeCursor();
+    public void frame(FrameScheduler.Frame frame) {
+      if (session != null) {
+        setCursorVisible((long) frame.getTickPosition(session, 0.05));
+        updateWaveform();
+      }
     }
   };
-  private final Timer cursorTimer = new Timer(cursorUpdatePeriode, cursorUpdateTask);
   private LeftVoidZone leftVoidZone;
   private RightVoidZone rightVoidZone;
   private volatile boolean playing = false;
@@ -280,6 +280,10 @@ public class SongPanel extends SongCanvasImpl {
     for (TrackBand t : trackBands) {
       newY = zoomTrackBand(t, newY);
     }
+    if (waveformBand != null) {
+      waveformBand.setBandHeight((int) (DEFAULT_MIDI_BANDHEIGHT * verticalZoomFactor));
+      waveformBand.setY(newY);
+    }
     repaint();
 
   }
@@ -337,6 +341,12 @@ public class SongPanel extends SongCanvasImpl {
           }
         }
       }
+      waveformBand = new WaveformBand(SongPanel.this);
+      waveformBand.setBandHeight((int) (DEFAULT_MIDI_BANDHEIGHT * verticalZoomFactor));
+      waveformBand.setY(YPos);
+      addBand(waveformBand);
+      updateWaveform();
+
       leftVoidZone = new LeftVoidZone(SongPanel.this);
       addZone(leftVoidZone);
       rightVoidZone = new RightVoidZone(SongPanel.this);
@@ -440,10 +450,16 @@ public class SongPanel extends SongCanvasImpl {
     getDimensions().setCursorMidi(tick);
   }
 
-  private void synchronizeCursor() {
-    if (session != null) {
-      setCursorVisible((long) session.getTickPosition(0.05));
+  /**
+   * Show the most recent audio take of the session (or the part that has been
+   * recorded so far).
+   */
+  private void updateWaveform() {
+    if (waveformBand == null || session == null) {
+      return;
     }
+    waveformBand.setWaveform(session.getRecordedWaveform(),
+            session.getTempoTrack(), session.getTempoFactor());
   }
 
   private void sessionPlayingChanged(final boolean playing) {
@@ -453,11 +469,12 @@ public class SongPanel extends SongCanvasImpl {
         logger.log(Level.FINER, "sessionPlayingChanged( {0} )", playing);
         SongPanel.this.playing = playing;
         if (playing) {
-          cursorTimer.start();
+          FrameScheduler.instance().subscribe(cursorUpdateTask, cursorUpdatePeriode);
           setAnimated(true);
         } else {
-          cursorTimer.stop();
+          FrameScheduler.instance().unsubscribe(cursorUpdateTask);
           setAnimated(false);
+          updateWaveform();
         }
       }
     };
@@ -466,6 +483,7 @@ public class SongPanel extends SongCanvasImpl {
 
   public void connectSession(SongSession session) {
     this.session = session;
+    updateWaveform();
     SessionToViewConnector sessionToView = new SessionToViewConnector(getDimensions());
     session.addPropertyChangeListener(sessionToView);
 
@@ -17,10 +17,9 @@ package de.free_creations.songview2;
 
 import de.free_creations.midiutil.*;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.HashMap;
 import javax.sound.midi.Track;
 
 /**
@@ -47,7 +46,29 @@ public class TrackBand extends Band {
   private NoteTrack noteTrack = null;
   private LyricTrack lyricsTrack = null;
   private ArrayList<LyricBox> lyricBoxes = null;
+  /**
+   * the widest lyric box (used to find the first visible box).
+   */
+  private int maxLyricBoxWidth = 0;
+  /**
+   * the rendered syllables.
+   */
+  private final LyricAtlas lyricAtlas = new LyricAtlas();
+  /**
+   * the horizontal stretch factor of the lyrics.
+   */
+  private double lyricsStretch = 1.0D;
+  /**
+   * the (unstretched) bounds of the syllables, measured with
+   * {@link #lyricBoundsFont}.
+   */
+  private final HashMap<String, Rectangle2D> lyricBounds = new HashMap<String, Rectangle2D>();
+  private Font lyricBoundsFont = null;
   private float pitchToPixelFactor;
+  /**
+   * the shape used to fill the notes (re-used for every note).
+   */
+  private final Rectangle2D.Float noteShape = new Rectangle2D.Float();
 
   /**
    * the font to be used for the lyrics. Can only be determined once we have a
@@ -126,6 +147,15 @@ public class TrackBand extends Band {
     invalidate();
   }
 
+  /**
+   * Track bands only change when they are invalidated, so they can be drawn
+   * from a backing store.
+   */
+  @Override
+  protected boolean isTileCached() {
+    return true;
+  }
+
   @Override
   public int getTotalHeight() {
     return getBandHeight() + lyricsHeightPixels + 3;
@@ -171,20 +201,26 @@ public class TrackBand extends Band {
 
   private class LyricBox {
 
-    private final Image image;
+    private final String text;
     private final int x;
     private final boolean connectToPrevious;
     private final int width;
+    private final int height;
 
-    LyricBox(Image image, int x, int width, boolean connectToPrevious) {
-      this.image = image;
+    LyricBox(String text, int x, int width, int height, boolean connectToPrevious) {
+      this.text = text;
       this.x = x;
       this.connectToPrevious = connectToPrevious;
       this.width = width;
+      this.height = height;
     }
 
-    public Image getImage() {
-      return image;
+    public String getText() {
+      return text;
+    }
+
+    private int getHeight() {
+      return height;
     }
 
     public int getX() {
@@ -285,7 +321,8 @@ public class TrackBand extends Band {
   }
 
   /**
-   * Draw the notes.
+   * Draw the notes. Only the notes that intersect the clip area (or, if
+   * there is no clip, the viewport) are visited.
    *
    * @param g the graphic context to draw on.
    */
@@ -304,15 +341,35 @@ public class TrackBand extends Band {
     if (noteHeight < 1.0F) {
       noteHeight = 1.0F;
     }
-    for (Note note : noteTrack) {
-      float noteX = canvas.getDimensions().midiToPixel(note.getTickPos());
-      float noteWidth = canvas.getDimensions().midiToPixel(note.getDuration()) - 2.0F;
+    Dimensions dimensions = canvas.getDimensions();
+    int leftPixel;
+    int rightPixel;
+    Rectangle clip = g.getClipBounds();
+    if (clip != null) {
+      leftPixel = clip.x;
+      rightPixel = clip.x + clip.width;
+    } else {
+      leftPixel = dimensions.getViewportLeftPixel();
+      rightPixel = leftPixel + dimensions.getViewportWidthPixel();
+    }
+    // widen the interval by two pixels to compensate for rounding.
+    long leftTick = dimensions.pixelToMidi(leftPixel - 2);
+    long rightTick = dimensions.pixelToMidi(rightPixel + 2);
+    int first = noteTrack.indexOfFirstSounding(leftTick);
+    int last = noteTrack.indexOfFirstAfter(rightTick);
+    for (int i = first; i < last; i++) {
+      Note note = noteTrack.get(i);
+      if (note.getTickPos() + note.getDuration() < leftTick) {
+        continue;
+      }
+      float noteX = dimensions.midiToPixel(note.getTickPos());
+      float noteWidth = dimensions.midiToPixel(note.getDuration()) - 2.0F;
       if (noteWidth < 1.0F) {
         noteWidth = 1.0F;
       }
       float noteY = pitchToPixel(note.getPitch());
-      Shape noteLine = new Rectangle2D.Float(noteX, noteY, noteWidth, noteHeight);
-      g.fill(noteLine);
+      noteShape.setRect(noteX, noteY, noteWidth, noteHeight);
+      g.fill(noteShape);
     }
   }
 
@@ -324,13 +381,38 @@ public class TrackBand extends Band {
     updateLyricBoxes(g);
 
     g.setColor(currentTextColor);
+    lyricAtlas.configure(g.getFont(), currentTextColor, lyricsStretch);
+    int ascent = fontMetrics.getAscent();
     int lyricY = getY() + getBandHeight();
-    int connectionY = lyricY + fontMetrics.getAscent();
+    int connectionY = lyricY + ascent;
+
+    // only the boxes in the clip area (or the viewport) need to be drawn
+    Dimensions dimensions = canvas.getDimensions();
+    int leftPixel;
+    int rightPixel;
+    Rectangle clip = g.getClipBounds();
+    if (clip != null) {
+      leftPixel = clip.x;
+      rightPixel = clip.x + clip.width;
+    } else {
+      leftPixel = dimensions.getViewportLeftPixel();
+      rightPixel = leftPixel + dimensions.getViewportWidthPixel();
+    }
+    // start one box earlier, the connection line might reach into the clip
+    int first = Math.max(0, firstLyricBoxAt(leftPixel - maxLyricBoxWidth - 1) - 1);
     int previousX = Integer.MIN_VALUE;
-    for (LyricBox lyricBox : lyricBoxes) {
-      Image image = lyricBox.getImage();
+    if (first > 0) {
+      LyricBox previousBox = lyricBoxes.get(first - 1);
+      previousX = previousBox.getX() + 1 + previousBox.getWidth();
+    }
+    for (int i = first; i < lyricBoxes.size(); i++) {
+      LyricBox lyricBox = lyricBoxes.get(i);
       int thisX = lyricBox.getX() + 1; // we shift the Lyrics by one pixel to the left
-      g.drawImage(image, thisX, lyricY, canvas);
+      if (thisX > rightPixel) {
+        break;
+      }
+      lyricAtlas.drawString(g, lyricBox.getText(), lyricBox.getWidth(), lyricBox.getHeight(),
+              ascent, thisX, lyricY, canvas);
       if (lyricBox.isConnected()) {
         int lineStartX = previousX + 1;
         int lineEndX = thisX - 1;
@@ -342,6 +424,26 @@ public class TrackBand extends Band {
     }
   }
 
+  /**
+   * Find the first lyric box that starts at or after the given position.
+   *
+   * @param pixel a position on the canvas.
+   * @return an index into lyricBoxes.
+   */
+  private int firstLyricBoxAt(int pixel) {
+    int low = 0;
+    int high = lyricBoxes.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (lyricBoxes.get(middle).getX() < pixel) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
   private void updateLyricBoxes(Graphics2D g) {
     FontMetrics fontMetrics = g.getFontMetrics();
     // avoid to re-calculate the lyrics boxes if not needed.
@@ -352,45 +454,39 @@ public class TrackBand extends Band {
     }
 
     lyricBoxes.clear();
+    maxLyricBoxWidth = 0;
     double stretchFactor = calculateLyricsStretch(fontMetrics);
+    lyricsStretch = stretchFactor;
     boolean previousIsHypenized = false;
     for (Lyric lyric : lyricsTrack) {
       int lyricX = canvas.getDimensions().midiToPixel(lyric.getTickPos());
-      Image image = makeStringRectangle(lyric.getText(), g, stretchFactor);
-      LyricBox lyricBox = new LyricBox(image, lyricX, image.getWidth(canvas), previousIsHypenized);
+      Rectangle2D rect = getLyricBounds(lyric.getText(), g);
+      int height = (int) Math.floor(rect.getHeight());
+      int width = (int) Math.floor(stretchFactor * rect.getWidth()) + 3;
+      LyricBox lyricBox = new LyricBox(lyric.getText(), lyricX, width, height, previousIsHypenized);
       lyricBoxes.add(lyricBox);
+      maxLyricBoxWidth = Math.max(maxLyricBoxWidth, width);
       previousIsHypenized = lyric.isHyphenated();
     }
     previousMidiToPixelFactor = canvas.getDimensions().getMidiToPixelFactor();
     forceLyricRepaint = false;
   }
 
-  private Image makeStringRectangle(String text, Graphics2D g, double stretch) {
-    //stretch = 1.0D; //inhibit stretching
-    FontMetrics metrics = g.getFontMetrics();
-    Rectangle2D rect = metrics.getStringBounds(text, g);
-    int height = (int) Math.floor(rect.getHeight());
-    int width = (int) Math.floor(stretch * rect.getWidth()) + 3;
-    //Image image = canvas.createImage(width, height);
-    Image image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
-
-    Graphics2D imageG = (Graphics2D) image.getGraphics();
-    imageG.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
-            RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB);
-
-    imageG.setColor(new Color(0, 0, 0, 0)); // transparent
-    imageG.fillRect(0, 0, width, height);
-    imageG.setColor(currentTextColor);
-    imageG.setFont(g.getFont());
-    AffineTransform at = new AffineTransform();
-
-    at.scale(stretch, 1.0);
-    imageG.transform(at);
-
-    // Draw Text
-    imageG.drawString(text, 0, metrics.getAscent());
-
-    return image;
+  /**
+   * Measure a syllable. The syllables are only measured once per font, the
+   * result does not depend on the zoom.
+   */
+  private Rectangle2D getLyricBounds(String text, Graphics2D g) {
+    if (!g.getFont().equals(lyricBoundsFont)) {
+      lyricBounds.clear();
+      lyricBoundsFont = g.getFont();
+    }
+    Rectangle2D rect = lyricBounds.get(text);
+    if (rect == null) {
+      rect = g.getFontMetrics().getStringBounds(text, g);
+      lyricBounds.put(text, rect);
+    }
+    return rect;
   }
 
   @Override
@@ -399,6 +495,8 @@ public class TrackBand extends Band {
     lyricsTrack = new LyricTrack(newTrack);
     trackName = MidiUtil.readTrackname(newTrack);
     lyricBoxes = new ArrayList<LyricBox>();
+    maxLyricBoxWidth = 0;
+    lyricAtlas.clear();
     updatePitchToPixelFactor();
     previousMidiToPixelFactor = 0.0D;
   }
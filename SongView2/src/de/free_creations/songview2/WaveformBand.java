@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Harald Postner.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.free_creations.songview2;
+
+import de.free_creations.midiutil.TempoTrack;
+import de.free_creations.midiutil.WaveformSummary;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Rectangle;
+import javax.sound.midi.Track;
+
+/**
+ * Shows the waveform of a recorded take below the tracks. The take is aligned
+ * to the MIDI ticks through the tempo track of the song; every pixel column
+ * is drawn as a line from the minimum to the maximum of the samples that fall
+ * on it. The values are taken from the level of the {@link WaveformSummary}
+ * whose entries are about one pixel wide at the current zoom, so the cost of
+ * drawing does not depend on the length of the take.
+ *
+ * While the take is being recorded the summary grows; the band must be
+ * refreshed (see {@link #setWaveform}) to show the new part.
+ *
+ * @author Harald Postner
+ */
+class WaveformBand extends Band {
+
+  private final Color waveColor = new Color(0x3A, 0x6E, 0xA5);
+  private final Color lineColor = new Color(0, 0, 0, 80);
+  private WaveformSummary summary = null;
+  private TempoTrack.TimeMap timeMap = null;
+  private long drawnFrames = 0;
+  private final float[] range = new float[2];
+
+  public WaveformBand(SongCanvas canvas) {
+    super(canvas);
+  }
+
+  /**
+   * Show the given take. Calling this function again with the same summary
+   * repaints the band only if the summary has grown.
+   *
+   * @param newSummary the summary of the take (null to show nothing).
+   * @param tempoTrack the tempo track of the song (null if not known).
+   * @param tempoFactor the tempo factor used while the take was recorded.
+   */
+  public void setWaveform(WaveformSummary newSummary, TempoTrack tempoTrack, double tempoFactor) {
+    if (newSummary == summary) {
+      if (summary != null && summary.getFrameCount() != drawnFrames) {
+        invalidate();
+      }
+      return;
+    }
+    summary = newSummary;
+    timeMap = null;
+    if (summary != null && tempoTrack != null && tempoFactor > 0D) {
+      double startTick = summary.getStartTick();
+      // takes with unknown start cannot be aligned.
+      if (!Double.isNaN(startTick) && startTick >= 0D) {
+        timeMap = tempoTrack.CreateTimeMap(startTick, Double.MAX_VALUE, tempoFactor);
+      }
+    }
+    invalidate();
+  }
+
+  /**
+   * @return the summary currently shown (may be null).
+   */
+  public WaveformSummary getWaveform() {
+    return summary;
+  }
+
+  @Override
+  public int getTotalHeight() {
+    return getBandHeight();
+  }
+
+  @Override
+  protected void processTrack(Track newTrack) {
+  }
+
+  @Override
+  public void draw(Graphics2D g) {
+    Paint originalPaint = g.getPaint();
+
+    int canvasleft = canvas.getDimensions().getMinimumPixel();
+    int canvasright = canvas.getDimensions().getMaximumPixel();
+    int middle = getY() + getBandHeight() / 2;
+    int halfHeight = getBandHeight() / 2;
+    g.setPaint(lineColor);
+    g.drawLine(canvasleft, middle, canvasright, middle);
+
+    WaveformSummary currentSummary = summary;
+    TempoTrack.TimeMap currentTimeMap = timeMap;
+    if (currentSummary == null || currentTimeMap == null) {
+      g.setPaint(originalPaint);
+      return;
+    }
+    drawnFrames = currentSummary.getFrameCount();
+
+    int left = canvasleft;
+    int right = canvasright;
+    Rectangle clip = g.getClipBounds();
+    if (clip != null) {
+      left = Math.max(left, clip.x);
+      right = Math.min(right, clip.x + clip.width);
+    }
+    double pixelToMidi = canvas.getDimensions().getPixelToMidiFactor();
+    double startTick = currentSummary.getStartTick();
+    double samplingRate = currentSummary.getSamplingRate();
+    int frameOffset = currentSummary.getFrameOffset();
+
+    g.setPaint(waveColor);
+    long frame = -1;
+    for (int x = left; x < right; x++) {
+      double nextTick = (x + 1) * pixelToMidi;
+      if (nextTick <= startTick) {
+        continue;
+      }
+      if (frame < 0) {
+        double tick = Math.max(startTick, x * pixelToMidi);
+        frame = toFrame(currentTimeMap, tick, samplingRate, frameOffset);
+      }
+      long nextFrame = toFrame(currentTimeMap, nextTick, samplingRate, frameOffset);
+      int level = WaveformSummary.chooseLevel(nextFrame - frame);
+      if (currentSummary.getRange(level, frame, nextFrame - 1, range)) {
+        int top = middle - Math.round(Math.min(1F, range[1]) * halfHeight);
+        int bottom = middle - Math.round(Math.max(-1F, range[0]) * halfHeight);
+        g.drawLine(x, top, x, bottom);
+      } else if (frame >= drawnFrames) {
+        // nothing recorded beyond this point.
+        break;
+      }
+      frame = nextFrame;
+    }
+    g.setPaint(originalPaint);
+  }
+
+  private long toFrame(TempoTrack.TimeMap map, double tick, double samplingRate, int frameOffset) {
+    return Math.round(map.getTimeOffset(tick) * samplingRate) + frameOffset;
+  }
+}